@@ -0,0 +1,152 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.internal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A snapshot of the data loaded from the BOQA input files, stored on disk using Java serialization, so that later
+ * starts can skip parsing the input files. Each snapshot records the format version and a fingerprint of the input
+ * files it was created from, and is ignored if either doesn't match.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+final class BoqaSnapshot
+{
+    /** Must be increased whenever the content of the snapshot changes. */
+    private static final int FORMAT_VERSION = 1;
+
+    private final File file;
+
+    private final String fingerprint;
+
+    /**
+     * Simple constructor.
+     *
+     * @param file where the snapshot is stored
+     * @param fingerprint identifies the input files, as computed by {@link #fingerprint(InputStream...)}
+     */
+    BoqaSnapshot(File file, String fingerprint)
+    {
+        this.file = file;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Reads the snapshot, if it exists and was created from the same input files.
+     *
+     * @return the stored objects, in the order they were written, or {@code null} if there is no valid snapshot
+     * @throws IOException if the snapshot exists, but cannot be read
+     * @throws ClassNotFoundException if the snapshot references classes that no longer exist
+     */
+    List<Object> read() throws IOException, ClassNotFoundException
+    {
+        if (!this.file.isFile()) {
+            return null;
+        }
+        try (ObjectInputStream in =
+            new ObjectInputStream(new BufferedInputStream(new FileInputStream(this.file)))) {
+            if (in.readInt() != FORMAT_VERSION || !this.fingerprint.equals(in.readUTF())) {
+                return null;
+            }
+            int count = in.readInt();
+            List<Object> result = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                result.add(in.readObject());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Stores a new snapshot, replacing the previous one. The snapshot is first written to a temporary file, so that a
+     * failure doesn't leave a partial snapshot behind.
+     *
+     * @param contents the objects to store, must be serializable
+     * @throws IOException if writing the snapshot fails
+     */
+    void write(Object... contents) throws IOException
+    {
+        File parent = this.file.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException("Cannot create the snapshot directory " + parent);
+        }
+        File temporary = File.createTempFile(this.file.getName(), ".tmp", parent);
+        try {
+            try (ObjectOutputStream out =
+                new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(this.fingerprint);
+                out.writeInt(contents.length);
+                for (Object o : contents) {
+                    out.writeObject(o);
+                }
+            }
+            Files.move(temporary.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary.toPath());
+        }
+    }
+
+    /**
+     * Computes a fingerprint of the input files, changing whenever their content changes.
+     *
+     * @param inputs the content of the input files; the streams are consumed and closed
+     * @return a hexadecimal digest of the inputs
+     * @throws IOException if reading the inputs fails
+     */
+    static String fingerprint(InputStream... inputs) throws IOException
+    {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            // Every Java platform must support SHA-256
+            throw new IOException(ex);
+        }
+        byte[] buffer = new byte[8192];
+        for (InputStream input : inputs) {
+            if (input == null) {
+                throw new IOException("Missing input file");
+            }
+            try (InputStream in = new DigestInputStream(input, digest)) {
+                while (in.read(buffer) >= 0) {
+                    // Just consume the stream, the digest is updated while reading
+                }
+            }
+        }
+        return new BigInteger(1, digest.digest()).toString(16);
+    }
+}
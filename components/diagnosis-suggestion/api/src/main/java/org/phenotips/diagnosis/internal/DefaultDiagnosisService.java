@@ -18,12 +18,14 @@
 package org.phenotips.diagnosis.internal;
 
 import org.phenotips.diagnosis.DiagnosisService;
+import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
 import org.xwiki.environment.Environment;
 
 import java.io.File;
@@ -31,22 +33,26 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
 
 import javax.inject.Inject;
+import javax.inject.Named;
 import javax.inject.Singleton;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
+import ontologizer.association.AssociationContainer;
+import ontologizer.go.Ontology;
 import ontologizer.go.Term;
 import ontologizer.types.ByteString;
 import sonumina.boqa.calculation.BOQA;
@@ -54,7 +60,10 @@
 
 /**
  * An implementation of {@link DiagnosisService} using BOQA, see <a
- * href="http://bioinformatics.oxfordjournals.org/content/28/19/2502.abstract">this article</a>.
+ * href="http://bioinformatics.oxfordjournals.org/content/28/19/2502.abstract">this article</a>. The marginals of a
+ * diagnosis request are computed using several threads, taken from a budget shared by all the concurrent requests, so
+ * that a busy server isn't overloaded with threads. The data parsed from the BOQA input files is stored in a snapshot
+ * in the permanent directory, so that later starts don't have to parse the input files again.
  *
  * @since 1.1M1
  * @version $Id$
@@ -63,12 +72,50 @@
 @Component
 public class DefaultDiagnosisService implements DiagnosisService, Initializable
 {
+    private static final String CONFIGURATION_PREFIX = "phenotips.diagnosis.";
+
+    private static final String ANNOTATION_FILE = "new_phenotype.gz";
+
+    private static final String VOCABULARY_FILE = "hp.obo.gz";
+
+    private static final String OMIM_PREFIX = "MIM";
+
+    /** Disorders whose name starts with one of these characters are not suggested. */
+    private static final String SKIPPED_PREFIXES = "*+^";
+
+    /** The default number of recent diagnoses kept in the cache. */
+    private static final int DEFAULT_CACHE_SIZE = 100;
+
+    /** How long a cached diagnosis is reused, in milliseconds; the OMIM vocabulary may be reindexed meanwhile. */
+    private static final long CACHE_TIME_TO_LIVE = 60 * 60 * 1000L;
+
+    /** The default maximum number of threads used by a single request. */
+    private static final int DEFAULT_THREADS_PER_REQUEST = 4;
+
     @Inject
     private Logger logger;
 
+    /** Provides access to the configured number of threads. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** The threads available for computing marginals, shared by all the concurrent requests. */
+    private Semaphore threads;
+
+    /** The maximum number of threads used by a single request. */
+    private int threadsPerRequest;
+
     private BOQA boqa;
 
-    private Map<Integer, ByteString> omimMap;
+    /** The BOQA indexes of the OMIM disorders; the other disorders (ORPHANET, DECIPHER) are never suggested. */
+    private int[] omimItems;
+
+    /** The identifiers of the OMIM disorders, in the same order as {@link #omimItems}, e.g. {@code 100050}. */
+    private String[] omimIds;
+
+    /** Recent diagnoses, keyed by the normalized phenotypes and the limit; synchronized on itself. */
+    private Map<String, CachedDiagnosis> recentDiagnoses;
 
     @Inject
     private VocabularyManager vocabulary;
@@ -82,6 +129,12 @@ public class DefaultDiagnosisService implements DiagnosisService, Initializable
     @Override
     public void initialize() throws InitializationException
     {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int maxThreads = getConfiguredValue("maxThreads", processors);
+        this.threadsPerRequest = Math.min(maxThreads,
+            getConfiguredValue("threadsPerRequest", Math.min(DEFAULT_THREADS_PER_REQUEST, processors)));
+        this.threads = new Semaphore(maxThreads);
+
         // Initialize boqa
         this.boqa = new BOQA();
         this.boqa.setConsiderFrequenciesOnly(false);
@@ -92,36 +145,50 @@ public void initialize() throws InitializationException
         this.boqa.setMaxFrequencyTerms(2);
         this.boqa.setPrecalculateJaccard(false);
 
-        String annotationPath = null;
-        String vocabularyPath = null;
-        try {
-            annotationPath =
-                stream2file(BOQA.class.getClassLoader().getResourceAsStream("new_phenotype.gz"), "annotation")
-                    .getPath();
-            vocabularyPath =
-                stream2file(BOQA.class.getClassLoader().getResourceAsStream("hp.obo.gz"), "ontology").getPath();
-        } catch (IOException e) {
-            throw new InitializationException(e.getMessage());
+        // Load the data, from the snapshot stored by a previous start if it is still valid
+        Ontology graph;
+        AssociationContainer associations;
+        BoqaSnapshot snapshot = getSnapshot();
+        List<Object> data = readSnapshot(snapshot);
+        if (data != null) {
+            graph = (Ontology) data.get(0);
+            associations = (AssociationContainer) data.get(1);
+        } else {
+            loadDataFiles();
+            graph = this.utils.getGraph();
+            associations = this.utils.getDataAssociation();
+            writeSnapshot(snapshot, graph, associations);
         }
 
-        // Load datafiles
-        try {
-            utils.loadDataFiles(vocabularyPath, annotationPath);
-        } catch (InterruptedException e) {
-            throw new InitializationException(e.getMessage());
-        } catch (IOException e) {
-            throw new InitializationException(e.getMessage());
-        }
+        this.boqa.setup(graph, associations);
 
-        this.boqa.setup(utils.getGraph(), utils.getDataAssociation());
+        // Set up our index -> OMIM mapping by flipping the OMIM -> Index mapping in boqa, ignoring non-OMIM diseases
+        Map<Integer, String> omimMap = new TreeMap<>();
+        for (Map.Entry<ByteString, Integer> item : this.boqa.item2Index.entrySet()) {
+            String termId = String.valueOf(item.getKey());
+            if ("OMIM".equals(StringUtils.substringBefore(termId, ":"))) {
+                omimMap.put(item.getValue(), StringUtils.substringAfter(termId, ":"));
+            }
+        }
+        this.omimItems = new int[omimMap.size()];
+        this.omimIds = new String[omimMap.size()];
+        int i = 0;
+        for (Map.Entry<Integer, String> item : omimMap.entrySet()) {
+            this.omimItems[i] = item.getKey();
+            this.omimIds[i++] = item.getValue();
+        }
 
-        // Set up our index -> OMIM mapping by flipping the OMIM -> Index mapping in boqa
-        Set<Map.Entry<ByteString, Integer>> omimtonum = this.boqa.item2Index.entrySet();
-        this.omimMap = new HashMap<Integer, ByteString>(omimtonum.size());
+        final int cacheSize = getConfiguredValue("cacheSize", DEFAULT_CACHE_SIZE);
+        this.recentDiagnoses = new LinkedHashMap<String, CachedDiagnosis>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
 
-        for (Map.Entry<ByteString, Integer> item : omimtonum) {
-            this.omimMap.put(item.getValue(), item.getKey());
-        }
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedDiagnosis> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
     }
 
     @Override
@@ -129,6 +196,12 @@ public List<VocabularyTerm> getDiagnosis(List<String> phenotypes, List<String> n
     {
         // TODO: use the `nonstandardPhenotypes` argument
 
+        String cacheKey = getCacheKey(phenotypes, limit);
+        List<VocabularyTerm> results = getCachedDiagnosis(cacheKey);
+        if (results != null) {
+            return results;
+        }
+
         Observations o = new Observations();
         o.observations = new boolean[this.boqa.getOntology().getNumberOfTerms()];
         boolean searchIsEmpty = true;
@@ -144,49 +217,64 @@ public List<VocabularyTerm> getDiagnosis(List<String> phenotypes, List<String> n
         }
 
         // Get marginals
-        final BOQA.Result res = this.boqa.assignMarginals(o, false, 1);
+        int threadCount = acquireThreads();
+        final BOQA.Result res;
+        try {
+            res = this.boqa.assignMarginals(o, false, threadCount);
+        } finally {
+            this.threads.release(threadCount);
+        }
 
-        // All of this is sorting diseases by marginals
-        Integer[] order = new Integer[res.size()];
-        for (int i = 0; i < order.length; i++) {
-            order[i] = i;
+        double[] marginals = new double[this.omimItems.length];
+        for (int i = 0; i < marginals.length; ++i) {
+            marginals[i] = res.getMarginal(this.omimItems[i]);
         }
 
-        Arrays.sort(order, new Comparator<Integer>()
-        {
-            @Override
-            public int compare(Integer o1, Integer o2)
-            {
-                if (res.getMarginal(o1) < res.getMarginal(o2)) {
-                    return 1;
-                }
-                if (res.getMarginal(o1) > res.getMarginal(o2)) {
-                    return -1;
-                }
-                return 0;
+        // Only the best diseases are sorted, and resolved in batches; more are selected only if some of them are
+        // skipped, which is rare
+        results = new ArrayList<VocabularyTerm>();
+        int processed = 0;
+        int selected = limit;
+        while (results.size() < limit && processed < marginals.length) {
+            int[] best = selectTop(marginals, selected);
+            List<String> ids = new ArrayList<>(best.length - processed);
+            for (int i = processed; i < best.length; ++i) {
+                ids.add(this.omimIds[best[i]]);
             }
-        });
+            addSuggestions(ids, results, limit);
+            processed = best.length;
+            selected = selected > marginals.length / 2 ? marginals.length : selected * 2;
+        }
 
-        // Get top limit results
-        List<VocabularyTerm> results = new ArrayList<VocabularyTerm>();
-        for (int id : order) {
-            if (results.size() >= limit) {
-                break;
-            }
+        this.logger.debug(String.valueOf(results));
 
-            String termId = String.valueOf(this.omimMap.get(id));
-            String vocabularyId = StringUtils.substringBefore(termId, ":");
+        cacheDiagnosis(cacheKey, results);
+        return new ArrayList<>(results);
+    }
 
-            // ignore non-OMIM diseases (BOQA has ORPHANIET and DECIPHER as well)
-            if (!"OMIM".equals(vocabularyId)) {
-                continue;
+    /**
+     * Resolves a batch of OMIM disorders, and adds to the results the ones that can be suggested, in order, until the
+     * limit is reached.
+     *
+     * @param ids the identifiers of the disorders to resolve, best first
+     * @param results the list where suggestions are added
+     * @param limit the maximum number of results
+     */
+    private void addSuggestions(List<String> ids, List<VocabularyTerm> results, int limit)
+    {
+        Map<String, VocabularyTerm> terms = new HashMap<>();
+        Vocabulary omim = this.vocabulary.getVocabulary(OMIM_PREFIX);
+        if (omim != null) {
+            for (VocabularyTerm term : omim.getTerms(ids)) {
+                terms.put(StringUtils.removeStart(term.getId(), OMIM_PREFIX + ':'), term);
             }
-
-            // Strip 'O' in "OMIM"
-            termId = termId.substring(1);
-
-            VocabularyTerm term = this.vocabulary.resolveTerm(termId);
-
+        }
+        for (String id : ids) {
+            if (results.size() >= limit) {
+                break;
+            }
+            String termId = OMIM_PREFIX + ':' + id;
+            VocabularyTerm term = omim != null ? terms.get(id) : this.vocabulary.resolveTerm(termId);
             if (term == null) {
                 this.logger.warn(String.format(
                     "Unable to resolve OMIM term '%s' due to outdated OMIM vocabulary.", termId));
@@ -194,18 +282,226 @@ public int compare(Integer o1, Integer o2)
             }
 
             // Do not suggest diseases that start with *, +, and ^
-            Pattern pattern = Pattern.compile("[*+^]");
-            if (pattern.matcher(term.getName().substring(0, 1)).matches()) {
+            String name = term.getName();
+            if (StringUtils.isEmpty(name) || SKIPPED_PREFIXES.indexOf(name.charAt(0)) >= 0) {
                 continue;
             }
 
             results.add(term);
+        }
+    }
 
+    /**
+     * Selects the indexes of the highest values in an array, without sorting the whole array. Ties are broken in favor
+     * of the lower index.
+     *
+     * @param values the values to select from
+     * @param k how many values to select
+     * @return the indexes of the highest {@code k} values, or of all values if there are fewer, highest value first
+     */
+    static int[] selectTop(double[] values, int k)
+    {
+        int size = Math.max(0, Math.min(k, values.length));
+        // A min-heap of the best values found so far, with the worst of them at the top
+        int[] heap = new int[size];
+        int count = 0;
+        for (int i = 0; i < values.length && size > 0; ++i) {
+            if (count < size) {
+                heap[count] = i;
+                siftUp(heap, count++, values);
+            } else if (isBetter(i, heap[0], values)) {
+                heap[0] = i;
+                siftDown(heap, 0, count, values);
+            }
+        }
+        // Repeatedly take out the worst remaining value, filling the result from the end
+        int[] result = new int[count];
+        for (int last = count - 1; last >= 0; --last) {
+            result[last] = heap[0];
+            heap[0] = heap[last];
+            siftDown(heap, 0, last, values);
         }
+        return result;
+    }
 
-        this.logger.debug(String.valueOf(results));
+    private static boolean isBetter(int a, int b, double[] values)
+    {
+        return values[a] > values[b] || values[a] == values[b] && a < b;
+    }
 
-        return results;
+    private static void siftUp(int[] heap, int position, double[] values)
+    {
+        int child = position;
+        while (child > 0) {
+            int parent = (child - 1) / 2;
+            if (!isBetter(heap[parent], heap[child], values)) {
+                break;
+            }
+            swap(heap, parent, child);
+            child = parent;
+        }
+    }
+
+    private static void siftDown(int[] heap, int position, int size, double[] values)
+    {
+        int parent = position;
+        while (2 * parent + 1 < size) {
+            int child = 2 * parent + 1;
+            if (child + 1 < size && isBetter(heap[child], heap[child + 1], values)) {
+                ++child;
+            }
+            if (!isBetter(heap[parent], heap[child], values)) {
+                break;
+            }
+            swap(heap, parent, child);
+            parent = child;
+        }
+    }
+
+    private static void swap(int[] heap, int i, int j)
+    {
+        int temp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = temp;
+    }
+
+    /**
+     * Builds the key of a request in the diagnosis cache, which doesn't depend on the order of the phenotypes or on
+     * duplicates.
+     *
+     * @param phenotypes the requested phenotypes
+     * @param limit the requested number of results
+     * @return the cache key
+     */
+    private String getCacheKey(List<String> phenotypes, int limit)
+    {
+        Set<String> normalized = new TreeSet<>();
+        for (String phenotype : phenotypes) {
+            if (StringUtils.isNotBlank(phenotype)) {
+                normalized.add(phenotype.trim());
+            }
+        }
+        return limit + "|" + StringUtils.join(normalized, ',');
+    }
+
+    private List<VocabularyTerm> getCachedDiagnosis(String key)
+    {
+        synchronized (this.recentDiagnoses) {
+            CachedDiagnosis cached = this.recentDiagnoses.get(key);
+            if (cached == null) {
+                return null;
+            }
+            if (System.currentTimeMillis() - cached.computedAt > CACHE_TIME_TO_LIVE) {
+                this.recentDiagnoses.remove(key);
+                return null;
+            }
+            return new ArrayList<>(cached.results);
+        }
+    }
+
+    private void cacheDiagnosis(String key, List<VocabularyTerm> results)
+    {
+        synchronized (this.recentDiagnoses) {
+            this.recentDiagnoses.put(key, new CachedDiagnosis(new ArrayList<>(results)));
+        }
+    }
+
+    /**
+     * Takes as many threads as allowed for one request from the shared budget, waiting only for the first one, so that
+     * requests made while the server is busy run with fewer threads instead of waiting.
+     *
+     * @return the number of threads taken, at least {@code 1}; they must be given back once the request is done
+     */
+    private int acquireThreads()
+    {
+        this.threads.acquireUninterruptibly();
+        int result = 1;
+        while (result < this.threadsPerRequest && this.threads.tryAcquire()) {
+            ++result;
+        }
+        return result;
+    }
+
+    private int getConfiguredValue(String name, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(CONFIGURATION_PREFIX + name, Integer.class);
+        return value == null || value <= 0 ? defaultValue : value;
+    }
+
+    private void loadDataFiles() throws InitializationException
+    {
+        String annotationPath = null;
+        String vocabularyPath = null;
+        try {
+            annotationPath = stream2file(BOQA.class.getClassLoader().getResourceAsStream(ANNOTATION_FILE), "annotation")
+                .getPath();
+            vocabularyPath =
+                stream2file(BOQA.class.getClassLoader().getResourceAsStream(VOCABULARY_FILE), "ontology").getPath();
+        } catch (IOException e) {
+            throw new InitializationException(e.getMessage());
+        }
+
+        // Load datafiles
+        try {
+            this.utils.loadDataFiles(vocabularyPath, annotationPath);
+        } catch (InterruptedException e) {
+            throw new InitializationException(e.getMessage());
+        } catch (IOException e) {
+            throw new InitializationException(e.getMessage());
+        }
+    }
+
+    /**
+     * Identifies the snapshot matching the current input files.
+     *
+     * @return the snapshot, or {@code null} if snapshots cannot be used
+     */
+    private BoqaSnapshot getSnapshot()
+    {
+        File directory = this.env.getPermanentDirectory();
+        if (directory == null) {
+            return null;
+        }
+        try {
+            ClassLoader loader = BOQA.class.getClassLoader();
+            String fingerprint = BoqaSnapshot.fingerprint(loader.getResourceAsStream(ANNOTATION_FILE),
+                loader.getResourceAsStream(VOCABULARY_FILE));
+            return new BoqaSnapshot(new File(new File(directory, "boqa"), "snapshot.ser"), fingerprint);
+        } catch (IOException ex) {
+            this.logger.warn("Failed to read the BOQA input files: {}", ex.getMessage());
+        }
+        return null;
+    }
+
+    private List<Object> readSnapshot(BoqaSnapshot snapshot)
+    {
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            List<Object> result = snapshot.read();
+            if (result != null && result.size() == 2 && result.get(0) instanceof Ontology
+                && result.get(1) instanceof AssociationContainer) {
+                return result;
+            }
+        } catch (IOException | ClassNotFoundException ex) {
+            // The snapshot is outdated or broken, it will be replaced
+            this.logger.info("Ignoring invalid BOQA snapshot: {}", ex.getMessage());
+        }
+        return null;
+    }
+
+    private void writeSnapshot(BoqaSnapshot snapshot, Ontology graph, AssociationContainer associations)
+    {
+        if (snapshot == null) {
+            return;
+        }
+        try {
+            snapshot.write(graph, associations);
+        } catch (IOException ex) {
+            this.logger.warn("Failed to store the BOQA snapshot, the input files will be parsed again on the next"
+                + " start: {}", ex.getMessage());
+        }
     }
 
     private boolean addTermAndAncestors(Term t, Observations o)
@@ -244,4 +540,17 @@ private File stream2file(InputStream in, String nameRoot) throws IOException
 
         return tempFile;
     }
+
+    /** A diagnosis stored in the cache, along with the time when it was computed. */
+    private static final class CachedDiagnosis
+    {
+        private final long computedAt = System.currentTimeMillis();
+
+        private final List<VocabularyTerm> results;
+
+        CachedDiagnosis(List<VocabularyTerm> results)
+        {
+            this.results = results;
+        }
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BoqaSnapshotTest
+{
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writtenSnapshotIsReadBack() throws Exception
+    {
+        File file = new File(this.folder.getRoot(), "boqa/snapshot.ser");
+        new BoqaSnapshot(file, "abc").write("graph", Arrays.asList(1, 2, 3));
+
+        List<Object> result = new BoqaSnapshot(file, "abc").read();
+        Assert.assertEquals(2, result.size());
+        Assert.assertEquals("graph", result.get(0));
+        Assert.assertEquals(Arrays.asList(1, 2, 3), result.get(1));
+        Assert.assertEquals(1, file.getParentFile().list().length);
+    }
+
+    @Test
+    public void snapshotOfOtherInputsIsIgnored() throws Exception
+    {
+        File file = this.folder.newFile();
+        new BoqaSnapshot(file, "abc").write("graph");
+        Assert.assertNull(new BoqaSnapshot(file, "def").read());
+    }
+
+    @Test
+    public void missingSnapshotIsIgnored() throws Exception
+    {
+        Assert.assertNull(new BoqaSnapshot(new File(this.folder.getRoot(), "missing"), "abc").read());
+    }
+
+    @Test(expected = IOException.class)
+    public void brokenSnapshotThrowsException() throws Exception
+    {
+        File file = this.folder.newFile();
+        FileUtils.writeStringToFile(file, "not a snapshot");
+        new BoqaSnapshot(file, "abc").read();
+    }
+
+    @Test
+    public void fingerprintChangesWithTheInputs() throws Exception
+    {
+        String original = BoqaSnapshot.fingerprint(new ByteArrayInputStream("abc".getBytes("UTF-8")),
+            new ByteArrayInputStream("def".getBytes("UTF-8")));
+        Assert.assertEquals(original, BoqaSnapshot.fingerprint(new ByteArrayInputStream("abc".getBytes("UTF-8")),
+            new ByteArrayInputStream("def".getBytes("UTF-8"))));
+        Assert.assertNotEquals(original, BoqaSnapshot.fingerprint(
+            new ByteArrayInputStream("abc".getBytes("UTF-8")), new ByteArrayInputStream("deg".getBytes("UTF-8"))));
+    }
+
+    @Test(expected = IOException.class)
+    public void fingerprintOfMissingInputThrowsException() throws Exception
+    {
+        BoqaSnapshot.fingerprint(new ByteArrayInputStream(new byte[0]), null);
+    }
+}
@@ -18,6 +18,7 @@
 package org.phenotips.diagnosis.internal;
 
 import org.phenotips.diagnosis.DiagnosisService;
+import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyManager;
 import org.phenotips.vocabulary.VocabularyTerm;
 
@@ -30,8 +31,12 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 import org.junit.Rule;
@@ -41,13 +46,16 @@
 
 import sonumina.boqa.calculation.BOQA;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyCollectionOf;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
-import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 /**
@@ -114,18 +122,27 @@ public void returnsCorrectDiagnosis() throws ComponentLookupException, IOExcepti
         doReturn(tempSpy).when(utilsEnv).getTemporaryDirectory();
         workingUtilsComponent.loadDataFiles(vocabularyPath, annotationPath);
 
-        doAnswer(new Answer<VocabularyTerm>()
+        Vocabulary omim = mock(Vocabulary.class);
+        doReturn(omim).when(vocabulary).getVocabulary("MIM");
+        final AtomicInteger requestedTerms = new AtomicInteger();
+        doAnswer(new Answer<Set<VocabularyTerm>>()
         {
             @Override
-            public VocabularyTerm answer(InvocationOnMock invocationOnMock) throws Throwable
+            public Set<VocabularyTerm> answer(InvocationOnMock invocationOnMock) throws Throwable
             {
-                String id = (String) invocationOnMock.getArguments()[0];
-                VocabularyTerm term = mock(VocabularyTerm.class);
-                doReturn(id).when(term).getId();
-                doReturn("test").when(term).getName();
-                return term;
+                @SuppressWarnings("unchecked")
+                Collection<String> ids = (Collection<String>) invocationOnMock.getArguments()[0];
+                Set<VocabularyTerm> result = new LinkedHashSet<>();
+                for (String id : ids) {
+                    VocabularyTerm term = mock(VocabularyTerm.class);
+                    doReturn("MIM:" + id).when(term).getId();
+                    doReturn("test").when(term).getName();
+                    result.add(term);
+                }
+                requestedTerms.addAndGet(ids.size());
+                return result;
             }
-        }).when(vocabulary).resolveTerm(anyString());
+        }).when(omim).getTerms(anyCollectionOf(String.class));
 
         doReturn(tempSpy).when(env).getTemporaryDirectory();
         doReturn(workingUtilsComponent.getGraph()).when(utils).getGraph();
@@ -145,7 +162,24 @@ public VocabularyTerm answer(InvocationOnMock invocationOnMock) throws Throwable
             assertTrue(diagnosisIds.containsAll(disorderIds.get(i)));
             i++;
         }
-        verify(vocabulary, times(limit * (i - invalidPhenotypes))).resolveTerm(anyString());
+        assertEquals(limit * (i - invalidPhenotypes), requestedTerms.get());
+        verify(vocabulary, never()).resolveTerm(anyString());
+
+        // The same phenotypes, in a different order and with duplicates, are answered from the cache
+        List<VocabularyTerm> diagnoses = diagnosisService.getDiagnosis(
+            Arrays.asList("HP:0001287", "HP:0001417", "HP:0001287"), nonstandardPhenotypeSet, limit);
+        assertEquals(limit, diagnoses.size());
+        assertEquals(limit * (i - invalidPhenotypes), requestedTerms.get());
+    }
+
+    @Test
+    public void selectTopReturnsTheHighestValuesInOrder()
+    {
+        double[] values = new double[] { 0.1, 0.7, 0.3, 0.7, 0.0, 0.9, 0.2 };
+        assertArrayEquals(new int[] { 5, 1, 3 }, DefaultDiagnosisService.selectTop(values, 3));
+        assertArrayEquals(new int[] { 5, 1, 3, 2, 6, 0, 4 }, DefaultDiagnosisService.selectTop(values, 10));
+        assertArrayEquals(new int[0], DefaultDiagnosisService.selectTop(values, 0));
+        assertArrayEquals(new int[0], DefaultDiagnosisService.selectTop(new double[0], 3));
     }
 
     private File stream2file(InputStream in) throws IOException
@@ -0,0 +1,130 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.diagnosis.internal;
+
+import org.phenotips.vocabulary.VocabularyManager;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.environment.Environment;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures the latency of {@link DefaultDiagnosisService#getDiagnosis} depending on the number of threads used for
+ * computing the BOQA marginals, for a few observation sets of typical sizes. This isn't run as part of the unit tests;
+ * run it with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.phenotips.diagnosis.internal.DiagnosisServiceBenchmark}.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DiagnosisServiceBenchmark
+{
+    /** The number of threads used by each request. */
+    @Param({ "1", "2", "4", "8", "16", "32" })
+    public int threads;
+
+    /** Which observation set to use. */
+    @Param({ "small", "medium", "large" })
+    public String observations;
+
+    private DefaultDiagnosisService service;
+
+    private List<String> phenotypes;
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        Environment env = mock(Environment.class);
+        when(env.getTemporaryDirectory()).thenReturn(new File(System.getProperty("java.io.tmpdir")));
+        BoqaUtils utils = new BoqaUtils();
+        ReflectionUtils.setFieldValue(utils, "env", env);
+
+        VocabularyTerm term = mock(VocabularyTerm.class);
+        when(term.getName()).thenReturn("benchmark");
+        VocabularyManager vocabulary = mock(VocabularyManager.class);
+        when(vocabulary.resolveTerm(anyString())).thenReturn(term);
+
+        ConfigurationSource configuration = mock(ConfigurationSource.class);
+        when(configuration.getProperty("phenotips.diagnosis.threadsPerRequest", Integer.class))
+            .thenReturn(this.threads);
+        when(configuration.getProperty("phenotips.diagnosis.maxThreads", Integer.class)).thenReturn(this.threads);
+
+        this.service = new DefaultDiagnosisService();
+        ReflectionUtils.setFieldValue(this.service, "logger", LoggerFactory.getLogger(DefaultDiagnosisService.class));
+        ReflectionUtils.setFieldValue(this.service, "env", env);
+        ReflectionUtils.setFieldValue(this.service, "utils", utils);
+        ReflectionUtils.setFieldValue(this.service, "vocabulary", vocabulary);
+        ReflectionUtils.setFieldValue(this.service, "configuration", configuration);
+        this.service.initialize();
+
+        if ("small".equals(this.observations)) {
+            this.phenotypes = Arrays.asList("HP:0001417", "HP:0001287");
+        } else if ("medium".equals(this.observations)) {
+            this.phenotypes =
+                Arrays.asList("HP:0000028", "HP:0000049", "HP:0000202", "HP:0000204", "HP:0000316", "HP:0001869");
+        } else {
+            this.phenotypes = Arrays.asList("HP:0000028", "HP:0000049", "HP:0000202", "HP:0000204", "HP:0000316",
+                "HP:0001869", "HP:0000707", "HP:0001939", "HP:0003811", "HP:0001417", "HP:0001287", "HP:0001419",
+                "HP:0001005", "HP:0011495", "HP:0000502", "HP:0000534");
+        }
+    }
+
+    @Benchmark
+    public List<VocabularyTerm> getDiagnosis()
+    {
+        return this.service.getDiagnosis(this.phenotypes, Collections.<String>emptyList(), 20);
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(DiagnosisServiceBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -49,13 +49,7 @@
      */
     public SheetAssembler(Set<String> enabledFields, List<Patient> patients) throws Exception
     {
-        DataToCellConverter converter = new DataToCellConverter();
-
-        /* Some sections require setup, which need to be run here. */
-        converter.phenotypeSetup(enabledFields);
-        converter.prenatalPhenotypeSetup(enabledFields);
-        converter.genesSetup(enabledFields);
-        converter.variantsSetup(enabledFields);
+        DataToCellConverter converter = createConverter(enabledFields);
 
         /* Headers MUST be generated first. Some of them contain setup code for the body */
         List<DataSection> headers = generateHeader(converter, enabledFields);
@@ -63,37 +57,82 @@ public SheetAssembler(Set<String> enabledFields, List<Patient> patients) throws
 
         List<DataSection> patientsCombined = new LinkedList<DataSection>();
         for (List<DataSection> patientSections : bodySections) {
-            for (DataSection section : patientSections) {
-                section.finalizeToMatrix();
-                Styler.disallowBodyStyles(section);
-                Styler.extendStyleHorizontally(section, StyleOption.FEATURE_SEPARATOR, StyleOption.YES_NO_SEPARATOR);
-                Styler.styleSectionBorder(section, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
-            }
-
-            DataSection assembled = assembleSectionsX(patientSections, true);
-            Styler.styleSectionBottom(assembled, StyleOption.PATIENT_BORDER);
-            patientsCombined.add(assembled);
+            patientsCombined.add(assemblePatient(patientSections));
         }
 
+        DataSection bodyCombined = assembleSectionsY(patientsCombined, false);
+        DataSection headerCombined = assembleHeader(headers);
+
+        this.headerHeight = headerCombined.getMaxY() + 1;
+        this.oneSection = assembleSectionsY(Arrays.asList(headerCombined, bodyCombined), true);
+
+        /* Extend the section borders all the way to the bottom of the sheet */
+        Styler
+            .extendStyleVertically(this.oneSection, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+    }
+
+    /**
+     * Creates a converter and runs the setup needed by some of the sections.
+     *
+     * @param enabledFields set of fields for which data should be exported
+     * @return a converter ready to generate the header
+     * @throws Exception if the setup fails
+     */
+    static DataToCellConverter createConverter(Set<String> enabledFields) throws Exception
+    {
+        DataToCellConverter converter = new DataToCellConverter();
+
+        /* Some sections require setup, which need to be run here. */
+        converter.phenotypeSetup(enabledFields);
+        converter.prenatalPhenotypeSetup(enabledFields);
+        converter.genesSetup(enabledFields);
+        converter.variantsSetup(enabledFields);
+        return converter;
+    }
+
+    /**
+     * Combines the header sections into one styled section, placed at the top of the sheet.
+     *
+     * @param headers the header sections, as returned by {@link #generateHeader(DataToCellConverter, Set)}
+     * @return the combined header, finalized to a matrix
+     * @throws Exception if the sections cannot be combined
+     */
+    static DataSection assembleHeader(List<DataSection> headers) throws Exception
+    {
         /* Inserting styling calls here is fairly unavoidable. Also don't forget to merge BEFORE styling. */
         for (DataSection header : headers) {
             header.finalizeToMatrix();
             header.mergeX();
             Styler.styleSectionBorder(header, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
         }
-
-        DataSection bodyCombined = assembleSectionsY(patientsCombined, false);
         DataSection headerCombined = assembleSectionsX(headers, true);
 
         /* Add style through functions. Use only with finalized sections. */
         Styler.styleSectionBottom(headerCombined, StyleOption.HEADER_BOTTOM);
+        return headerCombined;
+    }
 
-        this.headerHeight = headerCombined.getMaxY() + 1;
-        this.oneSection = assembleSectionsY(Arrays.asList(headerCombined, bodyCombined), true);
+    /**
+     * Combines the sections of one patient into one styled section, with coordinates relative to the top of the
+     * patient's rows.
+     *
+     * @param patientSections the sections generated for the patient, as returned by
+     *            {@link #generatePatientSections(DataToCellConverter, Patient)}
+     * @return the combined section, finalized to a matrix
+     * @throws Exception if the sections cannot be combined
+     */
+    static DataSection assemblePatient(List<DataSection> patientSections) throws Exception
+    {
+        for (DataSection section : patientSections) {
+            section.finalizeToMatrix();
+            Styler.disallowBodyStyles(section);
+            Styler.extendStyleHorizontally(section, StyleOption.FEATURE_SEPARATOR, StyleOption.YES_NO_SEPARATOR);
+            Styler.styleSectionBorder(section, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+        }
 
-        /* Extend the section borders all the way to the bottom of the sheet */
-        Styler
-            .extendStyleVertically(this.oneSection, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+        DataSection assembled = assembleSectionsX(patientSections, true);
+        Styler.styleSectionBottom(assembled, StyleOption.PATIENT_BORDER);
+        return assembled;
     }
 
     /**
@@ -110,39 +149,53 @@ private List<List<DataSection>> generateBody(DataToCellConverter converter, List
             if (patient == null) {
                 continue;
             }
-            List<DataSection> patientSections = new LinkedList<DataSection>();
-            patientSections.add(converter.idBody(patient));
-            patientSections.add(converter.documentInfoBody(patient));
-            patientSections.add(converter.patientInfoBody(patient));
-            patientSections.add(converter.familyHistoryBody(patient));
-            patientSections.add(converter.prenatalPerinatalHistoryBody(patient));
-            patientSections.add(converter.prenatalPhenotypeBody(patient));
-            patientSections.add(converter.medicalHistoryBody(patient));
-            patientSections.add(converter.isNormalBody(patient));
-            patientSections.add(converter.phenotypeBody(patient));
-            patientSections.add(converter.genesBody(patient));
-            patientSections.add(converter.variantsBody(patient));
-            patientSections.add(converter.disordersBody(patient));
-            patientSections.add(converter.isSolvedBody(patient));
-
-            /* Null section filter */
-            Iterator<DataSection> it = patientSections.iterator();
-            while (it.hasNext()) {
-                DataSection i = it.next();
-                if (i == null) {
-                    it.remove();
-                }
-            }
-            allSections.add(patientSections);
+            allSections.add(generatePatientSections(converter, patient));
         }
         return allSections;
     }
 
+    /**
+     * Generates the not null body sections for one patient.
+     *
+     * @param converter the converter used for generating the header
+     * @param patient the patient to export, not null
+     * @return list of generated, not null {@link org.phenotips.export.internal.DataSection}s
+     * @throws Exception if converting the patient data fails
+     */
+    static List<DataSection> generatePatientSections(DataToCellConverter converter, Patient patient)
+        throws Exception
+    {
+        List<DataSection> patientSections = new LinkedList<DataSection>();
+        patientSections.add(converter.idBody(patient));
+        patientSections.add(converter.documentInfoBody(patient));
+        patientSections.add(converter.patientInfoBody(patient));
+        patientSections.add(converter.familyHistoryBody(patient));
+        patientSections.add(converter.prenatalPerinatalHistoryBody(patient));
+        patientSections.add(converter.prenatalPhenotypeBody(patient));
+        patientSections.add(converter.medicalHistoryBody(patient));
+        patientSections.add(converter.isNormalBody(patient));
+        patientSections.add(converter.phenotypeBody(patient));
+        patientSections.add(converter.genesBody(patient));
+        patientSections.add(converter.variantsBody(patient));
+        patientSections.add(converter.disordersBody(patient));
+        patientSections.add(converter.isSolvedBody(patient));
+
+        /* Null section filter */
+        Iterator<DataSection> it = patientSections.iterator();
+        while (it.hasNext()) {
+            DataSection i = it.next();
+            if (i == null) {
+                it.remove();
+            }
+        }
+        return patientSections;
+    }
+
     /**
      * Same as {@link #generateBody(DataToCellConverter, java.util.List)} but for header sections. Most of header
      * functions from {@link org.phenotips.export.internal.DataToCellConverter} contain some set up code.
      */
-    private List<DataSection> generateHeader(DataToCellConverter converter, Set<String> enabledFields) throws Exception
+    static List<DataSection> generateHeader(DataToCellConverter converter, Set<String> enabledFields) throws Exception
     {
         List<DataSection> headerSections = new LinkedList<DataSection>();
         headerSections.add(converter.idHeader(enabledFields));
@@ -170,7 +223,7 @@ private List<DataSection> generateHeader(DataToCellConverter converter, Set<Stri
     }
 
     /** Combines the passed in sections into one large section, keeping track of positioning along the x axis. */
-    private DataSection assembleSectionsX(List<DataSection> sections, Boolean finalize) throws Exception
+    static DataSection assembleSectionsX(List<DataSection> sections, Boolean finalize) throws Exception
     {
         DataSection combinedSection = new DataSection();
 
@@ -193,7 +246,7 @@ private DataSection assembleSectionsX(List<DataSection> sections, Boolean finali
     }
 
     /** Combines the passed in sections into one large section, keeping track of positioning along the y axis. */
-    private DataSection assembleSectionsY(List<DataSection> sections, Boolean finalize) throws Exception
+    static DataSection assembleSectionsY(List<DataSection> sections, Boolean finalize) throws Exception
     {
         DataSection combinedSection = new DataSection();
 
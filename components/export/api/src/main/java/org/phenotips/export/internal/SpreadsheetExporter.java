@@ -151,11 +151,24 @@ protected void commit(DataSection section, Sheet sheet)
     }
 
     protected void commitRows(DataSection section, Sheet sheet, Styler styler)
+    {
+        commitRows(section, sheet, styler, 0);
+    }
+
+    /**
+     * Commits cells row by row, and sets the row height, starting at a specific row of the sheet.
+     *
+     * @param section the section holding the cells to commit
+     * @param sheet a workbook sheet to which the cells from the section will be written
+     * @param styler the styler shared by all the cells in the workbook
+     * @param rowOffset the index of the sheet row where the first row of the section is written
+     */
+    protected void commitRows(DataSection section, Sheet sheet, Styler styler, int rowOffset)
     {
         DataCell[][] cells = section.getMatrix();
         Row row;
         for (Integer y = 0; y <= section.getMaxY(); y++) {
-            row = sheet.createRow(y);
+            row = sheet.createRow(y + rowOffset);
             Integer maxLines = 0;
 
             for (Integer x = 0; x <= section.getMaxX(); x++) {
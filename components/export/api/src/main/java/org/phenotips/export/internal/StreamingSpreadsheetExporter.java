@@ -0,0 +1,181 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.phenotips.data.Patient;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+
+/**
+ * A {@link SpreadsheetExporter} which writes the spreadsheet one patient at a time, instead of assembling all the
+ * patients into one big matrix first. Rows are written through a streaming workbook, which only keeps a small window of
+ * rows in memory and flushes the others to a temporary file, and column widths are estimated from the length of the
+ * exported values instead of measuring the rendered text of every cell. This way the memory needed does not grow with
+ * the number of exported patients.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+public class StreamingSpreadsheetExporter extends SpreadsheetExporter
+{
+    /** The number of rows kept in memory; rows above this window are flushed to disk and cannot be changed anymore. */
+    private static final int ROW_WINDOW_SIZE = 100;
+
+    /** The approximate width of one character of the default font, in units of 1/256th of a character width. */
+    private static final int CHARACTER_WIDTH = 210;
+
+    /** The maximum width of a column, matching the line length used when wrapping long values. */
+    private static final int MAX_COLUMN_WIDTH = DataToCellConverter.charactersPerLine * CHARACTER_WIDTH;
+
+    /** The length of the longest line found in each column so far, in characters. */
+    private List<Integer> columnLengths = new ArrayList<Integer>();
+
+    @Override
+    public void export(String[] enabledFieldsArray, List<Patient> patients, OutputStream outputStream)
+        throws Exception
+    {
+        try {
+            super.export(enabledFieldsArray, patients, outputStream);
+        } finally {
+            if (this.wBook instanceof SXSSFWorkbook) {
+                // Remove the temporary files holding the flushed rows
+                ((SXSSFWorkbook) this.wBook).dispose();
+            }
+        }
+    }
+
+    @Override
+    protected Workbook createNewWorkbook()
+    {
+        SXSSFWorkbook result = new SXSSFWorkbook(ROW_WINDOW_SIZE);
+        result.setCompressTempFiles(true);
+        return result;
+    }
+
+    /**
+     * Creates the main sheet in the workbook, and writes the header followed by each patient, as soon as the patient's
+     * cells are generated.
+     */
+    @Override
+    protected void processMainSheet(Set<String> enabledFields, List<Patient> patients) throws Exception
+    {
+        String sheetName = "main";
+        Sheet sheet = this.wBook.createSheet("Patient Sheet");
+        this.sheets.put(sheetName, sheet);
+        Styler styler = new Styler();
+
+        DataToCellConverter converter = SheetAssembler.createConverter(enabledFields);
+        /* Headers MUST be generated first. Some of them contain setup code for the body */
+        DataSection header = SheetAssembler.assembleHeader(SheetAssembler.generateHeader(converter, enabledFields));
+        /* The section borders are extended from the header all the way to the bottom of the sheet */
+        List<Set<StyleOption>> columnStyles =
+            Styler.findColumnStyles(header, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+        Styler.applyColumnStyles(header, columnStyles);
+
+        int rowOffset = commitBlock(header, sheet, styler, 0);
+        freezeHeader((short) rowOffset, sheet);
+
+        for (Patient patient : patients) {
+            if (patient == null) {
+                continue;
+            }
+            DataSection block =
+                SheetAssembler.assemblePatient(SheetAssembler.generatePatientSections(converter, patient));
+            Styler.applyColumnStyles(block, columnStyles);
+            rowOffset = commitBlock(block, sheet, styler, rowOffset);
+        }
+
+        setColumnWidths(sheet);
+    }
+
+    /**
+     * Writes the rows of a finalized section below the rows already written, and merges the cells that span several
+     * columns.
+     *
+     * @param section the section to write
+     * @param sheet the sheet where the rows are written
+     * @param styler the styler shared by all the cells in the workbook
+     * @param rowOffset the index of the first row to write
+     * @return the index of the row following the written section
+     */
+    protected int commitBlock(DataSection section, Sheet sheet, Styler styler, int rowOffset)
+    {
+        commitRows(section, sheet, styler, rowOffset);
+
+        DataCell[][] cells = section.getMatrix();
+        for (int y = 0; y <= section.getMaxY(); y++) {
+            for (int x = 0; x <= section.getMaxX(); x++) {
+                DataCell dataCell = cells[x][y];
+                if (dataCell == null) {
+                    continue;
+                }
+                if (dataCell.getMergeX() != null) {
+                    sheet.addMergedRegion(
+                        new CellRangeAddress(y + rowOffset, y + rowOffset, x, x + dataCell.getMergeX()));
+                } else {
+                    updateColumnLength(x, dataCell.getValue());
+                }
+            }
+        }
+        return rowOffset + section.getMaxY() + 1;
+    }
+
+    /**
+     * Sets the width of each column according to the longest line written in it, up to {@link #MAX_COLUMN_WIDTH}.
+     *
+     * @param sheet the sheet whose columns are resized
+     */
+    protected void setColumnWidths(Sheet sheet)
+    {
+        for (int col = 0; col < this.columnLengths.size(); col++) {
+            int length = this.columnLengths.get(col);
+            if (length > 0) {
+                // One extra character accounts for the cell padding
+                sheet.setColumnWidth(col, Math.min((length + 1) * CHARACTER_WIDTH, MAX_COLUMN_WIDTH));
+            }
+        }
+    }
+
+    private void updateColumnLength(int column, String value)
+    {
+        while (this.columnLengths.size() <= column) {
+            this.columnLengths.add(0);
+        }
+        int longestLine = 0;
+        int lineStart = 0;
+        while (lineStart <= value.length()) {
+            int lineEnd = value.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = value.length();
+            }
+            longestLine = Math.max(longestLine, lineEnd - lineStart);
+            lineStart = lineEnd + 1;
+        }
+        if (longestLine > this.columnLengths.get(column)) {
+            this.columnLengths.set(column, longestLine);
+        }
+    }
+}
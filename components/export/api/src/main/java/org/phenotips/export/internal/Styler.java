@@ -17,6 +17,7 @@
  */
 package org.phenotips.export.internal;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -208,17 +209,33 @@ public static void extendStyleHorizontally(DataSection section, StyleOption... s
      */
     public static void extendStyleVertically(DataSection section, StyleOption... styles)
         throws Exception
+    {
+        applyColumnStyles(section, findColumnStyles(section, styles));
+    }
+
+    /**
+     * Looks for the passed in styles in each column of the section, and returns, for each column, the styles found in
+     * the topmost cell having at least one of them. This is the first half of
+     * {@link #extendStyleVertically(DataSection, StyleOption...)}, useful when the styles must be extended over cells
+     * which are not part of the section, like rows written later to the spreadsheet.
+     *
+     * @param section cannot be null
+     * @param styles an array of styles to look for
+     * @return a list with one set of styles for each column of the section, empty if none of the styles was found
+     * @throws Exception if the section was not {@link DataSection#finalizeToMatrix()}
+     */
+    public static List<Set<StyleOption>> findColumnStyles(DataSection section, StyleOption... styles)
+        throws Exception
     {
         DataCell[][] cellMatrix = section.getMatrix();
         if (cellMatrix == null) {
             throw new Exception(NO_MATRIX_ERR_MSG);
         }
 
+        List<Set<StyleOption>> result = new ArrayList<Set<StyleOption>>();
         for (int x = 0; x <= section.getMaxX(); x++) {
             Set<StyleOption> toExtend = new HashSet<StyleOption>();
-            Boolean found = false;
             for (int y = 0; y <= section.getMaxY(); y++) {
-                found = false;
                 DataCell cell = cellMatrix[x][y];
                 if (cell == null) {
                     continue;
@@ -226,14 +243,39 @@ public static void extendStyleVertically(DataSection section, StyleOption... sty
                 for (StyleOption style : styles) {
                     if (!cell.isChild() && cell.getStyles() != null && cell.getStyles().contains(style)) {
                         toExtend.add(style);
-                        found = true;
                     }
                 }
-                if (found) {
+                if (!toExtend.isEmpty()) {
                     break;
                 }
             }
-            if (!found) {
+            result.add(toExtend);
+        }
+        return result;
+    }
+
+    /**
+     * Adds styles to all the cells of each column of the section, creating new
+     * {@link org.phenotips.export.internal.DataCell}s, if missing. This is the second half of
+     * {@link #extendStyleVertically(DataSection, StyleOption...)}.
+     *
+     * @param section cannot be null
+     * @param columnStyles the styles to add to each column, as returned by
+     *            {@link #findColumnStyles(DataSection, StyleOption...)}; columns with no styles are left unchanged
+     * @throws Exception if the section was not {@link DataSection#finalizeToMatrix()}
+     */
+    public static void applyColumnStyles(DataSection section, List<Set<StyleOption>> columnStyles)
+        throws Exception
+    {
+        DataCell[][] cellMatrix = section.getMatrix();
+        if (cellMatrix == null) {
+            throw new Exception(NO_MATRIX_ERR_MSG);
+        }
+
+        int maxX = Math.min(section.getMaxX(), columnStyles.size() - 1);
+        for (int x = 0; x <= maxX; x++) {
+            Set<StyleOption> toExtend = columnStyles.get(x);
+            if (toExtend.isEmpty()) {
                 continue;
             }
 
@@ -259,6 +301,13 @@ public static void extendStyleVertically(DataSection section, StyleOption... sty
     public void style(DataCell dataCell, Cell cell, Workbook wBook)
     {
         Set<StyleOption> styles = dataCell.getStyles();
+        /* Reuse existing styles, since each new style is stored in the workbook, even if it's identical to another */
+        CellStyle cached = this.styleCache.get(styles == null ? Collections.<StyleOption>emptySet() : styles);
+        if (cached != null) {
+            cell.setCellStyle(cached);
+            return;
+        }
+
         CellStyle cellStyle = wBook.createCellStyle();
         /* For \n to work properly set to true */
         cellStyle.setWrapText(true);
@@ -272,17 +321,13 @@ public void style(DataCell dataCell, Cell cell, Workbook wBook)
         if (this.setDefaultStyle(styles, cell, cellStyle)) {
             return;
         }
-        if (this.styleCache.containsKey(styles)) {
-            cell.setCellStyle(this.styleCache.get(styles));
-            return;
-        }
 
         /* Priority of styles can be coded in by placing the if statement lower within the corresponding function. */
         this.setFontStyles(styles, cell, cellStyle, wBook);
         this.setBorderStyles(styles, cell, cellStyle, wBook);
 
-        /* Keep this as the last statement. */
-        this.styleCache.put(styles, cellStyle);
+        /* Keep this as the last statement. The cell's own set may still change, so the key must be a copy. */
+        this.styleCache.put(new HashSet<StyleOption>(styles), cellStyle);
     }
 
     /**
@@ -292,10 +337,6 @@ public void style(DataCell dataCell, Cell cell, Workbook wBook)
     private boolean setDefaultStyle(Set<StyleOption> styles, Cell cell, CellStyle cellStyle)
     {
         if (styles == null) {
-            if (this.styleCache.containsKey(Collections.<StyleOption>emptySet())) {
-                cell.setCellStyle(this.styleCache.get(Collections.<StyleOption>emptySet()));
-                return true;
-            }
             cell.setCellStyle(cellStyle);
             this.styleCache.put(Collections.<StyleOption>emptySet(), cellStyle);
             return true;
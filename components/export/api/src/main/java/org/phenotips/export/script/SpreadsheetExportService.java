@@ -19,6 +19,7 @@
 
 import org.phenotips.data.Patient;
 import org.phenotips.export.internal.SpreadsheetExporter;
+import org.phenotips.export.internal.StreamingSpreadsheetExporter;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.DocumentReferenceResolver;
@@ -64,7 +65,7 @@ public class SpreadsheetExportService implements ScriptService
      */
     public void export(List<Patient> patients, String[] enabledFields, OutputStream outputStream)
     {
-        SpreadsheetExporter exporter = new SpreadsheetExporter();
+        SpreadsheetExporter exporter = new StreamingSpreadsheetExporter();
         try {
             exporter.export(enabledFields, patients, outputStream);
         } catch (Exception ex) {
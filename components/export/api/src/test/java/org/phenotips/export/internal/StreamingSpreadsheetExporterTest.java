@@ -0,0 +1,131 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.export.internal;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class StreamingSpreadsheetExporterTest
+{
+    @Test
+    public void createsStreamingWorkbook()
+    {
+        Workbook workbook = new StreamingSpreadsheetExporter().createNewWorkbook();
+        Assert.assertTrue(workbook instanceof SXSSFWorkbook);
+        ((SXSSFWorkbook) workbook).dispose();
+    }
+
+    @Test
+    public void commitBlockWritesRowsBelowPreviousBlocks() throws Exception
+    {
+        StreamingSpreadsheetExporter exporter = new StreamingSpreadsheetExporter();
+        exporter.wBook = new SXSSFWorkbook();
+        Sheet sheet = exporter.wBook.createSheet();
+        DataSection first = new DataSection();
+        first.addCell(new DataCell("a", 0, 0));
+        first.addCell(new DataCell("b", 1, 1));
+        first.finalizeToMatrix();
+        DataSection second = new DataSection();
+        second.addCell(new DataCell("c", 0, 0));
+        second.finalizeToMatrix();
+        Styler styler = new Styler();
+
+        int next = exporter.commitBlock(first, sheet, styler, 0);
+        Assert.assertEquals(2, next);
+        next = exporter.commitBlock(second, sheet, styler, next);
+        Assert.assertEquals(3, next);
+
+        Row row = sheet.getRow(2);
+        Assert.assertEquals("c", row.getCell(0).getStringCellValue());
+        Assert.assertEquals("b", sheet.getRow(1).getCell(1).getStringCellValue());
+        ((SXSSFWorkbook) exporter.wBook).dispose();
+    }
+
+    @Test
+    public void commitBlockMergesCellsAtTheRightRow() throws Exception
+    {
+        StreamingSpreadsheetExporter exporter = new StreamingSpreadsheetExporter();
+        Sheet sheet = mock(Sheet.class);
+        Row row = mock(Row.class);
+        doReturn(row).when(sheet).createRow(anyInt());
+        doReturn(mock(Cell.class)).when(row).createCell(anyInt());
+        exporter.wBook = mock(Workbook.class);
+        doReturn(mock(CellStyle.class)).when(exporter.wBook).createCellStyle();
+        doReturn(mock(Font.class)).when(exporter.wBook).createFont();
+
+        DataSection header = new DataSection();
+        header.addCell(new DataCell("Merged", 0, 0));
+        header.addCell(new DataCell("", 2, 0));
+        header.finalizeToMatrix();
+        header.mergeX();
+
+        exporter.commitBlock(header, sheet, new Styler(), 5);
+
+        ArgumentCaptor<CellRangeAddress> region = ArgumentCaptor.forClass(CellRangeAddress.class);
+        verify(sheet).addMergedRegion(region.capture());
+        Assert.assertEquals(5, region.getValue().getFirstRow());
+        Assert.assertEquals(5, region.getValue().getLastRow());
+        Assert.assertEquals(0, region.getValue().getFirstColumn());
+        Assert.assertEquals(1, region.getValue().getLastColumn());
+        verify(sheet).createRow(5);
+    }
+
+    @Test
+    public void columnWidthsAreEstimatedFromTheLongestLine() throws Exception
+    {
+        StreamingSpreadsheetExporter exporter = new StreamingSpreadsheetExporter();
+        exporter.wBook = new SXSSFWorkbook();
+        Sheet realSheet = exporter.wBook.createSheet();
+        DataSection section = new DataSection();
+        section.addCell(new DataCell("short\na much longer line", 0, 0));
+        section.addCell(new DataCell("", 1, 0));
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 3 * DataToCellConverter.charactersPerLine; i++) {
+            longValue.append('x');
+        }
+        section.addCell(new DataCell(longValue.toString(), 2, 0));
+        section.finalizeToMatrix();
+        exporter.commitBlock(section, realSheet, new Styler(), 0);
+        ((SXSSFWorkbook) exporter.wBook).dispose();
+
+        Sheet sheet = mock(Sheet.class);
+        exporter.setColumnWidths(sheet);
+        verify(sheet).setColumnWidth(0, ("a much longer line".length() + 1) * 210);
+        verify(sheet, never()).setColumnWidth(eq(1), anyInt());
+        verify(sheet).setColumnWidth(2, DataToCellConverter.charactersPerLine * 210);
+        verify(sheet, never()).autoSizeColumn(anyInt());
+        verify(sheet, never()).addMergedRegion(any(CellRangeAddress.class));
+    }
+}
@@ -17,7 +17,9 @@
  */
 package org.phenotips.export.internal;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.apache.poi.ss.usermodel.Cell;
@@ -286,4 +288,52 @@ public void extendVerticallyNullMatrix() throws Exception
 
         verifyNoMoreInteractions(section);
     }
+
+    @Test
+    public void styleReusesCachedStyles()
+    {
+        Styler styler = new Styler();
+        Cell cell = mock(Cell.class);
+        Workbook workbook = mock(Workbook.class);
+        CellStyle style = mock(CellStyle.class);
+        doReturn(style).when(workbook).createCellStyle();
+        doReturn(mock(Font.class)).when(workbook).createFont();
+
+        styler.style(new DataCell("a", 0, 0, StyleOption.SECTION_BORDER_LEFT), cell, workbook);
+        styler.style(new DataCell("b", 0, 1, StyleOption.SECTION_BORDER_LEFT), cell, workbook);
+        styler.style(new DataCell("c", 0, 2), cell, workbook);
+        styler.style(new DataCell("d", 0, 3), cell, workbook);
+
+        verify(workbook, times(2)).createCellStyle();
+        verify(cell, times(4)).setCellStyle(style);
+    }
+
+    @Test
+    public void columnStylesCanBeAppliedToOtherSections() throws Exception
+    {
+        DataSection header = new DataSection();
+        header.addCell(new DataCell("", 0, 0, StyleOption.SECTION_BORDER_LEFT));
+        header.addCell(new DataCell("", 1, 0, StyleOption.HEADER));
+        header.addCell(new DataCell("", 2, 1, StyleOption.SECTION_BORDER_RIGHT));
+        header.finalizeToMatrix();
+
+        List<Set<StyleOption>> columnStyles =
+            Styler.findColumnStyles(header, StyleOption.SECTION_BORDER_LEFT, StyleOption.SECTION_BORDER_RIGHT);
+        Assert.assertEquals(3, columnStyles.size());
+        Assert.assertEquals(Collections.singleton(StyleOption.SECTION_BORDER_LEFT), columnStyles.get(0));
+        Assert.assertTrue(columnStyles.get(1).isEmpty());
+        Assert.assertEquals(Collections.singleton(StyleOption.SECTION_BORDER_RIGHT), columnStyles.get(2));
+
+        DataSection body = new DataSection();
+        body.addCell(new DataCell("", 1, 1));
+        body.finalizeToMatrix();
+        Styler.applyColumnStyles(body, columnStyles);
+
+        DataCell[][] matrix = body.getMatrix();
+        Assert.assertTrue(matrix[0][0].getStyles().contains(StyleOption.SECTION_BORDER_LEFT));
+        Assert.assertTrue(matrix[0][1].getStyles().contains(StyleOption.SECTION_BORDER_LEFT));
+        Assert.assertNull(matrix[1][0]);
+        Assert.assertNull(matrix[1][1].getStyles());
+        Assert.assertEquals(3, body.getCellList().size());
+    }
 }
@@ -0,0 +1,194 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact representation of the parent relationships of an ontology, holding only term identifiers and integer
+ * adjacency lists, used for computing the ancestors of terms while streaming the rest of their data. The ancestors of
+ * each term are computed only once, in topological order, by merging the already computed ancestors of its parents,
+ * and are kept as integer arrays.
+ *
+ * @version $Id$
+ */
+class AncestorGraph
+{
+    private static final int[] NO_PARENTS = new int[0];
+
+    private static final int[][] NO_CLOSURES = new int[0][];
+
+    private final Map<String, Integer> index = new HashMap<String, Integer>();
+
+    private final List<String> ids = new ArrayList<String>();
+
+    private final List<int[]> parents = new ArrayList<int[]>();
+
+    /** Marks the terms whose ancestors are being computed, to detect cycles. */
+    private final int[] expanding = new int[0];
+
+    /** The ancestors of each term, {@code null} for those not computed yet, or {@link #expanding}. */
+    private int[][] closures = NO_CLOSURES;
+
+    /** Marks the terms already merged into the current closure, with {@link #generation} as the marker. */
+    private int[] reached = NO_PARENTS;
+
+    /** Reusable buffer for building a closure. */
+    private int[] buffer = NO_PARENTS;
+
+    /** Reusable depth-first traversal stack. */
+    private int[] stack = NO_PARENTS;
+
+    private int generation;
+
+    /**
+     * Sets the direct parents of a term, replacing any parents set before.
+     *
+     * @param id the identifier of the term
+     * @param parentIds the identifiers of its parents, may be {@code null}
+     */
+    void setParents(String id, Collection<String> parentIds)
+    {
+        // Computed closures may no longer be valid
+        this.closures = NO_CLOSURES;
+        int term = register(id);
+        if (parentIds == null || parentIds.isEmpty()) {
+            this.parents.set(term, NO_PARENTS);
+            return;
+        }
+        int[] termParents = new int[parentIds.size()];
+        int i = 0;
+        for (String parentId : parentIds) {
+            termParents[i++] = register(parentId);
+        }
+        this.parents.set(term, termParents);
+    }
+
+    /**
+     * Lists the term itself, followed by all its direct and indirect ancestors.
+     *
+     * @param id the identifier of the term
+     * @return the identifiers of the term and its ancestors, or just the term itself if it isn't known
+     */
+    List<String> getAncestorsAndSelf(String id)
+    {
+        List<String> result = new ArrayList<String>();
+        result.add(id);
+        Integer term = this.index.get(id);
+        if (term == null) {
+            return result;
+        }
+        for (int ancestor : getClosure(term)) {
+            result.add(this.ids.get(ancestor));
+        }
+        return result;
+    }
+
+    /**
+     * Computes the ancestors of a term, along with those of all its ancestors not computed yet. Terms are expanded in a
+     * depth-first post-order, parents before their children, so that each closure is built once from the closures of
+     * the direct parents.
+     *
+     * @param term the index of the term
+     * @return the indexes of all the ancestors of the term, excluding the term itself
+     */
+    private int[] getClosure(int term)
+    {
+        int size = this.ids.size();
+        if (this.closures.length < size) {
+            this.closures = Arrays.copyOf(this.closures, size);
+            this.reached = new int[size];
+            this.buffer = new int[size];
+            this.stack = new int[size];
+            this.generation = 0;
+        }
+        if (this.closures[term] != null) {
+            return this.closures[term];
+        }
+        this.closures[term] = this.expanding;
+        this.stack[0] = term;
+        int stackSize = 1;
+        while (stackSize > 0) {
+            int current = this.stack[stackSize - 1];
+            boolean parentsExpanded = true;
+            for (int parent : this.parents.get(current)) {
+                if (this.closures[parent] == null) {
+                    this.closures[parent] = this.expanding;
+                    this.stack[stackSize++] = parent;
+                    parentsExpanded = false;
+                    break;
+                }
+            }
+            if (parentsExpanded) {
+                --stackSize;
+                this.closures[current] = mergeParentClosures(current);
+            }
+        }
+        return this.closures[term];
+    }
+
+    /**
+     * Builds the closure of a term whose parents are already expanded. A parent still being expanded is on the current
+     * path, which means that the ontology contains a cycle; there's nothing better to do than ignore its ancestors.
+     *
+     * @param term the index of the term
+     * @return the indexes of the parents of the term and of their ancestors
+     */
+    private int[] mergeParentClosures(int term)
+    {
+        ++this.generation;
+        this.reached[term] = this.generation;
+        int size = 0;
+        for (int parent : this.parents.get(term)) {
+            size = mergeTerm(parent, size);
+            if (this.closures[parent] != this.expanding) {
+                for (int ancestor : this.closures[parent]) {
+                    size = mergeTerm(ancestor, size);
+                }
+            }
+        }
+        return size == 0 ? NO_PARENTS : Arrays.copyOf(this.buffer, size);
+    }
+
+    private int mergeTerm(int term, int size)
+    {
+        if (this.reached[term] == this.generation) {
+            return size;
+        }
+        this.reached[term] = this.generation;
+        this.buffer[size] = term;
+        return size + 1;
+    }
+
+    private int register(String id)
+    {
+        Integer result = this.index.get(id);
+        if (result == null) {
+            result = this.ids.size();
+            this.index.put(id, result);
+            this.ids.add(id);
+            this.parents.add(NO_PARENTS);
+        }
+        return result;
+    }
+}
@@ -18,10 +18,15 @@
 package org.phenotips.obo2solr;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -30,20 +35,7 @@
 
 public class SolrUpdateGenerator
 {
-    private static final String TERM_MARKER = "[Term]";
-
-    /** Not all entities are terms prompted by the presence of a {@link #TERM_MARKER} */
-    private static final String ENTITY_SEPARATION_REGEX = "^\\[[a-zA-Z]+\\]$";
-
-    private static final String FIELD_NAME_VALUE_SEPARATOR = "\\s*:\\s+";
-
-    private int counter;
-
-    private TermData crtTerm = new TermData();
-
-    private Map<String, TermData> data = new LinkedHashMap<String, TermData>();
-
-    private Map<String, Double> fieldSelection;
+    private static final String FILE_PROTOCOL = "file";
 
     private Logger logger = LoggerFactory.getLogger(this.getClass());
 
@@ -60,85 +52,119 @@ public Map<String, TermData> transform(String ontologyUrl, Map<String, Double> f
 
     public Map<String, TermData> transform(URL input, Map<String, Double> fieldSelection)
     {
-        this.fieldSelection = fieldSelection;
+        Map<String, TermData> data = new LinkedHashMap<String, TermData>();
+        TermDataReader reader = null;
         try {
-            BufferedReader in = new BufferedReader(new InputStreamReader(input.openConnection().getInputStream()));
-            String line;
-            this.counter = 0;
-
-            /*
-             * When encountering a separator that is not a term separator, all data should be skipped until a term
-             * separator is encountered again
-             */
-            boolean skip = false;
-            while ((line = in.readLine()) != null) {
-                if (line.trim().matches(ENTITY_SEPARATION_REGEX)) {
-                    if (this.counter > 0) {
-                        storeCrtTerm();
-                    }
-                    // Overridden below
-                    skip = true;
-                }
-                if (line.trim().equalsIgnoreCase(TERM_MARKER)) {
-                    ++this.counter;
-                    skip = false;
-                    continue;
-                }
-                if (!skip) {
-                    String[] pieces = line.split(FIELD_NAME_VALUE_SEPARATOR, 2);
-                    if (pieces.length != 2) {
-                        continue;
-                    }
-                    if (pieces[0].trim().equals("data-version")) {
-                        this.crtTerm.addTo("version", pieces[1]);
-                        this.crtTerm.addTo(TermData.ID_FIELD_NAME, "HEADER_INFO");
-                        this.counter++;
-                    }
-                    loadField(pieces[0], pieces[1]);
-                }
-            }
-            if (this.counter > 0) {
-                storeCrtTerm();
+            reader = read(input, fieldSelection);
+            TermData term;
+            while ((term = reader.next()) != null) {
+                data.put(term.getId(), term);
             }
-            if (isFieldSelected(TermData.TERM_CATEGORY_FIELD_NAME)) {
-                propagateAncestors();
-            }
-        } catch (NullPointerException ex) {
-            this.logger.error("NullPointer: {}", ex.getMessage());
         } catch (IOException ex) {
             this.logger.error("IOException: {}", ex.getMessage());
         } finally {
-            this.fieldSelection = null;
+            closeQuietly(reader);
         }
-        return this.data;
+        return data;
     }
 
-    private void storeCrtTerm()
+    /**
+     * Opens a streaming reader over an OBO file. Only the identifiers and parents of the terms are loaded in advance,
+     * if the {@code term_category} field is selected; all the other data is parsed as the terms are read.
+     *
+     * @param input the location of the OBO file; remote files are downloaded to a temporary file first, since they
+     *            must be read twice
+     * @param fieldSelection the fields to read, an empty map means that all fields should be read
+     * @return a reader returning the terms one by one; the caller is responsible for closing it
+     * @throws IOException if the file cannot be read
+     */
+    public TermDataReader read(URL input, Map<String, Double> fieldSelection) throws IOException
     {
-        if (this.crtTerm.getId() != null) {
-            this.data.put(this.crtTerm.getId(), this.crtTerm);
+        File temporaryFile = null;
+        URL source = input;
+        if (!FILE_PROTOCOL.equals(input.getProtocol())) {
+            temporaryFile = download(input);
+            source = temporaryFile.toURI().toURL();
+        }
+        try {
+            AncestorGraph ancestors = null;
+            if (isFieldSelected(fieldSelection, TermData.TERM_CATEGORY_FIELD_NAME)) {
+                ancestors = loadAncestorGraph(source, fieldSelection);
+            }
+            return new TermDataReader(open(source), fieldSelection, ancestors, temporaryFile);
+        } catch (IOException | RuntimeException ex) {
+            if (temporaryFile != null) {
+                temporaryFile.delete();
+            }
+            throw ex;
         }
-        this.crtTerm = new TermData();
     }
 
-    private boolean isFieldSelected(String name)
+    /**
+     * Reads only the identifiers and parents of all the terms, which is all that's needed for computing ancestors.
+     */
+    private AncestorGraph loadAncestorGraph(URL source, Map<String, Double> fieldSelection) throws IOException
     {
-        return this.fieldSelection.isEmpty() || this.fieldSelection.containsKey(name);
+        AncestorGraph result = new AncestorGraph();
+        Map<String, Double> graphFields = new HashMap<String, Double>();
+        if (isFieldSelected(fieldSelection, TermData.ID_FIELD_NAME)) {
+            graphFields.put(TermData.ID_FIELD_NAME, ParameterPreparer.DEFAULT_BOOST);
+        }
+        if (isFieldSelected(fieldSelection, TermData.PARENT_FIELD_NAME)) {
+            graphFields.put(TermData.PARENT_FIELD_NAME, ParameterPreparer.DEFAULT_BOOST);
+        }
+        if (graphFields.isEmpty()) {
+            // No terms can be identified, an empty selection would mean "everything"
+            return result;
+        }
+        TermDataReader reader = new TermDataReader(open(source), graphFields, null, null);
+        try {
+            TermData term;
+            while ((term = reader.next()) != null) {
+                result.setParents(term.getId(), term.get(TermData.TERM_CATEGORY_FIELD_NAME));
+            }
+        } finally {
+            reader.close();
+        }
+        return result;
+    }
+
+    private BufferedReader open(URL source) throws IOException
+    {
+        return new BufferedReader(new InputStreamReader(source.openConnection().getInputStream()));
     }
 
-    private void loadField(String name, String value)
+    private File download(URL input) throws IOException
     {
-        if (!(isFieldSelected(name))) {
-            return;
+        File result = File.createTempFile("obo2solr", ".obo");
+        result.deleteOnExit();
+        try (InputStream in = input.openConnection().getInputStream();
+            OutputStream out = new FileOutputStream(result)) {
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) > 0) {
+                out.write(buf, 0, len);
+            }
+        } catch (IOException ex) {
+            result.delete();
+            throw ex;
         }
-        this.crtTerm.addTo(name, value.replaceFirst("^\"(.+)\"\\s*?(?:[A-Z]+|\\[).*", "$1").replace("\\\"", "\""));
+        return result;
     }
 
-    private void propagateAncestors()
+    private boolean isFieldSelected(Map<String, Double> fieldSelection, String name)
     {
-        for (String id : this.data.keySet()) {
-            TermData term = this.data.get(id);
-            term.expandTermCategories(this.data);
+        return fieldSelection.isEmpty() || fieldSelection.containsKey(name);
+    }
+
+    private void closeQuietly(TermDataReader reader)
+    {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                // Nothing useful to do
+            }
         }
     }
 }
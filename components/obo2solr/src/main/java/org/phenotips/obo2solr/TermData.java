@@ -56,11 +56,38 @@ public boolean addTo(String key, String value)
         if (ID_FIELD_NAME.equals(key)) {
             this.id = value;
         } else if (PARENT_FIELD_NAME.equals(key)) {
-            this.addTo(TERM_CATEGORY_FIELD_NAME, value.replaceAll(PARENT_ID_REGEX, "$1"));
+            this.addTo(TERM_CATEGORY_FIELD_NAME, getParentId(value));
         }
         return super.addTo(key, value);
     }
 
+    /**
+     * Extracts the identifier from an HPO parent reference, equivalent to replacing {@link #PARENT_ID_REGEX} with its
+     * first group, without the cost of a regular expression.
+     *
+     * @param value a parent reference, for example {@code HP:0000118 ! Phenotypic abnormality}
+     * @return the identifier part, for example {@code HP:0000118}, or the unchanged value if it isn't a reference to an
+     *         HPO term
+     */
+    static String getParentId(String value)
+    {
+        int idLength = 10;
+        if (value.length() <= idLength || !value.startsWith("HP:")) {
+            return value;
+        }
+        for (int i = 3; i < idLength; ++i) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return value;
+            }
+        }
+        int i = idLength;
+        while (i < value.length() && TermDataReader.isWhitespace(value.charAt(i))) {
+            ++i;
+        }
+        return i < value.length() && value.charAt(i) == '!' ? value.substring(0, idLength) : value;
+    }
+
     @Override
     public boolean addTo(String key, Collection<String> values)
     {
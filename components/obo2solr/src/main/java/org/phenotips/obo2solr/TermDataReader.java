@@ -0,0 +1,277 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Streaming reader for OBO files, returning one term at a time, so that only the current term needs to be kept in
+ * memory. Lines are parsed without regular expressions. If requested, the {@code term_category} of each returned term
+ * is filled with the term itself and all its ancestors, computed from a compact graph of the parent relationships
+ * gathered beforehand.
+ *
+ * @version $Id$
+ */
+public class TermDataReader implements Closeable
+{
+    private static final String TERM_MARKER = "[Term]";
+
+    private static final String DATA_VERSION = "data-version";
+
+    private static final String VERSION_FIELD_NAME = "version";
+
+    private static final String HEADER_ID = "HEADER_INFO";
+
+    private static final String ESCAPED_QUOTE = "\\\"";
+
+    private static final String QUOTE = "\"";
+
+    private final BufferedReader in;
+
+    private final Map<String, Double> fieldSelection;
+
+    private final AncestorGraph ancestors;
+
+    private final File temporaryFile;
+
+    private TermData crtTerm = new TermData();
+
+    private int counter;
+
+    /**
+     * When encountering a separator that is not a term separator, all data should be skipped until a term separator is
+     * encountered again.
+     */
+    private boolean skip;
+
+    private boolean finished;
+
+    /**
+     * Constructor.
+     *
+     * @param in the source to read from
+     * @param fieldSelection the fields to read, an empty map means that all fields should be read
+     * @param ancestors the graph used for filling in the {@code term_category} field, {@code null} if it shouldn't be
+     *            filled
+     * @param temporaryFile a temporary file holding the source, which should be deleted when closing, may be
+     *            {@code null}
+     */
+    TermDataReader(BufferedReader in, Map<String, Double> fieldSelection, AncestorGraph ancestors,
+        File temporaryFile)
+    {
+        this.in = in;
+        this.fieldSelection = fieldSelection;
+        this.ancestors = ancestors;
+        this.temporaryFile = temporaryFile;
+    }
+
+    /**
+     * Reads the next term from the source.
+     *
+     * @return the next term, or {@code null} if the end of the source was reached
+     * @throws IOException if reading from the source fails
+     */
+    public TermData next() throws IOException
+    {
+        if (this.finished) {
+            return null;
+        }
+        String line;
+        while ((line = this.in.readLine()) != null) {
+            TermData term = processLine(line);
+            if (term != null) {
+                return expand(term);
+            }
+        }
+        this.finished = true;
+        if (this.counter > 0) {
+            TermData term = storeCrtTerm();
+            if (term != null) {
+                return expand(term);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.finished = true;
+        try {
+            this.in.close();
+        } finally {
+            if (this.temporaryFile != null) {
+                this.temporaryFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Processes one line of the source.
+     *
+     * @param line the line to process
+     * @return the term completed by this line, if any, {@code null} otherwise
+     */
+    private TermData processLine(String line)
+    {
+        TermData result = null;
+        String trimmedLine = line.trim();
+        if (isEntitySeparator(trimmedLine)) {
+            if (this.counter > 0) {
+                result = storeCrtTerm();
+            }
+            // Overridden below
+            this.skip = true;
+            if (TERM_MARKER.equalsIgnoreCase(trimmedLine)) {
+                ++this.counter;
+                this.skip = false;
+            }
+            return result;
+        }
+        if (this.skip) {
+            return null;
+        }
+        int separator = findFieldSeparator(line);
+        if (separator < 0) {
+            return null;
+        }
+        int nameEnd = separator;
+        while (nameEnd > 0 && isWhitespace(line.charAt(nameEnd - 1))) {
+            --nameEnd;
+        }
+        int valueStart = separator + 1;
+        while (valueStart < line.length() && isWhitespace(line.charAt(valueStart))) {
+            ++valueStart;
+        }
+        String name = line.substring(0, nameEnd);
+        String value = line.substring(valueStart);
+        if (DATA_VERSION.equals(name.trim())) {
+            this.crtTerm.addTo(VERSION_FIELD_NAME, value);
+            this.crtTerm.addTo(TermData.ID_FIELD_NAME, HEADER_ID);
+            this.counter++;
+        }
+        loadField(name, value);
+        return null;
+    }
+
+    private TermData storeCrtTerm()
+    {
+        TermData result = this.crtTerm.getId() != null ? this.crtTerm : null;
+        this.crtTerm = new TermData();
+        return result;
+    }
+
+    private TermData expand(TermData term)
+    {
+        if (this.ancestors != null) {
+            term.addTo(TermData.TERM_CATEGORY_FIELD_NAME, this.ancestors.getAncestorsAndSelf(term.getId()));
+        }
+        return term;
+    }
+
+    private boolean isFieldSelected(String name)
+    {
+        return this.fieldSelection.isEmpty() || this.fieldSelection.containsKey(name);
+    }
+
+    private void loadField(String name, String value)
+    {
+        if (!isFieldSelected(name)) {
+            return;
+        }
+        String result = unquote(value);
+        if (result.contains(ESCAPED_QUOTE)) {
+            result = result.replace(ESCAPED_QUOTE, QUOTE);
+        }
+        this.crtTerm.addTo(name, result);
+    }
+
+    /**
+     * Extracts the text of a quoted value followed by qualifiers or references, for example
+     * {@code "Some text" EXACT []} or {@code "Some text" [HPO:curator]}. Values in other formats are returned
+     * unchanged.
+     *
+     * @param value the raw value
+     * @return the text between the first and the last quote that is followed by an uppercase qualifier or a reference
+     */
+    private static String unquote(String value)
+    {
+        if (value.length() < 3 || value.charAt(0) != '"') {
+            return value;
+        }
+        for (int end = value.lastIndexOf('"'); end >= 2; end = value.lastIndexOf('"', end - 1)) {
+            int next = end + 1;
+            while (next < value.length() && isWhitespace(value.charAt(next))) {
+                ++next;
+            }
+            if (next < value.length()) {
+                char c = value.charAt(next);
+                if (c == '[' || c >= 'A' && c <= 'Z') {
+                    return value.substring(1, end);
+                }
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Checks if a trimmed line is an entity header, like {@code [Term]} or {@code [Typedef]}.
+     *
+     * @param line the trimmed line to check
+     * @return {@code true} if the line consists of one or more letters between square brackets
+     */
+    private static boolean isEntitySeparator(String line)
+    {
+        int length = line.length();
+        if (length < 3 || line.charAt(0) != '[' || line.charAt(length - 1) != ']') {
+            return false;
+        }
+        for (int i = 1; i < length - 1; ++i) {
+            char c = line.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the colon separating the field name from its value, which is the first colon followed by whitespace.
+     *
+     * @param line the line to inspect
+     * @return the position of the separator, or {@code -1} if the line doesn't contain a field
+     */
+    private static int findFieldSeparator(String line)
+    {
+        for (int i = line.indexOf(':'); i >= 0 && i < line.length() - 1; i = line.indexOf(':', i + 1)) {
+            if (isWhitespace(line.charAt(i + 1))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static boolean isWhitespace(char c)
+    {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link AncestorGraph}.
+ *
+ * @version $Id$
+ */
+public class AncestorGraphTest
+{
+    private AncestorGraph graph;
+
+    @Before
+    public void setup()
+    {
+        // A diamond below the root, with a term declared before its parents
+        this.graph = new AncestorGraph();
+        this.graph.setParents("HP:0000004", Arrays.asList("HP:0000002", "HP:0000003"));
+        this.graph.setParents("HP:0000001", null);
+        this.graph.setParents("HP:0000002", Collections.singletonList("HP:0000001"));
+        this.graph.setParents("HP:0000003", Collections.singletonList("HP:0000001"));
+        this.graph.setParents("HP:0000005", Collections.singletonList("HP:0000004"));
+    }
+
+    @Test
+    public void listsTheTermFollowedByItsAncestors()
+    {
+        List<String> result = this.graph.getAncestorsAndSelf("HP:0000005");
+        Assert.assertEquals("HP:0000005", result.get(0));
+        Assert.assertEquals(5, result.size());
+        Assert.assertEquals(set("HP:0000001", "HP:0000002", "HP:0000003", "HP:0000004", "HP:0000005"),
+            new HashSet<String>(result));
+    }
+
+    @Test
+    public void ancestorsAreTheSameWhenTermsAreExpandedInAnotherOrder()
+    {
+        Assert.assertEquals(Arrays.asList("HP:0000002", "HP:0000001"), this.graph.getAncestorsAndSelf("HP:0000002"));
+        Assert.assertEquals(Collections.singletonList("HP:0000001"), this.graph.getAncestorsAndSelf("HP:0000001"));
+        Assert.assertEquals(set("HP:0000001", "HP:0000002", "HP:0000003", "HP:0000004"),
+            new HashSet<String>(this.graph.getAncestorsAndSelf("HP:0000004")));
+        Assert.assertEquals(5, this.graph.getAncestorsAndSelf("HP:0000005").size());
+    }
+
+    @Test
+    public void unknownTermsOnlyListThemselves()
+    {
+        Assert.assertEquals(Collections.singletonList("HP:0000009"), this.graph.getAncestorsAndSelf("HP:0000009"));
+    }
+
+    @Test
+    public void changingParentsDiscardsComputedAncestors()
+    {
+        Assert.assertEquals(4, this.graph.getAncestorsAndSelf("HP:0000004").size());
+        this.graph.setParents("HP:0000004", Collections.singletonList("HP:0000003"));
+        Assert.assertEquals(Arrays.asList("HP:0000004", "HP:0000003", "HP:0000001"),
+            this.graph.getAncestorsAndSelf("HP:0000004"));
+    }
+
+    @Test
+    public void cyclesDoNotLoop()
+    {
+        this.graph.setParents("HP:0000001", Collections.singletonList("HP:0000005"));
+        Set<String> result = new HashSet<String>(this.graph.getAncestorsAndSelf("HP:0000005"));
+        Assert.assertEquals(set("HP:0000001", "HP:0000002", "HP:0000003", "HP:0000004", "HP:0000005"), result);
+    }
+
+    private static Set<String> set(String... values)
+    {
+        return new HashSet<String>(Arrays.asList(values));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the computation of the {@code term_category} ancestors on a synthetic OBO file with up to 100k terms,
+ * shaped like the HPO: a deep hierarchy where some terms have more than one parent. The {@link AncestorGraph} is
+ * compared with a breadth-first walk of the parents of every term, which is how the ancestors were computed before,
+ * and the whole streaming conversion of the file is measured as well. This isn't run as part of the unit tests; run it
+ * with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.phenotips.obo2solr.AncestorPropagationBenchmark}.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AncestorPropagationBenchmark
+{
+    /** How many terms the synthetic ontology has. */
+    @Param({ "10000", "100000" })
+    public int terms;
+
+    /** The direct parents of each term. */
+    private final Map<String, List<String>> parents = new HashMap<String, List<String>>();
+
+    private File ontology;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        Random random = new Random(42);
+        this.ontology = File.createTempFile("obo2solr-benchmark", ".obo");
+        try (Writer out = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(this.ontology), StandardCharsets.UTF_8))) {
+            out.write("format-version: 1.2\ndata-version: synthetic\n");
+            for (int i = 0; i < this.terms; ++i) {
+                List<String> termParents = new ArrayList<String>();
+                if (i > 0) {
+                    // Mostly a tree with four children per term, with a second parent for one term out of five
+                    termParents.add(getId((i - 1) / 4));
+                    if (i > 1 && random.nextInt(5) == 0) {
+                        String other = getId(random.nextInt(i - 1));
+                        if (!termParents.contains(other)) {
+                            termParents.add(other);
+                        }
+                    }
+                }
+                this.parents.put(getId(i), termParents);
+                writeTerm(out, i, termParents);
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        this.ontology.delete();
+    }
+
+    @Benchmark
+    public void ancestorGraph(Blackhole blackhole)
+    {
+        AncestorGraph graph = new AncestorGraph();
+        for (Map.Entry<String, List<String>> term : this.parents.entrySet()) {
+            graph.setParents(term.getKey(), term.getValue());
+        }
+        for (String id : this.parents.keySet()) {
+            blackhole.consume(graph.getAncestorsAndSelf(id));
+        }
+    }
+
+    @Benchmark
+    public void walkPerTerm(Blackhole blackhole)
+    {
+        for (String id : this.parents.keySet()) {
+            Set<String> result = new HashSet<String>();
+            Queue<String> front = new LinkedList<String>();
+            front.add(id);
+            while (!front.isEmpty()) {
+                String current = front.poll();
+                if (result.add(current)) {
+                    List<String> termParents = this.parents.get(current);
+                    front.addAll(termParents == null ? Collections.<String>emptyList() : termParents);
+                }
+            }
+            blackhole.consume(result);
+        }
+    }
+
+    @Benchmark
+    public void convertFile(Blackhole blackhole) throws IOException
+    {
+        URL source = this.ontology.toURI().toURL();
+        TermDataReader reader =
+            new SolrUpdateGenerator().read(source, Collections.<String, Double>emptyMap());
+        try {
+            TermData term;
+            while ((term = reader.next()) != null) {
+                blackhole.consume(term);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void writeTerm(Writer out, int term, List<String> termParents) throws IOException
+    {
+        out.write("\n[Term]\nid: ");
+        out.write(getId(term));
+        out.write("\nname: Synthetic term ");
+        out.write(String.valueOf(term));
+        out.write("\ndef: \"A generated term, number ");
+        out.write(String.valueOf(term));
+        out.write(".\" [HPO:benchmark]\nsynonym: \"Generated term ");
+        out.write(String.valueOf(term));
+        out.write("\" EXACT []\n");
+        for (String parent : termParents) {
+            out.write("is_a: ");
+            out.write(parent);
+            out.write('\n');
+        }
+    }
+
+    private static String getId(int term)
+    {
+        return String.format("HP:%07d", term);
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(AncestorPropagationBenchmark.class.getSimpleName()).build()).run();
+    }
+}
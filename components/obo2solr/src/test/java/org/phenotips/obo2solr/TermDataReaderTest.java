@@ -0,0 +1,147 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link TermDataReader}.
+ *
+ * @version $Id$
+ */
+public class TermDataReaderTest
+{
+    private static final String OBO = "format-version: 1.2\n"
+        + "data-version: releases/2016-01-13\n"
+        + "\n"
+        + "[Term]\n"
+        + "id: HP:0000001\n"
+        + "name: All\n"
+        + "\n"
+        + "[Term]\n"
+        + "id: HP:0000118\n"
+        + "name: Phenotypic abnormality\n"
+        + "def: \"A \\\"phenotypic\\\" abnormality.\" [HPO:probinson]\n"
+        + "synonym: \"Organ abnormality\" EXACT []\n"
+        + "synonym: \"Quoted \"inner\" text\" RELATED [HPO:skoehler]\n"
+        + "comment: \"Not followed by a qualifier\"\n"
+        + "xref: UMLS:C4021819\n"
+        + "is_a: HP:0000001 ! All\n"
+        + "\n"
+        + "[Typedef]\n"
+        + "id: part_of\n"
+        + "name: part of\n"
+        + "\n"
+        + "[Term]\n"
+        + "id: HP:0000152\n"
+        + "name:   Abnormality of head or neck  \n"
+        + "is_a: HP:0000118 ! Phenotypic abnormality\n";
+
+    @Test
+    public void readsAllTermsAndSkipsOtherEntities() throws IOException
+    {
+        TermDataReader reader = reader(Collections.<String, Double>emptyMap(), null);
+        Assert.assertEquals("HEADER_INFO", reader.next().getId());
+        Assert.assertEquals("HP:0000001", reader.next().getId());
+        Assert.assertEquals("HP:0000118", reader.next().getId());
+        TermData last = reader.next();
+        Assert.assertEquals("HP:0000152", last.getId());
+        Assert.assertNull(reader.next());
+        Assert.assertNull(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void readsTheHeaderVersion() throws IOException
+    {
+        TermData header = reader(Collections.<String, Double>emptyMap(), null).next();
+        Assert.assertEquals(Collections.singleton("releases/2016-01-13"), header.get("version"));
+    }
+
+    @Test
+    public void unquotesValuesAndStripsTrailingModifiers() throws IOException
+    {
+        TermDataReader reader = reader(Collections.<String, Double>emptyMap(), null);
+        reader.next();
+        reader.next();
+        TermData term = reader.next();
+        Assert.assertEquals(Collections.singleton("A \"phenotypic\" abnormality."), term.get("def"));
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("Organ abnormality", "Quoted \"inner\" text")),
+            new HashSet<String>(term.get("synonym")));
+        Assert.assertEquals(Collections.singleton("\"Not followed by a qualifier\""), term.get("comment"));
+        Assert.assertEquals(Collections.singleton("UMLS:C4021819"), term.get("xref"));
+        Assert.assertEquals(Collections.singleton("Phenotypic abnormality"), term.get("name"));
+    }
+
+    @Test
+    public void parentCommentsAreRemovedFromTermCategories() throws IOException
+    {
+        TermDataReader reader = reader(Collections.<String, Double>emptyMap(), null);
+        reader.next();
+        reader.next();
+        TermData term = reader.next();
+        Assert.assertEquals(Collections.singleton("HP:0000001 ! All"), term.get(TermData.PARENT_FIELD_NAME));
+        Assert.assertEquals(Collections.singleton("HP:0000001"), term.get(TermData.TERM_CATEGORY_FIELD_NAME));
+    }
+
+    @Test
+    public void readsOnlySelectedFields() throws IOException
+    {
+        Map<String, Double> selection = new HashMap<String, Double>();
+        selection.put(TermData.ID_FIELD_NAME, 1.0);
+        selection.put("name", 1.0);
+        TermDataReader reader = reader(selection, null);
+        reader.next();
+        reader.next();
+        TermData term = reader.next();
+        Assert.assertEquals(new HashSet<String>(Arrays.asList(TermData.ID_FIELD_NAME, "name")), term.keySet());
+    }
+
+    @Test
+    public void fillsTermCategoriesWithAllAncestors() throws IOException
+    {
+        AncestorGraph graph = new AncestorGraph();
+        graph.setParents("HP:0000001", null);
+        graph.setParents("HP:0000118", Collections.singletonList("HP:0000001"));
+        graph.setParents("HP:0000152", Collections.singletonList("HP:0000118"));
+        TermDataReader reader = reader(Collections.<String, Double>emptyMap(), graph);
+        TermData term;
+        do {
+            term = reader.next();
+        } while (!"HP:0000152".equals(term.getId()));
+        Collection<String> categories = term.get(TermData.TERM_CATEGORY_FIELD_NAME);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("HP:0000152", "HP:0000118", "HP:0000001")),
+            new HashSet<String>(categories));
+    }
+
+    private TermDataReader reader(Map<String, Double> selection, AncestorGraph graph)
+    {
+        return new TermDataReader(new BufferedReader(new StringReader(OBO)), selection, graph, null);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.obo2solr;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link TermData} parsing helpers.
+ *
+ * @version $Id$
+ */
+public class TermDataTest
+{
+    @Test
+    public void parentIdStripsTheComment()
+    {
+        Assert.assertEquals("HP:0000118", TermData.getParentId("HP:0000118 ! Phenotypic abnormality"));
+        Assert.assertEquals("HP:0000118", TermData.getParentId("HP:0000118\t!Phenotypic abnormality"));
+        Assert.assertEquals("HP:0000118", TermData.getParentId("HP:0000118!"));
+    }
+
+    @Test
+    public void parentIdKeepsValuesWithoutComment()
+    {
+        Assert.assertEquals("HP:0000118", TermData.getParentId("HP:0000118"));
+        Assert.assertEquals("HP:0000118 ", TermData.getParentId("HP:0000118 "));
+        Assert.assertEquals("HP:0000118 {source=x}", TermData.getParentId("HP:0000118 {source=x}"));
+    }
+
+    @Test
+    public void parentIdKeepsOtherReferences()
+    {
+        Assert.assertEquals("MP:0000118 ! Mouse term", TermData.getParentId("MP:0000118 ! Mouse term"));
+        Assert.assertEquals("HP:00001X8 ! Malformed", TermData.getParentId("HP:00001X8 ! Malformed"));
+        Assert.assertEquals("HP:000011 ! Short", TermData.getParentId("HP:000011 ! Short"));
+        Assert.assertEquals("", TermData.getParentId(""));
+    }
+
+    @Test
+    public void parentsAreAddedAsTermCategories()
+    {
+        TermData term = new TermData();
+        term.addTo(TermData.ID_FIELD_NAME, "HP:0000002");
+        term.addTo(TermData.PARENT_FIELD_NAME, "HP:0000001 ! All");
+        Assert.assertEquals("HP:0000002", term.getId());
+        Assert.assertTrue(term.get(TermData.PARENT_FIELD_NAME).contains("HP:0000001 ! All"));
+        Assert.assertTrue(term.get(TermData.TERM_CATEGORY_FIELD_NAME).contains("HP:0000001"));
+    }
+}
@@ -27,6 +27,7 @@
 import org.phenotips.groups.GroupManager;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.users.User;
@@ -108,6 +109,13 @@ public void save(Patient patient)
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
+    {
+        // Nothing to save, the contact information is computed from the owner's profile
+        return false;
+    }
+
     @Override
     public void writeJSON(Patient patient, JSONObject json)
     {
@@ -25,24 +25,37 @@
 import org.phenotips.data.permissions.Visibility;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.context.Execution;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
 import org.xwiki.security.authorization.AuthorizationManager;
 import org.xwiki.security.authorization.Right;
 
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -63,7 +76,7 @@
  */
 @Component
 @Singleton
-public class DefaultPatientAccessHelper implements PatientAccessHelper
+public class DefaultPatientAccessHelper implements PatientAccessHelper, Initializable
 {
     private static final EntityReference USER_CLASS = new EntityReference("XWikiUsers", EntityType.DOCUMENT,
         new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE));
@@ -71,6 +84,9 @@ public class DefaultPatientAccessHelper implements PatientAccessHelper
     private static final EntityReference GROUP_CLASS = new EntityReference("XWikiGroups", EntityType.DOCUMENT,
         new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE));
 
+    /** The maximum number of users whose groups are remembered in a wiki; when exceeded, all are forgotten. */
+    private static final int MAX_CACHED_MEMBERS = 10000;
+
     @Inject
     private Logger logger;
 
@@ -97,6 +113,25 @@ public class DefaultPatientAccessHelper implements PatientAccessHelper
     @Inject
     private AuthorizationManager rights;
 
+    @Inject
+    private ObservationManager observationManager;
+
+    /**
+     * For each wiki, and each user checked in that wiki, the user itself and all the groups of that wiki it belongs to,
+     * directly or through other groups. The groups of a wiki are forgotten as soon as any group of that wiki changes.
+     */
+    private final ConcurrentMap<String, ConcurrentMap<DocumentReference, Set<DocumentReference>>> memberships =
+        new ConcurrentHashMap<>();
+
+    /** Incremented every time the groups change, so that outdated group lists computed concurrently aren't cached. */
+    private final AtomicLong membershipsVersion = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.observationManager.addListener(new GroupChangesListener());
+    }
+
     @Override
     public DocumentReference getCurrentUser()
     {
@@ -190,31 +225,75 @@ public AccessLevel getAccessLevel(Patient patient, EntityReference user)
         if (patient == null || user == null) {
             return result;
         }
+        EntityReference owner = getOwner(patient).getUser();
+        Collection<Collaborator> collaborators = getCollaborators(patient);
+        for (DocumentReference entity : getMemberships((DocumentReference) user, patient)) {
+            AccessLevel entityAccess = getAccessLevel(entity, owner, collaborators);
+            if (entityAccess.compareTo(result) > 0) {
+                result = entityAccess;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Lists the user and all the groups it belongs to, directly or through other groups. The result is cached, so
+     * checking the access level of the same user on many patients walks the group hierarchy only once.
+     *
+     * @param user the user whose groups are needed
+     * @param patient the patient being checked, only used for logging
+     * @return the user and its groups, in breadth-first order
+     */
+    private Set<DocumentReference> getMemberships(DocumentReference user, Patient patient)
+    {
+        XWikiContext context = getXWikiContext();
+        String wiki = context.getWikiId();
+        ConcurrentMap<DocumentReference, Set<DocumentReference>> wikiMemberships = this.memberships.get(wiki);
+        Set<DocumentReference> result = wikiMemberships == null ? null : wikiMemberships.get(user);
+        if (result != null) {
+            return result;
+        }
+        long version = this.membershipsVersion.get();
+        result = new LinkedHashSet<DocumentReference>();
+        Queue<DocumentReference> entitiesToCheck = new LinkedList<DocumentReference>();
+        entitiesToCheck.add(user);
         try {
-            EntityReference owner = getOwner(patient).getUser();
-            Collection<Collaborator> collaborators = getCollaborators(patient);
-            Set<DocumentReference> processedEntities = new HashSet<DocumentReference>();
-            Queue<DocumentReference> entitiesToCheck = new LinkedList<DocumentReference>();
-            entitiesToCheck.add((DocumentReference) user);
-            AccessLevel currentItemAccess = null;
-            DocumentReference currentItem;
-            XWikiContext context = getXWikiContext();
             XWikiGroupService groupService = context.getWiki().getGroupService(context);
             while (!entitiesToCheck.isEmpty()) {
-                currentItem = entitiesToCheck.poll();
-                currentItemAccess = getAccessLevel(currentItem, owner, collaborators);
-                if (currentItemAccess.compareTo(result) > 0) {
-                    result = currentItemAccess;
+                DocumentReference currentItem = entitiesToCheck.poll();
+                if (!result.add(currentItem)) {
+                    continue;
+                }
+                for (DocumentReference group : groupService.getAllGroupsReferencesForMember(currentItem, 0, 0,
+                    context)) {
+                    if (!result.contains(group)) {
+                        entitiesToCheck.add(group);
+                    }
                 }
-                processedEntities.add(currentItem);
-                Collection<DocumentReference> groups =
-                    groupService.getAllGroupsReferencesForMember(currentItem, 0, 0, context);
-                groups.removeAll(processedEntities);
-                entitiesToCheck.addAll(groups);
             }
         } catch (XWikiException ex) {
             this.logger.warn("Failed to compute access level for [{}] on [{}]: {}", user, patient.getDocument(),
                 ex.getMessage());
+            // Incomplete, don't cache
+            result.addAll(entitiesToCheck);
+            return result;
+        }
+        result = Collections.unmodifiableSet(result);
+        if (wikiMemberships == null) {
+            wikiMemberships = new ConcurrentHashMap<>();
+            ConcurrentMap<DocumentReference, Set<DocumentReference>> existing =
+                this.memberships.putIfAbsent(wiki, wikiMemberships);
+            if (existing != null) {
+                wikiMemberships = existing;
+            }
+        }
+        if (wikiMemberships.size() >= MAX_CACHED_MEMBERS) {
+            wikiMemberships.clear();
+        }
+        wikiMemberships.put(user, result);
+        if (this.membershipsVersion.get() != version) {
+            // The groups changed while they were being computed
+            wikiMemberships.remove(user);
         }
         return result;
     }
@@ -362,4 +441,38 @@ private XWikiContext getXWikiContext()
     {
         return (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
     }
+
+    private static boolean isGroup(XWikiDocument doc)
+    {
+        return doc != null && doc.getXObject(GROUP_CLASS) != null;
+    }
+
+    /** Forgets the cached group memberships of a wiki when a group of that wiki is created, changed or deleted. */
+    private final class GroupChangesListener implements EventListener
+    {
+        @Override
+        public String getName()
+        {
+            return "patient-access-group-memberships";
+        }
+
+        @Override
+        public List<Event> getEvents()
+        {
+            return Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+                new DocumentDeletedEvent());
+        }
+
+        @Override
+        public void onEvent(Event event, Object source, Object data)
+        {
+            XWikiDocument doc = (XWikiDocument) source;
+            // A deleted group, or a group whose members were all removed, only has the group object in the original
+            if (isGroup(doc) || isGroup(doc.getOriginalDocument())) {
+                DefaultPatientAccessHelper.this.membershipsVersion.incrementAndGet();
+                DefaultPatientAccessHelper.this.memberships.remove(
+                    doc.getDocumentReference().getWikiReference().getName());
+            }
+        }
+    }
 }
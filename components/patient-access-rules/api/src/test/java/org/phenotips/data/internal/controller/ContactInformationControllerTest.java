@@ -27,6 +27,7 @@
 import org.phenotips.groups.GroupManager;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
@@ -46,6 +47,7 @@
 import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.Mock;
+import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
 import com.xpn.xwiki.doc.XWikiDocument;
@@ -347,6 +349,15 @@ public void writeJSONCreatesContactElement() throws ComponentLookupException
         Assert.assertEquals("John Doe", contact.getString("name"));
     }
 
+    /** {@link ContactInformationController#save(Patient, DocumentModelBridge)} doesn't change the document. */
+    @Test
+    public void saveInDocumentDoesNothing() throws Exception
+    {
+        XWikiDocument doc = mock(XWikiDocument.class);
+        Assert.assertFalse(this.mocker.getComponentUnderTest().save(this.patient, doc));
+        Mockito.verifyZeroInteractions(doc, this.patient);
+    }
+
     /** {@link ContactInformationController#getName()} returns "contact". */
     @Test
     public void getName() throws Exception
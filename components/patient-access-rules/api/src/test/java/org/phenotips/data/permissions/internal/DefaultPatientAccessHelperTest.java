@@ -30,6 +30,7 @@
 import org.phenotips.data.permissions.internal.access.ViewAccessLevel;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.util.DefaultParameterizedType;
 import org.xwiki.context.Execution;
@@ -39,6 +40,8 @@
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.lang.reflect.ParameterizedType;
@@ -53,6 +56,7 @@
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Matchers;
 import org.mockito.Mockito;
 
@@ -64,6 +68,8 @@
 import com.xpn.xwiki.user.api.XWikiGroupService;
 
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -172,6 +178,7 @@ public void setup() throws ComponentLookupException
         when(e.getContext()).thenReturn(ec);
         this.context = mock(XWikiContext.class);
         when(ec.getProperty("xwikicontext")).thenReturn(this.context);
+        when(this.context.getWikiId()).thenReturn("xwiki");
     }
 
     /** Basic tests for {@link PatientAccessHelper#getCurrentUser()}. */
@@ -678,6 +685,129 @@ public void getAccessLevelWithGroupMemberCollaborator() throws Exception
         Assert.assertSame(edit, this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR));
     }
 
+    /**
+     * Checking the access of the same user on many patients walks the group hierarchy only once, even with deeply
+     * nested groups.
+     */
+    @Test
+    public void getAccessLevelWalksNestedGroupsOnceForManyPatients() throws Exception
+    {
+        int depth = 50;
+        int patients = 1000;
+        DocumentReference[] groups = mockNestedGroups(depth);
+        XWikiDocument doc = mock(XWikiDocument.class);
+        when(this.bridge.getDocument(PATIENT_REFERENCE)).thenReturn(doc);
+        BaseObject collaborator = mock(BaseObject.class);
+        when(collaborator.getStringValue("collaborator")).thenReturn(GROUP_STR);
+        when(collaborator.getStringValue("access")).thenReturn("edit");
+        when(doc.getXObjects(COLLABORATOR_CLASS)).thenReturn(Collections.singletonList(collaborator));
+        PermissionsManager manager = this.mocker.getInstance(PermissionsManager.class);
+        AccessLevel edit = new EditAccessLevel();
+        when(manager.resolveAccessLevel("edit")).thenReturn(edit);
+        when(manager.resolveAccessLevel("none")).thenReturn(new NoAccessLevel());
+
+        for (int i = 0; i < patients; ++i) {
+            Assert.assertSame(edit, this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR));
+        }
+
+        XWikiGroupService groupService = this.context.getWiki().getGroupService(this.context);
+        verify(groupService).getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context);
+        for (DocumentReference group : groups) {
+            verify(groupService).getAllGroupsReferencesForMember(group, 0, 0, this.context);
+        }
+    }
+
+    /** Group changes invalidate the cached group memberships. */
+    @Test
+    public void groupChangesInvalidateCachedMemberships() throws Exception
+    {
+        mockNestedGroups(3);
+        when(this.mocker.<PermissionsManager>getInstance(PermissionsManager.class).resolveAccessLevel("none"))
+            .thenReturn(new NoAccessLevel());
+        this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR);
+        this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR);
+        XWikiGroupService groupService = this.context.getWiki().getGroupService(this.context);
+        verify(groupService, times(1)).getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context);
+
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(this.mocker.<ObservationManager>getInstance(ObservationManager.class)).addListener(listener.capture());
+
+        // Changes to other documents are ignored
+        XWikiDocument doc = mock(XWikiDocument.class);
+        listener.getValue().onEvent(new DocumentUpdatedEvent(PATIENT_REFERENCE), doc, null);
+        this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR);
+        verify(groupService, times(1)).getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context);
+
+        doc = mock(XWikiDocument.class);
+        when(doc.getXObject(new EntityReference("XWikiGroups", EntityType.DOCUMENT,
+            new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE)))).thenReturn(mock(BaseObject.class));
+        when(doc.getDocumentReference()).thenReturn(GROUP);
+        listener.getValue().onEvent(new DocumentUpdatedEvent(GROUP), doc, null);
+        this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR);
+        verify(groupService, times(2)).getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context);
+    }
+
+    /** Group memberships are cached separately for each wiki, and only group changes in that wiki invalidate them. */
+    @Test
+    public void cachedMembershipsAreSeparatedByWiki() throws Exception
+    {
+        mockNestedGroups(3);
+        when(this.mocker.<PermissionsManager>getInstance(PermissionsManager.class).resolveAccessLevel("none"))
+            .thenReturn(new NoAccessLevel());
+        XWikiGroupService groupService = this.context.getWiki().getGroupService(this.context);
+        this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR);
+        verify(groupService, times(1)).getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context);
+
+        when(this.context.getWikiId()).thenReturn("otherwiki");
+        this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR);
+        this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR);
+        verify(groupService, times(2)).getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context);
+
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(this.mocker.<ObservationManager>getInstance(ObservationManager.class)).addListener(listener.capture());
+        XWikiDocument doc = mock(XWikiDocument.class);
+        when(doc.getXObject(new EntityReference("XWikiGroups", EntityType.DOCUMENT,
+            new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE)))).thenReturn(mock(BaseObject.class));
+        when(doc.getDocumentReference()).thenReturn(new DocumentReference("otherwiki", "XWiki", "collaborators"));
+        listener.getValue().onEvent(new DocumentUpdatedEvent(doc.getDocumentReference()), doc, null);
+
+        when(this.context.getWikiId()).thenReturn("xwiki");
+        this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR);
+        verify(groupService, times(2)).getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context);
+        when(this.context.getWikiId()).thenReturn("otherwiki");
+        this.mocker.getComponentUnderTest().getAccessLevel(this.patient, COLLABORATOR);
+        verify(groupService, times(3)).getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context);
+    }
+
+    /**
+     * Makes {@link #COLLABORATOR} a member of {@link #GROUP}, which is itself a member of a chain of nested groups.
+     *
+     * @param depth the number of nested groups, including {@link #GROUP}
+     * @return the nested groups
+     */
+    private DocumentReference[] mockNestedGroups(int depth) throws XWikiException
+    {
+        XWikiGroupService groupService = mock(XWikiGroupService.class);
+        XWiki xwiki = mock(XWiki.class);
+        when(this.context.getWiki()).thenReturn(xwiki);
+        when(xwiki.getGroupService(this.context)).thenReturn(groupService);
+        DocumentReference[] groups = new DocumentReference[depth];
+        groups[0] = GROUP;
+        for (int i = 1; i < depth; ++i) {
+            groups[i] = new DocumentReference("xwiki", "Groups", "Group" + i);
+        }
+        when(groupService.getAllGroupsReferencesForMember(COLLABORATOR, 0, 0, this.context))
+            .thenReturn(new ArrayList<DocumentReference>(Arrays.asList(GROUP)));
+        for (int i = 0; i < depth - 1; ++i) {
+            when(groupService.getAllGroupsReferencesForMember(groups[i], 0, 0, this.context))
+                .thenReturn(new ArrayList<DocumentReference>(Arrays.asList(groups[i + 1])));
+        }
+        // The outermost group also contains the first one, making a cycle
+        when(groupService.getAllGroupsReferencesForMember(groups[depth - 1], 0, 0, this.context))
+            .thenReturn(new ArrayList<DocumentReference>(Arrays.asList(GROUP)));
+        return groups;
+    }
+
     /**
      * {@link PatientAccessHelper#getAccessLevel(Patient, EntityReference)} returns no access when XWiki throws
      * exceptions.
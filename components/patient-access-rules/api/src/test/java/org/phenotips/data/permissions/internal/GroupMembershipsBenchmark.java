@@ -0,0 +1,243 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.permissions.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.permissions.AccessLevel;
+import org.phenotips.data.permissions.Owner;
+import org.phenotips.data.permissions.PermissionsManager;
+import org.phenotips.data.permissions.internal.access.EditAccessLevel;
+import org.phenotips.data.permissions.internal.access.NoAccessLevel;
+import org.phenotips.data.permissions.internal.access.OwnerAccessLevel;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.user.api.XWikiGroupService;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures {@link DefaultPatientAccessHelper#getAccessLevel(Patient, EntityReference)} for a user who is a member of
+ * a chain of nested groups, checked against a list of patients shared with the outermost group. With a cold cache the
+ * group memberships are forgotten before each pass over the patients, as happens when a group changes. This isn't run
+ * as part of the unit tests; run it with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.phenotips.data.permissions.internal.GroupMembershipsBenchmark}.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class GroupMembershipsBenchmark
+{
+    private static final DocumentReference OWNER = new DocumentReference("xwiki", "XWiki", "padams");
+
+    private static final String OWNER_STR = "xwiki:XWiki.padams";
+
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "hmccoy");
+
+    private static final DocumentReference OWNER_CLASS = new DocumentReference("xwiki", "PhenoTips", "Owner");
+
+    private static final DocumentReference COLLABORATOR_CLASS =
+        new DocumentReference("xwiki", "PhenoTips", "Collaborator");
+
+    private static final EntityReference GROUP_CLASS = new EntityReference("XWikiGroups", EntityType.DOCUMENT,
+        new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE));
+
+    /** How many nested groups the user belongs to. */
+    @Param({ "1", "10", "50" })
+    public int depth;
+
+    /** How many patients are checked in each pass. */
+    @Param({ "100", "1000" })
+    public int patients;
+
+    /** Whether the cached group memberships are forgotten before each pass. */
+    @Param({ "true", "false" })
+    public boolean cold;
+
+    private DefaultPatientAccessHelper helper;
+
+    private List<Patient> patientList;
+
+    private EventListener groupChangesListener;
+
+    private XWikiDocument changedGroup;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception
+    {
+        final DocumentReference[] groups = new DocumentReference[this.depth];
+        for (int i = 0; i < this.depth; ++i) {
+            groups[i] = new DocumentReference("xwiki", "Groups", "Group" + i);
+        }
+        final String outermostGroup = "xwiki:Groups.Group" + (this.depth - 1);
+
+        XWikiContext context = mock(XWikiContext.class);
+        XWiki xwiki = mock(XWiki.class);
+        XWikiGroupService groupService = mock(XWikiGroupService.class);
+        when(context.getWikiId()).thenReturn("xwiki");
+        when(context.getWiki()).thenReturn(xwiki);
+        when(xwiki.getGroupService(context)).thenReturn(groupService);
+        when(groupService.getAllGroupsReferencesForMember(USER, 0, 0, context))
+            .thenReturn(new ArrayList<DocumentReference>(Arrays.asList(groups[0])));
+        for (int i = 0; i < this.depth - 1; ++i) {
+            when(groupService.getAllGroupsReferencesForMember(groups[i], 0, 0, context))
+                .thenReturn(new ArrayList<DocumentReference>(Arrays.asList(groups[i + 1])));
+        }
+        when(groupService.getAllGroupsReferencesForMember(groups[this.depth - 1], 0, 0, context))
+            .thenReturn(new ArrayList<DocumentReference>());
+        Execution execution = mock(Execution.class);
+        ExecutionContext executionContext = mock(ExecutionContext.class);
+        when(execution.getContext()).thenReturn(executionContext);
+        when(executionContext.getProperty("xwikicontext")).thenReturn(context);
+
+        DocumentReferenceResolver<EntityReference> partialResolver = mock(DocumentReferenceResolver.class);
+        when(partialResolver.resolve(Matchers.any(EntityReference.class), Matchers.anyVararg()))
+            .thenAnswer(new Answer<DocumentReference>()
+            {
+                @Override
+                public DocumentReference answer(InvocationOnMock invocation)
+                {
+                    return Owner.CLASS_REFERENCE.equals(invocation.getArguments()[0]) ? OWNER_CLASS
+                        : COLLABORATOR_CLASS;
+                }
+            });
+        DocumentReferenceResolver<String> stringResolver = mock(DocumentReferenceResolver.class);
+        when(stringResolver.resolve(Matchers.anyString(), Matchers.anyVararg()))
+            .thenAnswer(new Answer<DocumentReference>()
+            {
+                @Override
+                public DocumentReference answer(InvocationOnMock invocation)
+                {
+                    return OWNER_STR.equals(invocation.getArguments()[0]) ? OWNER : groups[groups.length - 1];
+                }
+            });
+
+        // Every patient is owned by someone else and shared with the outermost group
+        DocumentAccessBridge bridge = mock(DocumentAccessBridge.class);
+        when(bridge.getProperty(Matchers.any(DocumentReference.class), Matchers.eq(OWNER_CLASS),
+            Matchers.eq("owner"))).thenReturn(OWNER_STR);
+        XWikiDocument patientDocument = mock(XWikiDocument.class);
+        BaseObject collaborator = mock(BaseObject.class);
+        when(collaborator.getStringValue("collaborator")).thenReturn(outermostGroup);
+        when(collaborator.getStringValue("access")).thenReturn("edit");
+        when(patientDocument.getXObjects(COLLABORATOR_CLASS)).thenReturn(Collections.singletonList(collaborator));
+        when(bridge.getDocument(Matchers.any(DocumentReference.class))).thenReturn(patientDocument);
+        this.patientList = new ArrayList<>(this.patients);
+        for (int i = 1; i <= this.patients; ++i) {
+            Patient patient = mock(Patient.class);
+            when(patient.getDocument()).thenReturn(new DocumentReference("xwiki", "data", String.format("P%07d", i)));
+            this.patientList.add(patient);
+        }
+
+        PermissionsManager manager = mock(PermissionsManager.class);
+        when(manager.resolveAccessLevel("none")).thenReturn(new NoAccessLevel());
+        when(manager.resolveAccessLevel("edit")).thenReturn(new EditAccessLevel());
+        when(manager.resolveAccessLevel("owner")).thenReturn(new OwnerAccessLevel());
+        ObservationManager observationManager = mock(ObservationManager.class);
+
+        this.helper = new DefaultPatientAccessHelper();
+        ReflectionUtils.setFieldValue(this.helper, "logger", LoggerFactory.getLogger(DefaultPatientAccessHelper.class));
+        ReflectionUtils.setFieldValue(this.helper, "bridge", bridge);
+        ReflectionUtils.setFieldValue(this.helper, "execution", execution);
+        ReflectionUtils.setFieldValue(this.helper, "partialEntityResolver", partialResolver);
+        ReflectionUtils.setFieldValue(this.helper, "stringEntityResolver", stringResolver);
+        ReflectionUtils.setFieldValue(this.helper, "manager", manager);
+        ReflectionUtils.setFieldValue(this.helper, "observationManager", observationManager);
+        this.helper.initialize();
+
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(observationManager).addListener(listener.capture());
+        this.groupChangesListener = listener.getValue();
+        this.changedGroup = mock(XWikiDocument.class);
+        when(this.changedGroup.getXObject(GROUP_CLASS)).thenReturn(mock(BaseObject.class));
+        when(this.changedGroup.getDocumentReference()).thenReturn(new DocumentReference("xwiki", "XWiki", "Group0"));
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareMemberships()
+    {
+        if (this.cold) {
+            this.groupChangesListener.onEvent(new DocumentUpdatedEvent(), this.changedGroup, null);
+        }
+    }
+
+    @Benchmark
+    public List<AccessLevel> getAccessLevel()
+    {
+        List<AccessLevel> result = new ArrayList<>(this.patientList.size());
+        for (Patient patient : this.patientList) {
+            result.add(this.helper.getAccessLevel(patient, USER));
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(GroupMembershipsBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -24,6 +24,7 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 
 import java.util.Collection;
@@ -118,11 +119,24 @@ public void save(Patient patient)
     {
         try {
             XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            if (save(patient, doc)) {
+                XWikiContext context = this.xcontext.get();
+                context.getWiki().saveDocument(doc, "Updated medication data from JSON", true, context);
+            }
+        } catch (Exception ex) {
+            this.logger.error("Failed to save medication data: [{}]", ex.getMessage());
+        }
+    }
 
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge document)
+    {
+        try {
             PatientData<Medication> data = patient.getData(DATA_NAME);
             if (data == null || !data.isIndexed()) {
-                return;
+                return false;
             }
+            XWikiDocument doc = (XWikiDocument) document;
             doc.removeXObjects(Medication.CLASS_REFERENCE);
             XWikiContext context = this.xcontext.get();
             for (Medication m : data) {
@@ -143,11 +157,11 @@ public void save(Patient patient)
                 }
                 o.setLargeStringValue(Medication.NOTES, m.getNotes());
             }
-
-            context.getWiki().saveDocument(doc, "Updated medication data from JSON", true, context);
+            return true;
         } catch (Exception ex) {
             this.logger.error("Failed to save medication data: [{}]", ex.getMessage());
         }
+        return false;
     }
 
     @Override
@@ -17,6 +17,7 @@
  */
 package org.phenotips.data;
 
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
@@ -34,7 +35,8 @@
  * The {@link #load(Patient)} method is responsible for populating a {@link Patient} object with actual data from the
  * patient record. Data read from the record can be accessed using the {@link Patient}'s {@link Patient#getData(String)
  * custom data access method}. The {@link #save(Patient)} method is responsible for storing back into the database the
- * custom data.
+ * custom data, while {@link #save(Patient, DocumentModelBridge)} only writes the custom data into an already loaded
+ * document, so that the changes made by all the controllers can be saved at once.
  * </p>
  * <p>
  * The {@link #writeJSON(Patient, JSONObject)} method serializes custom data into the JSON being generated for a
@@ -74,6 +76,18 @@
      */
     void save(Patient patient);
 
+    /**
+     * Writes the data that this controller {@link #load(Patient) loaded} for a patient into the document storing the
+     * patient record, without saving the document. This allows updating a patient record with the data from all the
+     * controllers, and saving it only once.
+     *
+     * @param patient the patient being saved
+     * @param doc the document storing the patient record, already loaded; the caller is responsible for saving it
+     * @return {@code true} if the document was modified, {@code false} if there was nothing to write
+     * @since 1.3M2
+     */
+    boolean save(Patient patient, DocumentModelBridge doc);
+
     /**
      * Exports the data being managed by this data controller into the patient JSON export.
      *
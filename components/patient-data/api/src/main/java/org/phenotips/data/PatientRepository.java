@@ -22,6 +22,10 @@
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.stability.Unstable;
 
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
 /**
  * API that provides access to patient data. No access rights are checked here.
  *
@@ -49,6 +53,41 @@
      */
     Patient getPatientByExternalId(String externalId);
 
+    /**
+     * Retrieve several {@link Patient patients} at once, by their PhenoTips identifiers. The requested records are
+     * looked up in batches instead of one query per patient, and each patient is only built when it is first accessed
+     * in the returned list.
+     *
+     * @param ids the patient identifiers, i.e. the serialized document references
+     * @return the requested patients, in the order of the identifiers; identifiers which don't point to a valid patient
+     *         are skipped, so the returned list may be shorter than the requested collection
+     * @since 1.3M2
+     */
+    List<Patient> getPatientsById(Collection<String> ids);
+
+    /**
+     * Retrieve several {@link Patient patients} at once, by their document references. Works just like
+     * {@link #getPatientsById(Collection)}.
+     *
+     * @param references references to the patient documents
+     * @return the requested patients, in the order of the references; references which don't point to a valid patient
+     *         are skipped, so the returned list may be shorter than the requested collection
+     * @since 1.3M2
+     */
+    List<Patient> getPatients(Collection<DocumentReference> references);
+
+    /**
+     * Iterate over all the patients stored in the current wiki, ordered by their identifier. Patients are fetched page
+     * by page as the iteration advances, so that going over a large cohort doesn't require holding all the records in
+     * memory at once. The returned iterator doesn't support {@link Iterator#remove() removal}. If fetching a page of
+     * patients fails, {@link Iterator#hasNext()} and {@link Iterator#next()} throw an {@link IllegalStateException}
+     * instead of ending the iteration early.
+     *
+     * @return an iterator over all the patients, may be empty but not {@code null}
+     * @since 1.3M2
+     */
+    Iterator<Patient> getAllPatientsIterator();
+
     /**
      * Load and return a {@link Patient patient} from the specified document. This method will be removed once the new
      * XWiki model is implemented and the intermediary model bridge is no longer needed. Do not use.
@@ -24,6 +24,9 @@
 import org.xwiki.script.service.ScriptService;
 import org.xwiki.stability.Unstable;
 
+import java.util.Collection;
+import java.util.List;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -78,6 +81,19 @@ public Patient getPatientByExternalId(String externalId)
         }
     }
 
+    /**
+     * Retrieve several {@link Patient patients} at once, by their PhenoTips identifiers.
+     *
+     * @param ids the patient identifiers, i.e. the serialized document references
+     * @return the requested patients accessible by the current user, in the order of the identifiers; identifiers
+     *         which don't point to a valid patient, or to a patient not accessible by the current user, are skipped
+     * @since 1.3M2
+     */
+    public List<Patient> getPatientsById(Collection<String> ids)
+    {
+        return this.internalService.getPatientsById(ids);
+    }
+
     /**
      * Create and return a new empty patient record.
      *
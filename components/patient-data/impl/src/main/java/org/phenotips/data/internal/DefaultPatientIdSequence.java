@@ -0,0 +1,253 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+/**
+ * Default {@link PatientIdSequence} implementation. Identifiers are reserved in blocks of
+ * {@code phenotips.patientData.idBlockSize} (default 50), by moving forward the last reserved identifier, stored as a
+ * {@link PatientIdCounter} in the database of each wiki. The counter is moved forward with a single update statement,
+ * so the database serializes concurrent reservations, and the members of a cluster never get overlapping blocks.
+ * Identifiers from a block are then handed out from memory. Identifiers left unused in a block when the server stops
+ * are skipped. When the sequence of a wiki is first used, it starts after the highest identifier already assigned to a
+ * patient.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Component
+@Singleton
+public class DefaultPatientIdSequence implements PatientIdSequence, Initializable
+{
+    /** The configuration key for the number of identifiers reserved at once. */
+    private static final String BLOCK_SIZE_KEY = "phenotips.patientData.idBlockSize";
+
+    /** The default number of identifiers reserved at once. */
+    private static final int DEFAULT_BLOCK_SIZE = 50;
+
+    /** The name of the counter holding the last reserved patient identifier. */
+    private static final String COUNTER_NAME = "patient";
+
+    /** The name of the query parameter holding the name of the counter. */
+    private static final String NAME_PARAMETER = "name";
+
+    /** Moves forward the counter, the database holds a lock on the counter until the transaction ends. */
+    private static final String RESERVE_STATEMENT =
+        "update PatientIdCounter set lastReserved = lastReserved + :size where name = :name";
+
+    /** Reads the counter, after it was moved forward in the same transaction. */
+    private static final String LAST_RESERVED_QUERY = "select lastReserved from PatientIdCounter where name = :name";
+
+    /** Finds the highest identifier already assigned to a patient. */
+    private static final String LAST_USED_ID_QUERY =
+        "select patient.identifier from Document doc, doc.object(PhenoTips.PatientClass) as patient"
+            + " where patient.identifier is not null order by patient.identifier desc";
+
+    @Inject
+    private Logger logger;
+
+    /** Provides access to the database, where the sequences are stored. */
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /** Provides access to the configured block size. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Used for finding the last identifier assigned before the sequence was first used. */
+    @Inject
+    private QueryManager qm;
+
+    /** The currently reserved block of each wiki; all accesses are synchronized on it. */
+    private final Map<String, Block> blocks = new HashMap<>();
+
+    /** How many identifiers are reserved at once. */
+    private int blockSize;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        Integer size = this.configuration.getProperty(BLOCK_SIZE_KEY, Integer.class);
+        this.blockSize = size == null || size <= 0 ? DEFAULT_BLOCK_SIZE : size;
+    }
+
+    @Override
+    public long next(String wiki) throws IOException
+    {
+        synchronized (this.blocks) {
+            Block block = this.blocks.get(wiki);
+            if (block == null || block.next > block.last) {
+                block = reserveBlock(wiki);
+                this.blocks.put(wiki, block);
+            }
+            return block.next++;
+        }
+    }
+
+    /**
+     * Reserves a new block of identifiers, moving forward the stored last reserved identifier of the wiki.
+     *
+     * @param wiki the identifier of the wiki
+     * @return the reserved block
+     * @throws IOException if the sequence can't be read or written
+     */
+    private Block reserveBlock(String wiki) throws IOException
+    {
+        Long lastReserved = reserve(wiki, null);
+        if (lastReserved == null) {
+            // First use of the sequence in this wiki
+            long initial = getLastUsedId(wiki) + this.blockSize;
+            try {
+                lastReserved = reserve(wiki, initial);
+            } catch (IOException ex) {
+                // Another cluster member probably created the counter at the same time
+                this.logger.debug("Failed to create the patient identifier counter: {}", ex.getMessage());
+                lastReserved = reserve(wiki, null);
+                if (lastReserved == null) {
+                    throw ex;
+                }
+            }
+        }
+        this.logger.debug("Reserved patient identifiers [{}] to [{}] in wiki [{}]", lastReserved - this.blockSize + 1,
+            lastReserved, wiki);
+        return new Block(lastReserved - this.blockSize + 1, lastReserved);
+    }
+
+    /**
+     * Moves forward the counter of a wiki by a block, in a single update statement.
+     *
+     * @param wiki the identifier of the wiki
+     * @param initial the last reserved identifier to store if the counter doesn't exist yet, or {@code null} to leave
+     *            a missing counter as it is
+     * @return the new last reserved identifier, or {@code null} if the counter doesn't exist and wasn't created
+     * @throws IOException if the database can't be accessed
+     */
+    private Long reserve(String wiki, final Long initial) throws IOException
+    {
+        try {
+            return inWiki(wiki, new HibernateCallback<Long>()
+            {
+                @Override
+                public Long doInHibernate(Session session) throws HibernateException
+                {
+                    org.hibernate.Query update = session.createQuery(RESERVE_STATEMENT);
+                    update.setLong("size", DefaultPatientIdSequence.this.blockSize);
+                    update.setString(NAME_PARAMETER, COUNTER_NAME);
+                    if (update.executeUpdate() > 0) {
+                        org.hibernate.Query read = session.createQuery(LAST_RESERVED_QUERY);
+                        read.setString(NAME_PARAMETER, COUNTER_NAME);
+                        return (Long) read.uniqueResult();
+                    } else if (initial != null) {
+                        session.save(new PatientIdCounter(COUNTER_NAME, initial));
+                    }
+                    return initial;
+                }
+            });
+        } catch (XWikiException ex) {
+            throw new IOException("Failed to reserve patient identifiers in wiki " + wiki, ex);
+        }
+    }
+
+    /**
+     * Runs a callback in a write transaction on the database of a wiki.
+     *
+     * @param wiki the identifier of the wiki
+     * @param callback the callback to run
+     * @return the result of the callback
+     * @throws XWikiException if accessing the database fails
+     */
+    private <T> T inWiki(String wiki, HibernateCallback<T> callback) throws XWikiException
+    {
+        XWikiContext context = this.xcontextProvider.get();
+        String currentWiki = context.getWikiId();
+        try {
+            context.setWikiId(wiki);
+            XWikiHibernateStore store = context.getWiki().getHibernateStore();
+            return store.executeWrite(context, callback);
+        } finally {
+            context.setWikiId(currentWiki);
+        }
+    }
+
+    private long getLastUsedId(String wiki) throws IOException
+    {
+        try {
+            Query q = this.qm.createQuery(LAST_USED_ID_QUERY, Query.XWQL);
+            q.setLimit(1);
+            q.setWiki(wiki);
+            List<Long> crtMaxIDList = q.execute();
+            if (!crtMaxIDList.isEmpty() && crtMaxIDList.get(0) != null) {
+                return Math.max(crtMaxIDList.get(0), 0);
+            }
+            return 0;
+        } catch (QueryException ex) {
+            throw new IOException("Failed to find the last used patient identifier", ex);
+        }
+    }
+
+    /**
+     * A range of reserved identifiers.
+     */
+    private static final class Block
+    {
+        /** The next identifier to hand out. */
+        private long next;
+
+        /** The last identifier in this block. */
+        private final long last;
+
+        /**
+         * Simple constructor.
+         *
+         * @param first the first identifier in the block
+         * @param last the last identifier in the block
+         */
+        Block(long first, long last)
+        {
+            this.next = first;
+            this.last = last;
+        }
+    }
+}
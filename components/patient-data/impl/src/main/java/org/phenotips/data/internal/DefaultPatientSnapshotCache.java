@@ -0,0 +1,193 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.events.PatientChangedEvent;
+import org.phenotips.data.events.PatientDeletedEvent;
+import org.phenotips.data.events.PatientEvent;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Default {@link PatientSnapshotCache} implementation, keeping at most {@code phenotips.patientData.cache.size}
+ * patients (500 by default) in memory. Patients are removed from the cache as soon as they are changed or deleted.
+ * Setting the size to {@code 0} disables the cache.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Component(roles = PatientSnapshotCache.class)
+@Singleton
+public class DefaultPatientSnapshotCache implements PatientSnapshotCache, EventListener, Initializable, Disposable
+{
+    private static final String SIZE_KEY = "phenotips.patientData.cache.size";
+
+    private static final int DEFAULT_SIZE = 500;
+
+    /** Provides access to the configured cache size. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Factory for the cache holding the patients. */
+    @Inject
+    private CacheManager cacheManager;
+
+    /** Used for listening to patient changes. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** The cached patients, keyed by their document; {@code null} if the cache is disabled. */
+    private Cache<Snapshot> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        Integer size = this.configuration.getProperty(SIZE_KEY, Integer.class);
+        if (size == null || size < 0) {
+            size = DEFAULT_SIZE;
+        }
+        if (size == 0) {
+            return;
+        }
+        try {
+            CacheConfiguration config = new CacheConfiguration(new LRUEvictionConfiguration(size));
+            config.setConfigurationId("phenotips.patientData.snapshots");
+            this.cache = this.cacheManager.createNewLocalCache(config);
+        } catch (CacheException ex) {
+            throw new InitializationException("Cannot create the patient cache: " + ex.getMessage());
+        }
+        this.observationManager.addListener(this);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (this.cache != null) {
+            this.observationManager.removeListener(getName());
+            this.cache.dispose();
+        }
+    }
+
+    @Override
+    public Patient get(DocumentReference document, String version)
+    {
+        if (this.cache == null || document == null) {
+            return null;
+        }
+        Snapshot snapshot = this.cache.get(document.toString());
+        if (snapshot != null && StringUtils.equals(snapshot.version, version)) {
+            this.hits.incrementAndGet();
+            return snapshot.patient;
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    @Override
+    public void put(Patient patient, String version)
+    {
+        if (this.cache != null && patient != null && patient.getDocument() != null) {
+            this.cache.set(patient.getDocument().toString(), new Snapshot(patient, version));
+        }
+    }
+
+    @Override
+    public void invalidate(DocumentReference document)
+    {
+        if (this.cache != null && document != null) {
+            this.cache.remove(document.toString());
+        }
+    }
+
+    @Override
+    public long getHitCount()
+    {
+        return this.hits.get();
+    }
+
+    @Override
+    public long getMissCount()
+    {
+        return this.misses.get();
+    }
+
+    @Override
+    public String getName()
+    {
+        return "patient-snapshot-cache";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new PatientChangedEvent(), new PatientDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        Patient patient = ((PatientEvent) event).getPatient();
+        if (patient != null) {
+            invalidate(patient.getDocument());
+        }
+    }
+
+    /** A cached patient, along with the version of the document it was built from. */
+    private static final class Snapshot
+    {
+        private final Patient patient;
+
+        private final String version;
+
+        Snapshot(Patient patient, String version)
+        {
+            this.patient = patient;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+
+/**
+ * The last patient identifier reserved in a wiki, stored in the database of that wiki, so that all the members of a
+ * cluster reserve identifiers from the same counter. The counter is only moved forward by atomic updates in the
+ * database, see {@link DefaultPatientIdSequence}.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Entity
+public class PatientIdCounter
+{
+    /** The name of the counter. */
+    @Id
+    private String name;
+
+    /** The last identifier reserved so far. */
+    @Column(nullable = false)
+    private long lastReserved;
+
+    /** Default constructor used by Hibernate. */
+    protected PatientIdCounter()
+    {
+        // Nothing to do, Hibernate will populate all the fields from the database
+    }
+
+    /**
+     * Creates a new counter.
+     *
+     * @param name the name of the counter
+     * @param lastReserved the last identifier reserved so far
+     */
+    public PatientIdCounter(String name, long lastReserved)
+    {
+        this.name = name;
+        this.lastReserved = lastReserved;
+    }
+
+    /**
+     * The name of the counter.
+     *
+     * @return the name of the counter
+     */
+    public String getName()
+    {
+        return this.name;
+    }
+
+    /**
+     * The last identifier reserved so far.
+     *
+     * @return a positive number, or {@code 0} if no identifier was reserved yet
+     */
+    public long getLastReserved()
+    {
+        return this.lastReserved;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.xwiki.component.annotation.Role;
+
+import java.io.IOException;
+
+/**
+ * Hands out the numeric identifiers of new patient records. Identifiers are never handed out twice, even across
+ * restarts or by different members of a cluster, but some identifiers may be skipped.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Role
+public interface PatientIdSequence
+{
+    /**
+     * Get a new patient identifier, higher than all the identifiers already handed out in the same wiki.
+     *
+     * @param wiki the identifier of the wiki where the new patient record will be created
+     * @return a new, unused patient identifier
+     * @throws IOException if a new range of identifiers is needed, but can't be reserved
+     */
+    long next(String wiki) throws IOException;
+}
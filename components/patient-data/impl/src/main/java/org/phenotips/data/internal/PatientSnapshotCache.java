@@ -0,0 +1,73 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.Patient;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Keeps the recently loaded patients in memory, so that the same version of a patient record isn't parsed again every
+ * time it is requested. A snapshot is only valid for the version of the patient document it was built from. Cached
+ * snapshots must not be handed out to callers, who should get a copy instead, so that a snapshot is never changed.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Role
+public interface PatientSnapshotCache
+{
+    /**
+     * Get the cached patient built from a specific version of a patient document.
+     *
+     * @param document the patient document
+     * @param version the current version of the patient document
+     * @return the cached patient, or {@code null} if this version of the patient isn't cached
+     */
+    Patient get(DocumentReference document, String version);
+
+    /**
+     * Cache a patient.
+     *
+     * @param patient the patient to cache
+     * @param version the version of the patient document that the patient was built from
+     */
+    void put(Patient patient, String version);
+
+    /**
+     * Remove a patient from the cache.
+     *
+     * @param document the patient document
+     */
+    void invalidate(DocumentReference document);
+
+    /**
+     * Get the number of requests answered from the cache since startup.
+     *
+     * @return the number of hits
+     */
+    long getHitCount();
+
+    /**
+     * Get the number of requests which couldn't be answered from the cache since startup.
+     *
+     * @return the number of misses
+     */
+    long getMissCount();
+}
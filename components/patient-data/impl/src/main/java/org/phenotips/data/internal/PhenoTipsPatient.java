@@ -35,12 +35,17 @@
 
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
@@ -57,7 +62,9 @@
 
 /**
  * Implementation of patient data based on the XWiki data model, where patient data is represented by properties in
- * objects of type {@code PhenoTips.PatientClass}.
+ * objects of type {@code PhenoTips.PatientClass}. Cached patients are kept as snapshots which are never handed out
+ * directly; each caller gets a {@link #PhenoTipsPatient(PhenoTipsPatient) copy} sharing the parsed data, so that
+ * changing a copy doesn't affect the snapshot or the other callers.
  *
  * @version $Id$
  * @since 1.0M8
@@ -111,8 +118,14 @@ public class PhenoTipsPatient implements Patient
     /** The list of all the initialized data holders (PatientDataSerializer). */
     private Map<String, PatientDataController<?>> serializers = new TreeMap<String, PatientDataController<?>>();
 
-    /** Extra data that can be plugged into the patient record. */
-    private Map<String, PatientData<?>> extraData = new TreeMap<String, PatientData<?>>();
+    /** Extra data that can be plugged into the patient record, loaded on demand. */
+    private ConcurrentMap<String, PatientData<?>> extraData = new ConcurrentHashMap<String, PatientData<?>>();
+
+    /**
+     * The extra data already loaded in the snapshot this patient was copied from, shared by all the copies of that
+     * snapshot; {@code null} if this isn't a copy, or if this copy was changed and no longer matches the snapshot.
+     */
+    private volatile ConcurrentMap<String, PatientData<?>> sharedData;
 
     /**
      * Constructor that copies the data from an XDocument.
@@ -143,6 +156,24 @@ public PhenoTipsPatient(XWikiDocument doc)
 
     }
 
+    /**
+     * Copy constructor, creating a private copy of a cached snapshot. The parsed features and disorders are read-only,
+     * so they are shared with the snapshot, while changes made with {@link #updateFromJSON(JSONObject)} only affect
+     * this copy.
+     *
+     * @param snapshot the cached patient to copy
+     * @since 1.3M2
+     */
+    PhenoTipsPatient(PhenoTipsPatient snapshot)
+    {
+        this.document = snapshot.document;
+        this.reporter = snapshot.reporter;
+        this.features = snapshot.features;
+        this.disorders = snapshot.disorders;
+        this.serializers = snapshot.serializers;
+        this.sharedData = snapshot.extraData;
+    }
+
     private void loadFeatures(XWikiDocument doc, BaseObject data)
     {
         @SuppressWarnings("unchecked")
@@ -202,6 +233,11 @@ private void readPatientData(String name)
             PatientData<?> data = serializer.load(this);
             if (data != null) {
                 this.extraData.put(data.getName(), data);
+                ConcurrentMap<String, PatientData<?>> shared = this.sharedData;
+                if (shared != null) {
+                    // Let the other copies of the snapshot reuse the loaded data
+                    shared.putIfAbsent(data.getName(), data);
+                }
             }
         }
     }
@@ -282,7 +318,13 @@ public Set<Disorder> getDisorders()
     public <T> PatientData<T> getData(String name)
     {
         if (!this.extraData.containsKey(name)) {
-            this.readPatientData(name);
+            ConcurrentMap<String, PatientData<?>> shared = this.sharedData;
+            PatientData<?> data = shared == null ? null : shared.get(name);
+            if (data != null) {
+                this.extraData.put(name, data);
+            } else {
+                this.readPatientData(name);
+            }
         }
         return (PatientData<T>) this.extraData.get(name);
     }
@@ -366,7 +408,12 @@ public JSONObject toJSON(Collection<String> selectedFields)
         return result;
     }
 
-    private void updateFeaturesFromJSON(XWikiDocument doc, BaseObject data, XWikiContext context,
+    /**
+     * Replaces the features stored in the patient document with the ones from the JSON.
+     *
+     * @return {@code true} if the stored features changed, {@code false} if they were already the same
+     */
+    private boolean updateFeaturesFromJSON(XWikiDocument doc, BaseObject data, XWikiContext context,
         JSONObject json)
     {
         try {
@@ -404,30 +451,30 @@ private void updateFeaturesFromJSON(XWikiDocument doc, BaseObject data, XWikiCon
             // as in constructor: make unmodifiable
             this.features = Collections.unmodifiableSet(this.features);
 
-            // to reset values in the document null them first
+            // types missing from the JSON are reset
+            boolean modified = false;
             for (String type : PHENOTYPE_PROPERTIES) {
-                data.set(type, null, context);
+                modified |= setIfChanged(data, type, featuresMap.remove(type), context);
             }
-
-            for (String type : featuresMap.keySet()) {
-                data.set(type, featuresMap.get(type), context);
+            for (Map.Entry<String, List<String>> type : featuresMap.entrySet()) {
+                modified |= setIfChanged(data, type.getKey(), type.getValue(), context);
             }
 
             // update features' metadata objects in document
-            updateMetaData(doc, context);
+            modified |= updateMetaData(doc, context);
 
             // update features' categories objects in document
-            updateCategories(doc, context);
-
-            context.getWiki().saveDocument(doc, "Updated features from JSON", true, context);
-
+            modified |= updateCategories(doc, context);
+            return modified;
         } catch (Exception ex) {
             this.logger.warn("Failed to update patient features from JSON [{}]: {}", ex.getMessage(), ex);
         }
+        return false;
     }
 
-    private void updateMetaData(XWikiDocument doc, XWikiContext context) throws XWikiException
+    private boolean updateMetaData(XWikiDocument doc, XWikiContext context) throws XWikiException
     {
+        Set<Map<String, Object>> oldValues = getObjectValues(doc, FeatureMetadatum.CLASS_REFERENCE);
         doc.removeXObjects(FeatureMetadatum.CLASS_REFERENCE);
         for (Feature feature : this.features) {
             @SuppressWarnings("unchecked")
@@ -446,10 +493,12 @@ private void updateMetaData(XWikiDocument doc, XWikiContext context) throws XWik
             }
             metaObject.set("comments", feature.getNotes(), context);
         }
+        return !oldValues.equals(getObjectValues(doc, FeatureMetadatum.CLASS_REFERENCE));
     }
 
-    private void updateCategories(XWikiDocument doc, XWikiContext context) throws XWikiException
+    private boolean updateCategories(XWikiDocument doc, XWikiContext context) throws XWikiException
     {
+        Set<Map<String, Object>> oldValues = getObjectValues(doc, PhenoTipsFeature.CATEGORY_CLASS_REFERENCE);
         doc.removeXObjects(PhenoTipsFeature.CATEGORY_CLASS_REFERENCE);
         for (Feature feature : this.features) {
             List<String> categories = feature.getCategories();
@@ -463,6 +512,64 @@ private void updateCategories(XWikiDocument doc, XWikiContext context) throws XW
             categoriesObject.set(PhenoTipsFeature.META_PROPERTY_VALUE, feature.getValue(), context);
             categoriesObject.set(PhenoTipsFeature.META_PROPERTY_CATEGORIES, categories, context);
         }
+        return !oldValues.equals(getObjectValues(doc, PhenoTipsFeature.CATEGORY_CLASS_REFERENCE));
+    }
+
+    /**
+     * Sets a property of an object, unless it already has the same value. Missing properties, {@code null}, empty
+     * strings and empty lists are all considered the same.
+     *
+     * @return {@code true} if the property was changed
+     */
+    private boolean setIfChanged(BaseObject object, String name, Object value, XWikiContext context)
+    {
+        if (Objects.equals(normalize(getValue(object, name)), normalize(value))) {
+            return false;
+        }
+        object.set(name, value, context);
+        return true;
+    }
+
+    /**
+     * Lists the non-empty property values of all the objects of a type, ignoring their order, for checking if the
+     * objects were changed.
+     */
+    private Set<Map<String, Object>> getObjectValues(XWikiDocument doc, EntityReference classReference)
+    {
+        Set<Map<String, Object>> result = new HashSet<>();
+        List<BaseObject> objects = doc.getXObjects(classReference);
+        if (objects == null) {
+            return result;
+        }
+        for (BaseObject object : objects) {
+            if (object == null) {
+                continue;
+            }
+            Map<String, Object> values = new HashMap<>();
+            for (String name : object.getPropertyList()) {
+                Object value = normalize(getValue(object, name));
+                if (value != null) {
+                    values.put(name, value);
+                }
+            }
+            result.add(values);
+        }
+        return result;
+    }
+
+    private Object getValue(BaseObject object, String name)
+    {
+        BaseProperty<?> property = (BaseProperty<?>) object.safeget(name);
+        return property == null ? null : property.getValue();
+    }
+
+    private Object normalize(Object value)
+    {
+        if ((value instanceof String && ((String) value).isEmpty())
+            || (value instanceof Collection && ((Collection<?>) value).isEmpty())) {
+            return null;
+        }
+        return value;
     }
 
     private JSONArray joinArrays(JSONArray jsonOne, JSONArray jsonTwo)
@@ -481,7 +588,13 @@ private JSONArray joinArrays(JSONArray jsonOne, JSONArray jsonTwo)
         return result;
     }
 
-    private void updateDisordersFromJSON(XWikiDocument doc, BaseObject data, XWikiContext context, JSONObject json)
+    /**
+     * Replaces the disorders stored in the patient document with the ones from the JSON, if the JSON has disorders.
+     *
+     * @return {@code true} if the stored disorders changed, {@code false} if they were already the same
+     */
+    private boolean updateDisordersFromJSON(XWikiDocument doc, BaseObject data, XWikiContext context,
+        JSONObject json)
     {
         try {
             JSONArray inputDisorders = json.optJSONArray(JSON_KEY_DISORDERS);
@@ -508,12 +621,12 @@ private void updateDisordersFromJSON(XWikiDocument doc, BaseObject data, XWikiCo
                 this.disorders = Collections.unmodifiableSet(this.disorders);
 
                 // update the values in the document (overwriting the old list, if any)
-                data.set(DISORDER_PROPERTIES_OMIMID, disorderValues, context);
-                context.getWiki().saveDocument(doc, "Updated disorders from JSON", true, context);
+                return setIfChanged(data, DISORDER_PROPERTIES_OMIMID, disorderValues, context);
             }
         } catch (Exception ex) {
             this.logger.warn("Failed to update patient disorders from JSON [{}]: {}", ex.getMessage(), ex);
         }
+        return false;
     }
 
     @Override
@@ -539,15 +652,20 @@ public void updateFromJSON(JSONObject json)
                 return;
             }
 
-            updateFeaturesFromJSON(doc, data, context, json);
-            updateDisordersFromJSON(doc, data, context, json);
+            // From now on this copy differs from the cached snapshot, stop sharing data with it
+            this.sharedData = null;
+
+            // All the changes are made on the same document instance, which is saved only once at the end, and only
+            // if something changed, so that listeners are notified of at most one change
+            boolean modified = updateFeaturesFromJSON(doc, data, context, json);
+            modified |= updateDisordersFromJSON(doc, data, context, json);
 
             for (PatientDataController<?> serializer : this.serializers.values()) {
                 try {
                     PatientData<?> patientData = serializer.readJSON(json);
                     if (patientData != null) {
                         this.extraData.put(patientData.getName(), patientData);
-                        serializer.save(this);
+                        modified |= serializer.save(this, doc);
                         this.logger.info("Successfully updated patient form JSON using serializer [{}]",
                             serializer.getName());
                     }
@@ -559,6 +677,12 @@ public void updateFromJSON(JSONObject json)
                         serializer.getName(), ex.getMessage(), ex);
                 }
             }
+
+            if (modified) {
+                context.getWiki().saveDocument(doc, "Updated from JSON", true, context);
+            } else {
+                this.logger.debug("Patient [{}] unchanged by the JSON update, not saving", getDocument());
+            }
         } catch (Exception ex) {
             this.logger.warn("Failed to update patient data from JSON [{}]: {}", ex.getMessage(), ex);
         }
@@ -31,12 +31,23 @@
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.model.reference.WikiReference;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -49,7 +60,10 @@
 
 /**
  * Implementation of patient data access service using XWiki as the storage backend, where patients in documents having
- * an object of type {@code PhenoTips.PatientClass}.
+ * an object of type {@code PhenoTips.PatientClass}. Patients loaded by identifier are kept in a
+ * {@link PatientSnapshotCache}, and reused as long as their document isn't changed. Bulk requests look up the
+ * requested patients in batches of a hundred documents, and build each patient only when it is first used. New
+ * patients get their identifiers from a {@link PatientIdSequence}, so concurrent creations don't wait for each other.
  *
  * @version $Id$
  * @since 1.0M8
@@ -58,6 +72,25 @@
 @Singleton
 public class PhenoTipsPatientRepository implements PatientRepository
 {
+    /** How many patient documents are looked up with a single query. */
+    private static final int BATCH_SIZE = 100;
+
+    /** Selects, out of a list of document names, those which hold a patient record. */
+    private static final String EXISTING_PATIENTS_QUERY =
+        "select doc.fullName from Document doc, doc.object(PhenoTips.PatientClass) as patient"
+            + " where doc.fullName in (:names)";
+
+    /** Lists all the patient documents, except the patient template. */
+    private static final String ALL_PATIENTS_QUERY =
+        "select doc.fullName from Document doc, doc.object(PhenoTips.PatientClass) as patient"
+            + " where doc.name <> :template";
+
+    /** Restricts {@link #ALL_PATIENTS_QUERY} to the documents following the last one already listed. */
+    private static final String AFTER_CONSTRAINT = " and doc.fullName > :after";
+
+    /** The order in which {@link #ALL_PATIENTS_QUERY} lists patients. */
+    private static final String ALL_PATIENTS_ORDER = " order by doc.fullName";
+
     /** Logging helper object. */
     @Inject
     private Logger logger;
@@ -70,6 +103,14 @@ public class PhenoTipsPatientRepository implements PatientRepository
     @Inject
     private DocumentAccessBridge bridge;
 
+    /** Hands out the identifiers of new patients. */
+    @Inject
+    private PatientIdSequence idSequence;
+
+    /** Keeps the recently loaded patients. */
+    @Inject
+    private PatientSnapshotCache cache;
+
     /** Runs queries for finding patients. */
     @Inject
     private QueryManager qm;
@@ -84,19 +125,15 @@ public class PhenoTipsPatientRepository implements PatientRepository
     @Named("current")
     private DocumentReferenceResolver<EntityReference> referenceResolver;
 
+    /** Serializes document references into the names used in queries. */
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> localSerializer;
+
     @Override
     public Patient getPatientById(String id)
     {
-        DocumentReference reference = this.stringResolver.resolve(id, Patient.DEFAULT_DATA_SPACE);
-        try {
-            XWikiDocument doc = (XWikiDocument) this.bridge.getDocument(reference);
-            if (doc != null && doc.getXObject(Patient.CLASS_REFERENCE) != null) {
-                return new PhenoTipsPatient(doc);
-            }
-        } catch (Exception ex) {
-            this.logger.warn("Failed to access patient with id [{}]: {}", id, ex.getMessage(), ex);
-        }
-        return null;
+        return loadPatient(this.stringResolver.resolve(id, Patient.DEFAULT_DATA_SPACE));
     }
 
     @Override
@@ -109,7 +146,7 @@ public Patient getPatientByExternalId(String externalId)
             if (results.size() == 1) {
                 DocumentReference reference =
                     this.stringResolver.resolve(results.get(0), Patient.DEFAULT_DATA_SPACE);
-                return new PhenoTipsPatient((XWikiDocument) this.bridge.getDocument(reference));
+                return getPatient((XWikiDocument) this.bridge.getDocument(reference));
             }
         } catch (QueryException ex) {
             this.logger.warn("Failed to search for the patient with external id [{}]: {}", externalId, ex.getMessage(),
@@ -120,6 +157,35 @@ public Patient getPatientByExternalId(String externalId)
         return null;
     }
 
+    @Override
+    public List<Patient> getPatientsById(Collection<String> ids)
+    {
+        List<DocumentReference> references = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            references.add(this.stringResolver.resolve(id, Patient.DEFAULT_DATA_SPACE));
+        }
+        return getPatients(references);
+    }
+
+    @Override
+    public List<Patient> getPatients(Collection<DocumentReference> references)
+    {
+        Set<DocumentReference> existing = findExistingPatients(references);
+        List<DocumentReference> found = new ArrayList<>(existing.size());
+        for (DocumentReference reference : references) {
+            if (existing.contains(reference)) {
+                found.add(reference);
+            }
+        }
+        return new LazyPatientList(found);
+    }
+
+    @Override
+    public Iterator<Patient> getAllPatientsIterator()
+    {
+        return new AllPatientsIterator();
+    }
+
     @Override
     public Patient loadPatientFromDocument(DocumentModelBridge document)
     {
@@ -132,22 +198,24 @@ public Patient loadPatientFromDocument(DocumentModelBridge document)
     }
 
     @Override
-    public synchronized Patient createNewPatient(DocumentReference creator)
+    public Patient createNewPatient(DocumentReference creator)
     {
         try {
             // FIXME Take these from the configuration
             String prefix = "P";
 
             XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
-            long id = getLastUsedId();
-            DocumentReference newDoc;
+            long id;
+            XWikiDocument doc;
             do {
-                newDoc = this.referenceResolver.resolve(new EntityReference(
-                    prefix + String.format("%07d", ++id), EntityType.DOCUMENT, Patient.DEFAULT_DATA_SPACE));
-            } while (this.bridge.exists(newDoc));
-            XWikiDocument doc = (XWikiDocument) this.bridge.getDocument(newDoc);
+                // Records imported with an explicit name may already use an identifier handed out by the sequence
+                id = this.idSequence.next(context.getWikiId());
+                DocumentReference newDoc = this.referenceResolver.resolve(new EntityReference(
+                    prefix + String.format("%07d", id), EntityType.DOCUMENT, Patient.DEFAULT_DATA_SPACE));
+                doc = (XWikiDocument) this.bridge.getDocument(newDoc);
+            } while (!doc.isNew());
             doc.readFromTemplate(this.referenceResolver.resolve(PhenoTipsPatient.TEMPLATE_REFERENCE), context);
-            doc.setTitle(newDoc.getName());
+            doc.setTitle(doc.getDocumentReference().getName());
             doc.getXObject(Patient.CLASS_REFERENCE).setLongValue("identifier", id);
             if (creator != null) {
                 doc.setCreatorReference(creator);
@@ -184,24 +252,202 @@ public synchronized Patient createNewPatient(DocumentReference creator)
     }
 
     @Override
-    public synchronized Patient createNewPatient()
+    public Patient createNewPatient()
     {
         return createNewPatient(this.bridge.getCurrentUserReference());
     }
 
-    private long getLastUsedId() throws QueryException
+    /**
+     * Load the patient stored in a document.
+     *
+     * @param reference the patient document
+     * @return the patient, or {@code null} if the document doesn't exist, isn't a patient, or can't be loaded
+     */
+    private Patient loadPatient(DocumentReference reference)
+    {
+        try {
+            XWikiDocument doc = (XWikiDocument) this.bridge.getDocument(reference);
+            if (doc != null && doc.getXObject(Patient.CLASS_REFERENCE) != null) {
+                return getPatient(doc);
+            }
+        } catch (Exception ex) {
+            this.logger.warn("Failed to access patient with id [{}]: {}", reference, ex.getMessage(), ex);
+        }
+        return null;
+    }
+
+    /**
+     * Find which of the requested documents hold a patient record, using one query for each batch of documents.
+     *
+     * @param references the documents to check
+     * @return the subset of the references pointing to existing patient documents
+     */
+    private Set<DocumentReference> findExistingPatients(Collection<DocumentReference> references)
     {
-        long crtMaxID = 0;
-        Query q =
-            this.qm.createQuery(
-                "select patient.identifier from Document doc, doc.object(PhenoTips.PatientClass) as patient"
-                    + " where patient.identifier is not null order by patient.identifier desc", Query.XWQL)
-                .setLimit(1);
-        List<Long> crtMaxIDList = q.execute();
-        if (!crtMaxIDList.isEmpty() && crtMaxIDList.get(0) != null) {
-            crtMaxID = crtMaxIDList.get(0);
-        }
-        crtMaxID = Math.max(crtMaxID, 0);
-        return crtMaxID;
+        Map<WikiReference, List<String>> namesPerWiki = new LinkedHashMap<>();
+        for (DocumentReference reference : references) {
+            List<String> names = namesPerWiki.get(reference.getWikiReference());
+            if (names == null) {
+                names = new ArrayList<>();
+                namesPerWiki.put(reference.getWikiReference(), names);
+            }
+            names.add(this.localSerializer.serialize(reference));
+        }
+
+        Set<DocumentReference> result = new HashSet<>();
+        for (Map.Entry<WikiReference, List<String>> entry : namesPerWiki.entrySet()) {
+            List<String> names = entry.getValue();
+            for (int start = 0; start < names.size(); start += BATCH_SIZE) {
+                List<String> batch = new ArrayList<>(names.subList(start, Math.min(start + BATCH_SIZE, names.size())));
+                try {
+                    Query q = this.qm.createQuery(EXISTING_PATIENTS_QUERY, Query.XWQL);
+                    q.setWiki(entry.getKey().getName());
+                    q.bindValue("names", batch);
+                    List<String> found = q.execute();
+                    for (String name : found) {
+                        result.add(this.stringResolver.resolve(name, entry.getKey()));
+                    }
+                } catch (QueryException ex) {
+                    this.logger.warn("Failed to search for patients in wiki [{}]: {}", entry.getKey().getName(),
+                        ex.getMessage(), ex);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the patient stored in a document, copied from the cached snapshot if this version of the document was already
+     * loaded. The snapshot itself is never returned, so that changes made by one caller aren't seen by the others.
+     *
+     * @param doc the patient document
+     * @return a private copy of the patient
+     */
+    private Patient getPatient(XWikiDocument doc)
+    {
+        Patient snapshot = this.cache.get(doc.getDocumentReference(), doc.getVersion());
+        if (!(snapshot instanceof PhenoTipsPatient)) {
+            snapshot = new PhenoTipsPatient(doc);
+            this.cache.put(snapshot, doc.getVersion());
+        }
+        return new PhenoTipsPatient((PhenoTipsPatient) snapshot);
+    }
+
+    /**
+     * A read-only list of patients which are only loaded when first accessed.
+     */
+    private final class LazyPatientList extends AbstractList<Patient>
+    {
+        /** The documents holding the patients in this list. */
+        private final List<DocumentReference> references;
+
+        /** The patients already loaded, {@code null} for those not yet accessed. */
+        private final Patient[] patients;
+
+        /**
+         * Simple constructor.
+         *
+         * @param references the documents holding the patients in this list, all known to be patient documents
+         */
+        LazyPatientList(List<DocumentReference> references)
+        {
+            this.references = references;
+            this.patients = new Patient[references.size()];
+        }
+
+        @Override
+        public Patient get(int index)
+        {
+            if (this.patients[index] == null) {
+                this.patients[index] = loadPatient(this.references.get(index));
+            }
+            return this.patients[index];
+        }
+
+        @Override
+        public int size()
+        {
+            return this.references.size();
+        }
+    }
+
+    /**
+     * Iterates over all the patients in the current wiki, querying for one page of patients at a time. Each page starts
+     * after the last document name of the previous page, so that patients created or deleted during the iteration
+     * don't shift the following pages, and fetching a page doesn't need to skip over all the previous ones.
+     */
+    private final class AllPatientsIterator implements Iterator<Patient>
+    {
+        /** The patients in the current page. */
+        private Iterator<Patient> page = Collections.<Patient>emptyList().iterator();
+
+        /** The full name of the last document listed so far, {@code null} before fetching the first page. */
+        private String last;
+
+        /** Whether the last page was already fetched. */
+        private boolean exhausted;
+
+        /** The next patient to return, {@code null} if it wasn't looked up yet. */
+        private Patient next;
+
+        @Override
+        public boolean hasNext()
+        {
+            while (this.next == null && (this.page.hasNext() || !this.exhausted)) {
+                if (this.page.hasNext()) {
+                    // Patients deleted since the page was fetched are loaded as null, skip them
+                    this.next = this.page.next();
+                } else {
+                    fetchNextPage();
+                }
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public Patient next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Patient result = this.next;
+            this.next = null;
+            return result;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fetchNextPage()
+        {
+            List<String> names;
+            try {
+                Query q = PhenoTipsPatientRepository.this.qm.createQuery(ALL_PATIENTS_QUERY
+                    + (this.last == null ? "" : AFTER_CONSTRAINT) + ALL_PATIENTS_ORDER, Query.XWQL);
+                q.bindValue("template", PhenoTipsPatient.TEMPLATE_REFERENCE.getName());
+                if (this.last != null) {
+                    q.bindValue("after", this.last);
+                }
+                q.setLimit(BATCH_SIZE);
+                names = q.execute();
+            } catch (QueryException ex) {
+                // Ending the iteration here would look like there are no more patients
+                throw new IllegalStateException("Failed to list patients: " + ex.getMessage(), ex);
+            }
+            this.exhausted = names.size() < BATCH_SIZE;
+            if (!names.isEmpty()) {
+                this.last = names.get(names.size() - 1);
+            }
+
+            List<DocumentReference> references = new ArrayList<>(names.size());
+            for (String name : names) {
+                references.add(PhenoTipsPatientRepository.this.stringResolver.resolve(name,
+                    Patient.DEFAULT_DATA_SPACE));
+            }
+            this.page = new LazyPatientList(references).iterator();
+        }
     }
 }
@@ -30,6 +30,12 @@
 import org.xwiki.security.authorization.AuthorizationManager;
 import org.xwiki.security.authorization.Right;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
@@ -39,7 +45,8 @@
 /**
  * Secure implementation of patient data access service which checks the user's access rights before performing an
  * operation. If the user is authorized, the actual work is done by the default {@link PatientRepository}
- * implementation. If the user is not authorized, a {@link SecurityException} is thrown.
+ * implementation. If the user is not authorized, a {@link SecurityException} is thrown. Bulk retrieval methods don't
+ * fail, they just leave out the patients that the user isn't allowed to see.
  *
  * @version $Id$
  * @since 1.3M1
@@ -84,6 +91,25 @@ public Patient getPatientByExternalId(String externalId)
         return checkAccess(patient, this.bridge.getCurrentUserReference());
     }
 
+    @Override
+    public List<Patient> getPatientsById(Collection<String> ids)
+    {
+        return filterAccessible(this.internalService.getPatientsById(ids), this.bridge.getCurrentUserReference());
+    }
+
+    @Override
+    public List<Patient> getPatients(Collection<DocumentReference> references)
+    {
+        return filterAccessible(this.internalService.getPatients(references), this.bridge.getCurrentUserReference());
+    }
+
+    @Override
+    public Iterator<Patient> getAllPatientsIterator()
+    {
+        return new AccessiblePatientsIterator(this.internalService.getAllPatientsIterator(),
+            this.bridge.getCurrentUserReference());
+    }
+
     @Override
     public Patient loadPatientFromDocument(DocumentModelBridge document)
     {
@@ -102,7 +128,7 @@ public Patient createNewPatient(DocumentReference creator)
     }
 
     @Override
-    public synchronized Patient createNewPatient()
+    public Patient createNewPatient()
     {
         return createNewPatient(this.bridge.getCurrentUserReference());
     }
@@ -117,4 +143,70 @@ private Patient checkAccess(Patient patient, DocumentReference user)
         }
         return null;
     }
+
+    private boolean canView(Patient patient, DocumentReference user)
+    {
+        return patient != null && this.access.hasAccess(Right.VIEW, user, patient.getDocument());
+    }
+
+    private List<Patient> filterAccessible(List<Patient> patients, DocumentReference user)
+    {
+        List<Patient> result = new ArrayList<>(patients.size());
+        for (Patient patient : patients) {
+            if (canView(patient, user)) {
+                result.add(patient);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Wraps an iterator over patients, skipping the patients that the user isn't allowed to see.
+     */
+    private final class AccessiblePatientsIterator implements Iterator<Patient>
+    {
+        /** The wrapped iterator, going over all the patients. */
+        private final Iterator<Patient> patients;
+
+        /** The user whose rights are checked. */
+        private final DocumentReference user;
+
+        /** The next accessible patient, {@code null} if it wasn't looked up yet. */
+        private Patient next;
+
+        AccessiblePatientsIterator(Iterator<Patient> patients, DocumentReference user)
+        {
+            this.patients = patients;
+            this.user = user;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            while (this.next == null && this.patients.hasNext()) {
+                Patient candidate = this.patients.next();
+                if (canView(candidate, this.user)) {
+                    this.next = candidate;
+                }
+            }
+            return this.next != null;
+        }
+
+        @Override
+        public Patient next()
+        {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Patient result = this.next;
+            this.next = null;
+            return result;
+        }
+
+        @Override
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
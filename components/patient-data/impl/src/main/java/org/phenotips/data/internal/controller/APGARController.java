@@ -23,6 +23,7 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.ObjectPropertyReference;
 
@@ -93,16 +94,25 @@ public PatientData<Integer> load(Patient patient)
         return null;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void save(Patient patient)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject dataHolder = doc.getXObject(Patient.CLASS_REFERENCE);
+            save(patient, this.documentAccessBridge.getDocument(patient.getDocument()));
+        } catch (Exception ex) {
+            this.logger.error("Could not load patient document or some unknown error has occurred", ex.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
+    {
+        try {
+            BaseObject dataHolder = ((XWikiDocument) doc).getXObject(Patient.CLASS_REFERENCE);
             PatientData<Integer> data = patient.getData(getName());
             if (data == null || dataHolder == null) {
-                return;
+                return false;
             }
             for (String propertyName : getProperties()) {
                 Integer value = data.get(propertyName);
@@ -112,9 +122,11 @@ public void save(Patient patient)
                     field.setValue(value.toString());
                 }
             }
+            return true;
         } catch (Exception ex) {
             this.logger.error("Could not load patient document or some unknown error has occurred", ex.getMessage());
         }
+        return false;
     }
 
     @Override
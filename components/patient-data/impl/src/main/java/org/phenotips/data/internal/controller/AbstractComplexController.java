@@ -25,6 +25,7 @@
 import org.phenotips.data.internal.AbstractPhenoTipsVocabularyProperty;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.util.DefaultParameterizedType;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.ObjectPropertyReference;
@@ -285,10 +286,24 @@ public void save(Patient patient)
     {
         try {
             XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject dataHolder = doc.getXObject(getXClassReference());
+            if (save(patient, doc)) {
+                XWikiContext context = this.contextProvider.get();
+                context.getWiki()
+                    .saveDocument(doc, String.format("Updated %s history from JSON", this.getName()), true, context);
+            }
+        } catch (Exception ex) {
+            this.logger.error("Could not save patient document or some unknown error has occurred", ex.getMessage());
+        }
+    }
+
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
+    {
+        try {
+            BaseObject dataHolder = ((XWikiDocument) doc).getXObject(getXClassReference());
             PatientData<T> data = patient.getData(this.getName());
             if (dataHolder == null && data != null) {
-                return;
+                return false;
             }
             XWikiContext context = this.contextProvider.get();
             for (String propertyName : getProperties()) {
@@ -309,12 +324,11 @@ public void save(Patient patient)
                     dataHolder.set(propertyName, this.saveFormat(propertyValue), context);
                 }
             }
-
-            context.getWiki()
-                .saveDocument(doc, String.format("Updated %s history from JSON", this.getName()), true, context);
+            return true;
         } catch (Exception ex) {
             this.logger.error("Could not save patient document or some unknown error has occurred", ex.getMessage());
         }
+        return false;
     }
 
     @Override
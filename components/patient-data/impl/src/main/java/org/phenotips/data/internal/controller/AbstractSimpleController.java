@@ -23,6 +23,7 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 
 import java.util.Collection;
 import java.util.Iterator;
@@ -91,25 +92,42 @@ public void save(Patient patient)
     {
         try {
             XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject xwikiDataObject = doc.getXObject(Patient.CLASS_REFERENCE);
+            if (save(patient, doc)) {
+                XWikiContext context = this.contextProvider.get();
+                String comment = String.format("Updated %s from JSON", this.getName());
+                context.getWiki().saveDocument(doc, comment, true, context);
+            }
+        } catch (Exception e) {
+            this.logger.error("Failed to save {}: [{}]", this.getName(), e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
+    {
+        try {
+            BaseObject xwikiDataObject = ((XWikiDocument) doc).getXObject(Patient.CLASS_REFERENCE);
             if (xwikiDataObject == null) {
                 throw new IllegalArgumentException(ERROR_MESSAGE_NO_PATIENT_CLASS);
             }
 
             PatientData<String> data = patient.<String>getData(this.getName());
             if (!data.isNamed()) {
-                return;
+                return false;
             }
+            boolean modified = false;
             for (String property : this.getProperties()) {
-                xwikiDataObject.setStringValue(property, data.get(property));
+                String value = data.get(property);
+                if (!StringUtils.defaultString(value).equals(xwikiDataObject.getStringValue(property))) {
+                    xwikiDataObject.setStringValue(property, value);
+                    modified = true;
+                }
             }
-
-            XWikiContext context = this.contextProvider.get();
-            String comment = String.format("Updated %s from JSON", this.getName());
-            context.getWiki().saveDocument(doc, comment, true, context);
+            return modified;
         } catch (Exception e) {
             this.logger.error("Failed to save {}: [{}]", this.getName(), e.getMessage());
         }
+        return false;
     }
 
     @Override
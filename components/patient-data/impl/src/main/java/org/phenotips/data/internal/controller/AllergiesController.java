@@ -24,6 +24,7 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.EntityReference;
@@ -114,11 +115,26 @@ public PatientData<String> load(Patient patient)
 
     @Override
     public void save(Patient patient)
+    {
+        try {
+            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            if (save(patient, doc)) {
+                this.xcontext.get().getWiki().saveDocument(doc, "Updated allergies from JSON", true,
+                    this.xcontext.get());
+            }
+        } catch (Exception ex) {
+            this.logger.error("Could not access requested document or some unforeseen error has occurred during save.",
+                ex);
+        }
+    }
+
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
     {
         try {
             PatientData<String> data = patient.getData(DATA_NAME);
             if (data == null || !data.isIndexed()) {
-                return;
+                return false;
             }
 
             boolean nkda = false;
@@ -131,16 +147,15 @@ public void save(Patient patient)
                 }
             }
 
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject xobject = doc.getXObject(CLASS_REFERENCE, true, this.xcontext.get());
+            BaseObject xobject = ((XWikiDocument) doc).getXObject(CLASS_REFERENCE, true, this.xcontext.get());
             xobject.setIntValue(NKDA, nkda ? 1 : 0);
             xobject.setDBStringListValue(DATA_NAME, allergies);
-
-            this.xcontext.get().getWiki().saveDocument(doc, "Updated allergies from JSON", true, this.xcontext.get());
+            return true;
         } catch (Exception ex) {
             this.logger.error("Could not access requested document or some unforeseen error has occurred during save.",
                 ex);
         }
+        return false;
     }
 
     @Override
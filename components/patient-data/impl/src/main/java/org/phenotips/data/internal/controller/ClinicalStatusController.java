@@ -23,6 +23,7 @@
 import org.phenotips.data.SimpleValuePatientData;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.ObjectPropertyReference;
 
@@ -121,27 +122,40 @@ public void writeJSON(Patient patient, JSONObject json)
         writeJSON(patient, json, null);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void save(Patient patient)
     {
         try {
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            save(patient, this.documentAccessBridge.getDocument(patient.getDocument()));
+        } catch (Exception ex) {
+            this.logger.error("Could not load patient document or some unknown error has occurred", ex.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
+    {
+        try {
             BaseProperty<ObjectPropertyReference> isNormal =
-                (BaseProperty<ObjectPropertyReference>) doc.getXObject(Patient.CLASS_REFERENCE).getField(
-                    PATIENT_DOCUMENT_FIELDNAME);
+                (BaseProperty<ObjectPropertyReference>) ((XWikiDocument) doc).getXObject(Patient.CLASS_REFERENCE)
+                    .getField(PATIENT_DOCUMENT_FIELDNAME);
             PatientData<String> data = patient.getData(this.getName());
             if (isNormal == null || data == null) {
-                return;
+                return false;
             }
             if (StringUtils.equals(data.getValue(), VALUE_AFFECTED)) {
                 isNormal.setValue(0);
             } else if (StringUtils.equals(data.getValue(), VALUE_UNAFFECTED)) {
                 isNormal.setValue(1);
+            } else {
+                return false;
             }
+            return true;
         } catch (Exception e) {
             this.logger.error("Could not load patient document or some unknown error has occurred", e.getMessage());
         }
+        return false;
     }
 
     @Override
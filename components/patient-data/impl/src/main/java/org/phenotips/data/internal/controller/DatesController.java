@@ -24,6 +24,7 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
 
@@ -114,14 +115,27 @@ public void save(Patient patient)
     {
         try {
             XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject data = doc.getXObject(Patient.CLASS_REFERENCE);
+            if (save(patient, doc)) {
+                XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
+                context.getWiki().saveDocument(doc, "Updated dates from JSON", true, context);
+            }
+        } catch (Exception e) {
+            this.logger.error("Failed to save dates: [{}]", e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
+    {
+        try {
+            BaseObject data = ((XWikiDocument) doc).getXObject(Patient.CLASS_REFERENCE);
             if (data == null) {
                 throw new NullPointerException(ERROR_MESSAGE_NO_PATIENT_CLASS);
             }
 
             PatientData<Date> dates = patient.getData(DATA_NAME);
             if (!dates.isNamed()) {
-                return;
+                return false;
             }
             for (String property : this.getProperties()) {
                 Date propertyValue = dates.get(property);
@@ -129,12 +143,11 @@ public void save(Patient patient)
                     data.setDateValue(property, dates.get(property));
                 }
             }
-
-            XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
-            context.getWiki().saveDocument(doc, "Updated dates from JSON", true, context);
+            return true;
         } catch (Exception e) {
             this.logger.error("Failed to save dates: [{}]", e.getMessage());
         }
+        return false;
     }
 
     @Override
@@ -378,14 +378,28 @@ private void parseGeneProperty(String property, JSONObject geneJson, Map<String,
 
     @Override
     public void save(Patient patient)
+    {
+        try {
+            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            if (save(patient, doc)) {
+                XWikiContext context = this.xcontextProvider.get();
+                context.getWiki().saveDocument(doc, "Updated genes from JSON", true, context);
+            }
+        } catch (Exception e) {
+            this.logger.error("Failed to save genes: [{}]", e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge document)
     {
         try {
             PatientData<Map<String, String>> genes = patient.getData(this.getName());
             if (genes == null || !genes.isIndexed()) {
-                return;
+                return false;
             }
 
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) document;
             if (doc == null) {
                 throw new NullPointerException(ERROR_MESSAGE_NO_PATIENT_CLASS);
             }
@@ -407,10 +421,10 @@ public void save(Patient patient)
                     this.logger.error("Failed to save a specific gene: [{}]", e.getMessage());
                 }
             }
-
-            context.getWiki().saveDocument(doc, "Updated genes from JSON", true, context);
+            return true;
         } catch (Exception e) {
             this.logger.error("Failed to save genes: [{}]", e.getMessage());
         }
+        return false;
     }
 }
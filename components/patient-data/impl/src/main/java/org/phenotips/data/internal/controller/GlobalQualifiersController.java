@@ -25,6 +25,7 @@
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.ObjectPropertyReference;
 
@@ -111,16 +112,25 @@ public PatientData<List<VocabularyTerm>> load(Patient patient)
         return null;
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void save(Patient patient)
+    {
+        try {
+            save(patient, this.documentAccessBridge.getDocument(patient.getDocument()));
+        } catch (Exception ex) {
+            this.logger.error("Could not load patient document or some unknown error has occurred", ex.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
     {
         try {
             PatientData<List<VocabularyTerm>> data = patient.getData(this.getName());
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject dataHolder = doc.getXObject(Patient.CLASS_REFERENCE);
+            BaseObject dataHolder = ((XWikiDocument) doc).getXObject(Patient.CLASS_REFERENCE);
             if (data == null || dataHolder == null) {
-                return;
+                return false;
             }
             for (String propertyName : getProperties()) {
                 List<VocabularyTerm> terms = data.get(propertyName);
@@ -139,9 +149,11 @@ public void save(Patient patient)
                     }
                 }
             }
+            return true;
         } catch (Exception ex) {
             this.logger.error("Could not load patient document or some unknown error has occurred", ex.getMessage());
         }
+        return false;
     }
 
     private List<String> termsToXWikiFormat(List<VocabularyTerm> terms)
@@ -23,6 +23,7 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
 
@@ -95,23 +96,35 @@ public void save(Patient patient)
     {
         try {
             XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject data = doc.getXObject(Patient.CLASS_REFERENCE);
+            if (save(patient, doc)) {
+                XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
+                context.getWiki().saveDocument(doc, "Updated identifiers from JSON", true, context);
+            }
+        } catch (Exception e) {
+            this.logger.error("Failed to save identifiers: [{}]", e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
+    {
+        try {
+            BaseObject data = ((XWikiDocument) doc).getXObject(Patient.CLASS_REFERENCE);
             if (data == null) {
                 throw new NullPointerException(ERROR_MESSAGE_NO_PATIENT_CLASS);
             }
 
             PatientData<String> identifiers = patient.<String>getData(DATA_NAME);
             if (!identifiers.isNamed()) {
-                return;
+                return false;
             }
             String externalId = identifiers.get(EXTERNAL_IDENTIFIER_PROPERTY_NAME);
             data.setStringValue(EXTERNAL_IDENTIFIER_PROPERTY_NAME, externalId);
-
-            XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
-            context.getWiki().saveDocument(doc, "Updated identifiers from JSON", true, context);
+            return true;
         } catch (Exception e) {
             this.logger.error("Failed to save identifiers: [{}]", e.getMessage());
         }
+        return false;
     }
 
     @Override
@@ -23,6 +23,7 @@
 import org.phenotips.data.SimpleValuePatientData;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 
 import java.util.Arrays;
@@ -116,7 +117,20 @@ public void save(Patient patient)
     {
         try {
             XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject data = doc.getXObject(Patient.CLASS_REFERENCE);
+            if (save(patient, doc)) {
+                this.xcontext.get().getWiki().saveDocument(doc, "Updated life status from JSON", true,
+                    this.xcontext.get());
+            }
+        } catch (Exception e) {
+            this.logger.error("Failed to save life status: [{}]", e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
+    {
+        try {
+            BaseObject data = ((XWikiDocument) doc).getXObject(Patient.CLASS_REFERENCE);
             if (data == null) {
                 throw new NullPointerException(ERROR_MESSAGE_NO_PATIENT_CLASS);
             }
@@ -134,11 +148,11 @@ public void save(Patient patient)
             }
 
             data.setIntValue(PATIENT_UNKNOWN_DATEOFDEATH_FIELDNAME, deathDateUnknown);
-
-            this.xcontext.get().getWiki().saveDocument(doc, "Updated life status from JSON", true, this.xcontext.get());
+            return true;
         } catch (Exception e) {
             this.logger.error("Failed to save life status: [{}]", e.getMessage());
         }
+        return false;
     }
 
     @Override
@@ -24,6 +24,7 @@
 import org.phenotips.data.PatientDataController;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.EntityReference;
@@ -129,21 +130,33 @@ public void save(Patient patient)
     {
         try {
             XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            if (save(patient, doc)) {
+                XWikiContext context = this.xcontext.get();
+                context.getWiki().saveDocument(doc, "Updated obstetric history from JSON", true, context);
+            }
+        } catch (Exception ex) {
+            this.logger.error("Failed to save obstetric history: [{}]", ex.getMessage());
+        }
+    }
 
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
+    {
+        try {
             PatientData<Integer> data = patient.getData(getName());
             if (data == null || !data.isNamed()) {
-                return;
+                return false;
             }
             XWikiContext context = this.xcontext.get();
-            BaseObject o = doc.getXObject(getXClassReference(), true, context);
+            BaseObject o = ((XWikiDocument) doc).getXObject(getXClassReference(), true, context);
             for (String property : getProperties()) {
                 o.set(PREFIX + property, data.get(property), context);
             }
-
-            context.getWiki().saveDocument(doc, "Updated obstetric history from JSON", true, context);
+            return true;
         } catch (Exception ex) {
             this.logger.error("Failed to save obstetric history: [{}]", ex.getMessage());
         }
+        return false;
     }
 
     @Override
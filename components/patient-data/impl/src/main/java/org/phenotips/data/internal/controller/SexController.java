@@ -23,6 +23,7 @@
 import org.phenotips.data.SimpleValuePatientData;
 
 import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.context.Execution;
 
@@ -104,7 +105,20 @@ public void save(Patient patient)
     {
         try {
             XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject data = doc.getXObject(Patient.CLASS_REFERENCE);
+            if (save(patient, doc)) {
+                XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
+                context.getWiki().saveDocument(doc, "Updated gender from JSON", true, context);
+            }
+        } catch (Exception e) {
+            this.logger.error("Failed to save patient gender: [{}]", e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
+    {
+        try {
+            BaseObject data = ((XWikiDocument) doc).getXObject(Patient.CLASS_REFERENCE);
             if (data == null) {
                 throw new NullPointerException(ERROR_MESSAGE_NO_PATIENT_CLASS);
             }
@@ -112,12 +126,11 @@ public void save(Patient patient)
             String gender = patient.<String>getData(DATA_NAME).getValue();
 
             data.setStringValue(INTERNAL_PROPERTY_NAME, gender);
-
-            XWikiContext context = (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
-            context.getWiki().saveDocument(doc, "Updated gender from JSON", true, context);
+            return true;
         } catch (Exception e) {
             this.logger.error("Failed to save patient gender: [{}]", e.getMessage());
         }
+        return false;
     }
 
     @Override
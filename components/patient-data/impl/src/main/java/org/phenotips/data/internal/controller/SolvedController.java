@@ -22,6 +22,7 @@
 import org.phenotips.data.PatientData;
 import org.phenotips.data.PatientDataController;
 
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
@@ -205,16 +206,25 @@ public PatientData<String> readJSON(JSONObject json)
         return new DictionaryPatientData<>(this.getName(), result);
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void save(Patient patient)
+    {
+        try {
+            save(patient, this.documentAccessBridge.getDocument(patient.getDocument()));
+        } catch (Exception ex) {
+            this.logger.error("Could not load patient document or some unknown error has occurred", ex.getMessage());
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
     {
         try {
             PatientData<String> data = patient.getData(getName());
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
-            BaseObject xwikiDataObject = doc.getXObject(Patient.CLASS_REFERENCE);
+            BaseObject xwikiDataObject = ((XWikiDocument) doc).getXObject(Patient.CLASS_REFERENCE);
             if (data == null || !data.isNamed() || xwikiDataObject == null) {
-                return;
+                return false;
             }
 
             for (String key : this.getProperties()) {
@@ -225,9 +235,11 @@ public void save(Patient patient)
                     field.setValue(applyCast(datum));
                 }
             }
+            return true;
         } catch (Exception ex) {
             this.logger.error("Could not load patient document or some unknown error has occurred", ex.getMessage());
         }
+        return false;
     }
 
     private Object applyCast(String value)
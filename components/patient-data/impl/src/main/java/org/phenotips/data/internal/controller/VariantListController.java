@@ -382,14 +382,28 @@ private void parseVariantProperty(String property, JSONObject variantJson, Map<S
 
     @Override
     public void save(Patient patient)
+    {
+        try {
+            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            if (save(patient, doc)) {
+                XWikiContext context = this.xcontextProvider.get();
+                context.getWiki().saveDocument(doc, "Updated variants from JSON", true, context);
+            }
+        } catch (Exception e) {
+            this.logger.error("Failed to save variants: [{}]", e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge document)
     {
         try {
             PatientData<Map<String, String>> variants = patient.getData(this.getName());
             if (variants == null || !variants.isIndexed()) {
-                return;
+                return false;
             }
 
-            XWikiDocument doc = (XWikiDocument) this.documentAccessBridge.getDocument(patient.getDocument());
+            XWikiDocument doc = (XWikiDocument) document;
             if (doc == null) {
                 throw new NullPointerException(ERROR_MESSAGE_NO_PATIENT_CLASS);
             }
@@ -412,10 +426,10 @@ public void save(Patient patient)
                     this.logger.error("Failed to save a specific variant: [{}]", e.getMessage());
                 }
             }
-
-            context.getWiki().saveDocument(doc, "Updated variants from JSON", true, context);
+            return true;
         } catch (Exception e) {
             this.logger.error("Failed to save variants: [{}]", e.getMessage());
         }
+        return false;
     }
 }
@@ -0,0 +1,280 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.inject.Provider;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+/**
+ * Tests for the {@link DefaultPatientIdSequence} component.
+ *
+ * @version $Id$
+ */
+public class DefaultPatientIdSequenceTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<PatientIdSequence> mocker =
+        new MockitoComponentMockingRule<PatientIdSequence>(DefaultPatientIdSequence.class);
+
+    /** The counters stored in the database of each wiki. */
+    private final Map<String, Long> counters = new HashMap<>();
+
+    /** The wiki set in the context. */
+    private String currentWiki = "main";
+
+    private Query query;
+
+    private XWikiHibernateStore store;
+
+    private Session session;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception
+    {
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        Mockito.doReturn(10).when(configuration).getProperty("phenotips.patientData.idBlockSize", Integer.class);
+
+        QueryManager qm = this.mocker.getInstance(QueryManager.class);
+        this.query = Mockito.mock(Query.class);
+        Mockito.doReturn(this.query).when(qm).createQuery(Matchers.anyString(), Matchers.eq(Query.XWQL));
+        Mockito.doReturn(Arrays.asList(41L)).when(this.query).execute();
+
+        Provider<XWikiContext> provider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        final XWikiContext context = Mockito.mock(XWikiContext.class);
+        Mockito.doReturn(context).when(provider).get();
+        Mockito.when(context.getWikiId()).thenAnswer(new Answer<String>()
+        {
+            @Override
+            public String answer(InvocationOnMock invocation)
+            {
+                return DefaultPatientIdSequenceTest.this.currentWiki;
+            }
+        });
+        Mockito.doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                DefaultPatientIdSequenceTest.this.currentWiki = (String) invocation.getArguments()[0];
+                return null;
+            }
+        }).when(context).setWikiId(Matchers.anyString());
+        XWiki xwiki = Mockito.mock(XWiki.class);
+        Mockito.doReturn(xwiki).when(context).getWiki();
+        this.store = Mockito.mock(XWikiHibernateStore.class);
+        Mockito.doReturn(this.store).when(xwiki).getHibernateStore();
+
+        this.session = Mockito.mock(Session.class);
+        org.hibernate.Query update = Mockito.mock(org.hibernate.Query.class);
+        Mockito.doReturn(update).when(this.session).createQuery(Matchers.startsWith("update PatientIdCounter"));
+        Mockito.when(update.executeUpdate()).thenAnswer(new Answer<Integer>()
+        {
+            @Override
+            public Integer answer(InvocationOnMock invocation)
+            {
+                Long last = getCounter();
+                if (last == null) {
+                    return 0;
+                }
+                DefaultPatientIdSequenceTest.this.counters.put(DefaultPatientIdSequenceTest.this.currentWiki,
+                    last + 10);
+                return 1;
+            }
+        });
+        org.hibernate.Query read = Mockito.mock(org.hibernate.Query.class);
+        Mockito.doReturn(read).when(this.session).createQuery(Matchers.startsWith("select lastReserved"));
+        Mockito.when(read.uniqueResult()).thenAnswer(new Answer<Long>()
+        {
+            @Override
+            public Long answer(InvocationOnMock invocation)
+            {
+                return getCounter();
+            }
+        });
+        Mockito.when(this.session.save(Matchers.any(PatientIdCounter.class))).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                PatientIdCounter counter = (PatientIdCounter) invocation.getArguments()[0];
+                DefaultPatientIdSequenceTest.this.counters.put(DefaultPatientIdSequenceTest.this.currentWiki,
+                    counter.getLastReserved());
+                return counter.getName();
+            }
+        });
+
+        Mockito.when(this.store.executeWrite(Matchers.same(context), Matchers.any(HibernateCallback.class)))
+            .thenAnswer(new Answer<Object>()
+            {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Exception
+                {
+                    try {
+                        return ((HibernateCallback<Object>) invocation.getArguments()[1])
+                            .doInHibernate(DefaultPatientIdSequenceTest.this.session);
+                    } catch (HibernateException ex) {
+                        throw new XWikiException(XWikiException.MODULE_XWIKI_STORE,
+                            XWikiException.ERROR_XWIKI_STORE_HIBERNATE_SAVING_DOC, "Transaction failed", ex);
+                    }
+                }
+            });
+    }
+
+    @Test
+    public void startsAfterTheLastUsedIdentifier() throws Exception
+    {
+        PatientIdSequence sequence = this.mocker.getComponentUnderTest();
+        Assert.assertEquals(42, sequence.next("xwiki"));
+        Assert.assertEquals(43, sequence.next("xwiki"));
+        Mockito.verify(this.query).setWiki("xwiki");
+        Assert.assertEquals(51, this.counters.get("xwiki").longValue());
+        Assert.assertEquals("main", this.currentWiki);
+    }
+
+    @Test
+    public void startsFromOneWithoutPatients() throws Exception
+    {
+        Mockito.doReturn(Collections.emptyList()).when(this.query).execute();
+        Assert.assertEquals(1, this.mocker.getComponentUnderTest().next("xwiki"));
+    }
+
+    @Test
+    public void reservesANewBlockOnlyWhenTheCurrentOneIsUsed() throws Exception
+    {
+        PatientIdSequence sequence = this.mocker.getComponentUnderTest();
+        for (long expected = 42; expected <= 51; ++expected) {
+            Assert.assertEquals(expected, sequence.next("xwiki"));
+        }
+        Assert.assertEquals(51, this.counters.get("xwiki").longValue());
+        Assert.assertEquals(52, sequence.next("xwiki"));
+        Assert.assertEquals(61, this.counters.get("xwiki").longValue());
+        Mockito.verify(this.query, Mockito.times(1)).execute();
+    }
+
+    @Test
+    public void continuesAfterTheBlocksReservedByOtherNodes() throws Exception
+    {
+        this.counters.put("xwiki", 100L);
+        PatientIdSequence sequence = this.mocker.getComponentUnderTest();
+        Assert.assertEquals(101, sequence.next("xwiki"));
+        Assert.assertEquals(110, this.counters.get("xwiki").longValue());
+        Mockito.verify(this.query, Mockito.never()).execute();
+    }
+
+    @Test
+    public void wikisHaveSeparateSequences() throws Exception
+    {
+        PatientIdSequence sequence = this.mocker.getComponentUnderTest();
+        this.counters.put("other", 7L);
+        Assert.assertEquals(42, sequence.next("xwiki"));
+        Assert.assertEquals(8, sequence.next("other"));
+        Assert.assertEquals(43, sequence.next("xwiki"));
+        Assert.assertEquals(17, this.counters.get("other").longValue());
+        Assert.assertEquals("main", this.currentWiki);
+    }
+
+    @Test
+    public void usesTheCounterCreatedConcurrentlyByAnotherNode() throws Exception
+    {
+        Mockito.when(this.session.save(Matchers.any(PatientIdCounter.class))).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                DefaultPatientIdSequenceTest.this.counters.put("xwiki", 200L);
+                throw new HibernateException("Duplicate key");
+            }
+        });
+        PatientIdSequence sequence = this.mocker.getComponentUnderTest();
+        Assert.assertEquals(201, sequence.next("xwiki"));
+        Assert.assertEquals(210, this.counters.get("xwiki").longValue());
+    }
+
+    @Test(expected = IOException.class)
+    @SuppressWarnings("unchecked")
+    public void failsWhenTheDatabaseCannotBeAccessed() throws Exception
+    {
+        Mockito.when(this.store.executeWrite(Matchers.any(XWikiContext.class), Matchers.any(HibernateCallback.class)))
+            .thenThrow(new XWikiException());
+        this.mocker.getComponentUnderTest().next("xwiki");
+    }
+
+    @Test
+    public void concurrentCallersGetDistinctIdentifiers() throws Exception
+    {
+        final PatientIdSequence sequence = this.mocker.getComponentUnderTest();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        Set<Future<Long>> results = new HashSet<>();
+        for (int i = 0; i < 200; ++i) {
+            results.add(executor.submit(new Callable<Long>()
+            {
+                @Override
+                public Long call() throws Exception
+                {
+                    return sequence.next("xwiki");
+                }
+            }));
+        }
+        Set<Long> ids = new HashSet<>();
+        for (Future<Long> result : results) {
+            ids.add(result.get());
+        }
+        executor.shutdown();
+        Assert.assertEquals(200, ids.size());
+        Assert.assertEquals(241, this.counters.get("xwiki").longValue());
+    }
+
+    private Long getCounter()
+    {
+        return this.counters.get(this.currentWiki);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.events.PatientChangedEvent;
+import org.phenotips.data.events.PatientDeletedEvent;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultPatientSnapshotCache} component.
+ *
+ * @version $Id$
+ */
+public class DefaultPatientSnapshotCacheTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<PatientSnapshotCache> mocker =
+        new MockitoComponentMockingRule<PatientSnapshotCache>(DefaultPatientSnapshotCache.class);
+
+    private final DocumentReference document = new DocumentReference("xwiki", "data", "P0000001");
+
+    private final Patient patient = mock(Patient.class);
+
+    private final Map<String, Object> cacheContent = new HashMap<>();
+
+    private CacheManager cacheManager;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception
+    {
+        when(this.patient.getDocument()).thenReturn(this.document);
+
+        Cache<Object> cache = mock(Cache.class);
+        when(cache.get(anyString())).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return DefaultPatientSnapshotCacheTest.this.cacheContent.get(invocation.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                DefaultPatientSnapshotCacheTest.this.cacheContent.put((String) invocation.getArguments()[0],
+                    invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(cache).set(anyString(), any());
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                DefaultPatientSnapshotCacheTest.this.cacheContent.remove(invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(cache).remove(anyString());
+        this.cacheManager = this.mocker.getInstance(CacheManager.class);
+        when(this.cacheManager.createNewLocalCache(any(CacheConfiguration.class))).thenReturn(cache);
+    }
+
+    @Test
+    public void patientsAreCachedPerVersion() throws Exception
+    {
+        PatientSnapshotCache snapshots = this.mocker.getComponentUnderTest();
+        Assert.assertNull(snapshots.get(this.document, "1.1"));
+        snapshots.put(this.patient, "1.1");
+        Assert.assertSame(this.patient, snapshots.get(this.document, "1.1"));
+        Assert.assertNull(snapshots.get(this.document, "2.1"));
+        Assert.assertEquals(1, snapshots.getHitCount());
+        Assert.assertEquals(2, snapshots.getMissCount());
+    }
+
+    @Test
+    public void changedAndDeletedPatientsAreInvalidated() throws Exception
+    {
+        PatientSnapshotCache snapshots = this.mocker.getComponentUnderTest();
+        verify(this.mocker.<ObservationManager>getInstance(ObservationManager.class)).addListener(
+            (EventListener) snapshots);
+
+        snapshots.put(this.patient, "1.1");
+        ((EventListener) snapshots).onEvent(new PatientChangedEvent(this.patient, null), null, null);
+        Assert.assertNull(snapshots.get(this.document, "1.1"));
+
+        snapshots.put(this.patient, "1.1");
+        ((EventListener) snapshots).onEvent(new PatientDeletedEvent(this.patient, null), null, null);
+        Assert.assertNull(snapshots.get(this.document, "1.1"));
+    }
+
+    @Test
+    public void cacheCanBeDisabled() throws Exception
+    {
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        when(configuration.getProperty("phenotips.patientData.cache.size", Integer.class)).thenReturn(0);
+
+        PatientSnapshotCache snapshots = this.mocker.getComponentUnderTest();
+        snapshots.put(this.patient, "1.1");
+        Assert.assertNull(snapshots.get(this.document, "1.1"));
+        verify(this.cacheManager, never()).createNewLocalCache(any(CacheConfiguration.class));
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.components.ComponentManagerRegistry;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientData;
+import org.phenotips.data.PatientDataController;
+import org.phenotips.data.PatientRepository;
+
+import org.xwiki.bridge.DocumentAccessBridge;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
+import org.xwiki.query.QueryManager;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link PhenoTipsPatientRepository} component.
+ *
+ * @version $Id$
+ */
+public class PhenoTipsPatientRepositoryTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<PatientRepository> mocker =
+        new MockitoComponentMockingRule<PatientRepository>(PhenoTipsPatientRepository.class);
+
+    private final Map<DocumentReference, Patient> cacheContent = new HashMap<>();
+
+    private PatientSnapshotCache cache;
+
+    private PatientDataController<?> controller;
+
+    private DocumentAccessBridge bridge;
+
+    private DocumentReferenceResolver<String> stringResolver;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception
+    {
+        ComponentManager cm = mock(ComponentManager.class);
+        Provider<ComponentManager> provider = mock(Provider.class);
+        when(provider.get()).thenReturn(cm);
+        ReflectionUtils.setFieldValue(new ComponentManagerRegistry(), "cmProvider", provider);
+        this.controller = mock(PatientDataController.class);
+        when(this.controller.getName()).thenReturn("test");
+        doReturn(Collections.singletonList(this.controller)).when(cm).getInstanceList(PatientDataController.class);
+
+        this.bridge = this.mocker.getInstance(DocumentAccessBridge.class);
+        this.stringResolver = this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
+
+        this.cache = this.mocker.getInstance(PatientSnapshotCache.class);
+        when(this.cache.get(any(DocumentReference.class), anyString())).thenAnswer(new Answer<Patient>()
+        {
+            @Override
+            public Patient answer(InvocationOnMock invocation)
+            {
+                return PhenoTipsPatientRepositoryTest.this.cacheContent.get(invocation.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                Patient patient = (Patient) invocation.getArguments()[0];
+                PhenoTipsPatientRepositoryTest.this.cacheContent.put(patient.getDocument(), patient);
+                return null;
+            }
+        }).when(this.cache).put(any(Patient.class), anyString());
+    }
+
+    @Test
+    public void cachedPatientsAreCopiedForEachCaller() throws Exception
+    {
+        mockPatientDocument("P0000001");
+        PatientData<?> data = mock(PatientData.class);
+        when(data.getName()).thenReturn("test");
+        doReturn(data).when(this.controller).load(any(Patient.class));
+        PatientRepository repository = this.mocker.getComponentUnderTest();
+
+        Patient first = repository.getPatientById("P0000001");
+        Patient second = repository.getPatientById("P0000001");
+
+        ArgumentCaptor<Patient> snapshot = ArgumentCaptor.forClass(Patient.class);
+        verify(this.cache).put(snapshot.capture(), any(String.class));
+        Assert.assertNotSame(first, second);
+        Assert.assertNotSame(snapshot.getValue(), first);
+        Assert.assertNotSame(snapshot.getValue(), second);
+        Assert.assertSame(first.getFeatures(), second.getFeatures());
+
+        // Data loaded by one copy is reused by the others
+        Assert.assertSame(data, first.getData("test"));
+        Assert.assertSame(data, second.getData("test"));
+        verify(this.controller, times(1)).load(any(Patient.class));
+    }
+
+    @Test
+    public void getPatientsKeepsRequestedOrderAndSkipsMissingPatients() throws Exception
+    {
+        DocumentReference first = mockPatientDocument("P0000001");
+        DocumentReference missing = new DocumentReference("xwiki", "data", "P0000002");
+        DocumentReference third = mockPatientDocument("P0000003");
+        Query q = mockQuery();
+        // The database doesn't return the patients in the requested order
+        doReturn(Arrays.asList("data.P0000003", "data.P0000001")).when(q).execute();
+        PatientRepository repository = this.mocker.getComponentUnderTest();
+
+        List<Patient> result = repository.getPatients(Arrays.asList(first, missing, third));
+
+        verify(q).setWiki("xwiki");
+        verify(q).bindValue("names", Arrays.asList("data.P0000001", "data.P0000002", "data.P0000003"));
+        Assert.assertEquals(2, result.size());
+        // Patients are only loaded when accessed
+        verify(this.bridge, never()).getDocument(any(DocumentReference.class));
+        Assert.assertEquals(first, result.get(0).getDocument());
+        Assert.assertEquals(third, result.get(1).getDocument());
+    }
+
+    @Test
+    public void getPatientsByIdResolvesIdentifiers() throws Exception
+    {
+        DocumentReference reference = mockPatientDocument("P0000001");
+        Query q = mockQuery();
+        doReturn(Collections.singletonList("data.P0000001")).when(q).execute();
+        PatientRepository repository = this.mocker.getComponentUnderTest();
+
+        List<Patient> result = repository.getPatientsById(Collections.singletonList("P0000001"));
+
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals(reference, result.get(0).getDocument());
+    }
+
+    @Test
+    public void getPatientsSkipsFailedQueries() throws Exception
+    {
+        DocumentReference reference = mockPatientDocument("P0000001");
+        Query q = mockQuery();
+        when(q.execute()).thenThrow(new QueryException("failed", q, null));
+        PatientRepository repository = this.mocker.getComponentUnderTest();
+
+        Assert.assertTrue(repository.getPatients(Collections.singletonList(reference)).isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void allPatientsIteratorFetchesPagesAndSkipsDeletedPatients() throws Exception
+    {
+        DocumentReference first = mockPatientDocument("P0000001");
+        DocumentReference last = mockPatientDocument("P0000101");
+        List<String> firstPage = new ArrayList<>();
+        firstPage.add("data.P0000001");
+        // The other documents in the first page were deleted after the page was fetched
+        for (int i = 2; i <= 100; ++i) {
+            firstPage.add(String.format("data.P%07d", i));
+        }
+        Query q = mockQuery();
+        when(q.execute()).thenReturn((List) firstPage, (List) Collections.singletonList("data.P0000101"));
+        PatientRepository repository = this.mocker.getComponentUnderTest();
+
+        Iterator<Patient> patients = repository.getAllPatientsIterator();
+
+        Assert.assertTrue(patients.hasNext());
+        Assert.assertEquals(first, patients.next().getDocument());
+        Assert.assertTrue(patients.hasNext());
+        Assert.assertEquals(last, patients.next().getDocument());
+        Assert.assertFalse(patients.hasNext());
+        verify(q, times(2)).bindValue("template", "PatientTemplate");
+        // The second page starts after the last document of the first page, instead of skipping the first page
+        QueryManager qm = this.mocker.getInstance(QueryManager.class);
+        verify(qm).createQuery("select doc.fullName from Document doc, doc.object(PhenoTips.PatientClass) as patient"
+            + " where doc.name <> :template order by doc.fullName", Query.XWQL);
+        verify(qm).createQuery("select doc.fullName from Document doc, doc.object(PhenoTips.PatientClass) as patient"
+            + " where doc.name <> :template and doc.fullName > :after order by doc.fullName", Query.XWQL);
+        verify(q).bindValue("after", "data.P0000100");
+        verify(q, never()).setOffset(anyInt());
+        verify(q, times(2)).execute();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void allPatientsIteratorFailsWhenPatientsCannotBeListed() throws Exception
+    {
+        Query q = mockQuery();
+        when(q.execute()).thenThrow(new QueryException("failed", q, null));
+        PatientRepository repository = this.mocker.getComponentUnderTest();
+
+        repository.getAllPatientsIterator().hasNext();
+    }
+
+    private Query mockQuery() throws Exception
+    {
+        Query q = mock(Query.class);
+        QueryManager qm = this.mocker.getInstance(QueryManager.class);
+        when(qm.createQuery(anyString(), eq(Query.XWQL))).thenReturn(q);
+        EntityReferenceSerializer<String> serializer =
+            this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING, "local");
+        when(serializer.serialize(any(DocumentReference.class))).thenAnswer(new Answer<String>()
+        {
+            @Override
+            public String answer(InvocationOnMock invocation)
+            {
+                DocumentReference reference = (DocumentReference) invocation.getArguments()[0];
+                return reference.getLastSpaceReference().getName() + '.' + reference.getName();
+            }
+        });
+        return q;
+    }
+
+    private DocumentReference mockPatientDocument(String name) throws Exception
+    {
+        DocumentReference reference = new DocumentReference("xwiki", "data", name);
+        when(this.stringResolver.resolve(name, Patient.DEFAULT_DATA_SPACE)).thenReturn(reference);
+        when(this.stringResolver.resolve("data." + name, Patient.DEFAULT_DATA_SPACE)).thenReturn(reference);
+        when(this.stringResolver.resolve("data." + name, reference.getWikiReference())).thenReturn(reference);
+        XWikiDocument doc = mock(XWikiDocument.class);
+        BaseObject object = mock(BaseObject.class);
+        when(doc.getDocumentReference()).thenReturn(reference);
+        when(doc.getVersion()).thenReturn("1.1");
+        when(doc.getXObject(Patient.CLASS_REFERENCE)).thenReturn(object);
+        doReturn(Collections.emptyList()).when(object).getFieldList();
+        when(this.bridge.getDocument(reference)).thenReturn(doc);
+        return reference;
+    }
+}
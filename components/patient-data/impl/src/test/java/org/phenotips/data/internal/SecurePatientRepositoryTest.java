@@ -31,6 +31,11 @@
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -41,6 +46,7 @@
 import com.xpn.xwiki.doc.XWikiDocument;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 /**
@@ -140,10 +146,46 @@ public void createNewPatientDeniesUnauthorizedAccess() throws ComponentLookupExc
         this.mocker.getComponentUnderTest().createNewPatient();
     }
 
+    @Test
+    public void getPatientsByIdSkipsUnauthorizedPatients() throws ComponentLookupException
+    {
+        Patient otherPatient = mockOtherPatient();
+        List<String> ids = Arrays.asList("P0123456", "P0123457");
+        PatientRepository internalRepo = this.mocker.getInstance(PatientRepository.class);
+        when(internalRepo.getPatientsById(ids)).thenReturn(Arrays.asList(this.patient, otherPatient));
+        when(this.access.hasAccess(Right.VIEW, this.currentUser, this.patientReference)).thenReturn(false);
+
+        Assert.assertEquals(Collections.singletonList(otherPatient),
+            this.mocker.getComponentUnderTest().getPatientsById(ids));
+    }
+
+    @Test
+    public void getAllPatientsIteratorSkipsUnauthorizedPatients() throws ComponentLookupException
+    {
+        Patient otherPatient = mockOtherPatient();
+        PatientRepository internalRepo = this.mocker.getInstance(PatientRepository.class);
+        when(internalRepo.getAllPatientsIterator()).thenReturn(Arrays.asList(otherPatient, this.patient).iterator());
+        when(this.access.hasAccess(Right.VIEW, this.currentUser, this.patientReference)).thenReturn(false);
+
+        Iterator<Patient> patients = this.mocker.getComponentUnderTest().getAllPatientsIterator();
+        Assert.assertTrue(patients.hasNext());
+        Assert.assertSame(otherPatient, patients.next());
+        Assert.assertFalse(patients.hasNext());
+    }
+
     @Test
     public void loadPatientFromDocumentForwardsCalls() throws ComponentLookupException
     {
         XWikiDocument doc = new XWikiDocument(this.patientReference);
         Assert.assertSame(this.patient, this.mocker.getComponentUnderTest().loadPatientFromDocument(doc));
     }
+
+    private Patient mockOtherPatient()
+    {
+        Patient otherPatient = mock(Patient.class);
+        DocumentReference otherReference = new DocumentReference("xwiki", "data", "P0123457");
+        when(otherPatient.getDocument()).thenReturn(otherReference);
+        when(this.access.hasAccess(Right.VIEW, this.currentUser, otherReference)).thenReturn(true);
+        return otherPatient;
+    }
 }
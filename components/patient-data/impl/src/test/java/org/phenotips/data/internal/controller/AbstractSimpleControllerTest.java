@@ -52,6 +52,7 @@
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyBoolean;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.never;
@@ -243,6 +244,44 @@ public void saveSetsAllFields() throws XWikiException, ComponentLookupException
         verify(this.data).setStringValue(PROPERTY_3, "datum3");
     }
 
+    @Test
+    public void saveOnlySetsChangedFields() throws ComponentLookupException
+    {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        map.put(PROPERTY_1, "datum1");
+        map.put(PROPERTY_2, null);
+        map.put(PROPERTY_3, "datum3");
+        PatientData<String> patientData = new DictionaryPatientData<String>(DATA_NAME, map);
+        doReturn(patientData).when(this.patient).getData(DATA_NAME);
+        doReturn("datum1").when(this.data).getStringValue(PROPERTY_1);
+        doReturn("").when(this.data).getStringValue(PROPERTY_2);
+        doReturn("old").when(this.data).getStringValue(PROPERTY_3);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().save(this.patient, this.doc));
+
+        verify(this.data, never()).setStringValue(eq(PROPERTY_1), anyString());
+        verify(this.data, never()).setStringValue(eq(PROPERTY_2), anyString());
+        verify(this.data).setStringValue(PROPERTY_3, "datum3");
+    }
+
+    @Test
+    public void saveDoesNotSaveUnchangedData() throws XWikiException, ComponentLookupException
+    {
+        Map<String, String> map = new LinkedHashMap<String, String>();
+        map.put(PROPERTY_1, "datum1");
+        PatientData<String> patientData = new DictionaryPatientData<String>(DATA_NAME, map);
+        doReturn(patientData).when(this.patient).getData(DATA_NAME);
+        doReturn("datum1").when(this.data).getStringValue(PROPERTY_1);
+        doReturn("").when(this.data).getStringValue(PROPERTY_2);
+        doReturn("").when(this.data).getStringValue(PROPERTY_3);
+
+        Assert.assertFalse(this.mocker.getComponentUnderTest().save(this.patient, this.doc));
+        this.mocker.getComponentUnderTest().save(this.patient);
+
+        verify(this.xWiki, never()).saveDocument(any(XWikiDocument.class),
+            anyString(), anyBoolean(), any(XWikiContext.class));
+    }
+
     // -----------------------------------writeJSON() tests-----------------------------------
 
     @Test
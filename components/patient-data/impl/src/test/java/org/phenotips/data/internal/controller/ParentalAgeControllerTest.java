@@ -52,6 +52,8 @@
 import com.xpn.xwiki.objects.BaseObject;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -230,6 +232,35 @@ public void saveDefaultBehaviourTest() throws XWikiException
             "Updated parental age from JSON", true, this.xWikiContext);
     }
 
+    @Test
+    public void saveInDocumentUpdatesWithoutSaving() throws Exception
+    {
+        BaseObject data = mock(BaseObject.class);
+        doReturn(this.patientData).when(this.patient).getData(this.parentalAgeController.getName());
+        doReturn(true).when(this.patientData).isNamed();
+        doReturn(data).when(this.doc).getXObject(CLASS_REFERENCE, true, this.xWikiContext);
+        doReturn(AGE_NON_ZERO).when(this.patientData).get(MATERNAL_AGE);
+        doReturn(AGE_NON_ZERO).when(this.patientData).get(PATERNAL_AGE);
+
+        Assert.assertTrue(this.parentalAgeController.save(this.patient, this.doc));
+
+        verify(data).set(MATERNAL_AGE, AGE_NON_ZERO, this.xWikiContext);
+        verify(data).set(PATERNAL_AGE, AGE_NON_ZERO, this.xWikiContext);
+        verify(this.xWikiContext.getWiki(), never()).saveDocument(any(XWikiDocument.class), anyString(),
+            anyBoolean(), any(XWikiContext.class));
+        verify(this.documentAccessBridge, never()).getDocument(this.patientDocument);
+    }
+
+    @Test
+    public void saveInDocumentReportsNoChangesForEmptyPatient() throws XWikiException
+    {
+        doReturn(this.patientData).when(this.patient).getData(this.parentalAgeController.getName());
+        doReturn(false).when(this.patientData).isNamed();
+
+        Assert.assertFalse(this.parentalAgeController.save(this.patient, this.doc));
+        verifyNoMoreInteractions(this.doc);
+    }
+
     @Test
     public void saveHandlesExceptions() throws Exception
     {
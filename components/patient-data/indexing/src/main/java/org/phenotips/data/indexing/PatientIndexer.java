@@ -22,6 +22,8 @@
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
+import java.util.Collection;
+
 /**
  * API for indexing patient data in a search engine.
  *
@@ -46,6 +48,23 @@
      */
     void delete(Patient patient);
 
+    /**
+     * Add (or update) several patients to the index at once. The changes may become visible in searches after a short
+     * delay.
+     *
+     * @param patients the patients to index
+     * @since 1.3M2
+     */
+    void index(Collection<Patient> patients);
+
+    /**
+     * Delete several patients from the index at once. The changes may become visible in searches after a short delay.
+     *
+     * @param patients the patients to delete
+     * @since 1.3M2
+     */
+    void delete(Collection<Patient> patients);
+
     /**
      * Reindex all the patients.
      */
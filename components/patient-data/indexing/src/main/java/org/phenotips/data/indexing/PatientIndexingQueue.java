@@ -0,0 +1,66 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing;
+
+import org.phenotips.data.Patient;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+/**
+ * Collects the patient changes that must be reflected in the index, and sends them to the {@link PatientIndexer
+ * indexer} in the background, so that saving a patient doesn't have to wait for the index to be updated. Several
+ * changes to the same patient that are still waiting in the queue are merged into one.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Unstable
+@Role
+public interface PatientIndexingQueue
+{
+    /**
+     * Schedule a patient to be added to (or updated in) the index. If the queue is full, this waits until there is room
+     * for the patient.
+     *
+     * @param patient the patient to index
+     */
+    void index(Patient patient);
+
+    /**
+     * Schedule a patient to be removed from the index. If the queue is full, this waits until there is room for the
+     * patient.
+     *
+     * @param patient the patient to delete
+     */
+    void delete(Patient patient);
+
+    /**
+     * The number of patients waiting to be sent to the index.
+     *
+     * @return the number of pending patients, {@code 0} if the queue is empty
+     */
+    int getQueueSize();
+
+    /**
+     * How long the oldest pending change has been waiting in the queue.
+     *
+     * @return the age of the oldest pending change, in milliseconds, {@code 0} if the queue is empty
+     */
+    long getLag();
+}
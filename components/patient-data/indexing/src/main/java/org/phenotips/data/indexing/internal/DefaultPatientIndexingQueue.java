@@ -0,0 +1,347 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.indexing.PatientIndexer;
+import org.phenotips.data.indexing.PatientIndexingQueue;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Sends patient changes to the {@link PatientIndexer} from a pool of background workers. Each patient is always handled
+ * by the same worker, so that changes to one patient are applied in order; a worker takes all the changes waiting in
+ * its queue, up to the configured batch size, and sends them to the indexer at once. Pending changes are stored in a
+ * map keyed by the patient document, so that saving a patient again before the previous change was processed only
+ * replaces the pending change instead of queueing another one. Each batch is processed in a new execution context,
+ * since the indexer needs access to the XWiki data.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Component
+@Singleton
+public class DefaultPatientIndexingQueue implements PatientIndexingQueue, Initializable, Disposable
+{
+    private static final String CONFIGURATION_PREFIX = "phenotips.indexing.patients.";
+
+    /** The default number of worker threads. */
+    private static final int DEFAULT_WORKERS = 2;
+
+    /** The default number of patients that can wait in the queue of each worker. */
+    private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+
+    /** The default maximum number of patients sent to the indexer at once. */
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    /** How long to wait for the workers to finish their current batch when shutting down, in seconds. */
+    private static final int SHUTDOWN_TIMEOUT = 10;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    /** Does the actual indexing. */
+    @Inject
+    private PatientIndexer indexer;
+
+    /** Provides access to the configured sizes of the worker pool and queues. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Holds the execution context of the worker threads. */
+    @Inject
+    private Execution execution;
+
+    /** Initializes the execution context of the worker threads. */
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    /** The latest pending change for each queued patient, shared by all the workers. */
+    private final ConcurrentMap<String, PendingChange> pending = new ConcurrentHashMap<>();
+
+    /** The queue of each worker, holding the keys of the patients in {@link #pending}. */
+    private List<BlockingQueue<String>> queues;
+
+    /** Runs the workers. */
+    private ExecutorService workers;
+
+    /** The maximum number of patients sent to the indexer at once. */
+    private int batchSize;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        int workerCount = getConfiguredValue("workers", DEFAULT_WORKERS);
+        int capacity = getConfiguredValue("queueCapacity", DEFAULT_QUEUE_CAPACITY);
+        this.batchSize = getConfiguredValue("batchSize", DEFAULT_BATCH_SIZE);
+
+        this.queues = new ArrayList<>(workerCount);
+        this.workers = Executors.newFixedThreadPool(workerCount, new WorkerThreadFactory());
+        for (int i = 0; i < workerCount; ++i) {
+            BlockingQueue<String> queue = new ArrayBlockingQueue<>(capacity);
+            this.queues.add(queue);
+            this.workers.execute(new Worker(queue));
+        }
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.workers.shutdownNow();
+        try {
+            this.workers.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // Don't lose the changes still waiting in the queues
+        List<String> keys = new ArrayList<>();
+        for (BlockingQueue<String> queue : this.queues) {
+            queue.drainTo(keys);
+        }
+        processInNewContext(keys);
+    }
+
+    @Override
+    public void index(Patient patient)
+    {
+        enqueue(patient, false);
+    }
+
+    @Override
+    public void delete(Patient patient)
+    {
+        enqueue(patient, true);
+    }
+
+    @Override
+    public int getQueueSize()
+    {
+        return this.pending.size();
+    }
+
+    @Override
+    public long getLag()
+    {
+        long oldest = Long.MAX_VALUE;
+        for (PendingChange change : this.pending.values()) {
+            oldest = Math.min(oldest, change.getQueuedAt());
+        }
+        return oldest == Long.MAX_VALUE ? 0 : Math.max(0, System.currentTimeMillis() - oldest);
+    }
+
+    private void enqueue(Patient patient, boolean delete)
+    {
+        if (patient == null || patient.getDocument() == null) {
+            return;
+        }
+        String key = patient.getDocument().toString();
+        PendingChange previous;
+        PendingChange change;
+        boolean stored;
+        do {
+            previous = this.pending.get(key);
+            if (previous == null) {
+                change = new PendingChange(patient, delete, System.currentTimeMillis());
+                stored = this.pending.putIfAbsent(key, change) == null;
+            } else {
+                // Keep the time of the first queued change, so that the lag isn't hidden by frequent saves
+                change = new PendingChange(patient, delete, previous.getQueuedAt());
+                stored = this.pending.replace(key, previous, change);
+            }
+        } while (!stored);
+
+        if (previous != null) {
+            // The patient is already queued, the worker will pick up the new change
+            return;
+        }
+        try {
+            // Blocks while the queue is full, slowing down the producers until the workers catch up
+            this.queues.get((key.hashCode() & Integer.MAX_VALUE) % this.queues.size()).put(key);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            // The change can't be queued, apply it right away instead
+            List<String> keys = new ArrayList<>(1);
+            keys.add(key);
+            process(keys);
+        }
+    }
+
+    /**
+     * Sends the pending changes for the specified patients to the indexer.
+     *
+     * @param keys the keys of the patients to process
+     */
+    private void process(Collection<String> keys)
+    {
+        List<Patient> toIndex = new ArrayList<>(keys.size());
+        List<Patient> toDelete = new ArrayList<>();
+        for (String key : keys) {
+            PendingChange change = this.pending.remove(key);
+            if (change == null) {
+                continue;
+            }
+            if (change.isDelete()) {
+                toDelete.add(change.getPatient());
+            } else {
+                toIndex.add(change.getPatient());
+            }
+        }
+        try {
+            if (!toIndex.isEmpty()) {
+                this.indexer.index(toIndex);
+            }
+            if (!toDelete.isEmpty()) {
+                this.indexer.delete(toDelete);
+            }
+        } catch (RuntimeException ex) {
+            this.logger.warn("Failed to update the patient index: {}", ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Sends the pending changes for the specified patients to the indexer, from a new execution context, as needed by
+     * worker threads.
+     *
+     * @param keys the keys of the patients to process
+     */
+    private void processInNewContext(Collection<String> keys)
+    {
+        try {
+            ExecutionContext context = new ExecutionContext();
+            this.execution.setContext(context);
+            this.executionContextManager.initialize(context);
+        } catch (ExecutionContextException ex) {
+            // The keys are already taken from the queue, so try anyway instead of leaving the changes stuck
+            this.logger.warn("Failed to initialize the patient indexing context: {}", ex.getMessage());
+        }
+        try {
+            process(keys);
+        } finally {
+            this.execution.removeContext();
+        }
+    }
+
+    private int getConfiguredValue(String name, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(CONFIGURATION_PREFIX + name, Integer.class);
+        return value == null || value <= 0 ? defaultValue : value;
+    }
+
+    /** Takes batches of patients from one queue and sends them to the indexer, until interrupted. */
+    private final class Worker implements Runnable
+    {
+        private final BlockingQueue<String> queue;
+
+        Worker(BlockingQueue<String> queue)
+        {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run()
+        {
+            List<String> keys = new ArrayList<>(DefaultPatientIndexingQueue.this.batchSize);
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    keys.add(this.queue.take());
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                this.queue.drainTo(keys, DefaultPatientIndexingQueue.this.batchSize - 1);
+                processInNewContext(keys);
+                keys.clear();
+            }
+        }
+    }
+
+    /** The latest change for a queued patient. */
+    private static final class PendingChange
+    {
+        private final Patient patient;
+
+        private final boolean delete;
+
+        private final long queuedAt;
+
+        PendingChange(Patient patient, boolean delete, long queuedAt)
+        {
+            this.patient = patient;
+            this.delete = delete;
+            this.queuedAt = queuedAt;
+        }
+
+        Patient getPatient()
+        {
+            return this.patient;
+        }
+
+        boolean isDelete()
+        {
+            return this.delete;
+        }
+
+        long getQueuedAt()
+        {
+            return this.queuedAt;
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread result = new Thread(task, "Patient indexer " + this.counter.incrementAndGet());
+            result.setDaemon(true);
+            return result;
+        }
+    }
+}
@@ -23,6 +23,7 @@
 import org.phenotips.data.PatientRepository;
 import org.phenotips.data.indexing.PatientIndexer;
 import org.phenotips.data.permissions.PermissionsManager;
+import org.phenotips.data.permissions.Visibility;
 import org.phenotips.vocabulary.SolrCoreContainerHandler;
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
@@ -30,11 +31,11 @@
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
-import org.xwiki.query.Query;
-import org.xwiki.query.QueryException;
-import org.xwiki.query.QueryManager;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -44,6 +45,7 @@
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
 import org.apache.solr.client.solrj.util.ClientUtils;
@@ -78,6 +80,15 @@ public class SolrPatientIndexer implements PatientIndexer, Initializable
 
     private static final String SOLR_FIELD_REJECTED_GENES = "rejected_genes";
 
+    /** How long, in milliseconds, Solr may wait before committing changes sent in batches. */
+    private static final int COMMIT_WITHIN = 1000;
+
+    /** How many patients are sent to Solr at once while reindexing. */
+    private static final int REINDEX_BATCH_SIZE = 100;
+
+    /** The field holding the generation of the index that each patient document was written in. */
+    private static final String GENERATION_FIELD = "generation";
+
     /** Logging helper object. */
     @Inject
     private Logger logger;
@@ -88,9 +99,11 @@ public class SolrPatientIndexer implements PatientIndexer, Initializable
     /** The Solr server instance used. */
     private SolrClient server;
 
-    /** Allows querying for patients. */
-    @Inject
-    private QueryManager qm;
+    /**
+     * The generation stamped on the documents written from now on. Each reindex starts a new generation, and once all
+     * the patients have been written again, the documents left from older generations are the ones of deleted patients.
+     */
+    private volatile long generation = System.currentTimeMillis();
 
     /** Provides access to patients. */
     @Inject
@@ -113,38 +126,7 @@ public void initialize() throws InitializationException
     @Override
     public void index(Patient patient)
     {
-        SolrInputDocument input = new SolrInputDocument();
-        input.setField("document", patient.getDocument().toString());
-        String reporter = "";
-        if (patient.getReporter() != null) {
-            reporter = patient.getReporter().toString();
-        }
-        input.setField("reporter", reporter);
-
-        // Index direct phenotypes and extended ancestor sets
-        for (Feature phenotype : patient.getFeatures()) {
-            String presence = (phenotype.isPresent() ? "" : "negative_");
-            String fieldName = presence + phenotype.getType();
-            String ancestorFieldName = "extended_" + presence + "phenotype";
-
-            String termId = phenotype.getId();
-            if (StringUtils.isNotBlank(termId)) {
-                input.addField(fieldName, termId);
-                // Add ancestors of the term
-                VocabularyTerm term = this.ontologyService.getTerm(termId);
-                if (term != null) {
-                    for (VocabularyTerm ancestor : term.getAncestorsAndSelf()) {
-                        input.addField(ancestorFieldName, ancestor.getId());
-                    }
-                }
-            }
-        }
-
-        input.setField("visibility", this.permissions.getPatientAccess(patient).getVisibility().getName());
-        input.setField("accessLevel", this.permissions.getPatientAccess(patient).getVisibility().getPermissiveness());
-
-        addGenes(input, patient);
-
+        SolrInputDocument input = createDocument(patient, this.generation);
         try {
             this.server.add(input);
         } catch (SolrServerException ex) {
@@ -154,6 +136,26 @@ public void index(Patient patient)
         }
     }
 
+    @Override
+    public void index(Collection<Patient> patients)
+    {
+        List<SolrInputDocument> inputs = new ArrayList<>(patients.size());
+        long currentGeneration = this.generation;
+        for (Patient patient : patients) {
+            inputs.add(createDocument(patient, currentGeneration));
+        }
+        if (inputs.isEmpty()) {
+            return;
+        }
+        try {
+            this.server.add(inputs, COMMIT_WITHIN);
+        } catch (SolrServerException ex) {
+            this.logger.warn("Failed to index patients: {}", ex.getMessage());
+        } catch (IOException ex) {
+            this.logger.warn("Error occurred while indexing patients: {}", ex.getMessage());
+        }
+    }
+
     @Override
     public void delete(Patient patient)
     {
@@ -167,26 +169,141 @@ public void delete(Patient patient)
         }
     }
 
+    @Override
+    public void delete(Collection<Patient> patients)
+    {
+        List<String> ids = new ArrayList<>(patients.size());
+        for (Patient patient : patients) {
+            ids.add(patient.getDocument().toString());
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+        try {
+            this.server.deleteById(ids, COMMIT_WITHIN);
+        } catch (SolrServerException ex) {
+            this.logger.warn("Failed to delete from Solr: {}", ex.getMessage());
+        } catch (IOException ex) {
+            this.logger.warn("Error occurred while deleting Solr documents: {}", ex.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The existing documents are overwritten in place, so the index stays searchable while it is rebuilt. Only once all
+     * the patients have been written again are the outdated documents, belonging to patients that no longer exist,
+     * removed. If anything fails, the outdated documents are kept, and the next reindex will clean them up.
+     * </p>
+     */
     @Override
     public void reindex()
     {
+        long currentGeneration = Math.max(System.currentTimeMillis(), this.generation + 1);
+        // Patients indexed concurrently by the indexing queue are also part of the new generation
+        this.generation = currentGeneration;
+        boolean complete = true;
+        long indexed = 0;
         try {
-            List<String> patientDocs =
-                this.qm.createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL).execute();
-            this.server.deleteByQuery("*:*");
-            for (String patientDoc : patientDocs) {
-                this.index(this.patientRepository.getPatientById(patientDoc));
+            // Stream the patients instead of loading the whole cohort at once
+            Iterator<Patient> patients = this.patientRepository.getAllPatientsIterator();
+            List<SolrInputDocument> batch = new ArrayList<>(REINDEX_BATCH_SIZE);
+            while (patients.hasNext()) {
+                Patient patient = patients.next();
+                try {
+                    batch.add(createDocument(patient, currentGeneration));
+                } catch (RuntimeException ex) {
+                    this.logger.warn("Failed to reindex patient [{}]: {}", patient.getDocument(), ex.getMessage());
+                    complete = false;
+                    continue;
+                }
+                if (batch.size() == REINDEX_BATCH_SIZE) {
+                    this.server.add(batch);
+                    indexed += batch.size();
+                    batch = new ArrayList<>(REINDEX_BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                this.server.add(batch);
+                indexed += batch.size();
             }
             this.server.commit();
+            if (complete) {
+                removeOutdatedDocuments(currentGeneration, indexed);
+            } else {
+                this.logger.warn("Not all patients could be reindexed, keeping the outdated patient index entries");
+            }
         } catch (SolrServerException ex) {
             this.logger.warn("Failed to reindex patients: {}", ex.getMessage());
         } catch (IOException ex) {
             this.logger.warn("Error occurred while reindexing patients: {}", ex.getMessage());
-        } catch (QueryException ex) {
+        } catch (IllegalStateException ex) {
             this.logger.warn("Failed to search patients for reindexing: {}", ex.getMessage());
         }
     }
 
+    /**
+     * Removes the documents written before the given generation, after checking that all the reindexed patients are
+     * indeed found in the current generation. This check protects the index against a schema where the generation
+     * field isn't indexed, in which case no document would be found in the current generation.
+     *
+     * @param currentGeneration the generation written by the reindex
+     * @param indexed how many patients were written by the reindex
+     * @throws SolrServerException if communicating with Solr fails
+     * @throws IOException if communicating with Solr fails
+     */
+    private void removeOutdatedDocuments(long currentGeneration, long indexed) throws SolrServerException, IOException
+    {
+        SolrQuery current = new SolrQuery(GENERATION_FIELD + ":[" + currentGeneration + " TO *]");
+        current.setRows(0);
+        long found = this.server.query(current).getResults().getNumFound();
+        if (found < indexed) {
+            this.logger.warn("Only [{}] of the [{}] reindexed patients were found, keeping the outdated patient index"
+                + " entries", found, indexed);
+            return;
+        }
+        this.server.deleteByQuery("*:* -" + GENERATION_FIELD + ":[" + currentGeneration + " TO *]");
+        this.server.commit();
+    }
+
+    private SolrInputDocument createDocument(Patient patient, long documentGeneration)
+    {
+        SolrInputDocument input = new SolrInputDocument();
+        input.setField("document", patient.getDocument().toString());
+        String reporter = "";
+        if (patient.getReporter() != null) {
+            reporter = patient.getReporter().toString();
+        }
+        input.setField("reporter", reporter);
+        input.setField(GENERATION_FIELD, documentGeneration);
+
+        // Index direct phenotypes and extended ancestor sets
+        for (Feature phenotype : patient.getFeatures()) {
+            String presence = (phenotype.isPresent() ? "" : "negative_");
+            String fieldName = presence + phenotype.getType();
+            String ancestorFieldName = "extended_" + presence + "phenotype";
+
+            String termId = phenotype.getId();
+            if (StringUtils.isNotBlank(termId)) {
+                input.addField(fieldName, termId);
+                // Add ancestors of the term
+                VocabularyTerm term = this.ontologyService.getTerm(termId);
+                if (term != null) {
+                    for (VocabularyTerm ancestor : term.getAncestorsAndSelf()) {
+                        input.addField(ancestorFieldName, ancestor.getId());
+                    }
+                }
+            }
+        }
+
+        Visibility visibility = this.permissions.getPatientAccess(patient).getVisibility();
+        input.setField("visibility", visibility.getName());
+        input.setField("accessLevel", visibility.getPermissiveness());
+
+        addGenes(input, patient);
+        return input;
+    }
+
     private void addGenes(SolrInputDocument input, Patient patient)
     {
         PatientData<Map<String, String>> allGenes = patient.getData(GENES_KEY);
@@ -0,0 +1,329 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.indexing.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.indexing.PatientIndexer;
+import org.phenotips.data.indexing.PatientIndexingQueue;
+
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class DefaultPatientIndexingQueueTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<PatientIndexingQueue> mocker =
+        new MockitoComponentMockingRule<PatientIndexingQueue>(DefaultPatientIndexingQueue.class);
+
+    private PatientIndexer indexer;
+
+    private ConfigurationSource configuration;
+
+    @Before
+    public void setUp() throws ComponentLookupException
+    {
+        this.indexer = this.mocker.getInstance(PatientIndexer.class);
+        this.configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+    }
+
+    @Test
+    public void indexedPatientsAreSentToTheIndexerInTheBackground() throws ComponentLookupException
+    {
+        Patient patient = mockPatient("P0000001");
+        this.mocker.getComponentUnderTest().index(patient);
+        verify(this.indexer, timeout(5000)).index(Collections.singletonList(patient));
+        verify(this.indexer, never()).index(patient);
+    }
+
+    @Test
+    public void workersProcessBatchesInANewExecutionContext() throws Exception
+    {
+        Execution execution = this.mocker.getInstance(Execution.class);
+        ExecutionContextManager contextManager = this.mocker.getInstance(ExecutionContextManager.class);
+        Patient patient = mockPatient("P0000001");
+        this.mocker.getComponentUnderTest().index(patient);
+
+        verify(execution, timeout(5000)).removeContext();
+        InOrder order = inOrder(execution, contextManager, this.indexer);
+        order.verify(execution).setContext(any(ExecutionContext.class));
+        order.verify(contextManager).initialize(any(ExecutionContext.class));
+        order.verify(this.indexer).index(Collections.singletonList(patient));
+        order.verify(execution).removeContext();
+    }
+
+    @Test
+    public void deletedPatientsAreSentToTheIndexerInTheBackground() throws ComponentLookupException
+    {
+        Patient patient = mockPatient("P0000001");
+        this.mocker.getComponentUnderTest().delete(patient);
+        verify(this.indexer, timeout(5000)).delete(Collections.singletonList(patient));
+        verify(this.indexer, never()).delete(patient);
+    }
+
+    @Test
+    public void nullPatientsAreIgnored() throws ComponentLookupException
+    {
+        this.mocker.getComponentUnderTest().index(null);
+        this.mocker.getComponentUnderTest().delete(mock(Patient.class));
+        Assert.assertEquals(0, this.mocker.getComponentUnderTest().getQueueSize());
+    }
+
+    @Test
+    public void repeatedChangesAreCoalesced() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Patient blocker = mockPatient("P0000001");
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(this.indexer).index(Collections.singletonList(blocker));
+
+        PatientIndexingQueue queue = this.mocker.getComponentUnderTest();
+        queue.index(blocker);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        // The worker handling this patient is busy, so these changes wait in the queue and are merged
+        Patient first = mockPatient("P0000001");
+        Patient second = mockPatient("P0000001");
+        Patient last = mockPatient("P0000001");
+        queue.index(first);
+        queue.index(second);
+        queue.index(last);
+        Assert.assertEquals(1, queue.getQueueSize());
+        Thread.sleep(10);
+        Assert.assertTrue(queue.getLag() > 0);
+
+        release.countDown();
+        verify(this.indexer, timeout(5000)).index(Collections.singletonList(last));
+        verify(this.indexer, never()).index(Collections.singletonList(first));
+        verify(this.indexer, never()).index(Collections.singletonList(second));
+    }
+
+    @Test
+    public void deletingAQueuedPatientReplacesThePendingUpdate() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Patient blocker = mockPatient("P0000001");
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(this.indexer).index(Collections.singletonList(blocker));
+
+        PatientIndexingQueue queue = this.mocker.getComponentUnderTest();
+        queue.index(blocker);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Patient updated = mockPatient("P0000001");
+        Patient deleted = mockPatient("P0000001");
+        queue.index(updated);
+        queue.delete(deleted);
+
+        release.countDown();
+        verify(this.indexer, timeout(5000)).delete(Collections.singletonList(deleted));
+        verify(this.indexer, never()).index(Collections.singletonList(updated));
+    }
+
+    @Test
+    public void pendingChangesAreSentInBatches() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.indexing.patients.workers", Integer.class)).thenReturn(1);
+        when(this.configuration.getProperty("phenotips.indexing.patients.batchSize", Integer.class)).thenReturn(3);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Patient blocker = mockPatient("P0000000");
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(this.indexer).index(Collections.singletonList(blocker));
+
+        PatientIndexingQueue queue = this.mocker.getComponentUnderTest();
+        queue.index(blocker);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 1; i <= 5; ++i) {
+            Patient patient = mockPatient("P000000" + i);
+            patients.add(patient);
+            queue.index(patient);
+        }
+        Assert.assertEquals(5, queue.getQueueSize());
+
+        release.countDown();
+        verify(this.indexer, timeout(5000)).index(patients.subList(3, 5));
+        InOrder order = inOrder(this.indexer);
+        order.verify(this.indexer).index(patients.subList(0, 3));
+        order.verify(this.indexer).index(patients.subList(3, 5));
+        Assert.assertEquals(0, queue.getQueueSize());
+        Assert.assertEquals(0, queue.getLag());
+    }
+
+    @Test
+    public void fullQueueBlocksProducers() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.indexing.patients.workers", Integer.class)).thenReturn(1);
+        when(this.configuration.getProperty("phenotips.indexing.patients.queueCapacity", Integer.class))
+            .thenReturn(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Patient blocker = mockPatient("P0000000");
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                started.countDown();
+                release.await(5, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(this.indexer).index(Collections.singletonList(blocker));
+
+        final PatientIndexingQueue queue = this.mocker.getComponentUnderTest();
+        queue.index(blocker);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        queue.index(mockPatient("P0000001"));
+
+        final CountDownLatch queued = new CountDownLatch(1);
+        final Patient waiting = mockPatient("P0000002");
+        Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                queue.index(waiting);
+                queued.countDown();
+            }
+        };
+        producer.start();
+        Assert.assertFalse(queued.await(200, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        Assert.assertTrue(queued.await(5, TimeUnit.SECONDS));
+        verify(this.indexer, timeout(5000)).index(Collections.singletonList(waiting));
+    }
+
+    @Test
+    public void indexingFailuresDoNotStopTheWorkers() throws ComponentLookupException
+    {
+        Patient failing = mockPatient("P0000001");
+        Patient patient = mockPatient("P0000002");
+        doThrow(new IllegalStateException("Index unavailable")).when(this.indexer)
+            .index(Collections.singletonList(failing));
+
+        PatientIndexingQueue queue = this.mocker.getComponentUnderTest();
+        queue.index(failing);
+        verify(this.mocker.getMockedLogger(), timeout(5000)).warn(eq("Failed to update the patient index: {}"),
+            eq("Index unavailable"), any(IllegalStateException.class));
+        queue.index(patient);
+        verify(this.indexer, timeout(5000)).index(Collections.singletonList(patient));
+    }
+
+    @Test
+    public void pendingChangesAreProcessedOnDispose() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.indexing.patients.workers", Integer.class)).thenReturn(1);
+        final CountDownLatch started = new CountDownLatch(1);
+        Patient blocker = mockPatient("P0000000");
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                started.countDown();
+                // Wait until the worker is interrupted
+                new CountDownLatch(1).await();
+                return null;
+            }
+        }).when(this.indexer).index(Collections.singletonList(blocker));
+
+        PatientIndexingQueue queue = this.mocker.getComponentUnderTest();
+        queue.index(blocker);
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        Patient patient = mockPatient("P0000001");
+        queue.delete(patient);
+
+        ((Disposable) queue).dispose();
+        verify(this.indexer).delete(Collections.singletonList(patient));
+        Assert.assertEquals(0, queue.getQueueSize());
+        // The remaining changes are also processed in a new execution context
+        Execution execution = this.mocker.getInstance(Execution.class);
+        verify(execution, times(2)).setContext(any(ExecutionContext.class));
+        InOrder order = inOrder(this.indexer, execution);
+        order.verify(this.indexer).delete(Collections.singletonList(patient));
+        order.verify(execution).removeContext();
+    }
+
+    private Patient mockPatient(String id)
+    {
+        Patient result = mock(Patient.class);
+        doReturn(new DocumentReference("wiki", "data", id)).when(result).getDocument();
+        return result;
+    }
+}
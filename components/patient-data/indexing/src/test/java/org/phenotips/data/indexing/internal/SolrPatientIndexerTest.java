@@ -35,41 +35,53 @@
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.util.ReflectionUtils;
 import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.query.Query;
-import org.xwiki.query.QueryException;
-import org.xwiki.query.QueryManager;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.UpdateResponse;
 import org.apache.solr.client.solrj.util.ClientUtils;
+import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.core.CoreContainer;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.matchers.CapturingMatcher;
 import org.slf4j.Logger;
 
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -90,8 +102,6 @@
 
     private Logger logger;
 
-    private QueryManager qm;
-
     private PatientRepository patientRepository;
 
     private PermissionsManager permissions;
@@ -108,7 +118,6 @@ public void setUp() throws ComponentLookupException
         doReturn(mock(CoreContainer.class)).when(cores).getContainer();
 
         this.permissions = this.mocker.getInstance(PermissionsManager.class);
-        this.qm = this.mocker.getInstance(QueryManager.class);
         this.patientRepository = this.mocker.getInstance(PatientRepository.class);
         this.patientDocReference = new DocumentReference("wiki", "patient", "P0000001");
         this.patientIndexer = this.mocker.getComponentUnderTest();
@@ -339,6 +348,107 @@ public void deleteDefaultBehaviourTest() throws IOException, SolrServerException
         verify(this.server).commit();
     }
 
+    @Test
+    public void indexBatchSendsAllDocumentsAtOnce() throws IOException, SolrServerException
+    {
+        Patient other = mock(Patient.class);
+        DocumentReference otherDocReference = new DocumentReference("wiki", "patient", "P0000002");
+        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
+        doReturn(new PublicVisibility()).when(patientAccess).getVisibility();
+        for (Patient p : Arrays.asList(this.patient, other)) {
+            doReturn(Collections.emptySet()).when(p).getFeatures();
+            doReturn(patientAccess).when(this.permissions).getPatientAccess(p);
+        }
+        doReturn(this.patientDocReference).when(this.patient).getDocument();
+        doReturn(otherDocReference).when(other).getDocument();
+
+        this.patientIndexer.index(Arrays.asList(this.patient, other));
+
+        ArgumentCaptor<Collection> inputs = ArgumentCaptor.forClass(Collection.class);
+        verify(this.server).add(inputs.capture(), eq(1000));
+        List<String> documents = new ArrayList<>();
+        for (Object input : inputs.getValue()) {
+            documents.add((String) ((SolrInputDocument) input).getFieldValue("document"));
+        }
+        Assert.assertEquals(Arrays.asList(this.patientDocReference.toString(), otherDocReference.toString()),
+            documents);
+        verify(this.server, never()).add(any(SolrInputDocument.class));
+    }
+
+    @Test
+    public void indexEmptyBatchDoesNothing() throws IOException, SolrServerException
+    {
+        this.patientIndexer.index(Collections.<Patient>emptyList());
+        verify(this.server, never()).add(anyCollectionOf(SolrInputDocument.class), anyInt());
+    }
+
+    @Test
+    public void indexBatchThrowsSolrException() throws IOException, SolrServerException
+    {
+        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
+        doReturn(new PublicVisibility()).when(patientAccess).getVisibility();
+        doReturn(Collections.emptySet()).when(this.patient).getFeatures();
+        doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
+        doReturn(this.patientDocReference).when(this.patient).getDocument();
+        doThrow(new SolrServerException("add failed")).when(this.server)
+            .add(anyCollectionOf(SolrInputDocument.class), anyInt());
+
+        this.patientIndexer.index(Collections.singletonList(this.patient));
+
+        verify(this.logger).warn("Failed to index patients: {}", "add failed");
+    }
+
+    @Test
+    public void indexBatchThrowsIOException() throws IOException, SolrServerException
+    {
+        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
+        doReturn(new PublicVisibility()).when(patientAccess).getVisibility();
+        doReturn(Collections.emptySet()).when(this.patient).getFeatures();
+        doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
+        doReturn(this.patientDocReference).when(this.patient).getDocument();
+        doThrow(new IOException("add failed")).when(this.server)
+            .add(anyCollectionOf(SolrInputDocument.class), anyInt());
+
+        this.patientIndexer.index(Collections.singletonList(this.patient));
+
+        verify(this.logger).warn("Error occurred while indexing patients: {}", "add failed");
+    }
+
+    @Test
+    public void deleteBatchRemovesDocumentsById() throws IOException, SolrServerException
+    {
+        doReturn(this.patientDocReference).when(this.patient).getDocument();
+        this.patientIndexer.delete(Collections.singletonList(this.patient));
+        verify(this.server).deleteById(Collections.singletonList(this.patientDocReference.toString()), 1000);
+        verify(this.server, never()).commit();
+    }
+
+    @Test
+    public void deleteEmptyBatchDoesNothing() throws IOException, SolrServerException
+    {
+        this.patientIndexer.delete(Collections.<Patient>emptyList());
+        verify(this.server, never()).deleteById(anyListOf(String.class), anyInt());
+    }
+
+    @Test
+    public void deleteBatchThrowsSolrException() throws IOException, SolrServerException
+    {
+        doReturn(this.patientDocReference).when(this.patient).getDocument();
+        doThrow(new SolrServerException("delete failed")).when(this.server).deleteById(anyListOf(String.class),
+            anyInt());
+        this.patientIndexer.delete(Collections.singletonList(this.patient));
+        verify(this.logger).warn("Failed to delete from Solr: {}", "delete failed");
+    }
+
+    @Test
+    public void deleteBatchThrowsIOException() throws IOException, SolrServerException
+    {
+        doReturn(this.patientDocReference).when(this.patient).getDocument();
+        doThrow(new IOException("delete failed")).when(this.server).deleteById(anyListOf(String.class), anyInt());
+        this.patientIndexer.delete(Collections.singletonList(this.patient));
+        verify(this.logger).warn("Error occurred while deleting Solr documents: {}", "delete failed");
+    }
+
     @Test
     public void deleteThrowsSolrException() throws IOException, SolrServerException
     {
@@ -358,15 +468,10 @@ public void deleteThrowsIOException() throws IOException, SolrServerException
     }
 
     @Test
-    public void reindexDefaultBehaviour() throws QueryException, IOException, SolrServerException
+    public void reindexDefaultBehaviour() throws IOException, SolrServerException
     {
-        List<String> patientDocs = new ArrayList<>();
-        patientDocs.add("P0000001");
-
-        Query testQuery = mock(Query.class);
-        doReturn(testQuery).when(this.qm).createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL);
-        doReturn(patientDocs).when(testQuery).execute();
-        doReturn(this.patient).when(this.patientRepository).getPatientById("P0000001");
+        doReturn(Collections.singletonList(this.patient).iterator()).when(this.patientRepository)
+            .getAllPatientsIterator();
 
         Set<Feature> patientFeatures = new HashSet<>();
         Feature testFeature = mock(Feature.class);
@@ -385,57 +490,160 @@ public void reindexDefaultBehaviour() throws QueryException, IOException, SolrSe
 
         doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
         doReturn(patientVisibility).when(patientAccess).getVisibility();
+        mockFoundPatients(1);
 
         this.patientIndexer.reindex();
 
-        verify(this.server).deleteByQuery("*:*");
-        verify(this.server).commit();
+        ArgumentCaptor<Collection> inputs = ArgumentCaptor.forClass(Collection.class);
+        verify(this.server).add(inputs.capture());
+        Assert.assertEquals(1, inputs.getValue().size());
+        Object generation = ((SolrInputDocument) inputs.getValue().iterator().next()).getFieldValue("generation");
+        Assert.assertNotNull(generation);
+        // The outdated documents are only removed after the new ones were written and committed
+        InOrder order = inOrder(this.server);
+        order.verify(this.server).commit();
+        order.verify(this.server).deleteByQuery("*:* -generation:[" + generation + " TO *]");
+        order.verify(this.server).commit();
+    }
+
+    @Test
+    public void reindexStartsANewGeneration() throws IOException, SolrServerException
+    {
+        doReturn(this.patientDocReference).when(this.patient).getDocument();
+        doReturn(Collections.emptySet()).when(this.patient).getFeatures();
+        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
+        doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
+        doReturn(new PublicVisibility()).when(patientAccess).getVisibility();
+        doReturn(Collections.<Patient>emptyIterator()).when(this.patientRepository).getAllPatientsIterator();
+        mockFoundPatients(0);
+
+        this.patientIndexer.index(this.patient);
+        this.patientIndexer.reindex();
+        this.patientIndexer.index(this.patient);
+
+        ArgumentCaptor<SolrInputDocument> inputs = ArgumentCaptor.forClass(SolrInputDocument.class);
+        verify(this.server, times(2)).add(inputs.capture());
+        long before = (Long) inputs.getAllValues().get(0).getFieldValue("generation");
+        long after = (Long) inputs.getAllValues().get(1).getFieldValue("generation");
+        Assert.assertTrue(after > before);
+        // Patients indexed while or after reindexing aren't removed as outdated
+        verify(this.server).deleteByQuery("*:* -generation:[" + after + " TO *]");
+    }
+
+    @Test
+    public void reindexSolrServerException() throws IOException, SolrServerException
+    {
+        doReturn(Collections.<Patient>emptyIterator()).when(this.patientRepository).getAllPatientsIterator();
+        doThrow(new SolrServerException("commit failed")).when(this.server).commit();
+
+        this.patientIndexer.reindex();
 
+        verify(this.logger).warn("Failed to reindex patients: {}", "commit failed");
+        verify(this.server, never()).deleteByQuery(anyString());
     }
 
     @Test
-    public void reindexSolrServerException() throws QueryException, IOException, SolrServerException
+    public void reindexIOException() throws IOException, SolrServerException
     {
-        List<String> patientDocs = new ArrayList<>();
-        patientDocs.add("P0000001");
+        doReturn(Collections.<Patient>emptyIterator()).when(this.patientRepository).getAllPatientsIterator();
+        doThrow(new IOException("commit failed")).when(this.server).commit();
+
+        this.patientIndexer.reindex();
 
-        Query testQuery = mock(Query.class);
-        doReturn(testQuery).when(this.qm).createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL);
-        doReturn(patientDocs).when(testQuery).execute();
+        verify(this.logger).warn("Error occurred while reindexing patients: {}", "commit failed");
+        verify(this.server, never()).deleteByQuery(anyString());
+    }
 
-        doThrow(new SolrServerException("deleteByQuery failed")).when(this.server).deleteByQuery("*:*");
+    @Test
+    @SuppressWarnings("unchecked")
+    public void reindexQueryException() throws IOException, SolrServerException
+    {
+        Iterator<Patient> patients = mock(Iterator.class);
+        doReturn(patients).when(this.patientRepository).getAllPatientsIterator();
+        doThrow(new IllegalStateException("query failed")).when(patients).hasNext();
 
         this.patientIndexer.reindex();
 
-        verify(this.logger).warn("Failed to reindex patients: {}", "deleteByQuery failed");
+        verify(this.logger).warn("Failed to search patients for reindexing: {}", "query failed");
+        verify(this.server, never()).deleteByQuery(anyString());
+        verify(this.server, never()).commit();
     }
 
     @Test
-    public void reindexIOException() throws QueryException, IOException, SolrServerException
+    @SuppressWarnings("unchecked")
+    public void reindexKeepsTheIndexWhenListingFailsMidway() throws IOException, SolrServerException
     {
-        List<String> patientDocs = new ArrayList<>();
-        patientDocs.add("P0000001");
+        Iterator<Patient> patients = mock(Iterator.class);
+        doReturn(patients).when(this.patientRepository).getAllPatientsIterator();
+        when(patients.hasNext()).thenReturn(true, true).thenThrow(new IllegalStateException("query failed"));
+        doReturn(this.patient).when(patients).next();
+        doReturn(this.patientDocReference).when(this.patient).getDocument();
+        doReturn(Collections.emptySet()).when(this.patient).getFeatures();
+        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
+        doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
+        doReturn(new PublicVisibility()).when(patientAccess).getVisibility();
+
+        this.patientIndexer.reindex();
 
-        Query testQuery = mock(Query.class);
-        doReturn(testQuery).when(this.qm).createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL);
-        doReturn(patientDocs).when(testQuery).execute();
+        verify(this.logger).warn("Failed to search patients for reindexing: {}", "query failed");
+        verify(this.server, never()).deleteByQuery(anyString());
+        verify(this.server, never()).rollback();
+    }
 
-        doThrow(new IOException("deleteByQuery failed")).when(this.server).deleteByQuery("*:*");
+    @Test
+    public void reindexSkipsPatientsThatCannotBeIndexed() throws IOException, SolrServerException
+    {
+        Patient broken = mock(Patient.class);
+        DocumentReference brokenReference = new DocumentReference("wiki", "patient", "P0000002");
+        doReturn(brokenReference).when(broken).getDocument();
+        doThrow(new IllegalArgumentException("broken")).when(broken).getFeatures();
+        doReturn(Arrays.asList(broken, this.patient).iterator()).when(this.patientRepository)
+            .getAllPatientsIterator();
+        doReturn(this.patientDocReference).when(this.patient).getDocument();
+        doReturn(Collections.emptySet()).when(this.patient).getFeatures();
+        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
+        doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
+        doReturn(new PublicVisibility()).when(patientAccess).getVisibility();
+        mockFoundPatients(1);
 
         this.patientIndexer.reindex();
 
-        verify(this.logger).warn("Error occurred while reindexing patients: {}", "deleteByQuery failed");
+        verify(this.logger).warn("Failed to reindex patient [{}]: {}", brokenReference, "broken");
+        ArgumentCaptor<Collection> inputs = ArgumentCaptor.forClass(Collection.class);
+        verify(this.server).add(inputs.capture());
+        Assert.assertEquals(1, inputs.getValue().size());
+        verify(this.server).commit();
+        verify(this.server, never()).deleteByQuery(anyString());
     }
 
     @Test
-    public void reindexQueryException() throws QueryException, IOException, SolrServerException
+    public void reindexKeepsOutdatedDocumentsWhenNewOnesAreNotFound() throws IOException, SolrServerException
     {
-        doThrow(new QueryException("createQuery failed", null, null))
-            .when(this.qm).createQuery("from doc.object(PhenoTips.PatientClass) as patient", Query.XWQL);
+        doReturn(Collections.singletonList(this.patient).iterator()).when(this.patientRepository)
+            .getAllPatientsIterator();
+        doReturn(this.patientDocReference).when(this.patient).getDocument();
+        doReturn(Collections.emptySet()).when(this.patient).getFeatures();
+        PatientAccess patientAccess = mock(DefaultPatientAccess.class);
+        doReturn(patientAccess).when(this.permissions).getPatientAccess(this.patient);
+        doReturn(new PublicVisibility()).when(patientAccess).getVisibility();
+        mockFoundPatients(0);
 
         this.patientIndexer.reindex();
 
-        verify(this.logger).warn("Failed to search patients for reindexing: {}", "createQuery failed");
+        verify(this.server, never()).deleteByQuery(anyString());
+    }
 
+    /**
+     * Makes Solr report the given number of documents for any search.
+     *
+     * @param found the number of documents found
+     */
+    private void mockFoundPatients(long found) throws IOException, SolrServerException
+    {
+        SolrDocumentList results = new SolrDocumentList();
+        results.setNumFound(found);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(results);
+        when(this.server.query(any(SolrParams.class))).thenReturn(response);
     }
 }
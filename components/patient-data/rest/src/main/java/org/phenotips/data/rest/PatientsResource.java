@@ -52,12 +52,16 @@
      * @param number for large result set paging, how many patients to display in the returned page
      * @param orderField field used for ordering the patients, can be one of {@code id} (default) or {@code eid}
      * @param order the sorting order, can be one of {@code asc} (default) or {@code desc}
-     * @return a list of patient records
+     * @param after for large result set paging, the opaque cursor found in the {@code next} link of the previous
+     *            page; when present, the page starts right after the last patient of the previous page, and
+     *            {@code start} is counted from there
+     * @return a list of patient records, with a {@code next} link if the page is full
      */
     @GET
     Patients listPatients(
         @QueryParam("start") @DefaultValue("0") Integer start,
         @QueryParam("number") @DefaultValue("30") Integer number,
         @QueryParam("orderField") @DefaultValue("id") String orderField,
-        @QueryParam("order") @DefaultValue("asc") String order);
+        @QueryParam("order") @DefaultValue("asc") String order,
+        @QueryParam("after") String after);
 }
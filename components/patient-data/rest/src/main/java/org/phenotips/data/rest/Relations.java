@@ -28,6 +28,9 @@
     /** Relation for links pointing to the resource that returned the current representation. */
     public static final String SELF = "self";
 
+    /** Relation for links pointing to the next page of a paginated list. */
+    public static final String NEXT = "next";
+
     /** Relation for links pointing to a search service for the current type of resource. */
     public static final String SEARCH = "https://phenotips.org/rel/search";
 
@@ -32,6 +32,7 @@
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceResolver;
 import org.xwiki.query.Query;
+import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 import org.xwiki.rest.XWikiResource;
 import org.xwiki.security.authorization.AuthorizationManager;
@@ -40,6 +41,7 @@
 import org.xwiki.users.UserManager;
 
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -51,6 +53,7 @@
 import javax.ws.rs.core.Response.Status;
 import javax.ws.rs.core.UriBuilder;
 
+import org.apache.commons.lang3.StringUtils;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 
@@ -65,6 +68,20 @@
 @Singleton
 public class DefaultPatientsResourceImpl extends XWikiResource implements PatientsResource
 {
+    /** The minimum number of records fetched at once from the database while filling a page. */
+    private static final int MIN_BATCH_SIZE = 100;
+
+    /** The maximum number of records fetched at once from the database while filling a page. */
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    /** The name of the patient template document, which must not be listed. */
+    private static final String TEMPLATE_NAME = "PatientTemplate";
+
+    /** The query selecting the raw data needed for a patient summary, before any pagination and ordering clauses. */
+    private static final String SUMMARY_QUERY =
+        "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
+            + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t";
+
     @Inject
     private Logger logger;
 
@@ -124,45 +141,171 @@ public Response addPatient(String json)
     }
 
     @Override
-    public Patients listPatients(Integer start, Integer number, String orderField, String order)
+    public Patients listPatients(Integer start, Integer number, String orderField, String order, String after)
     {
         Patients result = new Patients();
         try {
-            String safeOrderField = "doc.name";
-            if ("eid".equals(orderField)) {
-                safeOrderField = "p.external_id";
+            boolean byExternalId = "eid".equals(orderField);
+            String lastExternalId = null;
+            if (byExternalId && StringUtils.isNotEmpty(after)) {
+                lastExternalId = getExternalId(after);
             }
-            String safeOrder = " asc";
-            if ("desc".equals(order)) {
-                safeOrder = " desc";
+            String lastName = fillPage(result.getPatientSummaries(), start, number, byExternalId,
+                "desc".equals(order), StringUtils.defaultIfEmpty(after, null), lastExternalId);
+
+            result.getLinks().add(new Link().withRel(Relations.SELF).withHref(this.uriInfo.getRequestUri().toString()));
+            if (number > 0 && result.getPatientSummaries().size() >= number) {
+                result.getLinks().add(new Link().withRel(Relations.NEXT).withHref(UriBuilder
+                    .fromUri(this.uriInfo.getRequestUri()).replaceQueryParam("start", 0)
+                    .replaceQueryParam("after", lastName).build().toString()));
             }
-            Query query = this.queries.createQuery(
-                "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
-                    + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                    + safeOrderField + safeOrder,
-                "xwql");
-            query.bindValue("t", "PatientTemplate");
-
-            List<Object[]> records = query.execute();
-            int skipped = 0;
+        } catch (WebApplicationException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            this.logger.error("Failed to list patients: {}", ex.getMessage(), ex);
+            throw new WebApplicationException(Status.INTERNAL_SERVER_ERROR);
+        }
+
+        return result;
+    }
+
+    /**
+     * Fills a page with the summaries of the patients accessible to the current user. Records are fetched in batches
+     * following the last record already processed, and since access rights are decided by the authorization modules,
+     * they can't be checked in the query; only the records needed for filling the page are checked.
+     *
+     * @param page the list where the accessible patient summaries are added
+     * @param start how many accessible patients to skip before filling the page
+     * @param number the maximum size of the page
+     * @param byExternalId whether the records are sorted by their external identifier, or by their document name
+     * @param descending whether the records are sorted in descending order
+     * @param after the full name of the document preceding the page, {@code null} for starting with the first record
+     * @param afterExternalId the external identifier of the record preceding the page, only used when sorting by
+     *            external identifier
+     * @return the full name of the last processed document
+     * @throws QueryException if fetching the records fails
+     */
+    private String fillPage(List<PatientSummary> page, int start, int number, boolean byExternalId,
+        boolean descending, String after, String afterExternalId) throws QueryException
+    {
+        int batchSize = Math.min(Math.max(number, MIN_BATCH_SIZE), MAX_BATCH_SIZE);
+        String lastName = after;
+        String lastExternalId = afterExternalId;
+        int skipped = 0;
+        boolean exhausted = false;
+        while (!exhausted && page.size() < number) {
+            List<Object[]> records = getBatch(byExternalId, descending, lastName, lastExternalId, batchSize);
+            exhausted = records.size() < batchSize;
             for (Object[] record : records) {
+                lastName = String.valueOf(record[0]);
+                lastExternalId = (String) record[1];
                 PatientSummary summary = this.factory.createPatientSummary(record, this.uriInfo);
-                // Since raw queries can't take into account access rights, we must do our own paging with rights checks
-                if (summary != null) {
-                    if (++skipped > start) {
-                        result.getPatientSummaries().add(summary);
-                    }
-                    if (result.getPatientSummaries().size() >= number) {
+                if (summary != null && ++skipped > start) {
+                    page.add(summary);
+                    if (page.size() >= number) {
                         break;
                     }
                 }
             }
-            result.getLinks().add(new Link().withRel(Relations.SELF).withHref(this.uriInfo.getRequestUri().toString()));
-        } catch (Exception ex) {
-            this.logger.error("Failed to list patients: {}", ex.getMessage(), ex);
-            throw new WebApplicationException(Status.INTERNAL_SERVER_ERROR);
         }
+        return lastName;
+    }
+
+    /**
+     * Fetches the next batch of patient records, in the requested order, following the last record already processed.
+     *
+     * @param byExternalId whether the records are sorted by their external identifier, or by their document name
+     * @param descending whether the records are sorted in descending order
+     * @param lastName the full name of the last document already processed, {@code null} for the first batch
+     * @param lastExternalId the external identifier of the last record already processed, only used when sorting by
+     *            external identifier
+     * @param batchSize the maximum number of records to fetch
+     * @return the raw summary data for the next records, as expected by
+     *         {@link DomainObjectFactory#createPatientSummary(Object[], javax.ws.rs.core.UriInfo)}
+     * @throws QueryException if the query fails
+     */
+    private List<Object[]> getBatch(boolean byExternalId, boolean descending, String lastName, String lastExternalId,
+        int batchSize) throws QueryException
+    {
+        String comparison = descending ? " < " : " > ";
+        String direction = descending ? " desc" : " asc";
+        String nameCursor = " and doc.fullName" + comparison + ":after";
+        String nameOrder = " order by doc.fullName" + direction;
+        if (!byExternalId) {
+            return runBatch(lastName == null ? nameOrder : nameCursor + nameOrder, lastName, null, batchSize);
+        }
+
+        // Records without an external identifier are listed before all the others in ascending order, and after them
+        // in descending order. They are fetched with separate queries, since databases don't agree on where nulls are
+        // sorted, and nulls can't be compared with the cursor.
+        boolean cursorWithoutId = lastName != null && lastExternalId == null;
+        String withoutId = " and p.external_id is null" + (cursorWithoutId ? nameCursor : "") + nameOrder;
+        String withId = " and p.external_id is not null"
+            + (lastExternalId == null ? "" : " and (p.external_id" + comparison + ":eid"
+                + " or (p.external_id = :eid and doc.fullName" + comparison + ":after))")
+            + " order by p.external_id" + direction + ", doc.fullName" + direction;
 
+        List<Object[]> result = new ArrayList<>(batchSize);
+        if (descending) {
+            if (!cursorWithoutId) {
+                result.addAll(runBatch(withId, lastName, lastExternalId, batchSize));
+            }
+            if (result.size() < batchSize) {
+                result.addAll(runBatch(withoutId, lastName, null, batchSize - result.size()));
+            }
+        } else {
+            if (lastExternalId == null) {
+                result.addAll(runBatch(withoutId, lastName, null, batchSize));
+            }
+            if (result.size() < batchSize) {
+                result.addAll(runBatch(withId, lastName, lastExternalId, batchSize - result.size()));
+            }
+        }
         return result;
     }
+
+    /**
+     * Runs one query for patient summaries.
+     *
+     * @param clauses the conditions and ordering appended to the base summary query
+     * @param lastName the value for the {@code :after} parameter, bound only if the clauses use it
+     * @param lastExternalId the value for the {@code :eid} parameter, bound only if the clauses use it
+     * @param limit the maximum number of records to fetch
+     * @return the raw summary data for the matching records
+     * @throws QueryException if the query fails
+     */
+    private List<Object[]> runBatch(String clauses, String lastName, String lastExternalId, int limit)
+        throws QueryException
+    {
+        Query query = this.queries.createQuery(SUMMARY_QUERY + clauses, "xwql");
+        query.bindValue("t", TEMPLATE_NAME);
+        if (clauses.contains(":after")) {
+            query.bindValue("after", lastName);
+        }
+        if (clauses.contains(":eid")) {
+            query.bindValue("eid", lastExternalId);
+        }
+        query.setLimit(limit);
+        return query.execute();
+    }
+
+    /**
+     * Finds the external identifier of the patient record used as the pagination cursor.
+     *
+     * @param documentName the full name of the patient document
+     * @return the external identifier of the patient, {@code null} if the patient doesn't have one
+     * @throws QueryException if the query fails
+     * @throws WebApplicationException with a {@code 400} status if the patient record doesn't exist anymore
+     */
+    private String getExternalId(String documentName) throws QueryException
+    {
+        Query query = this.queries.createQuery("select p.external_id from Document doc, "
+            + "doc.object(PhenoTips.PatientClass) p where doc.fullName = :after", "xwql");
+        query.bindValue("after", documentName);
+        List<String> results = query.execute();
+        if (results.isEmpty()) {
+            throw new WebApplicationException(Status.BAD_REQUEST);
+        }
+        return results.get(0);
+    }
 }
@@ -21,6 +21,8 @@
 import org.phenotips.data.PatientRepository;
 import org.phenotips.data.rest.DomainObjectFactory;
 import org.phenotips.data.rest.PatientsResource;
+import org.phenotips.data.rest.Relations;
+import org.phenotips.data.rest.model.Link;
 import org.phenotips.data.rest.model.PatientSummary;
 import org.phenotips.data.rest.model.Patients;
 
@@ -44,6 +46,8 @@
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
 
 import javax.inject.Provider;
@@ -56,6 +60,7 @@
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.slf4j.Logger;
@@ -64,10 +69,14 @@
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -203,11 +212,11 @@ public void listPatientsNullOrderField() throws QueryException
         doReturn(query).when(this.queries).createQuery(anyString(), anyString());
         doReturn(query).when(query).bindValue(anyString(), anyString());
         doReturn(new ArrayList<Object[]>()).when(query).execute();
-        this.patientsResource.listPatients(0, 30, null, "asc");
+        this.patientsResource.listPatients(0, 30, null, "asc", null);
         verify(this.queries).createQuery(
             "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
                 + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                + "doc.name" + " asc",
+                + "doc.fullName" + " asc",
             "xwql");
     }
 
@@ -218,11 +227,11 @@ public void listPatientsNullOrder() throws QueryException
         doReturn(query).when(this.queries).createQuery(anyString(), anyString());
         doReturn(query).when(query).bindValue(anyString(), anyString());
         doReturn(new ArrayList<Object[]>()).when(query).execute();
-        this.patientsResource.listPatients(0, 30, "id", null);
+        this.patientsResource.listPatients(0, 30, "id", null, null);
         verify(this.queries).createQuery(
             "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
                 + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                + "doc.name" + " asc",
+                + "doc.fullName" + " asc",
             "xwql");
     }
 
@@ -233,11 +242,16 @@ public void listPatientsNonDefaultBehaviour() throws QueryException
         doReturn(query).when(this.queries).createQuery(anyString(), anyString());
         doReturn(query).when(query).bindValue(anyString(), anyString());
         doReturn(new ArrayList<Object[]>()).when(query).execute();
-        this.patientsResource.listPatients(0, 30, "eid", "desc");
+        this.patientsResource.listPatients(0, 30, "eid", "desc", null);
         verify(this.queries).createQuery(
             "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
-                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                + "p.external_id" + " desc",
+                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t"
+                + " and p.external_id is not null order by p.external_id desc, doc.fullName desc",
+            "xwql");
+        verify(this.queries).createQuery(
+            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
+                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t"
+                + " and p.external_id is null order by doc.fullName desc",
             "xwql");
     }
 
@@ -254,11 +268,11 @@ public void listPatientsNoUserAccess() throws QueryException
         doReturn(false).when(this.access).hasAccess(eq(Right.VIEW), any(DocumentReference.class),
             any(EntityReference.class));
         doReturn(null).when(this.factory).createPatientSummary(patientSummaryData, this.uriInfo);
-        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc");
+        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc", null);
         verify(this.queries).createQuery(
             "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
                 + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                + "doc.name" + " asc",
+                + "doc.fullName" + " asc",
             "xwql");
         Assert.assertTrue(result.getPatientSummaries().isEmpty());
     }
@@ -276,11 +290,11 @@ public void listPatientsUserHasAccess() throws QueryException
         doReturn(true).when(this.access).hasAccess(eq(Right.VIEW), any(DocumentReference.class),
             any(EntityReference.class));
         doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
-        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc");
+        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc", null);
         verify(this.queries).createQuery(
             "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
                 + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t order by "
-                + "doc.name" + " asc",
+                + "doc.fullName" + " asc",
             "xwql");
         Assert.assertFalse(result.getPatientSummaries().isEmpty());
     }
@@ -301,16 +315,16 @@ public void listPatientsSpecificNumberOfRecords() throws QueryException
             any(EntityReference.class));
         doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
 
-        Patients allPatients = this.patientsResource.listPatients(0, 30, "id", "asc");
+        Patients allPatients = this.patientsResource.listPatients(0, 30, "id", "asc", null);
         Assert.assertEquals(30, allPatients.getPatientSummaries().size());
 
-        Patients selectedNumberOfPatients = this.patientsResource.listPatients(15, 15, "id", "asc");
+        Patients selectedNumberOfPatients = this.patientsResource.listPatients(15, 15, "id", "asc", null);
         Assert.assertEquals(15, selectedNumberOfPatients.getPatientSummaries().size());
 
-        Patients onePatient = this.patientsResource.listPatients(15, 1, "id", "asc");
+        Patients onePatient = this.patientsResource.listPatients(15, 1, "id", "asc", null);
         Assert.assertEquals(1, onePatient.getPatientSummaries().size());
 
-        Patients incorrectLookup = this.patientsResource.listPatients(31, 5, "id", "asc");
+        Patients incorrectLookup = this.patientsResource.listPatients(31, 5, "id", "asc", null);
         Assert.assertEquals(0, incorrectLookup.getPatientSummaries().size());
     }
 
@@ -329,7 +343,7 @@ public void listPatientsGetMoreRecordsThanAdded() throws QueryException
         doReturn(true).when(this.access).hasAccess(eq(Right.VIEW), any(DocumentReference.class),
             any(EntityReference.class));
         doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
-        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc");
+        Patients result = this.patientsResource.listPatients(0, 30, "id", "asc", null);
         Assert.assertEquals(15, result.getPatientSummaries().size());
     }
 
@@ -343,7 +357,7 @@ public void listPatientFailureHandling() throws QueryException
         doReturn(query).when(query).bindValue(anyString(), anyString());
         doThrow(queryException).when(query).execute();
         try {
-            this.patientsResource.listPatients(0, 30, "id", "asc");
+            this.patientsResource.listPatients(0, 30, "id", "asc", null);
         } catch (WebApplicationException ex) {
             exception = ex;
         }
@@ -351,4 +365,202 @@ public void listPatientFailureHandling() throws QueryException
         Assert.assertEquals(Response.Status.INTERNAL_SERVER_ERROR.getStatusCode(), exception.getResponse().getStatus());
         verify(this.logger).error("Failed to list patients: {}", queryException.getMessage(), queryException);
     }
+
+    @Test
+    public void listPatientsAfterCursor() throws QueryException
+    {
+        Query query = mock(DefaultQuery.class);
+        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(query).when(query).bindValue(anyString(), anyString());
+        doReturn(new ArrayList<Object[]>()).when(query).execute();
+        this.patientsResource.listPatients(0, 30, "id", "desc", "data.P0000005");
+        verify(this.queries).createQuery(
+            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
+                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t"
+                + " and doc.fullName < :after order by doc.fullName desc",
+            "xwql");
+        verify(query).bindValue("after", "data.P0000005");
+        verify(query).setLimit(100);
+    }
+
+    @Test
+    public void listPatientsAfterCursorSortedByExternalId() throws QueryException
+    {
+        Query query = mock(DefaultQuery.class);
+        Query eidQuery = mock(DefaultQuery.class);
+        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(eidQuery).when(this.queries).createQuery(startsWith("select p.external_id"), anyString());
+        doReturn(query).when(query).bindValue(anyString(), anyString());
+        doReturn(eidQuery).when(eidQuery).bindValue(anyString(), anyString());
+        doReturn(new ArrayList<Object[]>()).when(query).execute();
+        doReturn(Arrays.asList("E5")).when(eidQuery).execute();
+        this.patientsResource.listPatients(0, 30, "eid", "asc", "data.P0000005");
+        verify(eidQuery).bindValue("after", "data.P0000005");
+        verify(this.queries).createQuery(
+            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
+                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t"
+                + " and p.external_id is not null"
+                + " and (p.external_id > :eid or (p.external_id = :eid and doc.fullName > :after))"
+                + " order by p.external_id asc, doc.fullName asc",
+            "xwql");
+        verify(query).bindValue("after", "data.P0000005");
+        verify(query).bindValue("eid", "E5");
+        // Records without an external identifier come before the cursor
+        verify(this.queries, never()).createQuery(contains("p.external_id is null"), anyString());
+    }
+
+    @Test
+    public void listPatientsSortedByExternalIdListsRecordsWithoutExternalIdFirst() throws QueryException
+    {
+        Object[] first = new Object[] { "data.P1", null, "creator", new Date(), "1.1", "author", new Date() };
+        Object[] second = new Object[] { "data.P2", null, "creator", new Date(), "1.1", "author", new Date() };
+        Object[] third = new Object[] { "data.P3", "E3", "creator", new Date(), "1.1", "author", new Date() };
+        Query withoutId = mock(DefaultQuery.class);
+        Query withId = mock(DefaultQuery.class);
+        doReturn(mock(DefaultQuery.class)).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(withoutId).when(this.queries).createQuery(contains("p.external_id is null"), anyString());
+        doReturn(withId).when(this.queries).createQuery(contains("p.external_id is not null"), anyString());
+        doReturn(Arrays.asList(first, second)).when(withoutId).execute();
+        doReturn(Arrays.<Object[]>asList(third)).when(withId).execute();
+        doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
+
+        Patients result = this.patientsResource.listPatients(0, 30, "eid", "asc", null);
+
+        Assert.assertEquals(3, result.getPatientSummaries().size());
+        InOrder order = inOrder(this.factory);
+        order.verify(this.factory).createPatientSummary(first, this.uriInfo);
+        order.verify(this.factory).createPatientSummary(second, this.uriInfo);
+        order.verify(this.factory).createPatientSummary(third, this.uriInfo);
+        verify(withoutId).setLimit(100);
+        verify(withId).setLimit(98);
+        verify(withoutId, never()).bindValue(eq("after"), anyString());
+        verify(withId, never()).bindValue(eq("eid"), anyString());
+    }
+
+    @Test
+    public void listPatientsAfterCursorWithoutExternalIdSortedByExternalId() throws QueryException
+    {
+        Query query = mock(DefaultQuery.class);
+        Query eidQuery = mock(DefaultQuery.class);
+        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(eidQuery).when(this.queries).createQuery(startsWith("select p.external_id"), anyString());
+        doReturn(new ArrayList<Object[]>()).when(query).execute();
+        doReturn(Arrays.asList((String) null)).when(eidQuery).execute();
+
+        this.patientsResource.listPatients(0, 30, "eid", "asc", "data.P0000005");
+
+        verify(this.queries).createQuery(
+            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
+                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t"
+                + " and p.external_id is null and doc.fullName > :after order by doc.fullName asc",
+            "xwql");
+        // All the records with an external identifier follow the cursor
+        verify(this.queries).createQuery(
+            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
+                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t"
+                + " and p.external_id is not null order by p.external_id asc, doc.fullName asc",
+            "xwql");
+        verify(query).bindValue("after", "data.P0000005");
+        verify(query, never()).bindValue(eq("eid"), anyString());
+    }
+
+    @Test
+    public void listPatientsAfterCursorWithoutExternalIdSortedByExternalIdDescending() throws QueryException
+    {
+        Query query = mock(DefaultQuery.class);
+        Query eidQuery = mock(DefaultQuery.class);
+        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(eidQuery).when(this.queries).createQuery(startsWith("select p.external_id"), anyString());
+        doReturn(new ArrayList<Object[]>()).when(query).execute();
+        doReturn(Arrays.asList((String) null)).when(eidQuery).execute();
+
+        this.patientsResource.listPatients(0, 30, "eid", "desc", "data.P0000005");
+
+        verify(this.queries).createQuery(
+            "select doc.fullName, p.external_id, doc.creator, doc.creationDate, doc.version, doc.author, doc.date"
+                + " from Document doc, doc.object(PhenoTips.PatientClass) p where doc.name <> :t"
+                + " and p.external_id is null and doc.fullName < :after order by doc.fullName desc",
+            "xwql");
+        // Records with an external identifier all come before the cursor
+        verify(this.queries, never()).createQuery(contains("p.external_id is not null"), anyString());
+    }
+
+    @Test
+    public void listPatientsAfterMissingCursorSortedByExternalIdIsRejected() throws QueryException
+    {
+        Query eidQuery = mock(DefaultQuery.class);
+        doReturn(eidQuery).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(eidQuery).when(eidQuery).bindValue(anyString(), anyString());
+        doReturn(new ArrayList<String>()).when(eidQuery).execute();
+        WebApplicationException exception = null;
+        try {
+            this.patientsResource.listPatients(0, 30, "eid", "asc", "data.P0000005");
+        } catch (WebApplicationException ex) {
+            exception = ex;
+        }
+        Assert.assertNotNull(exception);
+        Assert.assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), exception.getResponse().getStatus());
+        verify(this.queries, never()).createQuery(startsWith("select doc.fullName"), anyString());
+    }
+
+    @Test
+    public void listPatientsFetchesFurtherBatchesOnlyWhenNeeded() throws QueryException
+    {
+        List<Object[]> firstBatch = createRecords(0, 100);
+        List<Object[]> secondBatch = createRecords(100, 60);
+        Query query = mock(DefaultQuery.class);
+        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(query).when(query).bindValue(anyString(), anyString());
+        doReturn(firstBatch).doReturn(secondBatch).when(query).execute();
+        doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
+
+        Patients result = this.patientsResource.listPatients(10, 20, "id", "asc", null);
+        Assert.assertEquals(20, result.getPatientSummaries().size());
+        verify(query).setLimit(100);
+        verify(query, never()).bindValue(eq("after"), anyString());
+
+        doReturn(firstBatch).doReturn(secondBatch).when(query).execute();
+        Patients deepPage = this.patientsResource.listPatients(110, 20, "id", "asc", null);
+        Assert.assertEquals(20, deepPage.getPatientSummaries().size());
+        verify(query).bindValue("after", "data.P99");
+        // The number of records, including inaccessible ones, must not be disclosed
+        verify(this.queries, never()).createQuery(startsWith("select count"), anyString());
+    }
+
+    @Test
+    public void listPatientsSkipsInaccessibleRecordsAndLinksToNextPage() throws QueryException
+    {
+        List<Object[]> records = createRecords(0, 10);
+        Query query = mock(DefaultQuery.class);
+        doReturn(query).when(this.queries).createQuery(anyString(), anyString());
+        doReturn(query).when(query).bindValue(anyString(), anyString());
+        doReturn(records).when(query).execute();
+        doReturn(new PatientSummary()).when(this.factory).createPatientSummary(any(Object[].class), eq(this.uriInfo));
+        doReturn(null).when(this.factory).createPatientSummary(records.get(1), this.uriInfo);
+
+        Patients result = this.patientsResource.listPatients(0, 3, "id", "asc", null);
+        Assert.assertEquals(3, result.getPatientSummaries().size());
+        Link next = null;
+        for (Link link : result.getLinks()) {
+            if (Relations.NEXT.equals(link.getRel())) {
+                next = link;
+            }
+        }
+        Assert.assertNotNull(next);
+        Assert.assertTrue(next.getHref().contains("after=data.P3"));
+
+        result = this.patientsResource.listPatients(0, 30, "id", "asc", null);
+        Assert.assertEquals(9, result.getPatientSummaries().size());
+        Assert.assertEquals(1, result.getLinks().size());
+        Assert.assertEquals(Relations.SELF, result.getLinks().get(0).getRel());
+    }
+
+    private List<Object[]> createRecords(int first, int count)
+    {
+        List<Object[]> result = new ArrayList<Object[]>();
+        for (int i = first; i < first + count; i++) {
+            result.add(new Object[] { "data.P" + i, "E" + i, "creator", new Date(), "1.1", "author", new Date() });
+        }
+        return result;
+    }
 }
@@ -54,6 +54,33 @@
      */
     double valueToStandardDeviation(boolean male, float ageInMonths, double value);
 
+    /**
+     * Get the percentiles for a series of measurements, for example all the measurements of a patient taken over time.
+     *
+     * @param male {@code true} for boys, {@code false} for girls
+     * @param agesInMonths the age of each measurement, in months
+     * @param values the measured values, usually in centimeters or kilograms, in the same order as the ages
+     * @return the percentile of each measurement, in the same order, as computed by
+     *         {@link #valueToPercentile(boolean, float, double)}
+     * @throws IllegalArgumentException if there isn't exactly one age for each value
+     * @since 1.3M2
+     */
+    int[] valuesToPercentiles(boolean male, float[] agesInMonths, double[] values);
+
+    /**
+     * Get the standard deviations for a series of measurements, for example all the measurements of a patient taken
+     * over time.
+     *
+     * @param male {@code true} for boys, {@code false} for girls
+     * @param agesInMonths the age of each measurement, in months
+     * @param values the measured values, usually in centimeters or kilograms, in the same order as the ages
+     * @return the standard deviation of each measurement, in the same order, as computed by
+     *         {@link #valueToStandardDeviation(boolean, float, double)}
+     * @throws IllegalArgumentException if there isn't exactly one age for each value
+     * @since 1.3M2
+     */
+    double[] valuesToStandardDeviations(boolean male, float[] agesInMonths, double[] values);
+
     /**
      * Get the measurement that would correspond to the given percentile.
      *
@@ -38,7 +38,9 @@
 import org.slf4j.Logger;
 
 /**
- * Base class for implementing a {@link MeasurementHandler}.
+ * Base class for implementing a {@link MeasurementHandler}. The LMS triplets read from the resource file are stored
+ * in dense {@link LMSTable tables} with one entry for each day of age, precomputed when the handler is initialized, so
+ * that no search or interpolation is needed when converting a measurement.
  *
  * @version $Id$
  */
@@ -47,6 +49,9 @@ public abstract class AbstractMeasurementHandler implements MeasurementHandler,
     /** Tool used for computing the percentile corresponding to a given z-score. */
     private static final NormalDistribution NORMAL = new NormalDistribution();
 
+    /** The average number of days in a month, used for converting ages into indexes in the LMS tables. */
+    private static final double DAYS_PER_MONTH = 30.4375;
+
     /**
      * Triplet storing the median (M), the generalized coefficient of variation (S), and the power in the Box-Cox
      * transformation (L) values used to compute the percentile corresponding to a given value.
@@ -83,6 +88,77 @@ public String toString()
         }
     }
 
+    /**
+     * LMS triplets for each day of age, stored in primitive arrays. Days missing from the source data are filled in
+     * when the table is built, with a linear interpolation of the nearest surrounding entries.
+     */
+    protected static final class LMSTable
+    {
+        /** L values, the power, indexed by age in days. */
+        private final double[] l;
+
+        /** M values, the median, indexed by age in days. */
+        private final double[] m;
+
+        /** S values, the generalized coefficient of variation, indexed by age in days. */
+        private final double[] s;
+
+        /** The first day for which data is available; there is no data for younger ages. */
+        private final int firstDay;
+
+        /**
+         * Builds a table from the raw triplets read from a data file.
+         *
+         * @param entries the triplets indexed by age in days, with {@code null} for the days missing from the data file
+         */
+        LMSTable(List<LMS> entries)
+        {
+            int size = entries.size();
+            this.l = new double[size];
+            this.m = new double[size];
+            this.s = new double[size];
+            int previous = -1;
+            int first = size;
+            for (int day = 0; day < size; ++day) {
+                LMS entry = entries.get(day);
+                if (entry == null) {
+                    continue;
+                }
+                this.l[day] = entry.l;
+                this.m[day] = entry.m;
+                this.s[day] = entry.s;
+                if (previous < 0) {
+                    first = day;
+                }
+                for (int missing = previous + 1; previous >= 0 && missing < day; ++missing) {
+                    double delta = ((double) missing - previous) / (day - previous);
+                    this.l[missing] = this.l[previous] + (this.l[day] - this.l[previous]) * delta;
+                    this.m[missing] = this.m[previous] + (this.m[day] - this.m[previous]) * delta;
+                    this.s[missing] = this.s[previous] + (this.s[day] - this.s[previous]) * delta;
+                }
+                previous = day;
+            }
+            this.firstDay = first;
+        }
+
+        /**
+         * Find the table entry corresponding to a given age. If the requested age is before the first available data,
+         * {@code -1} is returned. If the requested age is beyond the last entry, the last entry is used.
+         *
+         * @param ageInMonths the target age, in months
+         * @return the index of the entry to use, or {@code -1} if there is no data for the requested age
+         */
+        int indexOf(float ageInMonths)
+        {
+            // LMS data is stored per day, currently but input is given as a float for months
+            int ageInDays = (int) Math.round(ageInMonths * DAYS_PER_MONTH);
+            if (ageInDays < this.firstDay || ageInDays < 0) {
+                return -1;
+            }
+            return Math.min(ageInDays, this.l.length - 1);
+        }
+    }
+
     /** Logging helper object. */
     @Inject
     private Logger logger;
@@ -92,16 +168,16 @@ public String toString()
     private MeasurementsChartConfigurationsFactory settingsFactory;
 
     /**
-     * Table storing the LMS triplets for each month of the normal development of boys corresponding to this measurement
+     * Table storing the LMS triplets for each day of the normal development of boys corresponding to this measurement
      * type.
      */
-    private List<LMS> measurementsForAgeBoys;
+    private LMSTable measurementsForAgeBoys;
 
     /**
-     * Table storing the LMS triplets for each month of the normal development of girls corresponding to this
-     * measurement type.
+     * Table storing the LMS triplets for each day of the normal development of girls corresponding to this measurement
+     * type; the same as {@link #measurementsForAgeBoys} if there are no distinct measurements for girls.
      */
-    private List<LMS> measurementsForAgeGirls;
+    private LMSTable measurementsForAgeGirls;
 
     /** The list of chart settings configured for this measurement. */
     private List<MeasurementsChartConfiguration> chartConfigurations;
@@ -116,35 +192,71 @@ public String toString()
     @Override
     public int valueToPercentile(boolean male, float ageInMonths, double value)
     {
-        LMS lms = getLMSForAge(getLMSList(male), ageInMonths);
-        return valueToPercentile(value, lms);
+        LMSTable table = getLMSTable(male);
+        int i = table.indexOf(ageInMonths);
+        if (i < 0) {
+            return -1;
+        }
+        return valueToPercentile(value, table.m[i], table.l[i], table.s[i]);
     }
 
     @Override
     public double valueToStandardDeviation(boolean male, float ageInMonths, double value)
     {
-        LMS lms = getLMSForAge(getLMSList(male), ageInMonths);
-        return valueToStandardDeviation(value, lms);
+        LMSTable table = getLMSTable(male);
+        int i = table.indexOf(ageInMonths);
+        if (i < 0) {
+            return Double.NaN;
+        }
+        return valueToStandardDeviation(value, table.m[i], table.l[i], table.s[i]);
+    }
+
+    @Override
+    public int[] valuesToPercentiles(boolean male, float[] agesInMonths, double[] values)
+    {
+        checkSeries(agesInMonths, values);
+        LMSTable table = getLMSTable(male);
+        int[] result = new int[values.length];
+        for (int j = 0; j < values.length; ++j) {
+            int i = table.indexOf(agesInMonths[j]);
+            result[j] = i < 0 ? -1 : valueToPercentile(values[j], table.m[i], table.l[i], table.s[i]);
+        }
+        return result;
+    }
+
+    @Override
+    public double[] valuesToStandardDeviations(boolean male, float[] agesInMonths, double[] values)
+    {
+        checkSeries(agesInMonths, values);
+        LMSTable table = getLMSTable(male);
+        double[] result = new double[values.length];
+        for (int j = 0; j < values.length; ++j) {
+            int i = table.indexOf(agesInMonths[j]);
+            result[j] = i < 0 ? Double.NaN : valueToStandardDeviation(values[j], table.m[i], table.l[i], table.s[i]);
+        }
+        return result;
     }
 
     @Override
     public double percentileToValue(boolean male, float ageInMonths, int targetPercentile)
     {
-        LMS lms = getLMSForAge(getLMSList(male), ageInMonths);
-        if (lms == null) {
+        LMSTable table = getLMSTable(male);
+        int i = table.indexOf(ageInMonths);
+        if (i < 0) {
             return Double.NaN;
         }
-        return percentileToValue(targetPercentile, lms.m, lms.l, lms.s);
+        return percentileToValue(targetPercentile, table.m[i], table.l[i], table.s[i]);
     }
 
     @Override
     public double standardDeviationToValue(boolean male, float ageInMonths, double targetDeviation)
     {
-        LMS lms = getLMSForAge(getLMSList(male), ageInMonths);
-        if (lms == null) {
+        LMSTable table = getLMSTable(male);
+        int i = table.indexOf(ageInMonths);
+        if (i < 0) {
             return Double.NaN;
         }
-        return standardDeviationToValue(targetDeviation, lms.m, lms.l, lms.s);
+        return standardDeviationToValue(targetDeviation, table.m[i], table.l[i], table.s[i]);
     }
 
     @Override
@@ -175,8 +287,8 @@ private void readData() throws InitializationException
     {
         BufferedReader in = null;
         String filename = getName() + ".csv";
-        this.measurementsForAgeBoys = new ArrayList<LMS>();
-        this.measurementsForAgeGirls = new ArrayList<LMS>();
+        List<LMS> boys = new ArrayList<LMS>();
+        List<LMS> girls = new ArrayList<LMS>();
         InputStream inStream = this.getClass().getResourceAsStream(filename);
         if (inStream == null) {
             throw new InitializationException("Missing measurements tables for [" + this.getName() + "]");
@@ -199,67 +311,18 @@ private void readData() throws InitializationException
                 double m = Double.parseDouble(tokens[3]);
                 double s = Double.parseDouble(tokens[4]);
                 LMS lms = new LMS(l, m, s);
-                if ("1".equals(tokens[0])) {
-                    while (day >= this.measurementsForAgeBoys.size()) {
-                        this.measurementsForAgeBoys.add(null);
-                    }
-                    this.measurementsForAgeBoys.set(day, lms);
-                } else {
-                    while (day >= this.measurementsForAgeGirls.size()) {
-                        this.measurementsForAgeGirls.add(null);
-                    }
-                    this.measurementsForAgeGirls.set(day, lms);
+                List<LMS> list = "1".equals(tokens[0]) ? boys : girls;
+                while (day >= list.size()) {
+                    list.add(null);
                 }
+                list.set(day, lms);
             }
         } catch (IOException ex) {
             // This shouldn't happen
             this.logger.error("Failed to read data table [{}]: {}", new Object[] { filename, ex.getMessage(), ex });
         }
-    }
-
-    /**
-     * Extract the LMS triplet corresponding to a given month from the given list. If the requested month is before the
-     * first element of the list, {@code null} is returned. If a valid entry corresponding to the requested month is
-     * found in the list, then return that entry. If there's no entry for the requested month, but there are valid
-     * entries in previous and later months, a linear interpolation of the nearest surrounding entries is computed and
-     * returned. Otherwise, if the requested month is beyond the last valid entry, return the last valid entry.
-     *
-     * @param list the standard list of measurements where to look in
-     * @param ageInMonths the target age (in months) for which to compute the LMS triplet
-     * @return a LMS triplet computed according to the rules above, possibly {@code null}
-     */
-    protected LMS getLMSForAge(List<LMS> list, float ageInMonths)
-    {
-        // LMS data is stored per day, currently but input is given as a float for months
-        int ageInDays = (int) Math.round(ageInMonths * 30.4375);
-        if (ageInDays < 0) {
-            return null;
-        } else if (ageInDays >= list.size()) {
-            return list.get(list.size() - 1);
-        }
-
-        LMS result;
-        result = list.get(ageInDays);
-        if (result == null) {
-            int lowerAge = ageInDays - 1;
-            while (lowerAge >= 0 && list.get(lowerAge) == null) {
-                --lowerAge;
-            }
-            if (lowerAge < 0) {
-                return null;
-            }
-            int upperAge = ageInDays + 1;
-            while (upperAge < list.size() && list.get(upperAge) == null) {
-                ++upperAge;
-            }
-            LMS lowerLMS = list.get(lowerAge);
-            LMS upperLMS = list.get(upperAge);
-            double delta = ((double) ageInDays - lowerAge) / (upperAge - lowerAge);
-            result =
-                new LMS(lowerLMS.l + (upperLMS.l - lowerLMS.l) * delta, lowerLMS.m + (upperLMS.m - lowerLMS.m) * delta,
-                    lowerLMS.s + (upperLMS.s - lowerLMS.s) * delta);
-        }
-        return result;
+        this.measurementsForAgeBoys = new LMSTable(boys);
+        this.measurementsForAgeGirls = girls.isEmpty() ? this.measurementsForAgeBoys : new LMSTable(girls);
     }
 
     /**
@@ -366,17 +429,29 @@ protected double standardDeviationToValue(double deviation, double m, double l,
     }
 
     /**
-     * Choose between the girls and boys measurements list, depending on the requested sex and on the availability of
+     * Choose between the girls and boys measurements table, depending on the requested sex and on the availability of
      * distinct measurements for girls.
      *
      * @param male {@code true} for boys, {@code false} for girls
-     * @return a list of {@link LMS} triplets
+     * @return a table of {@link LMS} triplets
+     */
+    protected LMSTable getLMSTable(boolean male)
+    {
+        return male ? this.measurementsForAgeBoys : this.measurementsForAgeGirls;
+    }
+
+    /**
+     * Check that a series of measurements has an age for each value.
+     *
+     * @param agesInMonths the ages of the measurements
+     * @param values the measured values
+     * @throws IllegalArgumentException if the two arrays don't have the same length
      */
-    protected List<LMS> getLMSList(boolean male)
+    private void checkSeries(float[] agesInMonths, double[] values)
     {
-        if (!male && !this.measurementsForAgeGirls.isEmpty()) {
-            return this.measurementsForAgeGirls;
+        if (agesInMonths.length != values.length) {
+            throw new IllegalArgumentException("Got " + agesInMonths.length + " ages for " + values.length
+                + " measurements");
         }
-        return this.measurementsForAgeBoys;
     }
 }
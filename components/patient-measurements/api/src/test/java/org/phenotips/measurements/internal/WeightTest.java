@@ -22,6 +22,8 @@
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import java.util.Arrays;
+
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
@@ -101,6 +103,42 @@ public void testStandardDeviationToValue() throws ComponentLookupException
             this.mocker.getComponentUnderTest().standardDeviationToValue(false, 359, Integer.MIN_VALUE), 1.0E-2);
     }
 
+    @Test
+    public void testValuesToPercentiles() throws ComponentLookupException
+    {
+        float[] ages = new float[] { 0, 1000, 349, -1, 5.5f };
+        double[] values = new double[] { 3.35, 71.9, 67.0, 4.0, 7.2 };
+        int[] percentiles = this.mocker.getComponentUnderTest().valuesToPercentiles(true, ages, values);
+        Assert.assertEquals(ages.length, percentiles.length);
+        for (int i = 0; i < ages.length; ++i) {
+            Assert.assertEquals(this.mocker.getComponentUnderTest().valueToPercentile(true, ages[i], values[i]),
+                percentiles[i]);
+        }
+        Assert.assertArrayEquals(new int[] { 50, 50, 32, -1 },
+            Arrays.copyOf(percentiles, 4));
+        Assert.assertEquals(0, this.mocker.getComponentUnderTest()
+            .valuesToPercentiles(false, new float[0], new double[0]).length);
+    }
+
+    @Test
+    public void testValuesToStandardDeviations() throws ComponentLookupException
+    {
+        float[] ages = new float[] { 0, 359, -1, 5.5f };
+        double[] values = new double[] { 3.23, 49.0, 4.0, 7.2 };
+        double[] deviations = this.mocker.getComponentUnderTest().valuesToStandardDeviations(false, ages, values);
+        Assert.assertEquals(0, deviations[0], 1.0E-2);
+        Assert.assertEquals(-1.030, deviations[1], 1.0E-2);
+        Assert.assertTrue(Double.isNaN(deviations[2]));
+        Assert.assertEquals(this.mocker.getComponentUnderTest().valueToStandardDeviation(false, 5.5f, 7.2),
+            deviations[3], 1.0E-9);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testValuesToPercentilesWithMismatchedSeries() throws ComponentLookupException
+    {
+        this.mocker.getComponentUnderTest().valuesToPercentiles(true, new float[] { 1, 2 }, new double[] { 3 });
+    }
+
     @Test
     public void testIsDoubleSided() throws ComponentLookupException
     {
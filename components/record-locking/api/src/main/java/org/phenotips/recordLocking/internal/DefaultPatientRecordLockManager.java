@@ -33,14 +33,16 @@
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.slf4j.Logger;
+
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.BaseObject;
 
 /**
- * Default implementation of the {@link org.phenotips.recordLocking.PatientRecordLockManager}.
+ * Default implementation of the {@link org.phenotips.recordLocking.PatientRecordLockManager}. Locks are kept in the
+ * {@link PatientRecordLockStore}; the lock objects used by older versions are only removed when unlocking.
  *
  * @version $Id$
  * @since 1.2M5
@@ -49,10 +51,17 @@
 @Singleton
 public class DefaultPatientRecordLockManager implements org.phenotips.recordLocking.PatientRecordLockManager
 {
-    /** The XClass used for lock objects. */
+    /** The XClass used for lock objects by older versions. */
     private EntityReference lockClassReference = new EntityReference("PatientLock", EntityType.DOCUMENT,
         Constants.CODE_SPACE_REFERENCE);
 
+    @Inject
+    private Logger logger;
+
+    /** Stores the locks. */
+    @Inject
+    private PatientRecordLockStore lockStore;
+
     /** Allows checking of access rights on a patient. */
     @Inject
     private PermissionsManager pm;
@@ -67,61 +76,33 @@ public class DefaultPatientRecordLockManager implements org.phenotips.recordLock
     @Override
     public boolean lockPatientRecord(Patient patient)
     {
-        try {
-            XWikiDocument patientDocument = this.getPatientDocument(patient);
-            if (!this.isDocumentLocked(patientDocument) && this.hasLockingPermission(patient)) {
-                XWikiContext context = this.contextProvider.get();
-                XWiki xwiki = context.getWiki();
-                patientDocument.createXObject(this.lockClassReference, context);
-                xwiki.saveDocument(patientDocument, "Locked patient record", true,
-                    context);
-                return true;
-            } else {
-                return false;
-            }
-        } catch (XWikiException | NullPointerException e) {
+        if (patient == null || patient.getDocument() == null) {
             return false;
         }
+        DocumentReference document = patient.getDocument();
+        return !this.lockStore.isLocked(document) && this.hasLockingPermission(patient)
+            && this.lockStore.lock(document);
     }
 
     @Override
     public boolean unlockPatientRecord(Patient patient)
     {
-        try {
-            XWikiDocument patientDocument = this.getPatientDocument(patient);
-            if (this.isDocumentLocked(patientDocument) && this.hasLockingPermission(patient)) {
-                XWikiContext context = this.contextProvider.get();
-                XWiki xwiki = context.getWiki();
-                patientDocument.removeXObjects(this.lockClassReference);
-                xwiki.saveDocument(patientDocument, "Unlocked patient record", true,
-                    context);
-                return true;
-            } else {
-                return false;
-            }
-        } catch (XWikiException | NullPointerException e) {
+        if (patient == null || patient.getDocument() == null) {
             return false;
         }
+        DocumentReference document = patient.getDocument();
+        if (this.lockStore.isLocked(document) && this.hasLockingPermission(patient)
+            && this.lockStore.unlock(document)) {
+            removeLegacyLock(document);
+            return true;
+        }
+        return false;
     }
 
     @Override
     public boolean isLocked(Patient patient)
     {
-        XWikiDocument document = this.getPatientDocument(patient);
-        return isDocumentLocked(document);
-    }
-
-    private XWikiDocument getPatientDocument(Patient patient)
-    {
-        XWikiContext context = this.contextProvider.get();
-        XWiki xwiki = context.getWiki();
-        DocumentReference patientDocumentReference = patient.getDocument();
-
-        try {
-            return xwiki.getDocument(patientDocumentReference, context);
-        } catch (XWikiException e) {
-            return null;
-        }
+        return patient != null && patient.getDocument() != null && this.lockStore.isLocked(patient.getDocument());
     }
 
     private boolean hasLockingPermission(Patient patient)
@@ -130,10 +111,25 @@ private boolean hasLockingPermission(Patient patient)
         return patientAccess.hasAccessLevel(this.manageAccessLevel);
     }
 
-    private boolean isDocumentLocked(XWikiDocument document)
+    /**
+     * Removes the lock object left in the patient document by older versions, if any, so that it isn't imported again
+     * into the lock store.
+     *
+     * @param documentReference the document of the unlocked patient
+     */
+    private void removeLegacyLock(DocumentReference documentReference)
     {
-        BaseObject lock = document.getXObject(this.lockClassReference);
-        return lock != null;
+        XWikiContext context = this.contextProvider.get();
+        XWiki xwiki = context.getWiki();
+        try {
+            XWikiDocument document = xwiki.getDocument(documentReference, context);
+            if (document.getXObject(this.lockClassReference) != null) {
+                document.removeXObjects(this.lockClassReference);
+                xwiki.saveDocument(document, "Unlocked patient record", true, context);
+            }
+        } catch (XWikiException ex) {
+            this.logger.warn("Failed to remove the old lock object from [{}]: {}", documentReference,
+                ex.getMessage());
+        }
     }
-
 }
@@ -0,0 +1,302 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.recordLocking.internal;
+
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+/**
+ * Default implementation of the {@link PatientRecordLockStore}. The leases are stored as {@link PatientRecordLease}
+ * entities in the database of the wiki holding each record, so they are shared by all the members of a cluster and
+ * follow the database through backups and migrations. Placing or removing a lock is a single row change, and the
+ * database decides which of several concurrent changes succeeds. Lock checks are served from memory: each lease read
+ * from the database is trusted for a few seconds, so a lock placed or removed through another cluster member is seen
+ * after at most that delay. The locks stored as {@code PhenoTips.PatientLock} objects by older versions are imported by
+ * {@link R71494PhenoTipsRecordLocksDataMigration}. Since locking a record no longer changes the patient document, the
+ * cached authorization decisions for the record are dropped explicitly whenever a lock is seen to be placed, removed,
+ * or expired.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Component
+@Singleton
+public class DefaultPatientRecordLockStore implements PatientRecordLockStore, Initializable
+{
+    /** The configuration key for the duration of a lock, in minutes; locks never expire if not configured. */
+    private static final String LEASE_DURATION_KEY = "phenotips.recordLocking.leaseDuration";
+
+    /** The expiration time of leases that never expire. */
+    private static final long NO_EXPIRATION = 0;
+
+    /** The expiration time remembered for records that aren't locked. */
+    private static final long NOT_LOCKED = -1;
+
+    /** For how long, in milliseconds, a lease read from the database is used before reading it again. */
+    private static final long CACHE_VALIDITY = 5000;
+
+    /** The maximum number of records whose lock status is remembered; when exceeded, all of them are forgotten. */
+    private static final int MAX_CACHED_LEASES = 10000;
+
+    @Inject
+    private Logger logger;
+
+    /** Provides access to the configured lease duration. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** Provides access to the database. */
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /** Serializes the names of the locked documents, as stored in the database of their wiki. */
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> serializer;
+
+    /** Holds the access decisions which depend on the locks. */
+    @Inject
+    private AuthorizationDecisionCache decisionCache;
+
+    /** The leases read from the database recently, including records known not to be locked. */
+    private final ConcurrentMap<DocumentReference, CachedLease> leases = new ConcurrentHashMap<>();
+
+    /** The duration of new leases, in milliseconds, or {@link #NO_EXPIRATION}. */
+    private long leaseDuration;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        Integer minutes = this.configuration.getProperty(LEASE_DURATION_KEY, Integer.class);
+        this.leaseDuration = minutes == null || minutes <= 0 ? NO_EXPIRATION : TimeUnit.MINUTES.toMillis(minutes);
+    }
+
+    @Override
+    public boolean lock(final DocumentReference document)
+    {
+        final long now = System.currentTimeMillis();
+        final long expiration = this.leaseDuration == NO_EXPIRATION ? NO_EXPIRATION : now + this.leaseDuration;
+        final String name = this.serializer.serialize(document);
+        boolean locked = change(document, new HibernateCallback<Boolean>()
+        {
+            @Override
+            public Boolean doInHibernate(Session session) throws HibernateException
+            {
+                PatientRecordLease lease = (PatientRecordLease) session.get(PatientRecordLease.class, name);
+                if (lease == null) {
+                    session.save(new PatientRecordLease(name, expiration));
+                } else if (lease.isActive(now)) {
+                    return false;
+                } else {
+                    // Expired leases are reused, their version guards against concurrent renewals
+                    lease.setExpiration(expiration);
+                }
+                return true;
+            }
+        });
+        return changed(document, locked, expiration);
+    }
+
+    @Override
+    public boolean unlock(DocumentReference document)
+    {
+        final long now = System.currentTimeMillis();
+        final String name = this.serializer.serialize(document);
+        boolean unlocked = change(document, new HibernateCallback<Boolean>()
+        {
+            @Override
+            public Boolean doInHibernate(Session session) throws HibernateException
+            {
+                PatientRecordLease lease = (PatientRecordLease) session.get(PatientRecordLease.class, name);
+                if (lease == null || !lease.isActive(now)) {
+                    return false;
+                }
+                session.delete(lease);
+                return true;
+            }
+        });
+        return changed(document, unlocked, NOT_LOCKED);
+    }
+
+    @Override
+    public boolean isLocked(DocumentReference document)
+    {
+        long now = System.currentTimeMillis();
+        CachedLease cached = this.leases.get(document);
+        if (cached == null || cached.readTime + CACHE_VALIDITY <= now) {
+            CachedLease stored = read(document, now);
+            if (stored == null) {
+                // The database can't be reached, keep using what is known
+                return cached != null && cached.isActive(now);
+            }
+            remember(document, stored);
+            if (cached == null || cached.isActive(now) != stored.isActive(now)) {
+                // Changed through another cluster member, or not seen before
+                this.decisionCache.invalidate(document);
+            }
+            cached = stored;
+        } else if (cached.expiration != NOT_LOCKED && !cached.isActive(now)
+            && this.leases.replace(document, cached, new CachedLease(NOT_LOCKED, cached.readTime))) {
+            this.decisionCache.invalidate(document);
+        }
+        return cached.isActive(now);
+    }
+
+    /**
+     * Updates the cached status of a record after trying to place or remove a lock on it.
+     *
+     * @param document the record that was changed
+     * @param success whether the change was stored
+     * @param expiration the expiration of the lease after a successful change, {@link #NOT_LOCKED} if the record was
+     *            unlocked
+     * @return {@code success}
+     */
+    private boolean changed(DocumentReference document, boolean success, long expiration)
+    {
+        if (success) {
+            remember(document, new CachedLease(expiration, System.currentTimeMillis()));
+            this.decisionCache.invalidate(document);
+        } else {
+            // The record was changed concurrently, read it again on the next check
+            this.leases.remove(document);
+        }
+        return success;
+    }
+
+    private void remember(DocumentReference document, CachedLease lease)
+    {
+        if (this.leases.size() >= MAX_CACHED_LEASES) {
+            this.leases.clear();
+        }
+        this.leases.put(document, lease);
+    }
+
+    /**
+     * Reads the lease of a record from the database.
+     *
+     * @param document the record to check
+     * @param now the current time
+     * @return the stored lease, with {@link #NOT_LOCKED} as the expiration if the record isn't locked, or {@code null}
+     *         if the database couldn't be read
+     */
+    private CachedLease read(DocumentReference document, final long now)
+    {
+        final String name = this.serializer.serialize(document);
+        try {
+            return inWiki(document, false, new HibernateCallback<CachedLease>()
+            {
+                @Override
+                public CachedLease doInHibernate(Session session) throws HibernateException
+                {
+                    PatientRecordLease lease = (PatientRecordLease) session.get(PatientRecordLease.class, name);
+                    return new CachedLease(lease == null ? NOT_LOCKED : lease.getExpiration(), now);
+                }
+            });
+        } catch (XWikiException ex) {
+            this.logger.error("Failed to read the lock on [{}]: {}", document, ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Changes the lease of a record in the database.
+     *
+     * @param document the record to change
+     * @param callback the change to perform, returning whether the change is possible
+     * @return {@code true} if the change was stored, {@code false} if it wasn't possible or it failed
+     */
+    private boolean change(DocumentReference document, HibernateCallback<Boolean> callback)
+    {
+        try {
+            return Boolean.TRUE.equals(inWiki(document, true, callback));
+        } catch (XWikiException ex) {
+            // Also happens when another cluster member changed the same lease concurrently
+            this.logger.warn("Failed to change the lock on [{}]: {}", document, ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Runs a callback in a transaction on the database of the wiki holding a record.
+     *
+     * @param document the record being accessed
+     * @param write whether the callback changes the database
+     * @param callback the callback to run
+     * @return the result of the callback
+     * @throws XWikiException if accessing the database fails
+     */
+    private <T> T inWiki(DocumentReference document, boolean write, HibernateCallback<T> callback)
+        throws XWikiException
+    {
+        XWikiContext context = this.xcontextProvider.get();
+        String currentWiki = context.getWikiId();
+        try {
+            context.setWikiId(document.getWikiReference().getName());
+            XWikiHibernateStore store = context.getWiki().getHibernateStore();
+            return write ? store.executeWrite(context, callback) : store.executeRead(context, callback);
+        } finally {
+            context.setWikiId(currentWiki);
+        }
+    }
+
+    /** The lock status of a record, as read from the database at some point. */
+    private static final class CachedLease
+    {
+        /** The expiration time of the lease, {@link #NO_EXPIRATION}, or {@link #NOT_LOCKED}. */
+        private final long expiration;
+
+        /** When was the lease read from the database. */
+        private final long readTime;
+
+        CachedLease(long expiration, long readTime)
+        {
+            this.expiration = expiration;
+            this.readTime = readTime;
+        }
+
+        boolean isActive(long now)
+        {
+            return this.expiration == NO_EXPIRATION || this.expiration > now;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.recordLocking.internal;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Version;
+
+/**
+ * A lock placed on a patient record, stored in the database of the wiki holding the record, so that all the members of
+ * a cluster see the same locks. Concurrent changes to the same lease are detected through its version, so only one of
+ * them succeeds.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Entity
+public class PatientRecordLease
+{
+    /** The name of the locked document, without the wiki prefix. */
+    @Id
+    private String document;
+
+    /** When does the lease expire, or {@code 0} if it never expires. */
+    @Column(nullable = false)
+    private long expiration;
+
+    /** Incremented on each change, to detect concurrent changes. */
+    @Version
+    private long version;
+
+    /** Default constructor used by Hibernate. */
+    protected PatientRecordLease()
+    {
+        // Nothing to do, Hibernate will populate all the fields from the database
+    }
+
+    /**
+     * Creates a new lease.
+     *
+     * @param document the name of the locked document, without the wiki prefix
+     * @param expiration when does the lease expire, or {@code 0} if it never expires
+     */
+    public PatientRecordLease(String document, long expiration)
+    {
+        this.document = document;
+        this.expiration = expiration;
+    }
+
+    /**
+     * The locked document.
+     *
+     * @return the name of the locked document, without the wiki prefix
+     */
+    public String getDocument()
+    {
+        return this.document;
+    }
+
+    /**
+     * When does the lease expire.
+     *
+     * @return the expiration time, in milliseconds since the epoch, or {@code 0} if the lease never expires
+     */
+    public long getExpiration()
+    {
+        return this.expiration;
+    }
+
+    /**
+     * Renews the lease.
+     *
+     * @param expiration the new expiration time, or {@code 0} if the lease never expires
+     */
+    public void setExpiration(long expiration)
+    {
+        this.expiration = expiration;
+    }
+
+    /**
+     * Checks if the lease is still active.
+     *
+     * @param now the current time
+     * @return {@code true} if the lease doesn't expire or hasn't expired yet, {@code false} otherwise
+     */
+    public boolean isActive(long now)
+    {
+        return this.expiration == 0 || this.expiration > now;
+    }
+}
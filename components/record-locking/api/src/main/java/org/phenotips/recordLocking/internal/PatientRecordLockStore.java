@@ -0,0 +1,59 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.recordLocking.internal;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+
+/**
+ * Stores the locks placed on patient records, as leases which may expire after a configured duration. Unlike lock
+ * objects attached to the patient document, storing a lock doesn't create a new document revision, and checking for a
+ * lock doesn't require loading the patient document.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Role
+public interface PatientRecordLockStore
+{
+    /**
+     * Places a lock on a patient record, unless the record is already locked.
+     *
+     * @param document the document of the patient to lock
+     * @return {@code true} if the lock was stored, {@code false} if the record is already locked or the lock couldn't
+     *         be stored
+     */
+    boolean lock(DocumentReference document);
+
+    /**
+     * Removes the lock from a patient record.
+     *
+     * @param document the document of the patient to unlock
+     * @return {@code true} if the lock was removed, {@code false} if the record wasn't locked or the change couldn't be
+     *         stored
+     */
+    boolean unlock(DocumentReference document);
+
+    /**
+     * Checks if a patient record has an active lock.
+     *
+     * @param document the document of the patient to check
+     * @return {@code true} if the record is locked and the lock hasn't expired, {@code false} otherwise
+     */
+    boolean isLocked(DocumentReference document);
+}
@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.recordLocking.internal;
+
+import org.xwiki.component.annotation.Component;
+
+import java.util.List;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.migration.DataMigrationException;
+import com.xpn.xwiki.store.migration.XWikiDBVersion;
+import com.xpn.xwiki.store.migration.hibernate.AbstractHibernateDataMigration;
+import com.xpn.xwiki.store.migration.hibernate.HibernateDataMigration;
+
+/**
+ * Migration moving the patient record locks from {@code PhenoTips.PatientLock} objects attached to the patient
+ * documents to {@link PatientRecordLease leases} that never expire, in each wiki. The lock objects are left in place,
+ * but are no longer used.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Component(roles = { HibernateDataMigration.class })
+@Named("R71494-PatientRecordLocks")
+@Singleton
+public class R71494PhenoTipsRecordLocksDataMigration extends AbstractHibernateDataMigration
+    implements HibernateCallback<Object>
+{
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
+    @Override
+    public String getDescription()
+    {
+        return "Move the patient record locks from lock objects to the record lock store";
+    }
+
+    @Override
+    public XWikiDBVersion getVersion()
+    {
+        return new XWikiDBVersion(71494);
+    }
+
+    @Override
+    public void hibernateMigrate() throws DataMigrationException, XWikiException
+    {
+        getStore().executeWrite(getXWikiContext(), this);
+    }
+
+    @Override
+    public Object doInHibernate(Session session) throws HibernateException, XWikiException
+    {
+        Query q = session.createQuery("select distinct o.name from BaseObject as o"
+            + " where o.className = 'PhenoTips.PatientLock'");
+        @SuppressWarnings("unchecked")
+        List<String> documents = q.list();
+        this.logger.debug("Found {} locked patient records", documents.size());
+        for (String document : documents) {
+            if (session.get(PatientRecordLease.class, document) == null) {
+                session.save(new PatientRecordLease(document, 0));
+            }
+        }
+        return null;
+    }
+}
@@ -17,29 +17,22 @@
  */
 package org.phenotips.recordLocking.internal.authorization;
 
-import org.phenotips.Constants;
+import org.phenotips.recordLocking.internal.PatientRecordLockStore;
 import org.phenotips.security.authorization.AuthorizationModule;
 
 import org.xwiki.component.annotation.Component;
-import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.model.reference.EntityReference;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.users.User;
 
 import javax.inject.Inject;
 import javax.inject.Named;
-import javax.inject.Provider;
 import javax.inject.Singleton;
 
-import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.XWikiException;
-import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.BaseObject;
-
 /**
  * An authorization module to check if a given Patient Document has a lock on it. Will return false if a lock is found
- * regardless of which user is trying to edit the document.
+ * regardless of which user is trying to edit the document. Locks are looked up in the {@link PatientRecordLockStore},
+ * without loading the document.
  *
  * @version $Id$
  * @since 1.2M5
@@ -49,13 +42,9 @@
 @Singleton
 public class LockedAuthorizationModule implements AuthorizationModule
 {
-    /** The XClass used for patient lock objects. */
-    private EntityReference lockClassReference = new EntityReference("PatientLock", EntityType.DOCUMENT,
-        Constants.CODE_SPACE_REFERENCE);
-
-    /** Provides access to the current context. */
+    /** Stores the patient record locks. */
     @Inject
-    private Provider<XWikiContext> contextProvider;
+    private PatientRecordLockStore lockStore;
 
     @Override
     public int getPriority()
@@ -66,18 +55,9 @@ public int getPriority()
     @Override
     public Boolean hasAccess(User user, Right access, DocumentReference document)
     {
-        XWikiContext context = this.contextProvider.get();
-
-        try {
-            XWikiDocument doc = context.getWiki().getDocument(document, context);
-            BaseObject lock = doc.getXObject(this.lockClassReference);
-            if (lock != null && !access.isReadOnly()) {
-                return Boolean.FALSE;
-            }
-        } catch (XWikiException | NullPointerException e) {
+        if (access == null || document == null || access.isReadOnly()) {
             return null;
         }
-
-        return null;
+        return this.lockStore.isLocked(document) ? Boolean.FALSE : null;
     }
 }
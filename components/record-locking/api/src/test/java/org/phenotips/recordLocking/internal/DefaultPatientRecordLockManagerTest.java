@@ -61,6 +61,8 @@
 
     private PermissionsManager pm;
 
+    private PatientRecordLockStore lockStore;
+
     private Provider<XWikiContext> contextProvider;
 
     private AccessLevel manageAccessLevel;
@@ -93,6 +95,7 @@ public void setup() throws ComponentLookupException, XWikiException
 
         // Mock injected components
         this.pm = this.mocker.getInstance(PermissionsManager.class);
+        this.lockStore = this.mocker.getInstance(PatientRecordLockStore.class);
         this.manageAccessLevel = this.mocker.getInstance(AccessLevel.class, "manage");
 
         // Provider is special and must be mocked differently
@@ -106,77 +109,108 @@ public void setup() throws ComponentLookupException, XWikiException
         Mockito.doReturn(this.patientDocument).when(this.xwiki).getDocument(this.patientDocumentReference,
             this.context);
         Mockito.doReturn(this.patientAccess).when(this.pm).getPatientAccess(this.patient);
-
+        Mockito.doReturn(true).when(this.lockStore).lock(this.patientDocumentReference);
+        Mockito.doReturn(true).when(this.lockStore).unlock(this.patientDocumentReference);
     }
 
     @Test
-    public void canLockPatient() throws ComponentLookupException
+    public void canLockPatient() throws ComponentLookupException, XWikiException
     {
-        Mockito.doReturn(null).when(this.patientDocument).getXObject(Matchers.<EntityReference>any());
-
+        Mockito.doReturn(false).when(this.lockStore).isLocked(this.patientDocumentReference);
         Mockito.doReturn(true).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertTrue(mockedLockManager.lockPatientRecord(this.patient));
+        Mockito.verify(this.lockStore).lock(this.patientDocumentReference);
+        Mockito.verify(this.xwiki, Mockito.never()).saveDocument(Matchers.any(XWikiDocument.class),
+            Matchers.anyString(), Matchers.anyBoolean(), Matchers.any(XWikiContext.class));
     }
 
     @Test
     public void wontLockWithoutManageAccess() throws ComponentLookupException
     {
-        Mockito.doReturn(null).when(this.patientDocument).getXObject(Matchers.<EntityReference>any());
+        Mockito.doReturn(false).when(this.lockStore).isLocked(this.patientDocumentReference);
         Mockito.doReturn(false).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertFalse(mockedLockManager.lockPatientRecord(this.patient));
+        Mockito.verify(this.lockStore, Mockito.never()).lock(this.patientDocumentReference);
     }
 
     @Test
     public void wontLockLockedPatient() throws ComponentLookupException
     {
-        Mockito.doReturn(this.lock).when(this.patientDocument).getXObject(Matchers.<EntityReference>any());
+        Mockito.doReturn(true).when(this.lockStore).isLocked(this.patientDocumentReference);
         Mockito.doReturn(true).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertFalse(mockedLockManager.lockPatientRecord(this.patient));
+        Mockito.verify(this.lockStore, Mockito.never()).lock(this.patientDocumentReference);
     }
 
     @Test
     public void returnsFalseWhenLockingNullPatient() throws ComponentLookupException
     {
-        Mockito.doReturn(null).when(this.patientDocument).getXObject(Matchers.<EntityReference>any());
         Mockito.doReturn(true).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertFalse(mockedLockManager.lockPatientRecord(null));
     }
 
     @Test
-    public void canUnlockPatient() throws ComponentLookupException
+    public void returnsFalseWhenTheLockCannotBeStored() throws ComponentLookupException
+    {
+        Mockito.doReturn(false).when(this.lockStore).isLocked(this.patientDocumentReference);
+        Mockito.doReturn(false).when(this.lockStore).lock(this.patientDocumentReference);
+        Mockito.doReturn(true).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
+        PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
+        Assert.assertFalse(mockedLockManager.lockPatientRecord(this.patient));
+    }
+
+    @Test
+    public void canUnlockPatient() throws ComponentLookupException, XWikiException
+    {
+        Mockito.doReturn(true).when(this.lockStore).isLocked(this.patientDocumentReference);
+        Mockito.doReturn(null).when(this.patientDocument).getXObject(Matchers.<EntityReference>any());
+        Mockito.doReturn(true).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
+        PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
+        Assert.assertTrue(mockedLockManager.unlockPatientRecord(this.patient));
+        Mockito.verify(this.lockStore).unlock(this.patientDocumentReference);
+        Mockito.verify(this.xwiki, Mockito.never()).saveDocument(Matchers.any(XWikiDocument.class),
+            Matchers.anyString(), Matchers.anyBoolean(), Matchers.any(XWikiContext.class));
+    }
+
+    @Test
+    public void unlockingRemovesLegacyLockObjects() throws ComponentLookupException, XWikiException
     {
+        Mockito.doReturn(true).when(this.lockStore).isLocked(this.patientDocumentReference);
         Mockito.doReturn(this.lock).when(this.patientDocument).getXObject(Matchers.<EntityReference>any());
         Mockito.doReturn(true).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertTrue(mockedLockManager.unlockPatientRecord(this.patient));
+        Mockito.verify(this.patientDocument).removeXObjects(Matchers.<EntityReference>any());
+        Mockito.verify(this.xwiki).saveDocument(this.patientDocument, "Unlocked patient record", true, this.context);
     }
 
     @Test
     public void wontUnlockWithoutManageAccess() throws ComponentLookupException
     {
-        Mockito.doReturn(this.lock).when(this.patientDocument).getXObject(Matchers.<EntityReference>any());
+        Mockito.doReturn(true).when(this.lockStore).isLocked(this.patientDocumentReference);
         Mockito.doReturn(false).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertFalse(mockedLockManager.unlockPatientRecord(this.patient));
+        Mockito.verify(this.lockStore, Mockito.never()).unlock(this.patientDocumentReference);
     }
 
     @Test
     public void wontUnlockUnlockedPatient() throws ComponentLookupException
     {
-        Mockito.doReturn(null).when(this.patientDocument).getXObject(Matchers.<EntityReference>any());
+        Mockito.doReturn(false).when(this.lockStore).isLocked(this.patientDocumentReference);
         Mockito.doReturn(true).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertFalse(mockedLockManager.unlockPatientRecord(this.patient));
+        Mockito.verify(this.lockStore, Mockito.never()).unlock(this.patientDocumentReference);
     }
 
     @Test
     public void returnsFalseWhenUnlockingNullPatient() throws ComponentLookupException
     {
-        Mockito.doReturn(null).when(this.patientDocument).getXObject(Matchers.<EntityReference>any());
         Mockito.doReturn(true).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertFalse(mockedLockManager.unlockPatientRecord(null));
@@ -185,7 +219,7 @@ public void returnsFalseWhenUnlockingNullPatient() throws ComponentLookupExcepti
     @Test
     public void testIsLockedTrue() throws ComponentLookupException
     {
-        Mockito.doReturn(this.lock).when(this.patientDocument).getXObject(Matchers.<EntityReference>any());
+        Mockito.doReturn(true).when(this.lockStore).isLocked(this.patientDocumentReference);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertTrue(mockedLockManager.isLocked(this.patient));
     }
@@ -193,17 +227,26 @@ public void testIsLockedTrue() throws ComponentLookupException
     @Test
     public void testIsLockedFalse() throws ComponentLookupException
     {
-        Mockito.doReturn(null).when(this.patientDocument).getXObject(Matchers.<EntityReference>any());
+        Mockito.doReturn(false).when(this.lockStore).isLocked(this.patientDocumentReference);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
         Assert.assertFalse(mockedLockManager.isLocked(this.patient));
     }
 
     @Test
-    public void returnsFalseAfterXWikiExceptionWhileRetrievingDocument() throws ComponentLookupException, XWikiException
+    public void isLockedDoesNotLoadTheDocument() throws ComponentLookupException, XWikiException
     {
-        Mockito.doThrow(new XWikiException()).when(this.xwiki).getDocument(this.patientDocumentReference, this.context);
         PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
-        Assert.assertFalse(mockedLockManager.lockPatientRecord(this.patient));
+        mockedLockManager.isLocked(this.patient);
+        Mockito.verify(this.xwiki, Mockito.never()).getDocument(this.patientDocumentReference, this.context);
     }
 
+    @Test
+    public void unlocksEvenIfTheLegacyLockCannotBeRemoved() throws ComponentLookupException, XWikiException
+    {
+        Mockito.doReturn(true).when(this.lockStore).isLocked(this.patientDocumentReference);
+        Mockito.doReturn(true).when(this.patientAccess).hasAccessLevel(this.manageAccessLevel);
+        Mockito.doThrow(new XWikiException()).when(this.xwiki).getDocument(this.patientDocumentReference, this.context);
+        PatientRecordLockManager mockedLockManager = this.mocker.getComponentUnderTest();
+        Assert.assertTrue(mockedLockManager.unlockPatientRecord(this.patient));
+    }
 }
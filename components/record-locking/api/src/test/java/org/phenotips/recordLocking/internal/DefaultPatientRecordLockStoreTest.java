@@ -0,0 +1,340 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.recordLocking.internal;
+
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
+
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.inject.Provider;
+
+import org.hibernate.Session;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
+/**
+ * Tests for the {@link DefaultPatientRecordLockStore}.
+ *
+ * @version $Id$
+ */
+public class DefaultPatientRecordLockStoreTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<PatientRecordLockStore> mocker =
+        new MockitoComponentMockingRule<PatientRecordLockStore>(DefaultPatientRecordLockStore.class);
+
+    private final DocumentReference p1 = new DocumentReference("xwiki", "data", "P0000001");
+
+    private final DocumentReference p2 = new DocumentReference("xwiki", "data", "P0000002");
+
+    private final DocumentReference p3 = new DocumentReference("xwiki", "data", "P0000003");
+
+    /** The leases stored in the database, by document name. */
+    private final Map<String, PatientRecordLease> stored = new HashMap<>();
+
+    private XWikiContext context;
+
+    private XWikiHibernateStore store;
+
+    private AuthorizationDecisionCache decisionCache;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception
+    {
+        EntityReferenceSerializer<String> serializer =
+            this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING, "local");
+        Mockito.when(serializer.serialize(Matchers.any(DocumentReference.class))).thenAnswer(new Answer<String>()
+        {
+            @Override
+            public String answer(InvocationOnMock invocation)
+            {
+                return "data." + ((DocumentReference) invocation.getArguments()[0]).getName();
+            }
+        });
+
+        Provider<XWikiContext> provider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        this.context = Mockito.mock(XWikiContext.class);
+        Mockito.doReturn(this.context).when(provider).get();
+        Mockito.doReturn("xwiki").when(this.context).getWikiId();
+        XWiki xwiki = Mockito.mock(XWiki.class);
+        Mockito.doReturn(xwiki).when(this.context).getWiki();
+        this.store = Mockito.mock(XWikiHibernateStore.class);
+        Mockito.doReturn(this.store).when(xwiki).getHibernateStore();
+
+        final Session session = Mockito.mock(Session.class);
+        Mockito.when(session.get(Matchers.eq(PatientRecordLease.class), Matchers.anyString()))
+            .thenAnswer(new Answer<PatientRecordLease>()
+            {
+                @Override
+                public PatientRecordLease answer(InvocationOnMock invocation)
+                {
+                    return DefaultPatientRecordLockStoreTest.this.stored.get(invocation.getArguments()[1]);
+                }
+            });
+        Mockito.when(session.save(Matchers.any(PatientRecordLease.class))).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                PatientRecordLease lease = (PatientRecordLease) invocation.getArguments()[0];
+                DefaultPatientRecordLockStoreTest.this.stored.put(lease.getDocument(), lease);
+                return lease.getDocument();
+            }
+        });
+        Mockito.doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                PatientRecordLease lease = (PatientRecordLease) invocation.getArguments()[0];
+                DefaultPatientRecordLockStoreTest.this.stored.remove(lease.getDocument());
+                return null;
+            }
+        }).when(session).delete(Matchers.any(PatientRecordLease.class));
+        Answer<Object> runInSession = new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Exception
+            {
+                return ((HibernateCallback<Object>) invocation.getArguments()[1]).doInHibernate(session);
+            }
+        };
+        Mockito.when(this.store.executeRead(Matchers.same(this.context), Matchers.any(HibernateCallback.class)))
+            .thenAnswer(runInSession);
+        Mockito.when(this.store.executeWrite(Matchers.same(this.context), Matchers.any(HibernateCallback.class)))
+            .thenAnswer(runInSession);
+
+        this.decisionCache = this.mocker.getInstance(AuthorizationDecisionCache.class);
+        this.stored.put("data.P0000001", new PatientRecordLease("data.P0000001", 0));
+    }
+
+    @Test
+    public void readsLocksFromTheDatabase() throws Exception
+    {
+        PatientRecordLockStore lockStore = this.mocker.getComponentUnderTest();
+        Assert.assertTrue(lockStore.isLocked(this.p1));
+        Assert.assertFalse(lockStore.isLocked(this.p2));
+    }
+
+    @Test
+    public void locksAreStoredWithoutExpiration() throws Exception
+    {
+        PatientRecordLockStore lockStore = this.mocker.getComponentUnderTest();
+        Assert.assertTrue(lockStore.lock(this.p2));
+        Assert.assertTrue(lockStore.isLocked(this.p2));
+        Assert.assertFalse(lockStore.lock(this.p2));
+        Assert.assertEquals(0, this.stored.get("data.P0000002").getExpiration());
+
+        Assert.assertTrue(lockStore.unlock(this.p2));
+        Assert.assertFalse(lockStore.isLocked(this.p2));
+        Assert.assertFalse(lockStore.unlock(this.p2));
+        Assert.assertNull(this.stored.get("data.P0000002"));
+        Assert.assertNotNull(this.stored.get("data.P0000001"));
+    }
+
+    @Test
+    public void locksAreServedFromMemory() throws Exception
+    {
+        PatientRecordLockStore lockStore = this.mocker.getComponentUnderTest();
+        Assert.assertTrue(lockStore.lock(this.p2));
+        for (int i = 0; i < 10; ++i) {
+            Assert.assertTrue(lockStore.isLocked(this.p1));
+            Assert.assertTrue(lockStore.isLocked(this.p2));
+        }
+        Mockito.verify(this.store, Mockito.times(1)).executeRead(Matchers.same(this.context),
+            Matchers.any(HibernateCallback.class));
+    }
+
+    @Test
+    public void lockChangesInvalidateCachedDecisions() throws Exception
+    {
+        PatientRecordLockStore lockStore = this.mocker.getComponentUnderTest();
+
+        lockStore.lock(this.p2);
+        Mockito.verify(this.decisionCache).invalidate(this.p2);
+        lockStore.lock(this.p2);
+        Mockito.verify(this.decisionCache).invalidate(this.p2);
+
+        lockStore.unlock(this.p2);
+        Mockito.verify(this.decisionCache, Mockito.times(2)).invalidate(this.p2);
+        lockStore.unlock(this.p2);
+        Mockito.verify(this.decisionCache, Mockito.times(2)).invalidate(this.p2);
+    }
+
+    @Test
+    public void leasesExpire() throws Exception
+    {
+        this.stored.put("data.P0000002", new PatientRecordLease("data.P0000002", System.currentTimeMillis() + 100));
+        PatientRecordLockStore lockStore = this.mocker.getComponentUnderTest();
+        Assert.assertTrue(lockStore.isLocked(this.p2));
+        Mockito.verify(this.decisionCache).invalidate(this.p2);
+
+        Thread.sleep(150);
+
+        Assert.assertFalse(lockStore.isLocked(this.p2));
+        Assert.assertFalse(lockStore.isLocked(this.p2));
+        Mockito.verify(this.decisionCache, Mockito.times(2)).invalidate(this.p2);
+        // Expired leases can't be removed, but can be replaced
+        Assert.assertFalse(lockStore.unlock(this.p2));
+        Assert.assertTrue(lockStore.lock(this.p2));
+        Assert.assertTrue(lockStore.isLocked(this.p2));
+    }
+
+    @Test
+    public void newLeasesUseTheConfiguredDuration() throws Exception
+    {
+        ConfigurationSource configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
+        Mockito.doReturn(1).when(configuration).getProperty("phenotips.recordLocking.leaseDuration", Integer.class);
+        long start = System.currentTimeMillis();
+        PatientRecordLockStore lockStore = this.mocker.getComponentUnderTest();
+
+        Assert.assertTrue(lockStore.lock(this.p2));
+
+        long expiration = this.stored.get("data.P0000002").getExpiration();
+        Assert.assertTrue(expiration >= start + 60000);
+        Assert.assertTrue(expiration <= System.currentTimeMillis() + 60000);
+    }
+
+    @Test
+    public void changesFromOtherClusterMembersAreSeenOnceTheCachedLeaseIsOutdated() throws Exception
+    {
+        PatientRecordLockStore lockStore = this.mocker.getComponentUnderTest();
+        Assert.assertTrue(lockStore.isLocked(this.p1));
+        Mockito.verify(this.decisionCache).invalidate(this.p1);
+
+        // Another cluster member removes the lock
+        this.stored.remove("data.P0000001");
+        Assert.assertTrue(lockStore.isLocked(this.p1));
+
+        getCachedLeases().put(this.p1, cachedLease(0, 0));
+        Assert.assertFalse(lockStore.isLocked(this.p1));
+        Mockito.verify(this.decisionCache, Mockito.times(2)).invalidate(this.p1);
+
+        // Unchanged records don't invalidate the cached decisions
+        getCachedLeases().put(this.p1, cachedLease(-1, 0));
+        Assert.assertFalse(lockStore.isLocked(this.p1));
+        Mockito.verify(this.decisionCache, Mockito.times(2)).invalidate(this.p1);
+    }
+
+    @Test
+    public void concurrentChangesFail() throws Exception
+    {
+        PatientRecordLockStore lockStore = this.mocker.getComponentUnderTest();
+        Assert.assertFalse(lockStore.isLocked(this.p2));
+        Mockito.doThrow(new XWikiException()).when(this.store).executeWrite(Matchers.same(this.context),
+            Matchers.any(HibernateCallback.class));
+
+        Assert.assertFalse(lockStore.lock(this.p2));
+        Assert.assertFalse(lockStore.unlock(this.p1));
+
+        // The status of the records is read again
+        Assert.assertFalse(lockStore.isLocked(this.p2));
+        Mockito.verify(this.store, Mockito.times(2)).executeRead(Matchers.same(this.context),
+            Matchers.any(HibernateCallback.class));
+        Mockito.verify(this.decisionCache, Mockito.never()).invalidate(this.p1);
+    }
+
+    @Test
+    public void keepsUsingKnownLocksWhenTheDatabaseCannotBeRead() throws Exception
+    {
+        PatientRecordLockStore lockStore = this.mocker.getComponentUnderTest();
+        Mockito.doThrow(new XWikiException()).when(this.store).executeRead(Matchers.same(this.context),
+            Matchers.any(HibernateCallback.class));
+
+        Assert.assertFalse(lockStore.isLocked(this.p1));
+        getCachedLeases().put(this.p1, cachedLease(0, 0));
+        Assert.assertTrue(lockStore.isLocked(this.p1));
+        Mockito.verify(this.mocker.getMockedLogger(), Mockito.times(2)).error(Matchers.eq(
+            "Failed to read the lock on [{}]: {}"), Matchers.eq(this.p1), Matchers.anyString());
+    }
+
+    @Test
+    public void recordsAreLockedInTheDatabaseOfTheirWiki() throws Exception
+    {
+        PatientRecordLockStore lockStore = this.mocker.getComponentUnderTest();
+        DocumentReference other = new DocumentReference("otherwiki", "data", "P0000003");
+
+        Assert.assertTrue(lockStore.lock(other));
+
+        InOrder order = Mockito.inOrder(this.context, this.store);
+        order.verify(this.context).setWikiId("otherwiki");
+        order.verify(this.store).executeWrite(Matchers.same(this.context), Matchers.any(HibernateCallback.class));
+        order.verify(this.context).setWikiId("xwiki");
+        Assert.assertTrue(lockStore.isLocked(other));
+        Assert.assertFalse(lockStore.isLocked(this.p3));
+    }
+
+    @Test
+    public void cachedLeasesAreBounded() throws Exception
+    {
+        PatientRecordLockStore lockStore = this.mocker.getComponentUnderTest();
+        Map<DocumentReference, Object> cached = getCachedLeases();
+        for (int i = 0; i < 10000; ++i) {
+            cached.put(new DocumentReference("xwiki", "data", "X" + i), cachedLease(-1, 0));
+        }
+
+        Assert.assertTrue(lockStore.isLocked(this.p1));
+
+        Assert.assertEquals(1, cached.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<DocumentReference, Object> getCachedLeases() throws Exception
+    {
+        Field field = DefaultPatientRecordLockStore.class.getDeclaredField("leases");
+        field.setAccessible(true);
+        return (Map<DocumentReference, Object>) field.get(this.mocker.getComponentUnderTest());
+    }
+
+    /**
+     * Creates a cached lease, as if it was read from the database at the given time.
+     *
+     * @param expiration the expiration of the lease, {@code 0} if it never expires, {@code -1} if not locked
+     * @param readTime when was the lease read
+     * @return the cached lease
+     */
+    private Object cachedLease(long expiration, long readTime) throws Exception
+    {
+        Constructor<?> constructor = Class.forName(DefaultPatientRecordLockStore.class.getName() + "$CachedLease")
+            .getDeclaredConstructor(long.class, long.class);
+        constructor.setAccessible(true);
+        return constructor.newInstance(expiration, readTime);
+    }
+}
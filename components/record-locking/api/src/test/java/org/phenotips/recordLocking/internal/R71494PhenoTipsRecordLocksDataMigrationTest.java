@@ -0,0 +1,113 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.recordLocking.internal;
+
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Arrays;
+
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
+import org.mockito.Mockito;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+import com.xpn.xwiki.store.migration.hibernate.HibernateDataMigration;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link R71494PhenoTipsRecordLocksDataMigration}.
+ *
+ * @version $Id$
+ */
+public class R71494PhenoTipsRecordLocksDataMigrationTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<HibernateDataMigration> mocker =
+        new MockitoComponentMockingRule<HibernateDataMigration>(R71494PhenoTipsRecordLocksDataMigration.class);
+
+    /** Locked records get a lease that never expires, existing leases are kept. */
+    @Test
+    public void hibernateMigrate() throws Exception
+    {
+        this.mocker.registerMockComponent(ComponentManager.class);
+        ComponentManager cm = this.mocker.getInstance(ComponentManager.class);
+        XWikiHibernateStore store = mock(XWikiHibernateStore.class);
+        when(cm.getInstance(XWikiStoreInterface.class, "hibernate")).thenReturn(store);
+        Execution e = this.mocker.getInstance(Execution.class);
+        ExecutionContext ec = mock(ExecutionContext.class);
+        when(e.getContext()).thenReturn(ec);
+        XWikiContext xc = mock(XWikiContext.class);
+        when(ec.getProperty("xwikicontext")).thenReturn(xc);
+        @SuppressWarnings("deprecation")
+        ArgumentCaptor<HibernateCallback<Object>> callbackCaptor = new ArgumentCaptor<HibernateCallback<Object>>();
+        this.mocker.getComponentUnderTest().migrate();
+        Mockito.verify(store).executeWrite(Matchers.same(xc), callbackCaptor.capture());
+
+        HibernateCallback<Object> callback = callbackCaptor.getValue();
+        Assert.assertNotNull(callback);
+        Session session = mock(Session.class);
+        Query q = mock(Query.class);
+        when(session.createQuery(Matchers.anyString())).thenReturn(q);
+        when(q.list()).thenReturn(Arrays.asList("data.P0000001", "data.P0000002"));
+        PatientRecordLease existing = new PatientRecordLease("data.P0000002", 42);
+        when(session.get(PatientRecordLease.class, "data.P0000002")).thenReturn(existing);
+        callback.doInHibernate(session);
+
+        ArgumentCaptor<PatientRecordLease> leaseCaptor = ArgumentCaptor.forClass(PatientRecordLease.class);
+        verify(session).save(leaseCaptor.capture());
+        Assert.assertEquals("data.P0000001", leaseCaptor.getValue().getDocument());
+        Assert.assertEquals(0, leaseCaptor.getValue().getExpiration());
+        Assert.assertEquals(42, existing.getExpiration());
+    }
+
+    /** Non empty description. */
+    @Test
+    public void getDescription() throws Exception
+    {
+        Assert.assertTrue(StringUtils.isNotBlank(this.mocker.getComponentUnderTest().getDescription()));
+    }
+
+    /** Non empty name. */
+    @Test
+    public void getName() throws Exception
+    {
+        Assert.assertTrue(StringUtils.isNotBlank(this.mocker.getComponentUnderTest().getName()));
+    }
+
+    /** Correct version number. */
+    @Test
+    public void getVersion() throws Exception
+    {
+        Assert.assertEquals(71494, this.mocker.getComponentUnderTest().getVersion().getVersion());
+    }
+}
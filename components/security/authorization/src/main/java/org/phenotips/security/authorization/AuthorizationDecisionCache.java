@@ -0,0 +1,101 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.authorization;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.stability.Unstable;
+import org.xwiki.users.User;
+
+/**
+ * Short lived cache for the decisions taken by the {@link AuthorizationService}, so that the same access check isn't
+ * forwarded to all the {@link AuthorizationModule}s again and again while listing or exporting many patient records.
+ * Cached decisions are forgotten when the target document changes, when a group or a rights object changes, or after
+ * a configurable time. The cache is disabled by default, and can be enabled with the
+ * {@code phenotips.security.authorization.decisionCache.enabled} property in {@code xwiki.properties}.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Unstable
+@Role
+public interface AuthorizationDecisionCache
+{
+    /**
+     * Checks if decisions are cached at all. If not, {@link #get} always returns {@code null} and {@link #put} does
+     * nothing.
+     *
+     * @return {@code true} if the cache is enabled, {@code false} otherwise
+     */
+    boolean isEnabled();
+
+    /**
+     * Retrieves a cached decision.
+     *
+     * @param user the user whose rights are checked
+     * @param access the requested access level
+     * @param document the target document
+     * @return the cached decision, or {@code null} if no decision is cached for this combination
+     */
+    Boolean get(User user, Right access, DocumentReference document);
+
+    /**
+     * The current generation of the cached decisions, which changes whenever decisions are invalidated. It must be read
+     * before computing a decision to be {@link #put cached}, so that a decision computed while the cache was being
+     * invalidated isn't cached.
+     *
+     * @return an opaque generation number
+     */
+    long getGeneration();
+
+    /**
+     * Remembers a decision, unless cached decisions were invalidated since the decision started being computed.
+     *
+     * @param user the user whose rights were checked
+     * @param access the requested access level
+     * @param document the target document
+     * @param decision the decision taken
+     * @param generation the {@link #getGeneration() generation} read before computing the decision
+     */
+    void put(User user, Right access, DocumentReference document, boolean decision, long generation);
+
+    /**
+     * Forgets all the decisions cached for a document.
+     *
+     * @param document the document whose decisions are no longer valid
+     */
+    void invalidate(DocumentReference document);
+
+    /** Forgets all the cached decisions. */
+    void invalidateAll();
+
+    /**
+     * The number of times a cached decision was found, since the cache was started.
+     *
+     * @return a positive number
+     */
+    long getHitCount();
+
+    /**
+     * The number of times no cached decision was found, since the cache was started.
+     *
+     * @return a positive number
+     */
+    long getMissCount();
+}
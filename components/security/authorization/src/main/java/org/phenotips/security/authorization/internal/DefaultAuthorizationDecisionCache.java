@@ -0,0 +1,302 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.authorization.internal;
+
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheException;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.users.User;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Default {@link AuthorizationDecisionCache} implementation, keeping the decisions for the most recently checked
+ * documents in memory. Decisions expire after {@code phenotips.security.authorization.decisionCache.ttl} seconds (60
+ * by default), and at most {@code phenotips.security.authorization.decisionCache.size} documents (1000 by default) have
+ * their decisions cached. Each invalidation changes the cache generation, and decisions computed before an invalidation
+ * are discarded instead of being cached.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Component(roles = AuthorizationDecisionCache.class)
+@Singleton
+public class DefaultAuthorizationDecisionCache implements AuthorizationDecisionCache, EventListener, Initializable,
+    Disposable
+{
+    private static final String CONFIGURATION_PREFIX = "phenotips.security.authorization.decisionCache.";
+
+    private static final int DEFAULT_SIZE = 1000;
+
+    private static final int DEFAULT_TTL = 60;
+
+    private static final EntityReference XWIKI_SPACE = new EntityReference("XWiki", EntityType.SPACE);
+
+    /** Objects whose change may affect the decisions taken for any document. */
+    private static final List<EntityReference> GLOBAL_CLASSES = Arrays.asList(
+        new EntityReference("XWikiGroups", EntityType.DOCUMENT, XWIKI_SPACE),
+        new EntityReference("XWikiRights", EntityType.DOCUMENT, XWIKI_SPACE),
+        new EntityReference("XWikiGlobalRights", EntityType.DOCUMENT, XWIKI_SPACE));
+
+    /** The global configuration. */
+    @Inject
+    @Named("restricted")
+    private ConfigurationSource configuration;
+
+    /** Factory for the cache holding the decisions. */
+    @Inject
+    private CacheManager cacheManager;
+
+    /** Used for listening to document changes. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** The cached decisions, grouped by document. */
+    private Cache<DocumentDecisions> cache;
+
+    /** How long are decisions kept, in milliseconds. */
+    private long timeToLive;
+
+    /** Incremented whenever decisions are invalidated, so that decisions computed meanwhile aren't cached. */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        Boolean enabled = this.configuration.getProperty(CONFIGURATION_PREFIX + "enabled", Boolean.class);
+        if (!Boolean.TRUE.equals(enabled)) {
+            return;
+        }
+        this.timeToLive = getPositiveProperty("ttl", DEFAULT_TTL) * 1000L;
+        try {
+            CacheConfiguration config =
+                new CacheConfiguration(new LRUEvictionConfiguration(getPositiveProperty("size", DEFAULT_SIZE)));
+            config.setConfigurationId("phenotips.security.authorization.decisions");
+            this.cache = this.cacheManager.createNewLocalCache(config);
+        } catch (CacheException ex) {
+            throw new InitializationException("Cannot create the authorization decisions cache: " + ex.getMessage());
+        }
+        this.observationManager.addListener(this);
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        if (this.cache != null) {
+            this.observationManager.removeListener(getName());
+            this.cache.dispose();
+        }
+    }
+
+    @Override
+    public boolean isEnabled()
+    {
+        return this.cache != null;
+    }
+
+    @Override
+    public Boolean get(User user, Right access, DocumentReference document)
+    {
+        if (this.cache == null || document == null) {
+            return null;
+        }
+        DocumentDecisions decisions = this.cache.get(document.toString());
+        Boolean result = null;
+        if (decisions != null && !decisions.isExpired()) {
+            result = decisions.get(getKey(user, access));
+        }
+        if (result == null) {
+            this.misses.incrementAndGet();
+        } else {
+            this.hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    @Override
+    public long getGeneration()
+    {
+        return this.generation.get();
+    }
+
+    @Override
+    public void put(User user, Right access, DocumentReference document, boolean decision, long generation)
+    {
+        if (this.cache == null || document == null || this.generation.get() != generation) {
+            return;
+        }
+        String documentKey = document.toString();
+        DocumentDecisions decisions = this.cache.get(documentKey);
+        if (decisions == null || decisions.isExpired()) {
+            decisions = new DocumentDecisions(System.currentTimeMillis() + this.timeToLive);
+            this.cache.set(documentKey, decisions);
+        }
+        decisions.put(getKey(user, access), decision);
+        // An invalidation that started after the check above may have run before the decision was stored
+        if (this.generation.get() != generation) {
+            this.cache.remove(documentKey);
+        }
+    }
+
+    @Override
+    public void invalidate(DocumentReference document)
+    {
+        if (this.cache != null && document != null) {
+            this.generation.incrementAndGet();
+            this.cache.remove(document.toString());
+        }
+    }
+
+    @Override
+    public void invalidateAll()
+    {
+        if (this.cache != null) {
+            this.generation.incrementAndGet();
+            this.cache.removeAll();
+        }
+    }
+
+    @Override
+    public long getHitCount()
+    {
+        return this.hits.get();
+    }
+
+    @Override
+    public long getMissCount()
+    {
+        return this.misses.get();
+    }
+
+    @Override
+    public String getName()
+    {
+        return "authorization-decision-cache";
+    }
+
+    @Override
+    public List<Event> getEvents()
+    {
+        return Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+            new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        XWikiDocument doc = (XWikiDocument) source;
+        if (affectsAllDecisions(doc) || affectsAllDecisions(doc.getOriginalDocument())) {
+            invalidateAll();
+        } else {
+            invalidate(doc.getDocumentReference());
+        }
+    }
+
+    /**
+     * Group memberships and rights objects can change the decisions for any document, not just for the document
+     * holding them.
+     *
+     * @param doc the changed document, may be {@code null}
+     * @return {@code true} if the document holds groups or rights
+     */
+    private boolean affectsAllDecisions(XWikiDocument doc)
+    {
+        if (doc == null) {
+            return false;
+        }
+        for (EntityReference classReference : GLOBAL_CLASSES) {
+            if (doc.getXObject(classReference) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String getKey(User user, Right access)
+    {
+        return (user == null ? "" : String.valueOf(user.getProfileDocument())) + '/' + access.getName();
+    }
+
+    private int getPositiveProperty(String name, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(CONFIGURATION_PREFIX + name, Integer.class);
+        return value == null || value <= 0 ? defaultValue : value;
+    }
+
+    /** The decisions cached for one document, for the different users and rights. */
+    private static final class DocumentDecisions
+    {
+        private final ConcurrentMap<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+        private final long expires;
+
+        DocumentDecisions(long expires)
+        {
+            this.expires = expires;
+        }
+
+        boolean isExpired()
+        {
+            return System.currentTimeMillis() >= this.expires;
+        }
+
+        Boolean get(String key)
+        {
+            return this.decisions.get(key);
+        }
+
+        void put(String key, boolean decision)
+        {
+            this.decisions.put(key, decision);
+        }
+    }
+}
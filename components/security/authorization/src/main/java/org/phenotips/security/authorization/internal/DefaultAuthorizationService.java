@@ -17,6 +17,7 @@
  */
 package org.phenotips.security.authorization.internal;
 
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
 import org.phenotips.security.authorization.AuthorizationModule;
 import org.phenotips.security.authorization.AuthorizationService;
 
@@ -35,7 +36,8 @@
 
 /**
  * The default authorization service implementation, which queries all the individual {@link AuthorizationModule}s, in
- * descending order of priority, until one responds with a non-null decision.
+ * descending order of priority, until one responds with a non-null decision. Decisions are remembered in the
+ * {@link AuthorizationDecisionCache}, if enabled.
  *
  * @version $Id$
  * @since 1.0M13
@@ -52,8 +54,26 @@ public class DefaultAuthorizationService implements AuthorizationService
     @Inject
     private Provider<List<AuthorizationModule>> modules;
 
+    /** Remembers recent decisions. */
+    @Inject
+    private AuthorizationDecisionCache decisions;
+
     @Override
     public boolean hasAccess(User user, Right access, DocumentReference document)
+    {
+        if (this.decisions.isEnabled()) {
+            Boolean decision = this.decisions.get(user, access, document);
+            if (decision == null) {
+                long generation = this.decisions.getGeneration();
+                decision = computeAccess(user, access, document);
+                this.decisions.put(user, access, document, decision, generation);
+            }
+            return decision;
+        }
+        return computeAccess(user, access, document);
+    }
+
+    private boolean computeAccess(User user, Right access, DocumentReference document)
     {
         for (AuthorizationModule service : this.modules.get()) {
             try {
@@ -21,12 +21,17 @@
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.phenotips.security.authorization.AuthorizationModule;
+import org.xwiki.component.event.ComponentDescriptorAddedEvent;
+import org.xwiki.component.event.ComponentDescriptorRemovedEvent;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.manager.ComponentManager;
 import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
 import org.xwiki.security.authorization.Right;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.users.User;
@@ -39,6 +44,8 @@
 import static org.hamcrest.Matchers.is;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -109,6 +116,37 @@ public void modulesWithSamePriorityGetSortedByName() throws Exception
         Assert.assertThat(actualList, is(expectedList));
     }
 
+    @Test
+    public void listIsCachedUntilModulesAreRegisteredOrUnregistered() throws Exception
+    {
+        this.moduleList.add(this.lowPriorityModule);
+        List<AuthorizationModule> firstList = this.mocker.getComponentUnderTest().get();
+        Assert.assertSame(firstList, this.mocker.getComponentUnderTest().get());
+        verify(this.componentManager, times(1)).getInstanceList(AuthorizationModule.class);
+
+        this.moduleList.add(this.highPriorityModule);
+        EventListener listener = getListener();
+        listener.onEvent(new ComponentDescriptorAddedEvent(AuthorizationModule.class), this.componentManager, null);
+        Assert.assertThat(this.mocker.getComponentUnderTest().get(),
+            is(Arrays.asList(this.highPriorityModule, this.lowPriorityModule)));
+
+        this.moduleList.remove(this.lowPriorityModule);
+        listener.onEvent(new ComponentDescriptorRemovedEvent(AuthorizationModule.class), this.componentManager, null);
+        Assert.assertThat(this.mocker.getComponentUnderTest().get(), is(Arrays.asList(this.highPriorityModule)));
+        verify(this.componentManager, times(3)).getInstanceList(AuthorizationModule.class);
+    }
+
+    @Test
+    public void listensToAuthorizationModuleChanges() throws Exception
+    {
+        EventListener listener = getListener();
+        Assert.assertTrue(listener.getEvents().get(0).matches(
+            new ComponentDescriptorAddedEvent(AuthorizationModule.class)));
+        Assert.assertFalse(listener.getEvents().get(0).matches(new ComponentDescriptorAddedEvent(User.class)));
+        Assert.assertTrue(listener.getEvents().get(1).matches(
+            new ComponentDescriptorRemovedEvent(AuthorizationModule.class)));
+    }
+
     @Test(expected = RuntimeException.class)
     public void componentLookupExceptionIsCaughtAndRuntimeExceptionIsThrown() throws ComponentLookupException
     {
@@ -117,6 +155,14 @@ public void componentLookupExceptionIsCaughtAndRuntimeExceptionIsThrown() throws
         this.mocker.getComponentUnderTest().get();
     }
 
+    private EventListener getListener() throws Exception
+    {
+        this.mocker.getComponentUnderTest();
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(this.mocker.<ObservationManager>getInstance(ObservationManager.class)).addListener(listener.capture());
+        return listener.getValue();
+    }
+
     private static class AModule implements AuthorizationModule
     {
         @Override
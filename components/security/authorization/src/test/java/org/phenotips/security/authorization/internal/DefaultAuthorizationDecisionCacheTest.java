@@ -0,0 +1,238 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.authorization.internal;
+
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
+
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.cache.Cache;
+import org.xwiki.cache.CacheManager;
+import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+import org.xwiki.users.User;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultAuthorizationDecisionCache} component.
+ *
+ * @version $Id$
+ */
+public class DefaultAuthorizationDecisionCacheTest
+{
+    private static final String PREFIX = "phenotips.security.authorization.decisionCache.";
+
+    private static final EntityReference GROUP_CLASS =
+        new EntityReference("XWikiGroups", EntityType.DOCUMENT, new EntityReference("XWiki", EntityType.SPACE));
+
+    @Rule
+    public final MockitoComponentMockingRule<AuthorizationDecisionCache> mocker =
+        new MockitoComponentMockingRule<AuthorizationDecisionCache>(DefaultAuthorizationDecisionCache.class);
+
+    private final DocumentReference document = new DocumentReference("xwiki", "data", "P0000001");
+
+    private final DocumentReference otherDocument = new DocumentReference("xwiki", "data", "P0000002");
+
+    private final User user = mock(User.class);
+
+    private final Map<String, Object> cacheContent = new HashMap<>();
+
+    private ConfigurationSource configuration;
+
+    private Cache<Object> cache;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setup() throws Exception
+    {
+        when(this.user.getProfileDocument()).thenReturn(new DocumentReference("xwiki", "XWiki", "padams"));
+        this.configuration = this.mocker.getInstance(ConfigurationSource.class, "restricted");
+        when(this.configuration.getProperty(PREFIX + "enabled", Boolean.class)).thenReturn(true);
+
+        this.cache = mock(Cache.class);
+        when(this.cache.get(anyString())).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return DefaultAuthorizationDecisionCacheTest.this.cacheContent.get(invocation.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                DefaultAuthorizationDecisionCacheTest.this.cacheContent.put((String) invocation.getArguments()[0],
+                    invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(this.cache).set(anyString(), any());
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                DefaultAuthorizationDecisionCacheTest.this.cacheContent.remove(invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(this.cache).remove(anyString());
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                DefaultAuthorizationDecisionCacheTest.this.cacheContent.clear();
+                return null;
+            }
+        }).when(this.cache).removeAll();
+        CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        when(cacheManager.createNewLocalCache(any(CacheConfiguration.class))).thenReturn(this.cache);
+    }
+
+    @Test
+    public void decisionsAreCachedPerUserRightAndDocument() throws Exception
+    {
+        AuthorizationDecisionCache decisions = this.mocker.getComponentUnderTest();
+        Assert.assertTrue(decisions.isEnabled());
+        Assert.assertNull(decisions.get(this.user, Right.VIEW, this.document));
+
+        decisions.put(this.user, Right.VIEW, this.document, true, decisions.getGeneration());
+        decisions.put(this.user, Right.EDIT, this.document, false, decisions.getGeneration());
+
+        Assert.assertTrue(decisions.get(this.user, Right.VIEW, this.document));
+        Assert.assertFalse(decisions.get(this.user, Right.EDIT, this.document));
+        Assert.assertNull(decisions.get(this.user, Right.VIEW, this.otherDocument));
+        Assert.assertNull(decisions.get(null, Right.VIEW, this.document));
+        Assert.assertEquals(2, decisions.getHitCount());
+        Assert.assertEquals(3, decisions.getMissCount());
+    }
+
+    @Test
+    public void decisionsExpire() throws Exception
+    {
+        when(this.configuration.getProperty(PREFIX + "ttl", Integer.class)).thenReturn(1);
+        AuthorizationDecisionCache decisions = this.mocker.getComponentUnderTest();
+        decisions.put(this.user, Right.VIEW, this.document, true, decisions.getGeneration());
+        Assert.assertTrue(decisions.get(this.user, Right.VIEW, this.document));
+
+        Thread.sleep(1100);
+        Assert.assertNull(decisions.get(this.user, Right.VIEW, this.document));
+    }
+
+    @Test
+    public void documentChangesInvalidateOnlyThatDocument() throws Exception
+    {
+        AuthorizationDecisionCache decisions = this.mocker.getComponentUnderTest();
+        decisions.put(this.user, Right.VIEW, this.document, true, decisions.getGeneration());
+        decisions.put(this.user, Right.VIEW, this.otherDocument, true, decisions.getGeneration());
+
+        XWikiDocument doc = mock(XWikiDocument.class);
+        when(doc.getDocumentReference()).thenReturn(this.document);
+        ((EventListener) decisions).onEvent(new DocumentUpdatedEvent(this.document), doc, null);
+
+        Assert.assertNull(decisions.get(this.user, Right.VIEW, this.document));
+        Assert.assertTrue(decisions.get(this.user, Right.VIEW, this.otherDocument));
+    }
+
+    @Test
+    public void groupChangesInvalidateAllDecisions() throws Exception
+    {
+        AuthorizationDecisionCache decisions = this.mocker.getComponentUnderTest();
+        decisions.put(this.user, Right.VIEW, this.document, true, decisions.getGeneration());
+        decisions.put(this.user, Right.VIEW, this.otherDocument, true, decisions.getGeneration());
+
+        // A member was removed from a group, the group object exists only in the previous version of the document
+        DocumentReference groupReference = new DocumentReference("xwiki", "Groups", "Cardiology");
+        XWikiDocument group = mock(XWikiDocument.class);
+        XWikiDocument previousGroup = mock(XWikiDocument.class);
+        when(group.getDocumentReference()).thenReturn(groupReference);
+        when(group.getOriginalDocument()).thenReturn(previousGroup);
+        when(previousGroup.getXObject(GROUP_CLASS)).thenReturn(mock(BaseObject.class));
+        ((EventListener) decisions).onEvent(new DocumentUpdatedEvent(groupReference), group, null);
+
+        Assert.assertNull(decisions.get(this.user, Right.VIEW, this.document));
+        Assert.assertNull(decisions.get(this.user, Right.VIEW, this.otherDocument));
+    }
+
+    @Test
+    public void decisionsComputedBeforeAnInvalidationAreNotCached() throws Exception
+    {
+        AuthorizationDecisionCache decisions = this.mocker.getComponentUnderTest();
+        long generation = decisions.getGeneration();
+        decisions.invalidate(this.otherDocument);
+        decisions.put(this.user, Right.VIEW, this.document, true, generation);
+        Assert.assertNull(decisions.get(this.user, Right.VIEW, this.document));
+
+        generation = decisions.getGeneration();
+        decisions.invalidateAll();
+        decisions.put(this.user, Right.VIEW, this.document, true, generation);
+        Assert.assertNull(decisions.get(this.user, Right.VIEW, this.document));
+
+        decisions.put(this.user, Right.VIEW, this.document, true, decisions.getGeneration());
+        Assert.assertTrue(decisions.get(this.user, Right.VIEW, this.document));
+    }
+
+    @Test
+    public void listensToDocumentChangesWhenEnabled() throws Exception
+    {
+        AuthorizationDecisionCache decisions = this.mocker.getComponentUnderTest();
+        verify(this.mocker.<ObservationManager>getInstance(ObservationManager.class))
+            .addListener((EventListener) decisions);
+    }
+
+    @Test
+    public void cacheIsDisabledByDefault() throws Exception
+    {
+        when(this.configuration.getProperty(PREFIX + "enabled", Boolean.class)).thenReturn(null);
+        AuthorizationDecisionCache decisions = this.mocker.getComponentUnderTest();
+
+        Assert.assertFalse(decisions.isEnabled());
+        decisions.put(this.user, Right.VIEW, this.document, true, decisions.getGeneration());
+        Assert.assertNull(decisions.get(this.user, Right.VIEW, this.document));
+        Assert.assertEquals(0, decisions.getMissCount());
+        verifyZeroInteractions(this.mocker.<CacheManager>getInstance(CacheManager.class));
+        verifyZeroInteractions(this.mocker.<ObservationManager>getInstance(ObservationManager.class));
+    }
+}
@@ -18,6 +18,7 @@
 package org.phenotips.security.authorization.internal;
 
 import org.mockito.InOrder;
+import org.phenotips.security.authorization.AuthorizationDecisionCache;
 import org.phenotips.security.authorization.AuthorizationModule;
 import org.phenotips.security.authorization.AuthorizationService;
 
@@ -45,6 +46,7 @@
 
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 
@@ -181,6 +183,51 @@ public void exceptionsInModulesAreIgnored() throws Exception
         Assert.assertTrue(this.mocker.getComponentUnderTest().hasAccess(this.user, this.access, this.document));
     }
 
+    @Test
+    public void cachedDecisionsAreUsed() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        AuthorizationDecisionCache cache = this.mocker.getInstance(AuthorizationDecisionCache.class);
+        when(cache.isEnabled()).thenReturn(true);
+        when(cache.get(this.user, this.access, this.document)).thenReturn(true);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().hasAccess(this.user, this.access, this.document));
+        Mockito.verifyZeroInteractions(this.moduleOne);
+        verify(cache, never()).put(this.user, this.access, this.document, true, 0L);
+    }
+
+    @Test
+    public void computedDecisionsAreCached() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        AuthorizationDecisionCache cache = this.mocker.getInstance(AuthorizationDecisionCache.class);
+        when(cache.isEnabled()).thenReturn(true);
+        when(cache.get(this.user, this.access, this.document)).thenReturn(null);
+        when(cache.getGeneration()).thenReturn(42L);
+        when(this.moduleOne.hasAccess(this.user, this.access, this.document)).thenReturn(true);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().hasAccess(this.user, this.access, this.document));
+        InOrder order = Mockito.inOrder(cache, this.moduleOne);
+        order.verify(cache).getGeneration();
+        order.verify(this.moduleOne).hasAccess(this.user, this.access, this.document);
+        order.verify(cache).put(this.user, this.access, this.document, true, 42L);
+    }
+
+    @Test
+    public void disabledCacheIsNotUsed() throws Exception
+    {
+        this.moduleList = Collections.singletonList(this.moduleOne);
+        doReturn(this.moduleList).when(this.modules).get();
+        AuthorizationDecisionCache cache = this.mocker.getInstance(AuthorizationDecisionCache.class);
+        when(this.moduleOne.hasAccess(this.user, this.access, this.document)).thenReturn(true);
+
+        Assert.assertTrue(this.mocker.getComponentUnderTest().hasAccess(this.user, this.access, this.document));
+        verify(cache).isEnabled();
+        Mockito.verifyNoMoreInteractions(cache);
+    }
+
     private void resetMocks()
     {
         Mockito.reset(this.moduleOne, this.moduleTwo, this.moduleThree);
@@ -46,6 +46,16 @@
      */
     String decryptWithSystemKey(String encryptedMessage);
 
+    /**
+     * Check if a message was encrypted with an older, slower format, and should be encrypted again with
+     * {@link #encryptWithSystemKey(String)} the next time it is stored. Such messages can still be decrypted.
+     *
+     * @param encryptedMessage the encrypted message to check; may be {@code null}
+     * @return {@code true} if the message uses a legacy format, {@code false} if it uses the current format or is
+     *         {@code null}
+     */
+    boolean needsReencryption(String encryptedMessage);
+
     /**
      * Compute a strong digest (one-way hash) of a message.
      *
@@ -23,15 +23,37 @@
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
 
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import javax.xml.bind.DatatypeConverter;
 
 import org.jasypt.digest.StandardStringDigester;
+import org.jasypt.exceptions.EncryptionOperationNotPossibleException;
 import org.jasypt.util.text.StrongTextEncryptor;
 
 /**
- * The straight-forward implementation of the {@link CryptoUtils} role.
+ * The straight-forward implementation of the {@link CryptoUtils} role. Messages are encrypted with AES in CBC mode,
+ * using a random IV for each message, and authenticated with HMAC-SHA256. The keys are derived from the system password
+ * only once, at startup. Messages encrypted by older versions with a password based Jasypt encryptor, which derives
+ * the key again for each message, can still be decrypted. The most recently decrypted messages are cached in the
+ * current execution context, which usually lasts only for one request.
  *
  * @version $Id$
  * @since 1.3M2
@@ -40,18 +62,74 @@
 @Singleton
 public class DefaultCryptoUtils implements CryptoUtils, Initializable
 {
+    /** Identifies the messages encrypted with the current format; legacy messages are plain Base64, without a colon. */
+    private static final String FORMAT_PREFIX = "v1:";
+
+    private static final String CIPHER_ALGORITHM = "AES/CBC/PKCS5Padding";
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    private static final String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA1";
+
+    /**
+     * The salt used for deriving the system keys. It only has to be constant, since the system password is a secret
+     * specific to each installation.
+     */
+    private static final byte[] KEY_SALT = "PhenoTips system encryption key".getBytes(StandardCharsets.UTF_8);
+
+    private static final int KEY_ITERATIONS = 100000;
+
+    private static final int ENCRYPTION_KEY_LENGTH = 16;
+
+    private static final int MAC_KEY_LENGTH = 32;
+
+    private static final int IV_LENGTH = 16;
+
+    private static final int MAC_LENGTH = 32;
+
+    /** The name of the execution context property holding the messages decrypted during the current request. */
+    private static final String CACHE_PROPERTY = "phenotips.crypto.decryptedMessages";
+
+    /**
+     * How many decrypted messages are cached in one execution context. Background threads may keep the same context for
+     * a long time, so the cache must not grow with every message they decrypt.
+     */
+    private static final int CACHE_SIZE = 1000;
+
     @Inject
     private SystemPasswordConfiguration passwordConfig;
 
-    private StrongTextEncryptor encryptor;
+    /** Provides access to the current request, where decrypted messages are cached. */
+    @Inject
+    private Execution execution;
+
+    private SecretKeySpec encryptionKey;
+
+    private SecretKeySpec macKey;
+
+    private final SecureRandom random = new SecureRandom();
+
+    /** Only used for decrypting messages encrypted with the legacy format. */
+    private StrongTextEncryptor legacyEncryptor;
 
     private StandardStringDigester digester;
 
     @Override
     public void initialize() throws InitializationException
     {
-        this.encryptor = new StrongTextEncryptor();
-        this.encryptor.setPassword(this.passwordConfig.getSystemPassword());
+        String password = this.passwordConfig.getSystemPassword();
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM);
+            byte[] keys = factory.generateSecret(new PBEKeySpec(password.toCharArray(), KEY_SALT, KEY_ITERATIONS,
+                (ENCRYPTION_KEY_LENGTH + MAC_KEY_LENGTH) * Byte.SIZE)).getEncoded();
+            this.encryptionKey = new SecretKeySpec(keys, 0, ENCRYPTION_KEY_LENGTH, "AES");
+            this.macKey = new SecretKeySpec(keys, ENCRYPTION_KEY_LENGTH, MAC_KEY_LENGTH, MAC_ALGORITHM);
+        } catch (GeneralSecurityException ex) {
+            throw new InitializationException("Failed to derive the system encryption keys", ex);
+        }
+
+        this.legacyEncryptor = new StrongTextEncryptor();
+        this.legacyEncryptor.setPassword(password);
 
         this.digester = new StandardStringDigester();
         this.digester.setAlgorithm("SHA-512");
@@ -63,13 +141,52 @@ public void initialize() throws InitializationException
     @Override
     public String encryptWithSystemKey(String message)
     {
-        return this.encryptor.encrypt(message);
+        if (message == null) {
+            return null;
+        }
+        try {
+            byte[] iv = new byte[IV_LENGTH];
+            this.random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, this.encryptionKey, new IvParameterSpec(iv));
+            byte[] ciphertext = cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
+
+            // IV, ciphertext, and the MAC of both
+            byte[] result = Arrays.copyOf(iv, IV_LENGTH + ciphertext.length + MAC_LENGTH);
+            System.arraycopy(ciphertext, 0, result, IV_LENGTH, ciphertext.length);
+            byte[] mac = computeMac(result, IV_LENGTH + ciphertext.length);
+            System.arraycopy(mac, 0, result, IV_LENGTH + ciphertext.length, MAC_LENGTH);
+            return FORMAT_PREFIX + DatatypeConverter.printBase64Binary(result);
+        } catch (GeneralSecurityException ex) {
+            throw new EncryptionOperationNotPossibleException(ex);
+        }
     }
 
     @Override
     public String decryptWithSystemKey(String encryptedMessage)
     {
-        return this.encryptor.decrypt(encryptedMessage);
+        if (encryptedMessage == null) {
+            return null;
+        }
+        Map<String, String> cache = getRequestCache();
+        String result = cache == null ? null : cache.get(encryptedMessage);
+        if (result == null) {
+            if (encryptedMessage.startsWith(FORMAT_PREFIX)) {
+                result = decrypt(encryptedMessage.substring(FORMAT_PREFIX.length()));
+            } else {
+                result = this.legacyEncryptor.decrypt(encryptedMessage);
+            }
+            if (cache != null) {
+                cache.put(encryptedMessage, result);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean needsReencryption(String encryptedMessage)
+    {
+        return encryptedMessage != null && !encryptedMessage.startsWith(FORMAT_PREFIX);
     }
 
     @Override
@@ -83,4 +200,87 @@ public boolean validateDigest(String message, String digest)
     {
         return digest == null ? false : this.digester.matches(message, digest);
     }
+
+    /**
+     * Decrypt a message encrypted with the current format, after checking that it wasn't altered.
+     *
+     * @param encodedMessage the Base64 encoded message, without the format prefix
+     * @return the decrypted message
+     * @throws EncryptionOperationNotPossibleException if the message is invalid, or wasn't encrypted with the system
+     *             key
+     */
+    private String decrypt(String encodedMessage)
+    {
+        try {
+            byte[] data = DatatypeConverter.parseBase64Binary(encodedMessage);
+            int macStart = data.length - MAC_LENGTH;
+            if (macStart < IV_LENGTH) {
+                throw new EncryptionOperationNotPossibleException();
+            }
+            byte[] mac = Arrays.copyOfRange(data, macStart, data.length);
+            if (!MessageDigest.isEqual(computeMac(data, macStart), mac)) {
+                throw new EncryptionOperationNotPossibleException();
+            }
+            Cipher cipher = Cipher.getInstance(CIPHER_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, this.encryptionKey, new IvParameterSpec(data, 0, IV_LENGTH));
+            return new String(cipher.doFinal(data, IV_LENGTH, macStart - IV_LENGTH), StandardCharsets.UTF_8);
+        } catch (GeneralSecurityException | IllegalArgumentException ex) {
+            throw new EncryptionOperationNotPossibleException(ex);
+        }
+    }
+
+    /**
+     * Compute the MAC of the start of a message, including the format prefix.
+     *
+     * @param data the message to authenticate
+     * @param length how many bytes of the message to authenticate
+     * @return the MAC
+     * @throws GeneralSecurityException if HMAC-SHA256 isn't available
+     */
+    private byte[] computeMac(byte[] data, int length) throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(this.macKey);
+        mac.update(FORMAT_PREFIX.getBytes(StandardCharsets.UTF_8));
+        mac.update(data, 0, length);
+        return mac.doFinal();
+    }
+
+    /**
+     * Get the messages already decrypted during the current request.
+     *
+     * @return a modifiable map of the most recently decrypted messages, keyed by their encrypted form, or {@code null}
+     *         if there's no request running
+     */
+    private Map<String, String> getRequestCache()
+    {
+        ExecutionContext context = this.execution.getContext();
+        if (context == null) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        Map<String, String> cache = (Map<String, String>) context.getProperty(CACHE_PROPERTY);
+        if (cache == null) {
+            cache = new DecryptedMessagesCache();
+            context.setProperty(CACHE_PROPERTY, cache);
+        }
+        return cache;
+    }
+
+    /** Keeps the {@link #CACHE_SIZE} most recently used messages, forgetting the least recently used ones. */
+    private static final class DecryptedMessagesCache extends LinkedHashMap<String, String>
+    {
+        private static final long serialVersionUID = 1L;
+
+        DecryptedMessagesCache()
+        {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+        {
+            return size() > CACHE_SIZE;
+        }
+    }
 }
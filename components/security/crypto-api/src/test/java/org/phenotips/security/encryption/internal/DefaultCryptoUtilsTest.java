@@ -0,0 +1,220 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.encryption.internal;
+
+import org.phenotips.security.encryption.CryptoUtils;
+import org.phenotips.security.encryption.SystemPasswordConfiguration;
+
+import org.xwiki.component.util.ReflectionUtils;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.Map;
+
+import javax.xml.bind.DatatypeConverter;
+
+import org.jasypt.exceptions.EncryptionOperationNotPossibleException;
+import org.jasypt.util.text.StrongTextEncryptor;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link DefaultCryptoUtils} component.
+ *
+ * @version $Id$
+ */
+public class DefaultCryptoUtilsTest
+{
+    private static final String PASSWORD = "system password";
+
+    private static final String MESSAGE = "Some secret message, with non-ASCII characters: \u00e9\u00e8";
+
+    private static final String CACHE_PROPERTY = "phenotips.crypto.decryptedMessages";
+
+    @Rule
+    public final MockitoComponentMockingRule<CryptoUtils> mocker =
+        new MockitoComponentMockingRule<CryptoUtils>(DefaultCryptoUtils.class);
+
+    private ExecutionContext context;
+
+    @Before
+    public void setup() throws Exception
+    {
+        SystemPasswordConfiguration configuration = this.mocker.getInstance(SystemPasswordConfiguration.class);
+        when(configuration.getSystemPassword()).thenReturn(PASSWORD);
+        this.context = new ExecutionContext();
+        Execution execution = this.mocker.getInstance(Execution.class);
+        when(execution.getContext()).thenReturn(this.context);
+    }
+
+    @Test
+    public void encryptedMessagesCanBeDecrypted() throws Exception
+    {
+        CryptoUtils crypto = this.mocker.getComponentUnderTest();
+        String encrypted = crypto.encryptWithSystemKey(MESSAGE);
+        Assert.assertTrue(encrypted.startsWith("v1:"));
+        Assert.assertFalse(encrypted.contains(MESSAGE));
+        Assert.assertEquals(MESSAGE, crypto.decryptWithSystemKey(encrypted));
+        Assert.assertEquals("", crypto.decryptWithSystemKey(crypto.encryptWithSystemKey("")));
+    }
+
+    @Test
+    public void encryptionUsesRandomIVs() throws Exception
+    {
+        CryptoUtils crypto = this.mocker.getComponentUnderTest();
+        String first = crypto.encryptWithSystemKey(MESSAGE);
+        String second = crypto.encryptWithSystemKey(MESSAGE);
+        Assert.assertNotEquals(first, second);
+        Assert.assertEquals(MESSAGE, crypto.decryptWithSystemKey(second));
+    }
+
+    @Test
+    public void nullMessagesAreKept() throws Exception
+    {
+        CryptoUtils crypto = this.mocker.getComponentUnderTest();
+        Assert.assertNull(crypto.encryptWithSystemKey(null));
+        Assert.assertNull(crypto.decryptWithSystemKey(null));
+        Assert.assertFalse(crypto.needsReencryption(null));
+    }
+
+    @Test
+    public void messagesWorkWithoutExecutionContext() throws Exception
+    {
+        when(this.mocker.getInstance(Execution.class).getContext()).thenReturn(null);
+        CryptoUtils crypto = this.mocker.getComponentUnderTest();
+        Assert.assertEquals(MESSAGE, crypto.decryptWithSystemKey(crypto.encryptWithSystemKey(MESSAGE)));
+    }
+
+    @Test
+    public void tamperedIVIsRejected() throws Exception
+    {
+        assertTamperingRejected(0);
+    }
+
+    @Test
+    public void tamperedCiphertextIsRejected() throws Exception
+    {
+        assertTamperingRejected(20);
+    }
+
+    @Test
+    public void tamperedMACIsRejected() throws Exception
+    {
+        assertTamperingRejected(-1);
+    }
+
+    @Test(expected = EncryptionOperationNotPossibleException.class)
+    public void truncatedMessagesAreRejected() throws Exception
+    {
+        CryptoUtils crypto = this.mocker.getComponentUnderTest();
+        crypto.decryptWithSystemKey("v1:" + DatatypeConverter.printBase64Binary(new byte[40]));
+    }
+
+    @Test(expected = EncryptionOperationNotPossibleException.class)
+    public void messagesEncryptedWithAnotherPasswordAreRejected() throws Exception
+    {
+        CryptoUtils crypto = this.mocker.getComponentUnderTest();
+        String encrypted = crypto.encryptWithSystemKey(MESSAGE);
+
+        DefaultCryptoUtils other = new DefaultCryptoUtils();
+        SystemPasswordConfiguration configuration = mock(SystemPasswordConfiguration.class);
+        when(configuration.getSystemPassword()).thenReturn("another password");
+        ReflectionUtils.setFieldValue(other, "passwordConfig", configuration);
+        ReflectionUtils.setFieldValue(other, "execution", this.mocker.getInstance(Execution.class));
+        other.initialize();
+        other.decryptWithSystemKey(encrypted);
+    }
+
+    @Test
+    public void legacyMessagesCanBeDecrypted() throws Exception
+    {
+        StrongTextEncryptor legacy = new StrongTextEncryptor();
+        legacy.setPassword(PASSWORD);
+        String encrypted = legacy.encrypt(MESSAGE);
+
+        CryptoUtils crypto = this.mocker.getComponentUnderTest();
+        Assert.assertEquals(MESSAGE, crypto.decryptWithSystemKey(encrypted));
+    }
+
+    @Test
+    public void onlyLegacyMessagesNeedReencryption() throws Exception
+    {
+        StrongTextEncryptor legacy = new StrongTextEncryptor();
+        legacy.setPassword(PASSWORD);
+
+        CryptoUtils crypto = this.mocker.getComponentUnderTest();
+        Assert.assertTrue(crypto.needsReencryption(legacy.encrypt(MESSAGE)));
+        Assert.assertFalse(crypto.needsReencryption(crypto.encryptWithSystemKey(MESSAGE)));
+    }
+
+    @Test
+    public void decryptedMessagesAreCachedInTheExecutionContext() throws Exception
+    {
+        CryptoUtils crypto = this.mocker.getComponentUnderTest();
+        String encrypted = crypto.encryptWithSystemKey(MESSAGE);
+        Assert.assertEquals(MESSAGE, crypto.decryptWithSystemKey(encrypted));
+
+        @SuppressWarnings("unchecked")
+        Map<String, String> cache = (Map<String, String>) this.context.getProperty(CACHE_PROPERTY);
+        Assert.assertEquals(MESSAGE, cache.get(encrypted));
+        cache.put(encrypted, "cached");
+        Assert.assertEquals("cached", crypto.decryptWithSystemKey(encrypted));
+    }
+
+    @Test
+    public void decryptedMessagesCacheIsBounded() throws Exception
+    {
+        CryptoUtils crypto = this.mocker.getComponentUnderTest();
+        String first = crypto.encryptWithSystemKey(MESSAGE);
+        crypto.decryptWithSystemKey(first);
+        for (int i = 0; i < 1000; ++i) {
+            crypto.decryptWithSystemKey(crypto.encryptWithSystemKey(String.valueOf(i)));
+        }
+
+        @SuppressWarnings("unchecked")
+        Map<String, String> cache = (Map<String, String>) this.context.getProperty(CACHE_PROPERTY);
+        Assert.assertEquals(1000, cache.size());
+        Assert.assertFalse(cache.containsKey(first));
+    }
+
+    /**
+     * Flips one bit of an encrypted message and checks that decrypting it fails.
+     *
+     * @param position the position of the altered byte in the decoded message, negative values counting from the end
+     */
+    private void assertTamperingRejected(int position) throws Exception
+    {
+        CryptoUtils crypto = this.mocker.getComponentUnderTest();
+        String encrypted = crypto.encryptWithSystemKey(MESSAGE);
+        byte[] data = DatatypeConverter.parseBase64Binary(encrypted.substring(3));
+        int index = position < 0 ? data.length + position : position;
+        data[index] ^= 1;
+        try {
+            crypto.decryptWithSystemKey("v1:" + DatatypeConverter.printBase64Binary(data));
+            Assert.fail("Altered messages must be rejected");
+        } catch (EncryptionOperationNotPossibleException ex) {
+            // Expected
+        }
+    }
+}
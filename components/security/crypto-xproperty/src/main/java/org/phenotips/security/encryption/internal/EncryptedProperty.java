@@ -26,7 +26,8 @@
 
 /**
  * XProperty for storing a piece of text encrypted in the database. The maximum length of the values depends on the text
- * itself, but is large enough to support even a hundred megabytes.
+ * itself, but is large enough to support even a hundred megabytes. Values encrypted with a legacy format are
+ * encrypted again with the current format when they are first read, so that the next save stores the new format.
  *
  * @version $Id$
  * @since 1.3M2
@@ -40,12 +41,19 @@ public class EncryptedProperty extends BaseStringProperty
     /** Will be pre-pended to the values of the encrypted properties to identify that they are indeed encrypted. */
     private static final String ENCRYPTED_IDENTIFIER = "e:";
 
+    /** The encryption component, looked up the first time it is needed. */
+    private transient CryptoUtils cryptoUtils;
+
     @Override
     public String getValue()
     {
         String value = super.getValue();
         if (isEncrypted(value)) {
-            return decrypt(value);
+            String result = decrypt(value);
+            if (getCryptoUtils().needsReencryption(getRawValue(value))) {
+                super.setValue(encrypt(result));
+            }
+            return result;
         }
         return value;
     }
@@ -114,6 +122,9 @@ private String getRawValue(String value)
 
     private CryptoUtils getCryptoUtils()
     {
-        return Utils.getComponent(CryptoUtils.class);
+        if (this.cryptoUtils == null) {
+            this.cryptoUtils = Utils.getComponent(CryptoUtils.class);
+        }
+        return this.cryptoUtils;
     }
 }
@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.security.encryption.internal;
+
+import org.phenotips.security.encryption.CryptoUtils;
+
+import org.xwiki.component.util.ReflectionUtils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for the {@link EncryptedProperty} XProperty.
+ *
+ * @version $Id$
+ */
+public class EncryptedPropertyTest
+{
+    private CryptoUtils crypto;
+
+    private EncryptedProperty property;
+
+    @Before
+    public void setup()
+    {
+        this.crypto = mock(CryptoUtils.class);
+        this.property = new EncryptedProperty();
+        ReflectionUtils.setFieldValue(this.property, "cryptoUtils", this.crypto);
+    }
+
+    @Test
+    public void valuesAreEncryptedWhenSet()
+    {
+        when(this.crypto.encryptWithSystemKey("secret")).thenReturn("v1:encrypted");
+        when(this.crypto.decryptWithSystemKey("v1:encrypted")).thenReturn("secret");
+
+        this.property.setValue("secret");
+
+        Assert.assertEquals("secret", this.property.getValue());
+        verify(this.crypto).decryptWithSystemKey("v1:encrypted");
+    }
+
+    @Test
+    public void encryptedValuesAreStoredUnchanged()
+    {
+        when(this.crypto.decryptWithSystemKey("v1:encrypted")).thenReturn("secret");
+
+        this.property.setValue("e:v1:encrypted");
+
+        Assert.assertEquals("secret", this.property.getValue());
+        verify(this.crypto, never()).encryptWithSystemKey("secret");
+    }
+
+    @Test
+    public void legacyValuesAreReencryptedWhenRead()
+    {
+        when(this.crypto.decryptWithSystemKey("legacy")).thenReturn("secret");
+        when(this.crypto.needsReencryption("legacy")).thenReturn(true);
+        when(this.crypto.encryptWithSystemKey("secret")).thenReturn("v1:encrypted");
+        when(this.crypto.decryptWithSystemKey("v1:encrypted")).thenReturn("secret");
+        this.property.setValue("e:legacy");
+
+        Assert.assertEquals("secret", this.property.getValue());
+        verify(this.crypto).encryptWithSystemKey("secret");
+
+        // The next reads use the new format, which isn't encrypted again
+        Assert.assertEquals("secret", this.property.getValue());
+        verify(this.crypto).decryptWithSystemKey("v1:encrypted");
+        verify(this.crypto).encryptWithSystemKey("secret");
+    }
+
+    @Test
+    public void nullValuesAreNotEncrypted()
+    {
+        this.property.setValue(null);
+        verify(this.crypto, never()).encryptWithSystemKey(null);
+    }
+}
@@ -46,4 +46,23 @@
      * @return a score between {@code 0} and {@code 1}, or {@code -1} if the score cannot be computed by this scorer
      */
     double getScore(Patient patient);
+
+    /**
+     * Retrieve the specificity score stored for a patient, without computing it. The stored score is updated in the
+     * background after the patient record changes, so it may be outdated or missing for a short while.
+     *
+     * @param patient the patient whose score is requested
+     * @return the stored specificity score, possibly outdated, or {@code null} if a score wasn't stored yet
+     * @since 1.3M2
+     */
+    PatientSpecificity getStoredSpecificity(Patient patient);
+
+    /**
+     * Compute and store the specificity score for a patient in the background, unless the stored score was already
+     * computed from the phenotypes currently in the patient record.
+     *
+     * @param patient the patient to score
+     * @since 1.3M2
+     */
+    void updateSpecificity(Patient patient);
 }
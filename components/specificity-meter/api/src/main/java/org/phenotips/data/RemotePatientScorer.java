@@ -0,0 +1,50 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data;
+
+import org.xwiki.stability.Unstable;
+
+import java.util.Map;
+
+/**
+ * A {@link PatientScorer} which relies on a remote service, and can report how healthy that service is.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Unstable
+public interface RemotePatientScorer extends PatientScorer
+{
+    /**
+     * Reports the current health of the remote service, as seen by this scorer. The returned map contains:
+     * <dl>
+     * <dt>{@code state}</dt>
+     * <dd>{@code closed} if requests are sent to the remote service, {@code open} if the remote service failed
+     * repeatedly and is no longer contacted, or {@code half-open} if a trial request is being sent after a pause</dd>
+     * <dt>{@code consecutiveFailures}</dt>
+     * <dd>the number of requests that failed since the last successful one</dd>
+     * <dt>{@code latency}</dt>
+     * <dd>a histogram of the duration of the requests sent to the remote service, mapping the upper bound of each
+     * bucket, in milliseconds, to the number of requests which took at most that long; the last bucket, {@code +Inf},
+     * counts the slower requests</dd>
+     * </dl>
+     *
+     * @return a map with the status information, never {@code null}
+     */
+    Map<String, Object> getStatus();
+}
@@ -0,0 +1,157 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps track of the health of a remote service, and stops sending requests to it after several consecutive failures.
+ * After a pause, a single trial request is let through; if it succeeds, requests are sent again normally, otherwise the
+ * pause starts over. The duration of the requests is also recorded in a histogram.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+class CircuitBreaker
+{
+    /** The upper bounds of the latency histogram buckets, in milliseconds. */
+    private static final long[] LATENCY_BUCKETS = new long[] { 50, 100, 250, 500, 1000, 2000, 5000 };
+
+    /** The possible states of the breaker. */
+    enum State
+    {
+        /** Requests are sent normally. */
+        CLOSED,
+        /** The service is considered down, requests fail right away. */
+        OPEN,
+        /** A trial request was let through, the others fail right away until it completes. */
+        HALF_OPEN
+    }
+
+    /** How many consecutive failures open the breaker. */
+    private final int failureThreshold;
+
+    /** How long the breaker stays open before a trial request is let through, in milliseconds. */
+    private final long openDuration;
+
+    /** The number of requests in each latency bucket, the last one counting the requests slower than all buckets. */
+    private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+
+    private State state = State.CLOSED;
+
+    private int consecutiveFailures;
+
+    /** When was the breaker last opened. */
+    private long openedAt;
+
+    /**
+     * Simple constructor passing the breaker configuration.
+     *
+     * @param failureThreshold how many consecutive failures open the breaker
+     * @param openDuration how long the breaker stays open before a trial request is let through, in milliseconds
+     */
+    CircuitBreaker(int failureThreshold, long openDuration)
+    {
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Checks if a request may be sent to the remote service. If this returns {@code true}, the outcome of the request
+     * must be reported using either {@link #recordSuccess(long)} or {@link #recordFailure(long)}.
+     *
+     * @return {@code true} if the request can be sent, {@code false} if it should fail right away
+     */
+    synchronized boolean allowRequest()
+    {
+        if (this.state == State.CLOSED) {
+            return true;
+        }
+        if (this.state == State.OPEN && System.currentTimeMillis() - this.openedAt >= this.openDuration) {
+            this.state = State.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reports a successful request, closing the breaker.
+     *
+     * @param duration how long the request took, in milliseconds
+     */
+    synchronized void recordSuccess(long duration)
+    {
+        recordLatency(duration);
+        this.consecutiveFailures = 0;
+        this.state = State.CLOSED;
+    }
+
+    /**
+     * Reports a failed request, opening the breaker if the trial request failed, or if too many requests failed.
+     *
+     * @param duration how long the request took, in milliseconds
+     */
+    synchronized void recordFailure(long duration)
+    {
+        recordLatency(duration);
+        ++this.consecutiveFailures;
+        if (this.state == State.HALF_OPEN || this.consecutiveFailures >= this.failureThreshold) {
+            this.state = State.OPEN;
+            this.openedAt = System.currentTimeMillis();
+        }
+    }
+
+    synchronized State getState()
+    {
+        return this.state;
+    }
+
+    /**
+     * Reports the state of the breaker and the latency histogram, as described in
+     * {@link org.phenotips.data.RemotePatientScorer#getStatus()}.
+     *
+     * @return a map with the status information
+     */
+    Map<String, Object> getStatus()
+    {
+        Map<String, Object> result = new LinkedHashMap<>();
+        synchronized (this) {
+            result.put("state", this.state.name().toLowerCase(Locale.ROOT).replace('_', '-'));
+            result.put("consecutiveFailures", this.consecutiveFailures);
+        }
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < LATENCY_BUCKETS.length; ++i) {
+            histogram.put(String.valueOf(LATENCY_BUCKETS[i]), this.latencies.get(i));
+        }
+        histogram.put("+Inf", this.latencies.get(LATENCY_BUCKETS.length));
+        result.put("latency", histogram);
+        return result;
+    }
+
+    private void recordLatency(long duration)
+    {
+        int bucket = 0;
+        while (bucket < LATENCY_BUCKETS.length && duration > LATENCY_BUCKETS[bucket]) {
+            ++bucket;
+        }
+        this.latencies.incrementAndGet(bucket);
+    }
+}
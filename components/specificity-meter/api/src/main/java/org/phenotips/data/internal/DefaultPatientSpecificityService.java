@@ -17,28 +17,71 @@
  */
 package org.phenotips.data.internal;
 
+import org.phenotips.data.Feature;
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientScorer;
 import org.phenotips.data.PatientSpecificity;
 import org.phenotips.data.PatientSpecificityService;
 
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.StringUtils;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiHibernateStore;
+
 /**
  * Default specificity computation, using the MONARCH initiative service, and, if that isn't available, falling back to
- * a local information content score.
+ * a local information content score. Computed scores are stored as {@link StoredPatientSpecificity} entities in the
+ * database of the wiki holding each patient, along with the phenotypes they were computed from, so that displaying a
+ * patient doesn't have to wait for the remote service, and updating a score doesn't add a new version to the patient
+ * history. Reading a stored score never triggers a computation; scores are recomputed in the background, by a small
+ * pool of workers, only when a patient is changed and its phenotypes don't match the stored ones anymore.
  *
  * @version $Id$
  * @since 1.0M12
  */
 @Component
 @Singleton
-public class DefaultPatientSpecificityService implements PatientSpecificityService
+public class DefaultPatientSpecificityService implements PatientSpecificityService, Initializable, Disposable
 {
+    /** The default number of worker threads. */
+    private static final int DEFAULT_WORKERS = 1;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
     /** The default, high quality scorer. */
     @Inject
     @Named("monarch")
@@ -49,6 +92,48 @@ public class DefaultPatientSpecificityService implements PatientSpecificityServi
     @Named("omimInformationContent")
     private PatientScorer omimScorer;
 
+    /** Serializes the patient document names, used as the identifiers of the stored scores. */
+    @Inject
+    @Named("local")
+    private EntityReferenceSerializer<String> serializer;
+
+    /** The current request context, needed when working with the XWiki old core. */
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /** Used for setting up a context in the background workers. */
+    @Inject
+    private Execution execution;
+
+    /** Used for setting up a context in the background workers. */
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    /** Provides access to the configured number of workers. */
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    /** The latest version of each patient waiting to be scored, keyed by the patient document. */
+    private final ConcurrentMap<String, Patient> pending = new ConcurrentHashMap<>();
+
+    /** Runs the background score computations. */
+    private ExecutorService workers;
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        Integer workerCount = this.configuration.getProperty("phenotips.patientScoring.workers", Integer.class);
+        this.workers = Executors.newFixedThreadPool(workerCount == null || workerCount <= 0 ? DEFAULT_WORKERS
+            : workerCount, new WorkerThreadFactory());
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.workers.shutdownNow();
+    }
+
     @Override
     public PatientSpecificity getSpecificity(Patient patient)
     {
@@ -72,4 +157,177 @@ public double getScore(Patient patient)
         }
         return score;
     }
+
+    @Override
+    public PatientSpecificity getStoredSpecificity(Patient patient)
+    {
+        if (patient == null || patient.getDocument() == null) {
+            return null;
+        }
+        StoredPatientSpecificity stored = getStored(patient.getDocument());
+        return stored == null ? null : stored.getSpecificity();
+    }
+
+    @Override
+    public void updateSpecificity(Patient patient)
+    {
+        if (patient != null && patient.getDocument() != null) {
+            schedule(patient);
+        }
+    }
+
+    private void schedule(Patient patient)
+    {
+        String key = patient.getDocument().toString();
+        // If the patient is already waiting, only replace it with the latest version
+        if (this.pending.put(key, patient) == null) {
+            this.workers.execute(new ScoreUpdate(key));
+        }
+    }
+
+    /**
+     * Computes and stores the score of a patient, unless the stored score is still valid.
+     *
+     * @param patient the patient to score
+     */
+    private void update(Patient patient)
+    {
+        final String inputs = getInputs(patient);
+        StoredPatientSpecificity stored = getStored(patient.getDocument());
+        if (stored != null && StringUtils.equals(inputs, stored.getInputs())) {
+            return;
+        }
+        final PatientSpecificity spec = getSpecificity(patient);
+        if (spec == null || spec.getComputationDate() == null) {
+            return;
+        }
+        final String name = this.serializer.serialize(patient.getDocument());
+        try {
+            inWiki(patient.getDocument(), true, new HibernateCallback<Void>()
+            {
+                @Override
+                public Void doInHibernate(Session session) throws HibernateException
+                {
+                    StoredPatientSpecificity result =
+                        (StoredPatientSpecificity) session.get(StoredPatientSpecificity.class, name);
+                    if (result == null) {
+                        result = new StoredPatientSpecificity(name);
+                        result.setSpecificity(spec, inputs);
+                        session.save(result);
+                    } else {
+                        // The loaded entity is saved automatically when the transaction is committed
+                        result.setSpecificity(spec, inputs);
+                    }
+                    return null;
+                }
+            });
+        } catch (XWikiException ex) {
+            this.logger.warn("Failed to store the specificity score for patient [{}]: {}", patient.getDocument(),
+                ex.getMessage());
+        }
+    }
+
+    private StoredPatientSpecificity getStored(DocumentReference document)
+    {
+        final String name = this.serializer.serialize(document);
+        try {
+            return inWiki(document, false, new HibernateCallback<StoredPatientSpecificity>()
+            {
+                @Override
+                public StoredPatientSpecificity doInHibernate(Session session) throws HibernateException
+                {
+                    return (StoredPatientSpecificity) session.get(StoredPatientSpecificity.class, name);
+                }
+            });
+        } catch (XWikiException ex) {
+            this.logger.warn("Failed to read the specificity score for patient [{}]: {}", document, ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Runs a callback in a transaction on the database of the wiki holding a patient record.
+     *
+     * @param document the patient document
+     * @param write whether the callback changes the database
+     * @param callback the callback to run
+     * @return the result of the callback
+     * @throws XWikiException if accessing the database fails
+     */
+    private <T> T inWiki(DocumentReference document, boolean write, HibernateCallback<T> callback)
+        throws XWikiException
+    {
+        XWikiContext context = this.xcontextProvider.get();
+        String currentWiki = context.getWikiId();
+        try {
+            context.setWikiId(document.getWikiReference().getName());
+            XWikiHibernateStore store = context.getWiki().getHibernateStore();
+            return write ? store.executeWrite(context, callback) : store.executeRead(context, callback);
+        } finally {
+            context.setWikiId(currentWiki);
+        }
+    }
+
+    /**
+     * Lists the phenotypes that a score is computed from, in a stable order.
+     *
+     * @param patient the patient to score
+     * @return a comma separated list of the patient's phenotype identifiers, with absent phenotypes prefixed by
+     *         {@code -}
+     */
+    private String getInputs(Patient patient)
+    {
+        List<String> inputs = new ArrayList<>();
+        for (Feature f : patient.getFeatures()) {
+            if (StringUtils.isNotEmpty(f.getId())) {
+                inputs.add(f.isPresent() ? f.getId() : "-" + f.getId());
+            }
+        }
+        Collections.sort(inputs);
+        return StringUtils.join(inputs, ',');
+    }
+
+    /** Scores one pending patient, in a new execution context. */
+    private final class ScoreUpdate implements Runnable
+    {
+        private final String key;
+
+        ScoreUpdate(String key)
+        {
+            this.key = key;
+        }
+
+        @Override
+        public void run()
+        {
+            Patient patient = DefaultPatientSpecificityService.this.pending.remove(this.key);
+            if (patient == null) {
+                return;
+            }
+            try {
+                ExecutionContext context = new ExecutionContext();
+                DefaultPatientSpecificityService.this.execution.setContext(context);
+                DefaultPatientSpecificityService.this.executionContextManager.initialize(context);
+                update(patient);
+            } catch (Exception ex) {
+                DefaultPatientSpecificityService.this.logger.warn(
+                    "Failed to update the specificity score for patient [{}]: {}", this.key, ex.getMessage());
+            } finally {
+                DefaultPatientSpecificityService.this.execution.removeContext();
+            }
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread result = new Thread(task, "Patient specificity scorer " + this.counter.incrementAndGet());
+            result.setDaemon(true);
+            return result;
+        }
+    }
 }
@@ -21,6 +21,7 @@
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientScorer;
 import org.phenotips.data.PatientSpecificity;
+import org.phenotips.data.RemotePatientScorer;
 
 import org.xwiki.cache.Cache;
 import org.xwiki.cache.CacheException;
@@ -28,6 +29,8 @@
 import org.xwiki.cache.config.CacheConfiguration;
 import org.xwiki.cache.config.LRUCacheConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.configuration.ConfigurationSource;
@@ -43,7 +46,13 @@
 import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Map;
 import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -56,12 +65,17 @@
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.ssl.SSLContexts;
 import org.apache.http.ssl.TrustStrategy;
 import org.apache.http.util.EntityUtils;
@@ -70,18 +84,23 @@
 import org.slf4j.Logger;
 
 /**
- * Patient scorer that uses the remote service offered by the MONARCH initiative.
+ * Patient scorer that uses the remote service offered by the MONARCH initiative. Requests are sent through a pool of
+ * persistent connections, with configurable connect, read and overall timeouts. After several consecutive failures the
+ * remote service is no longer contacted for a while, and scoring fails right away, letting the caller fall back to a
+ * local scorer instead of waiting for a service which is down.
  *
  * @version $Id$
  * @since 1.0M12
  */
-@Component
+@Component(roles = { PatientScorer.class })
 @Named("monarch")
 @Singleton
-public class MonarchPatientScorer implements PatientScorer, Initializable
+public class MonarchPatientScorer implements RemotePatientScorer, Initializable, Disposable
 {
     private static final String SCORER_NAME = "monarchinitiative.org";
 
+    private static final String CONFIGURATION_PREFIX = "phenotips.patientScoring.monarch.";
+
     @Inject
     private Logger logger;
 
@@ -94,6 +113,18 @@ public class MonarchPatientScorer implements PatientScorer, Initializable
     /** The HTTP client used for contacting the MONARCH server. */
     private CloseableHttpClient client;
 
+    /** The default request configuration, holding the connect and read timeouts. */
+    private RequestConfig requestConfig;
+
+    /** The maximum duration of a request, in milliseconds, after which the request is aborted. */
+    private int requestTimeout;
+
+    /** Aborts the requests that take longer than {@link #requestTimeout}. */
+    private ScheduledExecutorService timer;
+
+    /** Stops contacting the MONARCH server while it is failing. */
+    private CircuitBreaker breaker;
+
     @Inject
     private CacheManager cacheManager;
 
@@ -104,23 +135,56 @@ public void initialize() throws InitializationException
     {
         try {
             this.scorerURL = this.configuration
-                .getProperty("phenotips.patientScoring.monarch.serviceURL", "https://monarchinitiative.org/score");
+                .getProperty(CONFIGURATION_PREFIX + "serviceURL", "https://monarchinitiative.org/score");
             CacheConfiguration config = new LRUCacheConfiguration("monarchSpecificityScore", 2048, 3600);
             this.cache = this.cacheManager.createNewCache(config);
         } catch (CacheException ex) {
             throw new InitializationException("Failed to create cache", ex);
         }
+        SSLConnectionSocketFactory sslsf;
         try {
             SSLContext sslcontext = SSLContexts.custom().loadTrustMaterial(null, new TrustAllStrategy()).build();
-            SSLConnectionSocketFactory sslsf = new SSLConnectionSocketFactory(sslcontext, null, null,
-                NoopHostnameVerifier.INSTANCE);
-            this.client = HttpClients.custom().setSSLSocketFactory(sslsf).build();
+            sslsf = new SSLConnectionSocketFactory(sslcontext, null, null, NoopHostnameVerifier.INSTANCE);
         } catch (KeyManagementException | NoSuchAlgorithmException | KeyStoreException ex) {
             this.logger.warn("Failed to set custom certificate trust, using the default", ex);
-            this.client = HttpClients.createSystem();
+            sslsf = SSLConnectionSocketFactory.getSocketFactory();
+        }
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory()).register("https", sslsf).build();
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+        int maxConnections = getConfiguredValue("maxConnections", 20);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        int connectTimeout = getConfiguredValue("connectTimeout", 1000);
+        this.requestConfig = RequestConfig.custom().setConnectTimeout(connectTimeout)
+            .setConnectionRequestTimeout(connectTimeout).setSocketTimeout(getConfiguredValue("readTimeout", 2000))
+            .build();
+        this.requestTimeout = getConfiguredValue("requestTimeout", 5000);
+        this.client = HttpClients.custom().setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(this.requestConfig).build();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new TimerThreadFactory());
+        this.breaker = new CircuitBreaker(getConfiguredValue("failureThreshold", 5),
+            getConfiguredValue("retryInterval", 60000));
+    }
+
+    @Override
+    public void dispose() throws ComponentLifecycleException
+    {
+        this.timer.shutdownNow();
+        try {
+            this.client.close();
+        } catch (IOException ex) {
+            // Not dangerous
         }
     }
 
+    @Override
+    public Map<String, Object> getStatus()
+    {
+        return this.breaker.getStatus();
+    }
+
     @Override
     public PatientSpecificity getSpecificity(Patient patient)
     {
@@ -148,7 +212,13 @@ public double getScore(Patient patient)
             this.cache.set(key, new PatientSpecificity(0, now(), SCORER_NAME));
             return 0;
         }
+        if (!this.breaker.allowRequest()) {
+            this.logger.debug("The monarch server [{}] is failing, not sending requests", this.scorerURL);
+            return -1;
+        }
         CloseableHttpResponse response = null;
+        ScheduledFuture<?> deadline = null;
+        long start = System.currentTimeMillis();
         try {
             JSONObject data = new JSONObject();
             JSONArray features = new JSONArray();
@@ -163,22 +233,34 @@ public double getScore(Patient patient)
             }
             data.put("features", features);
 
-            HttpPost method = new HttpPost(this.scorerURL);
+            final HttpPost method = new HttpPost(this.scorerURL);
             method.setEntity(new StringEntity("annotation_profile=" + URLEncoder.encode(data.toString(), "UTF-8"),
                 ContentType.create("application/x-www-form-urlencoded", Consts.UTF_8)));
+            method.setConfig(this.requestConfig);
+            deadline = this.timer.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    method.abort();
+                }
+            }, this.requestTimeout, TimeUnit.MILLISECONDS);
 
-            RequestConfig config = RequestConfig.custom().setSocketTimeout(2000).build();
-            method.setConfig(config);
             response = this.client.execute(method);
             JSONObject score = new JSONObject(IOUtils.toString(response.getEntity().getContent()));
             specificity = new PatientSpecificity(score.getDouble("scaled_score"), now(), SCORER_NAME);
+            this.breaker.recordSuccess(System.currentTimeMillis() - start);
             this.cache.set(key, specificity);
             return specificity.getScore();
         } catch (Exception ex) {
+            this.breaker.recordFailure(System.currentTimeMillis() - start);
             // Just return failure below
             this.logger.error("Failed to compute specificity score for patient [{}] using the monarch server [{}]: {}",
                 patient.getDocument(), this.scorerURL, ex.getMessage());
         } finally {
+            if (deadline != null) {
+                deadline.cancel(false);
+            }
             if (response != null) {
                 try {
                     EntityUtils.consumeQuietly(response.getEntity());
@@ -210,6 +292,23 @@ private Date now()
         return Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ROOT).getTime();
     }
 
+    private int getConfiguredValue(String name, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(CONFIGURATION_PREFIX + name, Integer.class);
+        return value == null || value <= 0 ? defaultValue : value;
+    }
+
+    private static final class TimerThreadFactory implements ThreadFactory
+    {
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread result = new Thread(task, "Monarch request timer");
+            result.setDaemon(true);
+            return result;
+        }
+    }
+
     private static final class TrustAllStrategy implements TrustStrategy
     {
         @Override
@@ -28,12 +28,20 @@
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -42,10 +50,14 @@
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
 
 /**
  * Patient scorer that computes a local score based on the information content provided by the selected positive and
- * negative features with regards to identifying OMIM disorders.
+ * negative features with regards to identifying OMIM disorders. The number of disorders annotated with each phenotype
+ * is computed from the stored phenotypes of all the OMIM disorders, loaded with a single query and expanded with their
+ * HPO ancestors, and kept in memory until the OMIM index is rebuilt, so that scoring a patient doesn't need to query
+ * the index at all.
  *
  * @version $Id$
  * @since 1.0M12
@@ -57,6 +69,21 @@ public class OmimInformationContentPatientScorer implements PatientScorer, Initi
 {
     private static final String SEARCH_FOR = "symptom";
 
+    /**
+     * The phenotypes directly annotated on a disorder. Unlike {@link #SEARCH_FOR}, which also holds their ancestors,
+     * this field is stored in the index, so its values can be retrieved.
+     */
+    private static final String ANNOTATED_PHENOTYPES = "actual_symptom";
+
+    private static final String ROOT_PHENOTYPE = "HP:0000001";
+
+    /** How often to check if the OMIM index was rebuilt, in milliseconds. */
+    private static final long VERSION_CHECK_INTERVAL = 3600000L;
+
+    /** Logging helper object. */
+    @Inject
+    private Logger logger;
+
     /** Provides access to the OMIM ontology, where the information content is checked. */
     @Inject
     @Named("omim")
@@ -70,10 +97,17 @@ public class OmimInformationContentPatientScorer implements PatientScorer, Initi
     /** The total information present in OMIM that is reachable through phenotypes. */
     private double totalTerms;
 
+    /** The precomputed information content of phenotypes, {@code null} if not loaded yet. */
+    private volatile InformationContentTable table;
+
+    /** When should the OMIM index version be checked again. */
+    private volatile long nextVersionCheck;
+
     @Override
     public void initialize() throws InitializationException
     {
-        this.totalTerms = this.omim.count(Collections.singletonMap(SEARCH_FOR, "HP:0000001"));
+        this.totalTerms = this.omim.count(Collections.singletonMap(SEARCH_FOR, ROOT_PHENOTYPE));
+        getTable();
     }
 
     @Override
@@ -127,8 +161,22 @@ private Pair<Double, Integer> process(Patient p, boolean presentFeatures)
      */
     private double informationContent(Feature f)
     {
-        String toSearch = f.getId();
-        double ic = informationContent(this.omim.count(Collections.singletonMap(SEARCH_FOR, toSearch)));
+        InformationContentTable currentTable = getTable();
+        if (currentTable.isEmpty()) {
+            return ancestorFallbackContent(f.getId(), null);
+        }
+        Double result = currentTable.featureContent.get(f.getId());
+        if (result == null) {
+            result = ancestorFallbackContent(f.getId(), currentTable);
+            currentTable.featureContent.put(f.getId(), result);
+        }
+        return result;
+    }
+
+    private double ancestorFallbackContent(String featureId, InformationContentTable currentTable)
+    {
+        String toSearch = featureId;
+        double ic = phenotypeContent(toSearch, currentTable);
         int i = 0;
 
         while (ic == 0 && ++i < 5) {
@@ -141,24 +189,187 @@ private double informationContent(Feature f)
                 break;
             }
             toSearch = parents.iterator().next().getId();
-            ic = informationContent(this.omim.count(Collections.singletonMap(SEARCH_FOR, toSearch)));
+            ic = phenotypeContent(toSearch, currentTable);
         }
         return ic * (1 + i / 5);
     }
 
+    /**
+     * The information content of a single phenotype, taken from the precomputed table if available, or by querying the
+     * OMIM index otherwise.
+     *
+     * @param phenotype the identifier of the phenotype to measure
+     * @param currentTable the precomputed table, or {@code null} if it isn't available
+     * @return the information content captured by this phenotype
+     */
+    private double phenotypeContent(String phenotype, InformationContentTable currentTable)
+    {
+        if (currentTable != null) {
+            return currentTable.get(phenotype);
+        }
+        return informationContent(this.omim.count(Collections.singletonMap(SEARCH_FOR, phenotype)), this.totalTerms);
+    }
+
     /**
      * How much information is contained in {@code n} terms out of the whole ontology?
      *
      * @param n the number of selected terms
+     * @param total the total number of terms
      * @return the information content captured by the selected terms
      */
-    private double informationContent(long n)
+    private static double informationContent(long n, double total)
+    {
+        return n == 0 ? 0 : -Math.log((n * 1.0) / total) / Math.log(2);
+    }
+
+    /**
+     * Returns the precomputed information content table, loading it if it wasn't loaded yet, or if the OMIM index was
+     * rebuilt since it was loaded. The OMIM index version is checked at most once every hour.
+     *
+     * @return the current table, empty if it couldn't be loaded
+     */
+    private InformationContentTable getTable()
     {
-        return n == 0 ? 0 : -Math.log((n * 1.0) / this.totalTerms) / Math.log(2);
+        InformationContentTable result = this.table;
+        long now = System.currentTimeMillis();
+        if (result != null && now < this.nextVersionCheck) {
+            return result;
+        }
+        synchronized (this) {
+            if (this.table == null || now >= this.nextVersionCheck) {
+                String version = this.omim.getVersion();
+                if (this.table == null || this.table.isEmpty() || !StringUtils.equals(version, this.table.version)) {
+                    this.table = loadTable(version);
+                }
+                this.nextVersionCheck = now + VERSION_CHECK_INTERVAL;
+            }
+            return this.table;
+        }
+    }
+
+    /**
+     * Counts how many OMIM disorders are annotated with each phenotype, using a single query that retrieves the
+     * phenotypes of all the disorders, and computes the information content of each phenotype. As when the OMIM index
+     * is built, a disorder annotated with a phenotype is also counted for all the ancestors of that phenotype.
+     *
+     * @param version the version of the OMIM index being loaded
+     * @return the loaded table, empty if loading failed
+     */
+    private InformationContentTable loadTable(String version)
+    {
+        Map<String, Integer> counts = new HashMap<>();
+        try {
+            Map<String, String> options = new HashMap<>();
+            options.put("rows", String.valueOf(Math.max(1, (long) this.totalTerms)));
+            options.put("fl", "id " + ANNOTATED_PHENOTYPES);
+            options.put("spellcheck", Boolean.toString(false));
+            List<VocabularyTerm> disorders =
+                this.omim.search(Collections.singletonMap(SEARCH_FOR, ROOT_PHENOTYPE), options);
+            List<Collection<?>> annotations = new ArrayList<>(disorders.size());
+            Set<String> annotatedPhenotypes = new HashSet<>();
+            for (VocabularyTerm disorder : disorders) {
+                Object phenotypes = disorder.get(ANNOTATED_PHENOTYPES);
+                if (phenotypes instanceof Collection) {
+                    annotations.add((Collection<?>) phenotypes);
+                    for (Object phenotype : (Collection<?>) phenotypes) {
+                        annotatedPhenotypes.add(String.valueOf(phenotype));
+                    }
+                }
+            }
+            Map<String, Set<String>> ancestors = getAncestorsAndSelf(annotatedPhenotypes);
+            Set<String> disorderPhenotypes = new HashSet<>();
+            for (Collection<?> phenotypes : annotations) {
+                disorderPhenotypes.clear();
+                for (Object phenotype : phenotypes) {
+                    Set<String> phenotypeAncestors = ancestors.get(String.valueOf(phenotype));
+                    if (phenotypeAncestors != null) {
+                        disorderPhenotypes.addAll(phenotypeAncestors);
+                    }
+                }
+                for (String id : disorderPhenotypes) {
+                    Integer count = counts.get(id);
+                    counts.put(id, count == null ? 1 : count + 1);
+                }
+            }
+        } catch (RuntimeException ex) {
+            this.logger.warn("Failed to load the OMIM phenotype annotations: {}", ex.getMessage());
+            counts.clear();
+        }
+        return new InformationContentTable(version, counts, counts.get(ROOT_PHENOTYPE));
+    }
+
+    /**
+     * Looks up the ancestors of the given phenotypes in HPO, all at once. Identifiers not found with a bulk lookup,
+     * such as alternative identifiers, are looked up one by one.
+     *
+     * @param phenotypes the identifiers of the phenotypes to look up
+     * @return the identifiers of each phenotype and its ancestors, keyed by the requested identifier; phenotypes
+     *         unknown to HPO are missing
+     */
+    private Map<String, Set<String>> getAncestorsAndSelf(Set<String> phenotypes)
+    {
+        Map<String, Set<String>> result = new HashMap<>();
+        for (VocabularyTerm term : this.hpo.getTerms(phenotypes)) {
+            if (term != null && phenotypes.contains(term.getId())) {
+                result.put(term.getId(), getIds(term.getAncestorsAndSelf()));
+            }
+        }
+        for (String phenotype : phenotypes) {
+            if (!result.containsKey(phenotype)) {
+                VocabularyTerm term = this.hpo.getTerm(phenotype);
+                if (term != null) {
+                    result.put(phenotype, getIds(term.getAncestorsAndSelf()));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> getIds(Collection<VocabularyTerm> terms)
+    {
+        Set<String> result = new HashSet<>();
+        for (VocabularyTerm term : terms) {
+            result.add(term.getId());
+        }
+        return result;
     }
 
     private Date now()
     {
         return Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.ROOT).getTime();
     }
+
+    /** The information content of each phenotype annotated in OMIM. */
+    private static final class InformationContentTable
+    {
+        /** The version of the OMIM index this table was computed from. */
+        private final String version;
+
+        /** The information content of each annotated phenotype; phenotypes with no annotations are missing. */
+        private final Map<String, Double> phenotypeContent = new HashMap<>();
+
+        /** The information content of each feature, including the fallback to ancestors for unannotated phenotypes. */
+        private final ConcurrentMap<String, Double> featureContent = new ConcurrentHashMap<>();
+
+        InformationContentTable(String version, Map<String, Integer> counts, Integer total)
+        {
+            this.version = version;
+            if (total != null) {
+                for (Map.Entry<String, Integer> count : counts.entrySet()) {
+                    this.phenotypeContent.put(count.getKey(), informationContent(count.getValue(), total));
+                }
+            }
+        }
+
+        boolean isEmpty()
+        {
+            return this.phenotypeContent.isEmpty();
+        }
+
+        double get(String phenotype)
+        {
+            Double result = this.phenotypeContent.get(phenotype);
+            return result == null ? 0 : result;
+        }
+    }
 }
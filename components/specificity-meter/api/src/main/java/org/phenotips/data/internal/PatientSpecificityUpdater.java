@@ -0,0 +1,59 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientSpecificityService;
+import org.phenotips.data.events.PatientChangedEvent;
+import org.phenotips.data.events.PatientEvent;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+/**
+ * Monitors patient changes and asks the {@link PatientSpecificityService specificity service} to update the stored
+ * specificity score in the background.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Component
+@Named("patient-specificity-updater")
+@Singleton
+public class PatientSpecificityUpdater extends AbstractEventListener
+{
+    /** Computes and stores the score in the background. */
+    @Inject
+    private PatientSpecificityService service;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public PatientSpecificityUpdater()
+    {
+        super("patient-specificity-updater", new PatientChangedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        this.service.updateSpecificity(((PatientEvent) event).getPatient());
+    }
+}
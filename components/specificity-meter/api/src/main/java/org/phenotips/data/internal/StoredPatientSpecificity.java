@@ -0,0 +1,121 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.phenotips.data.PatientSpecificity;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * The specificity score last computed for a patient, stored in the database of the wiki holding the patient record,
+ * next to the phenotypes it was computed from. Keeping it out of the patient document means that updating the score
+ * doesn't add a new version to the patient's history.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@Entity
+public class StoredPatientSpecificity
+{
+    /** The name of the patient document, without the wiki prefix. */
+    @Id
+    private String document;
+
+    /** The computed score. */
+    @Column(nullable = false)
+    private double score;
+
+    /** When was the score computed. */
+    @Column(nullable = false)
+    @Temporal(TemporalType.TIMESTAMP)
+    private Date date;
+
+    /** The method used for computing the score. */
+    private String server;
+
+    /** The phenotypes that the score was computed from. */
+    @Lob
+    private String inputs;
+
+    /** Default constructor used by Hibernate. */
+    protected StoredPatientSpecificity()
+    {
+        // Nothing to do, Hibernate will populate all the fields from the database
+    }
+
+    /**
+     * Creates a new stored score.
+     *
+     * @param document the name of the patient document, without the wiki prefix
+     */
+    public StoredPatientSpecificity(String document)
+    {
+        this.document = document;
+    }
+
+    /**
+     * The scored patient.
+     *
+     * @return the name of the patient document, without the wiki prefix
+     */
+    public String getDocument()
+    {
+        return this.document;
+    }
+
+    /**
+     * The stored score, along with its metadata.
+     *
+     * @return the stored specificity
+     */
+    public PatientSpecificity getSpecificity()
+    {
+        return new PatientSpecificity(this.score, this.date, this.server);
+    }
+
+    /**
+     * The phenotypes that the stored score was computed from.
+     *
+     * @return a comma separated list of phenotype identifiers, as computed by the specificity service
+     */
+    public String getInputs()
+    {
+        return this.inputs;
+    }
+
+    /**
+     * Replaces the stored score.
+     *
+     * @param specificity the new score, along with its metadata
+     * @param inputs the phenotypes that the new score was computed from
+     */
+    public void setSpecificity(PatientSpecificity specificity, String inputs)
+    {
+        this.score = specificity.getScore();
+        this.date = specificity.getComputationDate();
+        this.server = specificity.getComputingMethod();
+        this.inputs = inputs;
+    }
+}
@@ -24,6 +24,7 @@
 import org.phenotips.data.PatientSpecificity;
 import org.phenotips.data.PatientSpecificityService;
 
+import org.xwiki.bridge.DocumentModelBridge;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
@@ -46,7 +47,7 @@
 import org.json.JSONObject;
 
 /**
- * Exposes the patient profile specificity.
+ * Exposes the patient profile specificity, as last computed and stored by the {@link PatientSpecificityService}.
  *
  * @version $Id$
  * @since 1.0M12
@@ -76,7 +77,7 @@ public void initialize() throws InitializationException
     @Override
     public PatientData<Object> load(Patient patient)
     {
-        PatientSpecificity spec = this.service.getSpecificity(patient);
+        PatientSpecificity spec = this.service.getStoredSpecificity(patient);
         if (spec != null) {
             Map<String, Object> data = new LinkedHashMap<String, Object>();
             data.put("score", spec.getScore());
@@ -90,7 +91,14 @@ public PatientData<Object> load(Patient patient)
     @Override
     public void save(Patient patient)
     {
-        // Nothing to save, the score is always computed
+        // Nothing to save, the score is stored by the specificity service
+    }
+
+    @Override
+    public boolean save(Patient patient, DocumentModelBridge doc)
+    {
+        // Nothing to save, the score is stored by the specificity service
+        return false;
     }
 
     @Override
@@ -123,7 +131,7 @@ public void writeJSON(Patient patient, JSONObject json, Collection<String> selec
     @Override
     public PatientData<Object> readJSON(JSONObject json)
     {
-        // No need to read this, the score is not persisted
+        // No need to read this, the score is computed from the phenotypes
         return null;
     }
 
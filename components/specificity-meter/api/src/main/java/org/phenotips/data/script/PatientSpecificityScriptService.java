@@ -22,7 +22,9 @@
 import org.phenotips.data.FeatureMetadatum;
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientData;
+import org.phenotips.data.PatientScorer;
 import org.phenotips.data.PatientSpecificityService;
+import org.phenotips.data.RemotePatientScorer;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.DocumentReference;
@@ -59,6 +61,11 @@ public class PatientSpecificityScriptService implements ScriptService
     @Inject
     private PatientSpecificityService service;
 
+    /** The remote scorer, whose health can be inspected. */
+    @Inject
+    @Named("monarch")
+    private PatientScorer monarchScorer;
+
     /**
      * Compute the raw specificity score for a patient.
      *
@@ -84,6 +91,22 @@ public double getScore(String[] features, String[] negativeFeatures)
         return this.service.getScore(patient);
     }
 
+    /**
+     * Reports the health of the remote MONARCH scoring service: whether requests are currently sent to it, and how long
+     * they took.
+     *
+     * @return the status information, as described in {@link RemotePatientScorer#getStatus()}, or an empty map if the
+     *         scorer doesn't report its status
+     * @since 1.3M2
+     */
+    public Map<String, Object> getMonarchStatus()
+    {
+        if (this.monarchScorer instanceof RemotePatientScorer) {
+            return ((RemotePatientScorer) this.monarchScorer).getStatus();
+        }
+        return Collections.emptyMap();
+    }
+
     private static final class FakeFeature implements Feature
     {
         private final String id;
@@ -17,15 +17,26 @@
  */
 package org.phenotips.data.internal;
 
+import org.phenotips.data.Feature;
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientScorer;
 import org.phenotips.data.PatientSpecificity;
 import org.phenotips.data.PatientSpecificityService;
 
-import org.xwiki.cache.CacheException;
 import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.inject.Provider;
+
+import org.hibernate.Session;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -33,17 +44,51 @@
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiHibernateBaseStore.HibernateCallback;
+import com.xpn.xwiki.store.XWikiHibernateStore;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class DefaultPatientSpecificityServiceTest
 {
+    private static final String DOCUMENT_NAME = "data.P0000001";
+
     @Mock
     private Patient patient;
 
     @Mock
     private PatientSpecificity spec;
 
+    @Mock
+    private XWikiContext context;
+
+    @Mock
+    private XWiki xwiki;
+
+    @Mock
+    private XWikiHibernateStore store;
+
+    @Mock
+    private Session session;
+
+    /** The scores stored in the database, by document name. */
+    private final Map<String, StoredPatientSpecificity> stored = new HashMap<>();
+
     private PatientScorer monarchScorer;
 
     private PatientScorer omimScorer;
@@ -53,11 +98,67 @@
         new MockitoComponentMockingRule<PatientSpecificityService>(DefaultPatientSpecificityService.class);
 
     @Before
-    public void setup() throws CacheException, ComponentLookupException
+    public void setup() throws Exception
     {
         MockitoAnnotations.initMocks(this);
         this.monarchScorer = this.mocker.getInstance(PatientScorer.class, "monarch");
         this.omimScorer = this.mocker.getInstance(PatientScorer.class, "omimInformationContent");
+
+        DocumentReference patientDocument = new DocumentReference("wiki", "data", "P0000001");
+        when(this.patient.getDocument()).thenReturn(patientDocument);
+        Set<Feature> features = new LinkedHashSet<>();
+        Feature feature = mock(Feature.class);
+        when(feature.getId()).thenReturn("HP:2");
+        when(feature.isPresent()).thenReturn(false);
+        features.add(feature);
+        feature = mock(Feature.class);
+        when(feature.getId()).thenReturn("HP:1");
+        when(feature.isPresent()).thenReturn(true);
+        features.add(feature);
+        feature = mock(Feature.class);
+        when(feature.getName()).thenReturn("custom");
+        features.add(feature);
+        Mockito.doReturn(features).when(this.patient).getFeatures();
+
+        EntityReferenceSerializer<String> serializer =
+            this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING, "local");
+        when(serializer.serialize(patientDocument)).thenReturn(DOCUMENT_NAME);
+        Provider<XWikiContext> provider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        when(provider.get()).thenReturn(this.context);
+        when(this.context.getWikiId()).thenReturn("xwiki");
+        when(this.context.getWiki()).thenReturn(this.xwiki);
+        when(this.xwiki.getHibernateStore()).thenReturn(this.store);
+
+        when(this.session.get(eq(StoredPatientSpecificity.class), anyString())).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                return DefaultPatientSpecificityServiceTest.this.stored.get(invocation.getArguments()[1]);
+            }
+        });
+        when(this.session.save(any(StoredPatientSpecificity.class))).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                StoredPatientSpecificity entity = (StoredPatientSpecificity) invocation.getArguments()[0];
+                DefaultPatientSpecificityServiceTest.this.stored.put(entity.getDocument(), entity);
+                return entity.getDocument();
+            }
+        });
+        Answer<Object> runInSession = new Answer<Object>()
+        {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object answer(InvocationOnMock invocation) throws Exception
+            {
+                return ((HibernateCallback<Object>) invocation.getArguments()[1])
+                    .doInHibernate(DefaultPatientSpecificityServiceTest.this.session);
+            }
+        };
+        when(this.store.executeRead(same(this.context), any(HibernateCallback.class))).thenAnswer(runInSession);
+        when(this.store.executeWrite(same(this.context), any(HibernateCallback.class))).thenAnswer(runInSession);
     }
 
     @Test
@@ -93,4 +194,124 @@ public void getSpecificityForwardsToOmimWhenMonarchScorerUnavailable() throws Co
         when(this.omimScorer.getSpecificity(this.patient)).thenReturn(this.spec);
         Assert.assertSame(this.spec, this.mocker.getComponentUnderTest().getSpecificity(this.patient));
     }
+
+    @Test
+    public void getStoredSpecificityReturnsStoredScoreWithoutComputing() throws Exception
+    {
+        Date date = new Date();
+        storeScore(0.5, date, "HP:1");
+
+        PatientSpecificity result = this.mocker.getComponentUnderTest().getStoredSpecificity(this.patient);
+        Assert.assertEquals(0.5, result.getScore(), 0.0);
+        Assert.assertEquals(date, result.getComputationDate());
+        Assert.assertEquals("monarchinitiative.org", result.getComputingMethod());
+
+        // Let the background worker run, if it was (wrongly) scheduled
+        Thread.sleep(100);
+        Mockito.verifyZeroInteractions(this.monarchScorer, this.omimScorer);
+        verify(this.store, never()).executeWrite(same(this.context), any(HibernateCallback.class));
+        verify(this.context).setWikiId("wiki");
+        verify(this.context).setWikiId("xwiki");
+    }
+
+    @Test
+    public void getStoredSpecificityWithNoStoredScoreReturnsNullWithoutComputing() throws Exception
+    {
+        Assert.assertNull(this.mocker.getComponentUnderTest().getStoredSpecificity(this.patient));
+
+        Thread.sleep(100);
+        Mockito.verifyZeroInteractions(this.monarchScorer, this.omimScorer);
+    }
+
+    @Test
+    public void getStoredSpecificityReturnsNullWhenTheDatabaseFails() throws Exception
+    {
+        doThrow(new XWikiException()).when(this.store).executeRead(same(this.context), any(HibernateCallback.class));
+        Assert.assertNull(this.mocker.getComponentUnderTest().getStoredSpecificity(this.patient));
+    }
+
+    @Test
+    public void updateSpecificityStoresNewScore() throws Exception
+    {
+        Date date = new Date();
+        when(this.monarchScorer.getSpecificity(this.patient)).thenReturn(null);
+        when(this.omimScorer.getSpecificity(this.patient)).thenReturn(this.spec);
+        when(this.spec.getScore()).thenReturn(0.25);
+        when(this.spec.getComputationDate()).thenReturn(date);
+        when(this.spec.getComputingMethod()).thenReturn("local");
+
+        this.mocker.getComponentUnderTest().updateSpecificity(this.patient);
+
+        verify(this.store, timeout(1000)).executeWrite(same(this.context), any(HibernateCallback.class));
+        StoredPatientSpecificity result = this.stored.get(DOCUMENT_NAME);
+        Assert.assertEquals("-HP:2,HP:1", result.getInputs());
+        Assert.assertEquals(0.25, result.getSpecificity().getScore(), 0.0);
+        Assert.assertEquals(date, result.getSpecificity().getComputationDate());
+        Assert.assertEquals("local", result.getSpecificity().getComputingMethod());
+    }
+
+    @Test
+    public void updateSpecificityReplacesOutdatedScore() throws Exception
+    {
+        Date date = new Date();
+        storeScore(0.5, new Date(0), "HP:1");
+        when(this.monarchScorer.getSpecificity(this.patient)).thenReturn(this.spec);
+        when(this.spec.getScore()).thenReturn(0.75);
+        when(this.spec.getComputationDate()).thenReturn(date);
+        when(this.spec.getComputingMethod()).thenReturn("monarchinitiative.org");
+
+        this.mocker.getComponentUnderTest().updateSpecificity(this.patient);
+
+        verify(this.store, timeout(1000)).executeWrite(same(this.context), any(HibernateCallback.class));
+        StoredPatientSpecificity result = this.stored.get(DOCUMENT_NAME);
+        Assert.assertEquals("-HP:2,HP:1", result.getInputs());
+        Assert.assertEquals(0.75, result.getSpecificity().getScore(), 0.0);
+        Assert.assertEquals(date, result.getSpecificity().getComputationDate());
+        verify(this.session, never()).save(any());
+    }
+
+    @Test
+    public void updateSpecificitySkipsUpToDateScore() throws Exception
+    {
+        storeScore(0.5, new Date(), "-HP:2,HP:1");
+
+        this.mocker.getComponentUnderTest().updateSpecificity(this.patient);
+
+        verify(this.store, timeout(1000)).executeRead(same(this.context), any(HibernateCallback.class));
+        Thread.sleep(100);
+        Mockito.verifyZeroInteractions(this.monarchScorer, this.omimScorer);
+        verify(this.store, never()).executeWrite(same(this.context), any(HibernateCallback.class));
+    }
+
+    @Test
+    public void updateSpecificityIgnoresStorageFailures() throws Exception
+    {
+        when(this.monarchScorer.getSpecificity(this.patient)).thenReturn(this.spec);
+        when(this.spec.getComputationDate()).thenReturn(new Date());
+        doThrow(new XWikiException()).when(this.store).executeWrite(same(this.context),
+            any(HibernateCallback.class));
+
+        this.mocker.getComponentUnderTest().updateSpecificity(this.patient);
+
+        verify(this.store, timeout(1000)).executeWrite(same(this.context), any(HibernateCallback.class));
+        Assert.assertTrue(this.stored.isEmpty());
+    }
+
+    @Test
+    public void getStoredSpecificityWithoutDocumentDoesNothing() throws Exception
+    {
+        when(this.patient.getDocument()).thenReturn(null);
+        Assert.assertNull(this.mocker.getComponentUnderTest().getStoredSpecificity(this.patient));
+        Assert.assertNull(this.mocker.getComponentUnderTest().getStoredSpecificity(null));
+        this.mocker.getComponentUnderTest().updateSpecificity(null);
+        this.mocker.getComponentUnderTest().updateSpecificity(this.patient);
+        Mockito.verifyZeroInteractions(this.monarchScorer, this.omimScorer, this.store);
+    }
+
+    private void storeScore(double score, Date date, String inputs)
+    {
+        StoredPatientSpecificity entity = new StoredPatientSpecificity(DOCUMENT_NAME);
+        entity.setSpecificity(new PatientSpecificity(score, date, "monarchinitiative.org"), inputs);
+        this.stored.put(DOCUMENT_NAME, entity);
+    }
 }
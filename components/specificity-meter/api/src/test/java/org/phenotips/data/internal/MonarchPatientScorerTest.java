@@ -21,6 +21,7 @@
 import org.phenotips.data.Patient;
 import org.phenotips.data.PatientScorer;
 import org.phenotips.data.PatientSpecificity;
+import org.phenotips.data.RemotePatientScorer;
 
 import org.xwiki.cache.Cache;
 import org.xwiki.cache.CacheException;
@@ -34,13 +35,17 @@
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
 import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpEntity;
@@ -50,6 +55,7 @@
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.json.JSONObject;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
@@ -60,6 +66,10 @@
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.matchers.CapturingMatcher;
 
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -85,6 +95,11 @@
 
     private Set<Feature> features = new LinkedHashSet<>();
 
+    /** An in-process server standing in for the MONARCH service. */
+    private HttpServer server;
+
+    private StubHandler stub = new StubHandler();
+
     @Rule
     public final MockitoComponentMockingRule<PatientScorer> mocker =
         new MockitoComponentMockingRule<PatientScorer>(MonarchPatientScorer.class);
@@ -116,6 +131,14 @@ public void setup() throws CacheException, ComponentLookupException
         ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "client", this.client);
     }
 
+    @After
+    public void stopServer()
+    {
+        if (this.server != null) {
+            this.server.stop(0);
+        }
+    }
+
     @Test
     public void getScoreWithNoFeaturesReturns0() throws ComponentLookupException
     {
@@ -293,4 +316,155 @@ public void checkURLConfigurable() throws ComponentLookupException, URISyntaxExc
             reqCapture.getLastValue().getEntity().getContentType().getValue());
         Assert.assertEquals(2.0, score, 0.0);
     }
+
+    @Test
+    public void getScoreUsesRemoteServer() throws Exception
+    {
+        RemotePatientScorer scorer = startServerAndReinitialize();
+        this.stub.body = "{\"scaled_score\":0.5}";
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+
+        Assert.assertEquals(0.5, scorer.getScore(this.patient), 0.0);
+        Assert.assertEquals(1, this.stub.requests.get());
+        Assert.assertTrue(this.stub.lastRequest.startsWith("annotation_profile="));
+
+        Map<String, Object> status = scorer.getStatus();
+        Assert.assertEquals("closed", status.get("state"));
+        Assert.assertEquals(0, status.get("consecutiveFailures"));
+        Assert.assertEquals(1L, countRequests(status));
+    }
+
+    @Test
+    public void getScoreFailsFastWhenRemoteServerKeepsFailing() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.patientScoring.monarch.failureThreshold", Integer.class))
+            .thenReturn(2);
+        RemotePatientScorer scorer = startServerAndReinitialize();
+        this.stub.status = 500;
+        this.stub.body = "Internal server error";
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+
+        Assert.assertEquals(-1.0, scorer.getScore(this.patient), 0.0);
+        Assert.assertEquals("closed", scorer.getStatus().get("state"));
+        Assert.assertEquals(-1.0, scorer.getScore(this.patient), 0.0);
+        Assert.assertEquals("open", scorer.getStatus().get("state"));
+
+        Assert.assertEquals(-1.0, scorer.getScore(this.patient), 0.0);
+        Assert.assertNull(scorer.getSpecificity(this.patient));
+        Assert.assertEquals(2, this.stub.requests.get());
+        Assert.assertEquals(2, scorer.getStatus().get("consecutiveFailures"));
+        Assert.assertEquals(2L, countRequests(scorer.getStatus()));
+    }
+
+    @Test
+    public void remoteServerIsRetriedAfterAPause() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.patientScoring.monarch.failureThreshold", Integer.class))
+            .thenReturn(1);
+        when(this.configuration.getProperty("phenotips.patientScoring.monarch.retryInterval", Integer.class))
+            .thenReturn(100);
+        RemotePatientScorer scorer = startServerAndReinitialize();
+        this.stub.status = 503;
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+
+        Assert.assertEquals(-1.0, scorer.getScore(this.patient), 0.0);
+        Assert.assertEquals(-1.0, scorer.getScore(this.patient), 0.0);
+        Assert.assertEquals(1, this.stub.requests.get());
+
+        Thread.sleep(150);
+        this.stub.status = 200;
+        this.stub.body = "{\"scaled_score\":0.25}";
+        Assert.assertEquals(0.25, scorer.getScore(this.patient), 0.0);
+        Assert.assertEquals(2, this.stub.requests.get());
+        Assert.assertEquals("closed", scorer.getStatus().get("state"));
+    }
+
+    @Test
+    public void slowRemoteServerTimesOut() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.patientScoring.monarch.readTimeout", Integer.class))
+            .thenReturn(100);
+        RemotePatientScorer scorer = startServerAndReinitialize();
+        this.stub.delay = 2000;
+        this.stub.body = "{\"scaled_score\":0.5}";
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(-1.0, scorer.getScore(this.patient), 0.0);
+        Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+        Assert.assertEquals(1, scorer.getStatus().get("consecutiveFailures"));
+    }
+
+    @Test
+    public void overallRequestTimeoutAbortsSlowResponses() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.patientScoring.monarch.requestTimeout", Integer.class))
+            .thenReturn(200);
+        RemotePatientScorer scorer = startServerAndReinitialize();
+        this.stub.delay = 2000;
+        this.stub.body = "{\"scaled_score\":0.5}";
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+
+        long start = System.currentTimeMillis();
+        Assert.assertEquals(-1.0, scorer.getScore(this.patient), 0.0);
+        // The read timeout is 2 seconds by default, the request must be aborted sooner
+        Assert.assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+
+    /**
+     * Starts the stub server and re-initializes the scorer to send requests to it using a real HTTP client.
+     *
+     * @return the re-initialized scorer
+     */
+    private RemotePatientScorer startServerAndReinitialize() throws Exception
+    {
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.server.createContext("/score", this.stub);
+        this.server.start();
+        when(this.configuration.getProperty("phenotips.patientScoring.monarch.serviceURL",
+            "https://monarchinitiative.org/score"))
+                .thenReturn("http://127.0.0.1:" + this.server.getAddress().getPort() + "/score");
+        ((Initializable) this.mocker.getComponentUnderTest()).initialize();
+        return (RemotePatientScorer) this.mocker.getComponentUnderTest();
+    }
+
+    @SuppressWarnings("unchecked")
+    private long countRequests(Map<String, Object> status)
+    {
+        long result = 0;
+        for (Long count : ((Map<String, Long>) status.get("latency")).values()) {
+            result += count;
+        }
+        return result;
+    }
+
+    private static final class StubHandler implements HttpHandler
+    {
+        private final AtomicInteger requests = new AtomicInteger();
+
+        private volatile int status = 200;
+
+        private volatile String body = "";
+
+        private volatile long delay;
+
+        private volatile String lastRequest;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            this.requests.incrementAndGet();
+            this.lastRequest = IOUtils.toString(exchange.getRequestBody(), "UTF-8");
+            try {
+                Thread.sleep(this.delay);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] response = this.body.getBytes("UTF-8");
+            exchange.sendResponseHeaders(this.status, response.length == 0 ? -1 : response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        }
+    }
 }
@@ -28,23 +28,42 @@
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyMapOf;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class OmimInformationContentPatientScorerTest
 {
+    /** The phenotype related fields of an OMIM disorder that are stored, and not just indexed, in the OMIM schema. */
+    private static final Set<String> OMIM_STORED_FIELDS =
+        new HashSet<>(Arrays.asList("id", "name", "actual_symptom", "actual_not_symptom"));
+
     @Mock
     private Patient patient;
 
@@ -54,6 +73,10 @@
 
     private Vocabulary omim;
 
+    private VocabularyTerm root;
+
+    private VocabularyTerm hp4;
+
     @Rule
     public final MockitoComponentMockingRule<PatientScorer> mocker =
         new MockitoComponentMockingRule<PatientScorer>(OmimInformationContentPatientScorer.class);
@@ -80,10 +103,10 @@ public void setup() throws CacheException, ComponentLookupException
 
         this.hpo = this.mocker.getInstance(Vocabulary.class, "hpo");
         VocabularyTerm hp3 = mock(VocabularyTerm.class);
-        VocabularyTerm hp4 = mock(VocabularyTerm.class);
+        this.hp4 = mock(VocabularyTerm.class);
         when(this.hpo.getTerm("HP:3")).thenReturn(hp3);
-        when(hp3.getParents()).thenReturn(Collections.singleton(hp4));
-        when(hp4.getId()).thenReturn("HP:4");
+        when(hp3.getParents()).thenReturn(Collections.singleton(this.hp4));
+        when(this.hp4.getId()).thenReturn("HP:4");
 
         this.omim = this.mocker.getInstance(Vocabulary.class, "omim");
         when(this.omim.count(Collections.singletonMap("symptom", "HP:0000001"))).thenReturn(60L);
@@ -127,6 +150,34 @@ public void getSpecificityUsesInformationContent() throws Exception
         Assert.assertEquals("local-omim", spec.getComputingMethod());
     }
 
+    @Test
+    public void getScoreUsesPrecomputedInformationContent() throws Exception
+    {
+        mockOmimAnnotations();
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        PatientScorer scorer = this.mocker.getComponentUnderTest();
+        Assert.assertEquals(0.56, scorer.getScore(this.patient), 0.01);
+        Assert.assertEquals(0.56, scorer.getScore(this.patient), 0.01);
+
+        verify(this.omim, never()).count(Collections.singletonMap("symptom", "HP:1"));
+        verify(this.omim, never()).count(Collections.singletonMap("symptom", "HP:2"));
+        verify(this.omim, never()).count(Collections.singletonMap("symptom", "HP:3"));
+        verify(this.omim, never()).count(Collections.singletonMap("symptom", "HP:4"));
+        verify(this.omim, times(1)).search(anyMapOf(String.class, Object.class), anyMapOf(String.class, String.class));
+        // The parent of HP:3 is only looked up once, the result is remembered
+        verify(this.hpo, times(1)).getTerm("HP:3");
+    }
+
+    @Test
+    public void getScoreFallsBackToCountingWhenAnnotationsCannotBeLoaded() throws Exception
+    {
+        when(this.omim.search(anyMapOf(String.class, Object.class), anyMapOf(String.class, String.class)))
+            .thenThrow(new IllegalStateException("Solr is down"));
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        Assert.assertEquals(0.56, this.mocker.getComponentUnderTest().getScore(this.patient), 0.01);
+        verify(this.omim).count(Collections.singletonMap("symptom", "HP:1"));
+    }
+
     @Test
     public void getScoreWithNonInformativeFeaturesReturns0() throws ComponentLookupException
     {
@@ -185,4 +236,114 @@ public void getScoreWithParentlessTermDoesntThrowException() throws ComponentLoo
 
         Assert.assertEquals(0.0, this.mocker.getComponentUnderTest().getScore(this.patient), 0.0);
     }
+
+    @Test
+    public void precomputedInformationContentOnlyRequestsStoredFields() throws Exception
+    {
+        mockOmimAnnotations();
+        Mockito.doReturn(this.features).when(this.patient).getFeatures();
+        this.mocker.getComponentUnderTest().getScore(this.patient);
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Map<String, String>> options = ArgumentCaptor.forClass((Class) Map.class);
+        verify(this.omim).search(anyMapOf(String.class, Object.class), options.capture());
+        for (String field : options.getValue().get("fl").split(" ")) {
+            Assert.assertTrue(field + " isn't stored", OMIM_STORED_FIELDS.contains(field));
+        }
+    }
+
+    @Test
+    public void precomputedInformationContentLooksUpUnknownPhenotypesOneByOne() throws Exception
+    {
+        mockOmimAnnotations();
+        // HP:1 is an alternative identifier of HP:6, not found by the bulk lookup
+        VocabularyTerm hp6 = mockPhenotype("HP:6", this.root);
+        when(this.hpo.getTerms(anyCollectionOf(String.class))).thenReturn(new HashSet<>(Arrays.asList(this.root,
+            mockPhenotype("HP:2", this.root), mockPhenotype("HP:5", this.hp4, this.root))));
+        when(this.hpo.getTerm("HP:1")).thenReturn(hp6);
+        Feature feature = mock(Feature.class);
+        when(feature.getId()).thenReturn("HP:6");
+        when(feature.isPresent()).thenReturn(true);
+        Mockito.doReturn(Collections.singleton(feature)).when(this.patient).getFeatures();
+
+        // The disorders annotated with HP:1 are counted for HP:6, which appears in 3 disorders out of 60
+        Assert.assertEquals(0.26, this.mocker.getComponentUnderTest().getScore(this.patient), 0.01);
+        verify(this.hpo).getTerm("HP:1");
+        verify(this.hpo, never()).getTerm("HP:2");
+        verify(this.omim, never()).count(Collections.singletonMap("symptom", "HP:6"));
+    }
+
+    /**
+     * Mocks 60 OMIM disorders annotated with the same phenotypes as the ones counted in {@link #setup()}: HP:1 appears
+     * in 3 disorders, HP:2 in one, HP:4 in two, through its child HP:5, and HP:3 in none.
+     */
+    private void mockOmimAnnotations()
+    {
+        this.root = mockPhenotype("HP:0000001");
+        when(this.hp4.getAncestorsAndSelf()).thenReturn(new HashSet<>(Arrays.asList(this.hp4, this.root)));
+        VocabularyTerm hp1 = mockPhenotype("HP:1", this.root);
+        VocabularyTerm hp2 = mockPhenotype("HP:2", this.root);
+        VocabularyTerm hp5 = mockPhenotype("HP:5", this.hp4, this.root);
+        when(this.hpo.getTerms(anyCollectionOf(String.class)))
+            .thenReturn(new HashSet<>(Arrays.asList(this.root, hp1, hp2, hp5)));
+
+        List<VocabularyTerm> disorders = new ArrayList<>();
+        for (int i = 0; i < 60; ++i) {
+            if (i < 3) {
+                disorders.add(mockDisorder(hp1));
+            } else if (i == 3) {
+                disorders.add(mockDisorder(hp2));
+            } else if (i < 6) {
+                disorders.add(mockDisorder(hp5));
+            } else {
+                disorders.add(mockDisorder(this.root));
+            }
+        }
+        when(this.omim.getVersion()).thenReturn("2026-10-17T00:00:00Z");
+        when(this.omim.search(anyMapOf(String.class, Object.class), anyMapOf(String.class, String.class)))
+            .thenReturn(disorders);
+    }
+
+    private VocabularyTerm mockPhenotype(String id, VocabularyTerm... ancestors)
+    {
+        VocabularyTerm result = mock(VocabularyTerm.class);
+        when(result.getId()).thenReturn(id);
+        Set<VocabularyTerm> ancestorsAndSelf = new HashSet<>(Arrays.asList(ancestors));
+        ancestorsAndSelf.add(result);
+        when(result.getAncestorsAndSelf()).thenReturn(ancestorsAndSelf);
+        return result;
+    }
+
+    /**
+     * Mocks an OMIM disorder as returned by the index: all the fields are filled in as the OMIM indexer does, but
+     * only the fields stored in the OMIM schema can be retrieved.
+     *
+     * @param symptoms the phenotypes directly annotated on the disorder
+     * @return the mocked disorder
+     */
+    private VocabularyTerm mockDisorder(VocabularyTerm... symptoms)
+    {
+        final Map<String, Object> fields = new HashMap<>();
+        List<String> actualSymptoms = new ArrayList<>();
+        Set<String> ancestors = new HashSet<>();
+        for (VocabularyTerm symptom : symptoms) {
+            actualSymptoms.add(symptom.getId());
+            for (VocabularyTerm ancestor : symptom.getAncestorsAndSelf()) {
+                ancestors.add(ancestor.getId());
+            }
+        }
+        fields.put("actual_symptom", actualSymptoms);
+        fields.put("symptom", ancestors);
+        VocabularyTerm disorder = mock(VocabularyTerm.class);
+        when(disorder.get(Matchers.anyString())).thenAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                String field = (String) invocation.getArguments()[0];
+                return OMIM_STORED_FIELDS.contains(field) ? fields.get(field) : null;
+            }
+        });
+        return disorder;
+    }
 }
@@ -0,0 +1,67 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.data.internal;
+
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.ApplicationStartedEvent;
+import org.xwiki.observation.event.Event;
+import org.xwiki.test.mockito.MockitoComponentMockingRule;
+
+import java.util.List;
+
+import org.hibernate.cfg.Configuration;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+/**
+ * Tests for the {@link SpecificityStorageRegistrationHandler}.
+ *
+ * @version $Id$
+ */
+public class SpecificityStorageRegistrationHandlerTest
+{
+    @Rule
+    public final MockitoComponentMockingRule<EventListener> mocker =
+        new MockitoComponentMockingRule<EventListener>(SpecificityStorageRegistrationHandler.class);
+
+    @Test
+    public void listensToApplicationStart() throws Exception
+    {
+        EventListener listener = this.mocker.getComponentUnderTest();
+        Assert.assertEquals("phenotips-specificity-storage-registration", listener.getName());
+        List<Event> events = listener.getEvents();
+        Assert.assertEquals(1, events.size());
+        Assert.assertTrue(events.get(0) instanceof ApplicationStartedEvent);
+    }
+
+    @Test
+    public void registersTheScoreEntity() throws Exception
+    {
+        HibernateSessionFactory sessionFactory = this.mocker.getInstance(HibernateSessionFactory.class);
+        Configuration configuration = Mockito.mock(Configuration.class);
+        Mockito.when(sessionFactory.getConfiguration()).thenReturn(configuration);
+
+        this.mocker.getComponentUnderTest().onEvent(new ApplicationStartedEvent(), null, null);
+
+        Mockito.verify(configuration).addAnnotatedClass(StoredPatientSpecificity.class);
+    }
+}
@@ -86,7 +86,7 @@ public void setup() throws CacheException, ComponentLookupException
         when(this.spec.getComputationDate()).thenReturn(this.date);
         when(this.spec.getScore()).thenReturn(0.25);
 
-        when(this.service.getSpecificity(this.patient)).thenReturn(this.spec);
+        when(this.service.getStoredSpecificity(this.patient)).thenReturn(this.spec);
     }
 
     @Test
@@ -98,12 +98,13 @@ public void load() throws ComponentLookupException
         Assert.assertEquals(0.25, (double) result.get("score"), 0.0);
         Assert.assertEquals(this.dateStr, result.get("date"));
         Assert.assertEquals("monarchinitiative.org", result.get("server"));
+        Mockito.verify(this.service, Mockito.never()).getSpecificity(this.patient);
     }
 
     @Test
     public void loadWithNoSpecificityDoesNothing() throws ComponentLookupException
     {
-        when(this.service.getSpecificity(this.patient)).thenReturn(null);
+        when(this.service.getStoredSpecificity(this.patient)).thenReturn(null);
         Assert.assertNull(this.mocker.getComponentUnderTest().load(this.patient));
     }
 
@@ -20,33 +20,56 @@
 import org.phenotips.groups.Group;
 import org.phenotips.groups.GroupManager;
 
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.component.phase.InitializationException;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
+import org.xwiki.observation.event.Event;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 import org.xwiki.stability.Unstable;
 import org.xwiki.users.User;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.inject.Inject;
 import javax.inject.Named;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+
 /**
- * Default implementation for {@link GroupManager}, using XDocuments as the place where groups are defined.
+ * Default implementation for {@link GroupManager}, using XDocuments as the place where groups are defined. All the
+ * group memberships are loaded with a single query into an in-memory graph, which is used for finding the groups of
+ * users, including the groups they belong to indirectly, through other groups. Each wiki has its own graph, and the
+ * graph of a wiki, along with the groups computed from it, is cached until a group of that wiki is created, changed or
+ * deleted.
  *
  * @version $Id$
  * @since 1.0M9
@@ -54,11 +77,25 @@
 @Unstable
 @Component
 @Singleton
-public class DefaultGroupManager implements GroupManager
+public class DefaultGroupManager implements GroupManager, Initializable
 {
     /** The space where groups are stored. */
     private static final EntityReference GROUP_SPACE = new EntityReference("Groups", EntityType.SPACE);
 
+    private static final EntityReference XWIKI_GROUP_CLASS =
+        new EntityReference("XWikiGroups", EntityType.DOCUMENT, new EntityReference("XWiki", EntityType.SPACE));
+
+    /** Lists all the group memberships, as pairs of group name and member name. */
+    private static final String MEMBERSHIPS_QUERY =
+        "select doc.fullName, grp.member from Document doc, doc.object(XWiki.XWikiGroups) grp";
+
+    /** Lists all the PhenoTips groups. */
+    private static final String PHENOTIPS_GROUPS_QUERY =
+        "from doc.object(XWiki.XWikiGroups) grp, doc.object(PhenoTips.PhenoTipsGroupClass) phgrp";
+
+    /** The maximum number of users whose groups are remembered in a wiki; when exceeded, all are forgotten. */
+    private static final int MAX_CACHED_USERS = 10000;
+
     /** Logging helper. */
     @Inject
     private Logger logger;
@@ -76,6 +113,23 @@ public class DefaultGroupManager implements GroupManager
     @Named("compactwiki")
     private EntityReferenceSerializer<String> compactSerializer;
 
+    /** Used for listening to group changes. */
+    @Inject
+    private ObservationManager observationManager;
+
+    /** Provides access to the current wiki. */
+    @Inject
+    private Provider<XWikiContext> xcontextProvider;
+
+    /** The group memberships of each wiki already checked; missing wikis must be reloaded. */
+    private final ConcurrentMap<String, GroupGraph> graphs = new ConcurrentHashMap<>();
+
+    @Override
+    public void initialize() throws InitializationException
+    {
+        this.observationManager.addListener(new GroupChangesListener());
+    }
+
     @Override
     public Set<Group> getGroupsForUser(User user)
     {
@@ -84,45 +138,40 @@ public Set<Group> getGroupsForUser(User user)
         }
 
         DocumentReference profile = user.getProfileDocument();
-
-        Set<Group> result = new LinkedHashSet<Group>();
         try {
-            Query q =
-                this.qm.createQuery("from doc.object(XWiki.XWikiGroups) grp where grp.member in (:u, :su)", Query.XWQL);
-            q.bindValue("u", profile.toString());
-            q.bindValue("su", this.compactSerializer.serialize(profile));
-            List<Object> groups = q.execute();
-            List<Object> nestedGroups = new ArrayList<Object>(groups);
-            while (!nestedGroups.isEmpty()) {
-                StringBuilder qs = new StringBuilder("from doc.object(XWiki.XWikiGroups) grp where grp.member in (");
-                for (int i = 0; i < nestedGroups.size(); ++i) {
-                    if (i > 0) {
-                        qs.append(',');
-                    }
-                    qs.append('?').append(i + 1);
-                }
-                qs.append(')');
-                q = this.qm.createQuery(qs.toString(), Query.XWQL);
-                for (int i = 0; i < nestedGroups.size(); ++i) {
-                    String formalGroupName =
-                        this.resolver.resolve(String.valueOf(nestedGroups.get(i)), GROUP_SPACE).toString();
-                    q.bindValue(i + 1, formalGroupName);
+            GroupGraph currentGraph = getGraph(this.xcontextProvider.get().getWikiId());
+            Set<Group> result = currentGraph.userGroups.get(profile);
+            if (result != null) {
+                return result;
+            }
+            Set<String> groups = new LinkedHashSet<String>();
+            Queue<String> groupsToCheck = new LinkedList<String>();
+            groupsToCheck.addAll(currentGraph.getGroups(profile.toString()));
+            groupsToCheck.addAll(currentGraph.getGroups(this.compactSerializer.serialize(profile)));
+            while (!groupsToCheck.isEmpty()) {
+                String group = groupsToCheck.poll();
+                if (groups.add(group)) {
+                    String formalGroupName = this.resolver.resolve(group, GROUP_SPACE).toString();
+                    groupsToCheck.addAll(currentGraph.getGroups(formalGroupName));
                 }
-                nestedGroups = q.execute();
-                nestedGroups.removeAll(groups);
-                groups.addAll(nestedGroups);
             }
-            q = this.qm.createQuery(
-                "from doc.object(XWiki.XWikiGroups) grp, doc.object(PhenoTips.PhenoTipsGroupClass) phgrp", Query.XWQL);
-            groups.retainAll(q.execute());
-            for (Object groupName : groups) {
-                result.add(getGroup(String.valueOf(groupName)));
+            groups.retainAll(currentGraph.phenotipsGroups);
+            result = new LinkedHashSet<Group>();
+            for (String groupName : groups) {
+                result.add(getGroup(groupName));
+            }
+            result = Collections.unmodifiableSet(result);
+            // Results computed from a graph invalidated in the meantime are dropped along with that graph
+            if (currentGraph.userGroups.size() >= MAX_CACHED_USERS) {
+                currentGraph.userGroups.clear();
             }
+            currentGraph.userGroups.put(profile, result);
+            return result;
         } catch (QueryException ex) {
             this.logger.warn("Failed to search for user's groups: {}", ex.getMessage());
         }
 
-        return Collections.unmodifiableSet(result);
+        return Collections.emptySet();
     }
 
     @Override
@@ -143,4 +192,109 @@ public Group getGroup(DocumentReference groupReference)
         }
         return new DefaultGroup(groupReference);
     }
+
+    private GroupGraph getGraph(String wiki) throws QueryException
+    {
+        GroupGraph result = this.graphs.get(wiki);
+        if (result == null) {
+            synchronized (this) {
+                result = this.graphs.get(wiki);
+                if (result == null) {
+                    result = loadGraph(wiki);
+                    this.graphs.put(wiki, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    private GroupGraph loadGraph(String wiki) throws QueryException
+    {
+        GroupGraph result = new GroupGraph();
+        Query membershipsQuery = this.qm.createQuery(MEMBERSHIPS_QUERY, Query.XWQL);
+        membershipsQuery.setWiki(wiki);
+        List<Object[]> memberships = membershipsQuery.execute();
+        for (Object[] membership : memberships) {
+            if (membership[1] != null && StringUtils.isNotBlank(String.valueOf(membership[1]))) {
+                result.addMembership(String.valueOf(membership[0]), String.valueOf(membership[1]).trim());
+            }
+        }
+        Query groupsQuery = this.qm.createQuery(PHENOTIPS_GROUPS_QUERY, Query.XWQL);
+        groupsQuery.setWiki(wiki);
+        for (Object group : groupsQuery.execute()) {
+            result.phenotipsGroups.add(String.valueOf(group));
+        }
+        return result;
+    }
+
+    /**
+     * Forgets the loaded groups of a wiki, so that they are reloaded the next time they are needed.
+     *
+     * @param wiki the wiki whose groups changed
+     */
+    private synchronized void invalidate(String wiki)
+    {
+        this.graphs.remove(wiki);
+    }
+
+    private static boolean isGroup(XWikiDocument doc)
+    {
+        return doc != null
+            && (doc.getXObject(XWIKI_GROUP_CLASS) != null || doc.getXObject(Group.CLASS_REFERENCE) != null);
+    }
+
+    /**
+     * The group memberships of a wiki, as a map from member names to the names of the groups they directly belong to,
+     * along with the PhenoTips groups of each user already checked.
+     */
+    private static final class GroupGraph
+    {
+        private final Map<String, Set<String>> groupsByMember = new HashMap<>();
+
+        private final Set<String> phenotipsGroups = new HashSet<>();
+
+        private final ConcurrentMap<DocumentReference, Set<Group>> userGroups = new ConcurrentHashMap<>();
+
+        void addMembership(String group, String member)
+        {
+            Set<String> groups = this.groupsByMember.get(member);
+            if (groups == null) {
+                groups = new LinkedHashSet<>();
+                this.groupsByMember.put(member, groups);
+            }
+            groups.add(group);
+        }
+
+        Set<String> getGroups(String member)
+        {
+            Set<String> result = this.groupsByMember.get(member);
+            return result == null ? Collections.<String>emptySet() : result;
+        }
+    }
+
+    /** Forgets the loaded groups when a group is created, changed or deleted. */
+    private final class GroupChangesListener implements EventListener
+    {
+        @Override
+        public String getName()
+        {
+            return "phenotips-group-manager-cache";
+        }
+
+        @Override
+        public List<Event> getEvents()
+        {
+            return Arrays.<Event>asList(new DocumentCreatedEvent(), new DocumentUpdatedEvent(),
+                new DocumentDeletedEvent());
+        }
+
+        @Override
+        public void onEvent(Event event, Object source, Object data)
+        {
+            XWikiDocument doc = (XWikiDocument) source;
+            if (isGroup(doc) || isGroup(doc.getOriginalDocument())) {
+                invalidate(doc.getDocumentReference().getWikiReference().getName());
+            }
+        }
+    }
 }
@@ -20,31 +20,43 @@
 import org.phenotips.groups.Group;
 import org.phenotips.groups.GroupManager;
 
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
 import org.xwiki.query.Query;
 import org.xwiki.query.QueryException;
 import org.xwiki.query.QueryManager;
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 import org.xwiki.users.User;
 
-import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
+import javax.inject.Provider;
+
 import org.junit.Assert;
+import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -56,13 +68,132 @@
 {
     private static final EntityReference GROUP_SPACE = new EntityReference("Groups", EntityType.SPACE);
 
+    private static final String MEMBERSHIPS_QUERY =
+        "select doc.fullName, grp.member from Document doc, doc.object(XWiki.XWikiGroups) grp";
+
+    private final DocumentReference a = new DocumentReference("xwiki", "Groups", "Group A");
+
+    private final DocumentReference b = new DocumentReference("xwiki", "Groups", "Group B");
+
     @Rule
     public final MockitoComponentMockingRule<GroupManager> mocker =
         new MockitoComponentMockingRule<GroupManager>(DefaultGroupManager.class);
 
+    private XWikiContext context;
+
+    private Query membershipsQuery;
+
+    @Before
+    public void setup() throws Exception
+    {
+        Provider<XWikiContext> provider = this.mocker.getInstance(XWikiContext.TYPE_PROVIDER);
+        this.context = mock(XWikiContext.class);
+        when(provider.get()).thenReturn(this.context);
+        when(this.context.getWikiId()).thenReturn("xwiki");
+    }
+
     /** Basic tests for {@link DefaultGroupManager#getGroupsForUser(org.xwiki.model.reference.DocumentReference)}. */
     @Test
     public void getGroupsForUser() throws ComponentLookupException, QueryException
+    {
+        User u = mockUser();
+        mockGroups();
+
+        Set<Group> result = this.mocker.getComponentUnderTest().getGroupsForUser(u);
+        Assert.assertEquals(2, result.size());
+        Iterator<Group> resultGroups = result.iterator();
+        Assert.assertEquals(this.a, resultGroups.next().getReference());
+        Assert.assertEquals(this.b, resultGroups.next().getReference());
+    }
+
+    /** {@link DefaultGroupManager#getGroupsForUser(User)} loads the groups once, and reloads them after changes. */
+    @Test
+    public void getGroupsForUserCachesGroupsUntilGroupsChange() throws Exception
+    {
+        User u = mockUser();
+        mockGroups();
+        QueryManager qm = this.mocker.getInstance(QueryManager.class);
+
+        Set<Group> result = this.mocker.getComponentUnderTest().getGroupsForUser(u);
+        Assert.assertSame(result, this.mocker.getComponentUnderTest().getGroupsForUser(u));
+        User other = mock(User.class);
+        when(other.getProfileDocument()).thenReturn(new DocumentReference("xwiki", "XWiki", "Other"));
+        Assert.assertTrue(this.mocker.getComponentUnderTest().getGroupsForUser(other).isEmpty());
+        verify(qm, times(1)).createQuery(MEMBERSHIPS_QUERY, Query.XWQL);
+
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(this.mocker.<ObservationManager>getInstance(ObservationManager.class)).addListener(listener.capture());
+
+        // Other documents don't affect groups
+        XWikiDocument doc = mock(XWikiDocument.class);
+        listener.getValue().onEvent(new DocumentUpdatedEvent(), doc, null);
+        Assert.assertSame(result, this.mocker.getComponentUnderTest().getGroupsForUser(u));
+        verify(qm, times(1)).createQuery(MEMBERSHIPS_QUERY, Query.XWQL);
+
+        when(doc.getXObject(new EntityReference("XWikiGroups", EntityType.DOCUMENT,
+            new EntityReference("XWiki", EntityType.SPACE)))).thenReturn(mock(BaseObject.class));
+        when(doc.getDocumentReference()).thenReturn(this.a);
+        listener.getValue().onEvent(new DocumentUpdatedEvent(), doc, null);
+        Set<Group> newResult = this.mocker.getComponentUnderTest().getGroupsForUser(u);
+        Assert.assertNotSame(result, newResult);
+        Assert.assertEquals(2, newResult.size());
+        verify(qm, times(2)).createQuery(MEMBERSHIPS_QUERY, Query.XWQL);
+    }
+
+    /** {@link DefaultGroupManager#getGroupsForUser(User)} keeps a separate group graph for each wiki. */
+    @Test
+    public void getGroupsForUserUsesTheGroupsOfTheCurrentWiki() throws Exception
+    {
+        User u = mockUser();
+        mockGroups();
+        QueryManager qm = this.mocker.getInstance(QueryManager.class);
+        Query q = this.membershipsQuery;
+
+        Set<Group> result = this.mocker.getComponentUnderTest().getGroupsForUser(u);
+        verify(q).setWiki("xwiki");
+        when(this.context.getWikiId()).thenReturn("other");
+        Set<Group> otherResult = this.mocker.getComponentUnderTest().getGroupsForUser(u);
+        Assert.assertNotSame(result, otherResult);
+        verify(q).setWiki("other");
+
+        // Changing a group of the other wiki doesn't affect the groups of the main wiki
+        ArgumentCaptor<EventListener> listener = ArgumentCaptor.forClass(EventListener.class);
+        verify(this.mocker.<ObservationManager>getInstance(ObservationManager.class)).addListener(listener.capture());
+        XWikiDocument doc = mock(XWikiDocument.class);
+        when(doc.getXObject(Group.CLASS_REFERENCE)).thenReturn(mock(BaseObject.class));
+        when(doc.getDocumentReference()).thenReturn(new DocumentReference("other", "Groups", "Group A"));
+        listener.getValue().onEvent(new DocumentUpdatedEvent(), doc, null);
+
+        when(this.context.getWikiId()).thenReturn("xwiki");
+        Assert.assertSame(result, this.mocker.getComponentUnderTest().getGroupsForUser(u));
+        when(this.context.getWikiId()).thenReturn("other");
+        Assert.assertNotSame(otherResult, this.mocker.getComponentUnderTest().getGroupsForUser(u));
+        verify(qm, times(3)).createQuery(MEMBERSHIPS_QUERY, Query.XWQL);
+    }
+
+    /** {@link DefaultGroupManager#getGroupsForUser(User)} doesn't remember the groups of too many users. */
+    @Test
+    public void getGroupsForUserLimitsTheCachedUsers() throws Exception
+    {
+        User u = mockUser();
+        mockGroups();
+        GroupManager manager = this.mocker.getComponentUnderTest();
+        Set<Group> result = manager.getGroupsForUser(u);
+
+        User other = mock(User.class);
+        for (int i = 0; i < 10000; ++i) {
+            when(other.getProfileDocument()).thenReturn(new DocumentReference("xwiki", "XWiki", "U" + i));
+            manager.getGroupsForUser(other);
+        }
+
+        Set<Group> newResult = manager.getGroupsForUser(u);
+        Assert.assertNotSame(result, newResult);
+        Assert.assertEquals(result, newResult);
+        verify(this.mocker.<QueryManager>getInstance(QueryManager.class), times(1)).createQuery(MEMBERSHIPS_QUERY,
+            Query.XWQL);
+    }
+
+    private User mockUser() throws ComponentLookupException
     {
         User u = mock(User.class);
         DocumentReference userProfile = new DocumentReference("xwiki", "XWiki", "Admin");
@@ -70,55 +201,43 @@ public void getGroupsForUser() throws ComponentLookupException, QueryException
         EntityReferenceSerializer<String> serializer =
             this.mocker.getInstance(EntityReferenceSerializer.TYPE_STRING, "compactwiki");
         when(serializer.serialize(userProfile)).thenReturn("XWiki.Admin");
+        return u;
+    }
 
+    /**
+     * Admin is a member of Group A, Group B Administrators is a member of Group B, and Group B is a member of Group A,
+     * forming a cycle. Only Group A and Group B are PhenoTips groups.
+     */
+    private void mockGroups() throws ComponentLookupException, QueryException
+    {
         QueryManager qm = this.mocker.getInstance(QueryManager.class);
         Query q = mock(Query.class);
-        when(q.bindValue("u", "xwiki:XWiki.Admin")).thenReturn(q);
-        when(q.bindValue("su", "XWiki.Admin")).thenReturn(q);
-        when(qm.createQuery("from doc.object(XWiki.XWikiGroups) grp where grp.member in (:u, :su)", Query.XWQL))
-            .thenReturn(q);
-        List<Object> groupNames = new LinkedList<Object>();
-        groupNames.add("Groups.Group A");
-        groupNames.add("Group B Administrators");
-        when(q.<Object>execute()).thenReturn(groupNames);
+        when(qm.createQuery(MEMBERSHIPS_QUERY, Query.XWQL)).thenReturn(q);
+        this.membershipsQuery = q;
+        List<Object[]> memberships = new LinkedList<Object[]>();
+        memberships.add(new Object[] { "Groups.Group A", "xwiki:XWiki.Admin" });
+        memberships.add(new Object[] { "Groups.Group B Administrators", "XWiki.Admin" });
+        memberships.add(new Object[] { "Groups.Group B", "xwiki:Groups.Group B Administrators" });
+        memberships.add(new Object[] { "Groups.Group A", "xwiki:Groups.Group B" });
+        memberships.add(new Object[] { "Groups.Group B", "xwiki:Groups.Group A" });
+        memberships.add(new Object[] { "Groups.Group C", "XWiki.Other" });
+        memberships.add(new Object[] { "Groups.Group C", "" });
+        when(q.<Object[]>execute()).thenReturn(memberships);
 
         DocumentReferenceResolver<String> resolver =
             this.mocker.getInstance(DocumentReferenceResolver.TYPE_STRING, "current");
-        DocumentReference a = new DocumentReference("xwiki", "Groups", "Group A");
-        when(resolver.resolve(eq("Groups.Group A"), eq(GROUP_SPACE))).thenReturn(a);
+        when(resolver.resolve(eq("Groups.Group A"), eq(GROUP_SPACE))).thenReturn(this.a);
+        when(resolver.resolve(eq("Groups.Group B"), eq(GROUP_SPACE))).thenReturn(this.b);
         DocumentReference ba = new DocumentReference("xwiki", "Groups", "Group B Administrators");
-        when(resolver.resolve(eq("Group B Administrators"), eq(GROUP_SPACE))).thenReturn(ba);
-
-        q = mock(Query.class);
-        when(q.bindValue(1, "xwiki:Groups.Group A")).thenReturn(q);
-        when(q.bindValue(2, "xwiki:Groups.Group B Administrators")).thenReturn(q);
-        when(qm.createQuery("from doc.object(XWiki.XWikiGroups) grp where grp.member in (?1,?2)", Query.XWQL))
-            .thenReturn(q);
-        groupNames = new LinkedList<Object>();
-        groupNames.add("Groups.Group B");
-        when(q.<Object>execute()).thenReturn(groupNames);
-
-        q = mock(Query.class);
-        DocumentReference b = new DocumentReference("xwiki", "Groups", "Group B");
-        when(resolver.resolve(eq("Groups.Group B"), eq(GROUP_SPACE))).thenReturn(b);
-        when(q.bindValue(1, "xwiki:Groups.Group B")).thenReturn(q);
-        when(qm.createQuery("from doc.object(XWiki.XWikiGroups) grp where grp.member in (?1)", Query.XWQL))
-            .thenReturn(q);
-        when(q.<Object>execute()).thenReturn(Collections.emptyList());
+        when(resolver.resolve(eq("Groups.Group B Administrators"), eq(GROUP_SPACE))).thenReturn(ba);
 
         q = mock(Query.class);
         when(qm.createQuery("from doc.object(XWiki.XWikiGroups) grp, doc.object(PhenoTips.PhenoTipsGroupClass) phgrp",
             Query.XWQL)).thenReturn(q);
-        groupNames = new LinkedList<Object>();
+        List<Object> groupNames = new LinkedList<Object>();
         groupNames.add("Groups.Group A");
         groupNames.add("Groups.Group B");
         when(q.<Object>execute()).thenReturn(groupNames);
-
-        Set<Group> result = this.mocker.getComponentUnderTest().getGroupsForUser(u);
-        Assert.assertEquals(2, result.size());
-        Iterator<Group> resultGroups = result.iterator();
-        Assert.assertEquals(a, resultGroups.next().getReference());
-        Assert.assertEquals(b, resultGroups.next().getReference());
     }
 
     /** {@link DefaultGroupManager#getGroupsForUser(User)} ignores invalid profiles. */
@@ -22,6 +22,8 @@
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.stability.Unstable;
 
+import java.io.IOException;
+
 import org.apache.solr.client.solrj.SolrClient;
 
 /**
@@ -56,4 +58,33 @@
      * @return a Solr client for communication with the target core
      */
     SolrClient getSolrConnection();
+
+    /**
+     * Creates a new, empty, temporary core with the same configuration as the core used for the target vocabulary,
+     * where a new version of the vocabulary can be indexed while the current index remains available to readers. Any
+     * leftover temporary core from a previous failed attempt is discarded first.
+     *
+     * @return a Solr client for communication with the temporary core
+     * @throws IOException if creating the temporary core fails
+     * @since 1.3M2
+     * @see #replaceCore()
+     */
+    SolrClient createReplacementCore() throws IOException;
+
+    /**
+     * Atomically replaces the core used for the target vocabulary with the temporary core created by
+     * {@link #createReplacementCore()}, deletes the old index once it is no longer used, and clears the term cache.
+     *
+     * @throws IOException if there's no temporary core, or swapping the cores fails
+     * @since 1.3M2
+     */
+    void replaceCore() throws IOException;
+
+    /**
+     * Deletes the temporary core created by {@link #createReplacementCore()}, if any, leaving the current index
+     * untouched.
+     *
+     * @since 1.3M2
+     */
+    void discardReplacementCore();
 }
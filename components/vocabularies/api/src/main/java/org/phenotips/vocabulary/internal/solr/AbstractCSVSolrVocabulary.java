@@ -28,6 +28,7 @@
 import java.util.HashSet;
 import java.util.Iterator;
 
+import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
@@ -56,11 +57,33 @@ public abstract class AbstractCSVSolrVocabulary extends AbstractSolrVocabulary
 
     protected abstract Collection<SolrInputDocument> load(URL url);
 
+    /**
+     * {@inheritDoc} The new version of the vocabulary is indexed in a separate core, which replaces the current core
+     * only after it is fully indexed, so the vocabulary remains available during the whole operation.
+     */
     @Override
-    public int reindex(String sourceUrl)
+    public synchronized int reindex(String sourceUrl)
     {
-        this.clear();
-        return this.index(sourceUrl);
+        SolrClient replacement;
+        try {
+            replacement = this.externalServicesAccess.createReplacementCore();
+        } catch (IOException ex) {
+            this.logger.error("Failed to prepare a new index for [{}]: {}", getCoreName(), ex.getMessage(), ex);
+            return 1;
+        }
+        int result = this.index(sourceUrl, replacement);
+        if (result == 0) {
+            try {
+                this.externalServicesAccess.replaceCore();
+            } catch (IOException ex) {
+                this.logger.error("Failed to replace the index for [{}]: {}", getCoreName(), ex.getMessage(), ex);
+                result = 1;
+            }
+        }
+        if (result != 0) {
+            this.externalServicesAccess.discardReplacementCore();
+        }
+        return result;
     }
 
     /**
@@ -71,6 +94,22 @@ public int reindex(String sourceUrl)
      *         specified URL is invalid
      */
     protected int index(String sourceUrl)
+    {
+        int result = index(sourceUrl, this.externalServicesAccess.getSolrConnection());
+        this.externalServicesAccess.getTermCache().removeAll();
+        return result;
+    }
+
+    /**
+     * Add an ontology to a specific Solr core.
+     *
+     * @param sourceUrl the URL to be indexed
+     * @param target the Solr core where the terms should be indexed
+     * @return {@code 0} if the indexing succeeded, {@code 1} if writing to the Solr server failed, {@code 2} if the
+     *         specified URL is invalid
+     * @since 1.3M2
+     */
+    protected int index(String sourceUrl, SolrClient target)
     {
         Collection<SolrInputDocument> data = null;
         try {
@@ -88,7 +127,7 @@ protected int index(String sourceUrl)
             while (dataIterator.hasNext()) {
                 /* Resetting when the batch fills */
                 if (batchCounter == getSolrDocsPerBatch()) {
-                    commitTerms(termBatch);
+                    commitTerms(termBatch, target);
                     termBatch = new HashSet<>();
                     batchCounter = 0;
                 }
@@ -96,7 +135,7 @@ protected int index(String sourceUrl)
                 termBatch.add(item);
                 batchCounter++;
             }
-            commitTerms(termBatch);
+            commitTerms(termBatch, target);
             return 0;
         } catch (SolrServerException ex) {
             this.logger.warn("Failed to index ontology: {}", ex.getMessage());
@@ -111,11 +150,27 @@ protected int index(String sourceUrl)
     protected void commitTerms(Collection<SolrInputDocument> batch)
         throws SolrServerException, IOException, OutOfMemoryError
     {
-        this.externalServicesAccess.getSolrConnection().add(batch);
-        this.externalServicesAccess.getSolrConnection().commit();
+        commitTerms(batch, this.externalServicesAccess.getSolrConnection());
         this.externalServicesAccess.getTermCache().removeAll();
     }
 
+    /**
+     * Add and commit a batch of terms to a specific Solr core.
+     *
+     * @param batch the terms to add
+     * @param target the Solr core where the terms should be indexed
+     * @throws SolrServerException if the Solr server refuses the update
+     * @throws IOException if communication with the Solr server fails
+     * @throws OutOfMemoryError if the batch is too large
+     * @since 1.3M2
+     */
+    protected void commitTerms(Collection<SolrInputDocument> batch, SolrClient target)
+        throws SolrServerException, IOException, OutOfMemoryError
+    {
+        target.add(batch);
+        target.commit();
+    }
+
     /**
      * Delete all the data in the Solr index.
      *
@@ -20,17 +20,22 @@
 import org.phenotips.obo2solr.ParameterPreparer;
 import org.phenotips.obo2solr.SolrUpdateGenerator;
 import org.phenotips.obo2solr.TermData;
+import org.phenotips.obo2solr.TermDataReader;
 import org.phenotips.vocabulary.VocabularyTerm;
 
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
@@ -54,6 +59,33 @@ public abstract class AbstractOBOSolrVocabulary extends AbstractSolrVocabulary
 
     protected static final String VERSION_FIELD_NAME = "version";
 
+    /** The number of documents to fetch at a time when loading the {@link #getGraph() term graph}. */
+    private static final int GRAPH_LOAD_BATCH_SIZE = 10000;
+
+    /** How long to wait before trying again to load a graph that couldn't be loaded, in milliseconds. */
+    private static final long GRAPH_RETRY_DELAY = 60000L;
+
+    /** The in-memory graph of the indexed terms, loaded lazily and discarded whenever the index changes. */
+    private volatile OntologyGraph graph;
+
+    /**
+     * When can the graph be loaded again, after a failed attempt; until then, the graph is considered unavailable
+     * instead of scanning the whole index again for each request.
+     */
+    private volatile long graphRetryTime;
+
+    /**
+     * Incremented whenever the index changes, so that a graph loaded while the index was changing is not kept after
+     * the change.
+     */
+    private final AtomicLong graphGeneration = new AtomicLong();
+
+    /**
+     * Guards loading the graph. This is not the vocabulary's own monitor, which is held during the whole
+     * {@link #reindex(String)}, so that term lookups needing the graph don't wait for a reindex to finish.
+     */
+    private final Object graphLock = new Object();
+
     /** The number of documents to be added and committed to Solr at a time. */
     protected abstract int getSolrDocsPerBatch();
 
@@ -72,11 +104,117 @@ public VocabularyTerm getTerm(String id)
         return result;
     }
 
+    /**
+     * {@inheritDoc} The new version of the vocabulary is indexed in a separate core, which replaces the current core
+     * only after it is fully indexed, so the vocabulary remains available during the whole operation.
+     */
     @Override
-    public int reindex(String sourceUrl)
+    public synchronized int reindex(String sourceUrl)
     {
-        this.clear();
-        return this.index(sourceUrl);
+        SolrClient replacement;
+        try {
+            replacement = this.externalServicesAccess.createReplacementCore();
+        } catch (IOException ex) {
+            this.logger.error("Failed to prepare a new index for [{}]: {}", getCoreName(), ex.getMessage(), ex);
+            return 1;
+        }
+        int result = this.index(sourceUrl, replacement);
+        if (result == 0) {
+            try {
+                this.externalServicesAccess.replaceCore();
+                invalidateGraph();
+            } catch (IOException ex) {
+                this.logger.error("Failed to replace the index for [{}]: {}", getCoreName(), ex.getMessage(), ex);
+                result = 1;
+            }
+        }
+        if (result != 0) {
+            this.externalServicesAccess.discardReplacementCore();
+        }
+        return result;
+    }
+
+    @Override
+    public long getDistance(String fromTermId, String toTermId)
+    {
+        OntologyGraph loadedGraph = getGraph();
+        if (loadedGraph != null && loadedGraph.contains(fromTermId) && loadedGraph.contains(toTermId)) {
+            return loadedGraph.getDistance(fromTermId, toTermId);
+        }
+        return super.getDistance(fromTermId, toTermId);
+    }
+
+    @Override
+    protected OntologyGraph getGraph()
+    {
+        OntologyGraph result = this.graph;
+        if (result == null && System.currentTimeMillis() >= this.graphRetryTime) {
+            synchronized (this.graphLock) {
+                result = this.graph;
+                if (result == null && System.currentTimeMillis() >= this.graphRetryTime) {
+                    long generation = this.graphGeneration.get();
+                    result = loadGraph();
+                    // If the index changed while loading, the graph is only used for this request
+                    if (generation == this.graphGeneration.get()) {
+                        this.graph = result;
+                        if (result == null) {
+                            this.graphRetryTime = System.currentTimeMillis() + GRAPH_RETRY_DELAY;
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /** Discards the loaded graph after the index changed, so that it is loaded again when needed. */
+    private void invalidateGraph()
+    {
+        this.graphGeneration.incrementAndGet();
+        this.graph = null;
+        this.graphRetryTime = 0;
+    }
+
+    /**
+     * Reads the identifier and parents of all the indexed terms and builds the corresponding {@link OntologyGraph}.
+     *
+     * @return the loaded graph, or {@code null} if the index is empty or cannot be read
+     */
+    private OntologyGraph loadGraph()
+    {
+        Map<String, Collection<String>> parents = new HashMap<>();
+        SolrQuery query = new SolrQuery("*:*");
+        query.setFields(ID_FIELD_NAME, TermData.PARENT_FIELD_NAME);
+        query.setSort(ID_FIELD_NAME, SolrQuery.ORDER.asc);
+        query.setRows(GRAPH_LOAD_BATCH_SIZE);
+        try {
+            long total;
+            int start = 0;
+            do {
+                query.setStart(start);
+                SolrDocumentList batch = this.externalServicesAccess.getSolrConnection().query(query).getResults();
+                total = batch.getNumFound();
+                for (SolrDocument doc : batch) {
+                    Collection<String> termParents = new HashSet<>();
+                    Collection<Object> values = doc.getFieldValues(TermData.PARENT_FIELD_NAME);
+                    if (values != null) {
+                        for (Object value : values) {
+                            termParents.add(StringUtils.substringBefore(String.valueOf(value), " "));
+                        }
+                    }
+                    parents.put((String) doc.getFirstValue(ID_FIELD_NAME), termParents);
+                }
+                start += GRAPH_LOAD_BATCH_SIZE;
+            } while (start < total);
+        } catch (SolrServerException | SolrException | IOException ex) {
+            this.logger.warn("Failed to load the term graph for [{}]: {}", getCoreName(), ex.getMessage());
+            return null;
+        }
+        if (parents.isEmpty()) {
+            return null;
+        }
+        this.logger.debug("Loaded the term graph for [{}] with [{}] terms", getCoreName(), parents.size());
+        return new OntologyGraph(parents);
     }
 
     /**
@@ -87,38 +225,60 @@ public int reindex(String sourceUrl)
      *         specified URL is invalid
      */
     protected int index(String sourceUrl)
+    {
+        int result = index(sourceUrl, this.externalServicesAccess.getSolrConnection());
+        this.externalServicesAccess.getTermCache().removeAll();
+        invalidateGraph();
+        return result;
+    }
+
+    /**
+     * Add a vocabulary to a specific Solr core.
+     *
+     * @param sourceUrl the address from where to get the vocabulary source file
+     * @param target the Solr core where the terms should be indexed
+     * @return {@code 0} if the indexing succeeded, {@code 1} if writing to the Solr server failed, {@code 2} if the
+     *         specified URL is invalid
+     * @since 1.3M2
+     */
+    protected int index(String sourceUrl, SolrClient target)
     {
         String realOntologyUrl = StringUtils.defaultIfBlank(sourceUrl, getDefaultSourceLocation());
 
-        SolrUpdateGenerator generator = new SolrUpdateGenerator();
-        Map<String, Double> fieldSelection = new HashMap<String, Double>();
-        Map<String, TermData> data = generator.transform(realOntologyUrl, fieldSelection);
-        if (data == null || data.isEmpty()) {
+        TermDataReader reader;
+        try {
+            reader = new SolrUpdateGenerator().read(new URL(realOntologyUrl), new HashMap<String, Double>());
+        } catch (MalformedURLException ex) {
+            return 2;
+        } catch (IOException ex) {
+            this.logger.warn("Failed to read ontology from [{}]: {}", realOntologyUrl, ex.getMessage());
             return 2;
         }
         try {
-            Collection<SolrInputDocument> termBatch = new HashSet<SolrInputDocument>();
-            Iterator<Map.Entry<String, TermData>> dataIterator = data.entrySet().iterator();
-            int batchCounter = 0;
-            while (dataIterator.hasNext()) {
+            // Terms are streamed from the source, so at most one batch of documents is kept in memory at a time
+            Collection<SolrInputDocument> termBatch = new ArrayList<>(getSolrDocsPerBatch());
+            int termCount = 0;
+            TermData term;
+            while ((term = reader.next()) != null) {
                 /* Resetting when the batch fills */
-                if (batchCounter == getSolrDocsPerBatch()) {
-                    commitTerms(termBatch);
-                    termBatch = new HashSet<>();
-                    batchCounter = 0;
+                if (termBatch.size() == getSolrDocsPerBatch()) {
+                    commitTerms(termBatch, target);
+                    termBatch = new ArrayList<>(getSolrDocsPerBatch());
                 }
-                Map.Entry<String, TermData> item = dataIterator.next();
                 SolrInputDocument doc = new SolrInputDocument();
-                for (Map.Entry<String, Collection<String>> property : item.getValue().entrySet()) {
+                for (Map.Entry<String, Collection<String>> property : term.entrySet()) {
                     String name = property.getKey();
                     for (String value : property.getValue()) {
                         doc.addField(name, value, ParameterPreparer.DEFAULT_BOOST.floatValue());
                     }
                 }
                 termBatch.add(doc);
-                batchCounter++;
+                termCount++;
             }
-            commitTerms(termBatch);
+            if (termCount == 0) {
+                return 2;
+            }
+            commitTerms(termBatch, target);
             return 0;
         } catch (SolrServerException ex) {
             this.logger.warn("Failed to index ontology: {}", ex.getMessage());
@@ -126,6 +286,12 @@ protected int index(String sourceUrl)
             this.logger.warn("Failed to communicate with the Solr server while indexing ontology: {}", ex.getMessage());
         } catch (OutOfMemoryError ex) {
             this.logger.warn("Failed to add terms to the Solr. Ran out of memory. {}", ex.getMessage());
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ex) {
+                // Nothing useful to do
+            }
         }
         return 1;
     }
@@ -133,9 +299,26 @@ protected int index(String sourceUrl)
     protected void commitTerms(Collection<SolrInputDocument> batch)
         throws SolrServerException, IOException, OutOfMemoryError
     {
-        this.externalServicesAccess.getSolrConnection().add(batch);
-        this.externalServicesAccess.getSolrConnection().commit();
+        commitTerms(batch, this.externalServicesAccess.getSolrConnection());
         this.externalServicesAccess.getTermCache().removeAll();
+        invalidateGraph();
+    }
+
+    /**
+     * Add and commit a batch of terms to a specific Solr core.
+     *
+     * @param batch the terms to add
+     * @param target the Solr core where the terms should be indexed
+     * @throws SolrServerException if the Solr server refuses the update
+     * @throws IOException if communication with the Solr server fails
+     * @throws OutOfMemoryError if the batch is too large
+     * @since 1.3M2
+     */
+    protected void commitTerms(Collection<SolrInputDocument> batch, SolrClient target)
+        throws SolrServerException, IOException, OutOfMemoryError
+    {
+        target.add(batch);
+        target.commit();
     }
 
     /**
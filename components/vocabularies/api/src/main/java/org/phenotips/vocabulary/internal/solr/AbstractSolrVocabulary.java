@@ -21,10 +21,13 @@
 import org.phenotips.vocabulary.Vocabulary;
 import org.phenotips.vocabulary.VocabularyTerm;
 
+import org.xwiki.cache.Cache;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -62,6 +65,15 @@ public abstract class AbstractSolrVocabulary implements Vocabulary, Initializabl
      */
     private static final VocabularyTerm EMPTY_MARKER = new SolrVocabularyTerm(null, null);
 
+    /**
+     * The maximum number of identifiers to request in a single query, safely below the default Solr limit of 1024
+     * clauses in a boolean query.
+     */
+    private static final int MAXIMUM_TERMS_PER_QUERY = 500;
+
+    /** The name of the Solr parameter enabling spellchecking, useless when fetching terms by their identifier. */
+    private static final String SPELLCHECK = "spellcheck";
+
     /** Logging helper object. */
     @Inject
     protected Logger logger;
@@ -108,30 +120,74 @@ public VocabularyTerm getTerm(String id)
     @Override
     public Set<VocabularyTerm> getTerms(Collection<String> ids)
     {
-        Set<VocabularyTerm> result = new LinkedHashSet<VocabularyTerm>();
-        StringBuilder query = new StringBuilder("id:(");
+        Map<String, VocabularyTerm> found = new HashMap<>();
+        List<String> missing = new ArrayList<>();
         for (String id : ids) {
+            if (id == null || found.containsKey(id)) {
+                continue;
+            }
             VocabularyTerm cachedTerm = this.externalServicesAccess.getTermCache().get(id);
-            if (cachedTerm != null) {
-                if (cachedTerm != EMPTY_MARKER) {
-                    result.add(cachedTerm);
-                }
+            if (cachedTerm == null) {
+                // Remember that this identifier is already scheduled for fetching
+                found.put(id, null);
+                missing.add(id);
             } else {
-                query.append(ClientUtils.escapeQueryChars(id));
-                query.append(' ');
+                found.put(id, cachedTerm);
             }
         }
-        query.append(')');
 
-        // There's at least one more term not found in the cache
-        if (query.length() > 5) {
-            for (SolrDocument doc : this.search(SolrQueryUtils.transformQueryToSolrParams(query.toString()))) {
-                result.add(new SolrVocabularyTerm(doc, this));
+        for (int start = 0; start < missing.size(); start += MAXIMUM_TERMS_PER_QUERY) {
+            fetchTerms(missing.subList(start, Math.min(missing.size(), start + MAXIMUM_TERMS_PER_QUERY)), found);
+        }
+
+        Set<VocabularyTerm> result = new LinkedHashSet<VocabularyTerm>();
+        for (String id : ids) {
+            VocabularyTerm term = found.get(id);
+            if (term != null && term != EMPTY_MARKER) {
+                result.add(term);
             }
         }
         return result;
     }
 
+    /**
+     * Fetch a batch of terms from the Solr index in one query, and store both the found terms and the missing
+     * identifiers in the term cache.
+     *
+     * @param ids the identifiers to fetch, at most {@link #MAXIMUM_TERMS_PER_QUERY}
+     * @param found where to put the fetched terms, with {@link #EMPTY_MARKER} for identifiers that don't exist
+     */
+    private void fetchTerms(List<String> ids, Map<String, VocabularyTerm> found)
+    {
+        StringBuilder query = new StringBuilder(ID_FIELD_NAME).append(":(");
+        for (String id : ids) {
+            query.append(ClientUtils.escapeQueryChars(id)).append(' ');
+        }
+        query.append(')');
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(CommonParams.Q, query.toString());
+        params.set(CommonParams.START, 0);
+        params.set(CommonParams.ROWS, ids.size());
+        params.set(SPELLCHECK, false);
+        SolrDocumentList docs = this.search(params);
+        if (docs == null) {
+            // The query failed, don't remember anything since the terms might actually exist
+            return;
+        }
+        Cache<VocabularyTerm> cache = this.externalServicesAccess.getTermCache();
+        for (SolrDocument doc : docs) {
+            VocabularyTerm term = new SolrVocabularyTerm(doc, this);
+            found.put(term.getId(), term);
+            cache.set(term.getId(), term);
+        }
+        for (String id : ids) {
+            if (found.get(id) == null) {
+                found.put(id, EMPTY_MARKER);
+                cache.set(id, EMPTY_MARKER);
+            }
+        }
+    }
+
     @Override
     public List<VocabularyTerm> search(Map<String, ?> fieldValues)
     {
@@ -195,6 +251,16 @@ public List<VocabularyTerm> search(String input, int maxResults, String sort, St
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Get the in-memory graph of the terms in this vocabulary, if this is a structured vocabulary that supports it.
+     *
+     * @return the loaded graph, or {@code null} if this vocabulary isn't structured or the graph isn't available
+     */
+    protected OntologyGraph getGraph()
+    {
+        return null;
+    }
+
     /**
      * Perform a search, falling back on the suggested spellchecked query if the original query fails to return any
      * results.
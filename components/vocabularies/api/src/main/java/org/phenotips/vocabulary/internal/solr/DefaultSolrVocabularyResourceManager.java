@@ -30,10 +30,20 @@
 import org.xwiki.component.descriptor.ComponentInstantiationStrategy;
 import org.xwiki.component.phase.InitializationException;
 
+import java.io.File;
+import java.io.IOException;
+
 import javax.inject.Inject;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.CoreContainer;
+import org.apache.solr.core.CoreDescriptor;
 
 /**
  * Default implementation for the {@link SolrVocabularyResourceManager} component.
@@ -45,12 +55,24 @@
 @InstantiationStrategy(ComponentInstantiationStrategy.PER_LOOKUP)
 public class DefaultSolrVocabularyResourceManager implements SolrVocabularyResourceManager
 {
+    /** Suffix appended to the vocabulary name to obtain the name of the temporary core used while reindexing. */
+    private static final String REPLACEMENT_SUFFIX = "_reindex";
+
+    /** The name of the directory holding the configuration files of a core. */
+    private static final String CONFIGURATION_DIRECTORY = "conf";
+
+    /** The name of the managed vocabulary, which is also the name of its Solr core. */
+    private String coreName;
+
     /** @see #getSolrConnection() */
     private SolrClient core;
 
     /** @see #getTermCache() */
     private Cache<VocabularyTerm> cache;
 
+    /** The client for the temporary core created by {@link #createReplacementCore()}, {@code null} if there's none. */
+    private ReplacementCoreClient replacement;
+
     /** Provides access to the Solr cores. */
     @Inject
     private SolrCoreContainerHandler cores;
@@ -63,6 +85,7 @@ public class DefaultSolrVocabularyResourceManager implements SolrVocabularyResou
     public void initialize(String vocabularyName) throws InitializationException
     {
         try {
+            this.coreName = vocabularyName;
             this.core = new EmbeddedSolrServer(this.cores.getContainer(), vocabularyName);
             this.cache = this.cacheFactory.createNewLocalCache(new CacheConfiguration());
         } catch (RuntimeException ex) {
@@ -83,4 +106,95 @@ public SolrClient getSolrConnection()
     {
         return this.core;
     }
+
+    @Override
+    public synchronized SolrClient createReplacementCore() throws IOException
+    {
+        discardReplacementCore();
+        CoreContainer container = this.cores.getContainer();
+        String replacementName = getReplacementCoreName();
+        try {
+            // The live core may have been moved by a previous reindex, so alternate between two instance directories
+            File liveDirectory = new File(container.getCoreDescriptor(this.coreName).getInstanceDir());
+            File replacementDirectory = new File(liveDirectory.getParentFile(),
+                this.coreName.equals(liveDirectory.getName()) ? replacementName : this.coreName);
+            FileUtils.deleteDirectory(replacementDirectory);
+            FileUtils.copyDirectory(new File(liveDirectory, CONFIGURATION_DIRECTORY),
+                new File(replacementDirectory, CONFIGURATION_DIRECTORY));
+            container.create(new CoreDescriptor(container, replacementName, replacementDirectory.getAbsolutePath()));
+        } catch (SolrException ex) {
+            throw new IOException("Failed to create a replacement core for [" + this.coreName + "]", ex);
+        }
+        this.replacement = new ReplacementCoreClient(container, replacementName);
+        return this.replacement;
+    }
+
+    @Override
+    public synchronized void replaceCore() throws IOException
+    {
+        CoreContainer container = this.cores.getContainer();
+        String replacementName = getReplacementCoreName();
+        if (!container.getAllCoreNames().contains(replacementName)) {
+            throw new IOException("No replacement core prepared for [" + this.coreName + "]");
+        }
+        try {
+            container.swap(this.coreName, replacementName);
+        } catch (SolrException ex) {
+            throw new IOException("Failed to swap in the replacement core for [" + this.coreName + "]", ex);
+        }
+        // After the swap the old index is known under the temporary name; it will only be deleted once the requests
+        // still using it are done
+        discardReplacementCore();
+        this.cache.removeAll();
+    }
+
+    @Override
+    public synchronized void discardReplacementCore()
+    {
+        if (this.replacement != null) {
+            this.replacement.close();
+            this.replacement = null;
+        }
+        CoreContainer container = this.cores.getContainer();
+        String replacementName = getReplacementCoreName();
+        if (container.getAllCoreNames().contains(replacementName)) {
+            container.unload(replacementName, true, true, true);
+        }
+    }
+
+    private String getReplacementCoreName()
+    {
+        return this.coreName + REPLACEMENT_SUFFIX;
+    }
+
+    /**
+     * Client for a temporary core. {@link EmbeddedSolrServer#close()} shuts down the whole core container, which is
+     * shared by all the vocabularies, so closing this client only releases it, and any later request fails instead of
+     * reaching a core that was swapped or unloaded.
+     */
+    private static final class ReplacementCoreClient extends EmbeddedSolrServer
+    {
+        /** Whether this client was already closed. */
+        private volatile boolean closed;
+
+        ReplacementCoreClient(CoreContainer container, String coreName)
+        {
+            super(container, coreName);
+        }
+
+        @Override
+        public NamedList<Object> request(SolrRequest request, String coreName) throws SolrServerException, IOException
+        {
+            if (this.closed) {
+                throw new SolrServerException("The replacement core client was already closed");
+            }
+            return super.request(request, coreName);
+        }
+
+        @Override
+        public void close()
+        {
+            this.closed = true;
+        }
+    }
 }
@@ -52,7 +52,7 @@ public class LazySolrTermSet implements Set<VocabularyTerm>
      * @param identifiers the {@link #identifiers identifiers to load}
      * @param ontology the {@link #ontology owner ontology}
      */
-    public LazySolrTermSet(Collection<Object> identifiers, Vocabulary ontology)
+    public LazySolrTermSet(Collection<?> identifiers, Vocabulary ontology)
     {
         if (identifiers == null || identifiers.isEmpty()) {
             this.identifiers = Collections.emptySet();
@@ -0,0 +1,342 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Compact, immutable, in-memory representation of the {@code is_a} DAG of a structured vocabulary. Terms are mapped to
+ * consecutive integer indexes, and the transitive closure of each term is precomputed once, together with the minimum
+ * number of edges separating the term from each of its ancestors, so that ancestor and distance queries don't need any
+ * access to the Solr index.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+public class OntologyGraph
+{
+    /** Marks a term index that hasn't been reached yet while merging ancestor closures. */
+    private static final int UNREACHED = Integer.MAX_VALUE;
+
+    /** The term identifiers, indexed by their internal number. */
+    private final String[] ids;
+
+    /** Maps term identifiers to their internal number. */
+    private final Map<String, Integer> index;
+
+    /** The direct parents of each term, as internal numbers. */
+    private final int[][] parents;
+
+    /** The ancestors of each term, including the term itself, as sorted internal numbers. */
+    private final int[][] ancestors;
+
+    /** The minimum distance from each term to the corresponding ancestor listed in {@link #ancestors}. */
+    private final int[][] distances;
+
+    /**
+     * Builds the graph from the parent relationships of all the terms in a vocabulary.
+     *
+     * @param parentMap maps each term identifier to the identifiers of its direct parents; parents that aren't listed
+     *            as keys are added as root terms
+     */
+    public OntologyGraph(Map<String, ? extends Collection<String>> parentMap)
+    {
+        this.index = new HashMap<>();
+        for (Map.Entry<String, ? extends Collection<String>> entry : parentMap.entrySet()) {
+            register(entry.getKey());
+            if (entry.getValue() != null) {
+                for (String parent : entry.getValue()) {
+                    register(parent);
+                }
+            }
+        }
+        int size = this.index.size();
+        this.ids = new String[size];
+        for (Map.Entry<String, Integer> entry : this.index.entrySet()) {
+            this.ids[entry.getValue()] = entry.getKey();
+        }
+
+        this.parents = new int[size][];
+        Arrays.fill(this.parents, new int[0]);
+        for (Map.Entry<String, ? extends Collection<String>> entry : parentMap.entrySet()) {
+            if (entry.getValue() == null || entry.getValue().isEmpty()) {
+                continue;
+            }
+            Set<Integer> termParents = new LinkedHashSet<>();
+            for (String parent : entry.getValue()) {
+                termParents.add(this.index.get(parent));
+            }
+            int i = this.index.get(entry.getKey());
+            termParents.remove(i);
+            this.parents[i] = toArray(termParents);
+        }
+
+        this.ancestors = new int[size][];
+        this.distances = new int[size][];
+        computeClosure();
+    }
+
+    /**
+     * Checks if a term is part of this graph.
+     *
+     * @param id the identifier of the term to check
+     * @return {@code true} if the term is known
+     */
+    public boolean contains(String id)
+    {
+        return id != null && this.index.containsKey(id);
+    }
+
+    /**
+     * The number of terms in the graph.
+     *
+     * @return the number of known terms
+     */
+    public int size()
+    {
+        return this.ids.length;
+    }
+
+    /**
+     * Returns the identifiers of the direct parents of a term.
+     *
+     * @param id the identifier of the target term
+     * @return a set of term identifiers, empty if the term is a root or isn't known
+     */
+    public Set<String> getParents(String id)
+    {
+        Integer i = this.index.get(id);
+        if (i == null) {
+            return Collections.emptySet();
+        }
+        return toIds(this.parents[i], -1);
+    }
+
+    /**
+     * Returns the identifiers of all the direct and indirect ancestors of a term, excluding the term itself.
+     *
+     * @param id the identifier of the target term
+     * @return a set of term identifiers, empty if the term is a root or isn't known
+     */
+    public Set<String> getAncestors(String id)
+    {
+        Integer i = this.index.get(id);
+        if (i == null) {
+            return Collections.emptySet();
+        }
+        return toIds(this.ancestors[i], i);
+    }
+
+    /**
+     * Returns the identifiers of all the direct and indirect ancestors of a term, including the term itself.
+     *
+     * @param id the identifier of the target term
+     * @return a set of term identifiers, empty if the term isn't known
+     */
+    public Set<String> getAncestorsAndSelf(String id)
+    {
+        Integer i = this.index.get(id);
+        if (i == null) {
+            return Collections.emptySet();
+        }
+        return toIds(this.ancestors[i], -1);
+    }
+
+    /**
+     * Checks if a term is an ancestor of another term, or the term itself.
+     *
+     * @param id the identifier of the descendant term
+     * @param ancestorId the identifier of the potential ancestor
+     * @return {@code true} if {@code ancestorId} is {@code id} or one of its ancestors, {@code false} otherwise
+     */
+    public boolean isAncestorOrSelf(String id, String ancestorId)
+    {
+        Integer i = this.index.get(id);
+        Integer a = this.index.get(ancestorId);
+        return i != null && a != null && Arrays.binarySearch(this.ancestors[i], a) >= 0;
+    }
+
+    /**
+     * Computes the distance between two terms, as the minimum number of edges that connect the two terms through a
+     * common ancestor.
+     *
+     * @param fromId the identifier of the first term
+     * @param toId the identifier of the second term
+     * @return the distance between the two terms, {@code 0} if they're the same term, or {@code -1} if one of the terms
+     *         isn't known or if the terms don't have a common ancestor
+     */
+    public long getDistance(String fromId, String toId)
+    {
+        Integer from = this.index.get(fromId);
+        Integer to = this.index.get(toId);
+        if (from == null || to == null) {
+            return -1;
+        }
+        int[] fromAncestors = this.ancestors[from];
+        int[] fromDistances = this.distances[from];
+        int[] toAncestors = this.ancestors[to];
+        int[] toDistances = this.distances[to];
+        int result = UNREACHED;
+        int i = 0;
+        int j = 0;
+        while (i < fromAncestors.length && j < toAncestors.length) {
+            if (fromAncestors[i] < toAncestors[j]) {
+                ++i;
+            } else if (fromAncestors[i] > toAncestors[j]) {
+                ++j;
+            } else {
+                result = Math.min(result, fromDistances[i++] + toDistances[j++]);
+            }
+        }
+        return result == UNREACHED ? -1 : result;
+    }
+
+    private void register(String id)
+    {
+        if (!this.index.containsKey(id)) {
+            this.index.put(id, this.index.size());
+        }
+    }
+
+    /**
+     * Computes the ancestors of all the terms, processing terms in topological order so that the closure of each term
+     * is built exactly once, by merging the already computed closures of its parents.
+     */
+    private void computeClosure()
+    {
+        int size = this.ids.length;
+        int[] pendingParents = new int[size];
+        int[][] children = new int[size][];
+        int[] childrenCount = new int[size];
+        for (int i = 0; i < size; ++i) {
+            pendingParents[i] = this.parents[i].length;
+            for (int parent : this.parents[i]) {
+                ++childrenCount[parent];
+            }
+        }
+        for (int i = 0; i < size; ++i) {
+            children[i] = new int[childrenCount[i]];
+            childrenCount[i] = 0;
+        }
+        for (int i = 0; i < size; ++i) {
+            for (int parent : this.parents[i]) {
+                children[parent][childrenCount[parent]++] = i;
+            }
+        }
+
+        int[] best = new int[size];
+        Arrays.fill(best, UNREACHED);
+        int[] touched = new int[size];
+        Queue<Integer> ready = new ArrayDeque<>();
+        for (int i = 0; i < size; ++i) {
+            if (pendingParents[i] == 0) {
+                ready.add(i);
+            }
+        }
+        while (!ready.isEmpty()) {
+            int term = ready.remove();
+            int touchedCount = 0;
+            best[term] = 0;
+            touched[touchedCount++] = term;
+            for (int parent : this.parents[term]) {
+                int[] parentAncestors = this.ancestors[parent];
+                int[] parentDistances = this.distances[parent];
+                for (int k = 0; k < parentAncestors.length; ++k) {
+                    int ancestor = parentAncestors[k];
+                    if (best[ancestor] == UNREACHED) {
+                        touched[touchedCount++] = ancestor;
+                    }
+                    best[ancestor] = Math.min(best[ancestor], parentDistances[k] + 1);
+                }
+            }
+            storeClosure(term, best, touched, touchedCount);
+            for (int child : children[term]) {
+                if (--pendingParents[child] == 0) {
+                    ready.add(child);
+                }
+            }
+        }
+
+        // Malformed vocabularies may contain cycles, which can't be ordered topologically; fall back to a plain
+        // breadth-first walk for the terms that are part of, or descend from, a cycle
+        for (int i = 0; i < size; ++i) {
+            if (this.ancestors[i] == null) {
+                computeClosureByTraversal(i, best, touched);
+            }
+        }
+    }
+
+    private void computeClosureByTraversal(int term, int[] best, int[] touched)
+    {
+        int touchedCount = 0;
+        best[term] = 0;
+        touched[touchedCount++] = term;
+        for (int k = 0; k < touchedCount; ++k) {
+            int current = touched[k];
+            for (int parent : this.parents[current]) {
+                if (best[parent] == UNREACHED) {
+                    best[parent] = best[current] + 1;
+                    touched[touchedCount++] = parent;
+                }
+            }
+        }
+        storeClosure(term, best, touched, touchedCount);
+    }
+
+    private void storeClosure(int term, int[] best, int[] touched, int touchedCount)
+    {
+        int[] termAncestors = Arrays.copyOf(touched, touchedCount);
+        Arrays.sort(termAncestors);
+        int[] termDistances = new int[touchedCount];
+        for (int k = 0; k < touchedCount; ++k) {
+            termDistances[k] = best[termAncestors[k]];
+            best[termAncestors[k]] = UNREACHED;
+        }
+        this.ancestors[term] = termAncestors;
+        this.distances[term] = termDistances;
+    }
+
+    private Set<String> toIds(int[] terms, int exclude)
+    {
+        Set<String> result = new LinkedHashSet<>(terms.length * 2);
+        for (int term : terms) {
+            if (term != exclude) {
+                result.add(this.ids[term]);
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    private static int[] toArray(Collection<Integer> values)
+    {
+        int[] result = new int[values.size()];
+        int i = 0;
+        for (Integer value : values) {
+            result[i++] = value;
+        }
+        return result;
+    }
+}
@@ -83,6 +83,9 @@ public class SolrVocabularyTerm implements VocabularyTerm
      */
     private Set<VocabularyTerm> ancestorsAndSelf;
 
+    /** Whether the related terms were already looked up in the vocabulary graph. */
+    private volatile boolean graphChecked;
+
     /**
      * Constructor that provides the backing {@link #doc Solr document} and the {@link #ontology owner ontology}.
      *
@@ -143,18 +146,21 @@ public String getDescription()
     @Override
     public Set<VocabularyTerm> getParents()
     {
+        checkGraph();
         return this.parents != null ? this.parents : Collections.<VocabularyTerm>emptySet();
     }
 
     @Override
     public Set<VocabularyTerm> getAncestors()
     {
+        checkGraph();
         return this.ancestors != null ? this.ancestors : Collections.<VocabularyTerm>emptySet();
     }
 
     @Override
     public Set<VocabularyTerm> getAncestorsAndSelf()
     {
+        checkGraph();
         return this.ancestorsAndSelf != null ? this.ancestorsAndSelf : Collections.<VocabularyTerm>emptySet();
     }
 
@@ -186,6 +192,11 @@ public long getDistanceTo(final VocabularyTerm other)
             return 0;
         }
 
+        OntologyGraph graph = getGraph();
+        if (graph != null && graph.contains(getId()) && graph.contains(other.getId())) {
+            return graph.getDistance(getId(), other.getId());
+        }
+
         long distance = Integer.MAX_VALUE;
 
         Map<String, Integer> myLevelMap = new HashMap<String, Integer>();
@@ -205,6 +216,39 @@ public long getDistanceTo(final VocabularyTerm other)
         return distance == Integer.MAX_VALUE ? -1 : distance;
     }
 
+    /**
+     * Replaces the related terms listed in the Solr document with those from the vocabulary graph, if available, since
+     * the graph is kept up to date with the whole index and doesn't depend on the stored ancestors. This is done only
+     * once, the first time related terms are needed, so that the graph isn't loaded just for creating a term.
+     */
+    private void checkGraph()
+    {
+        if (this.graphChecked || this.doc == null) {
+            return;
+        }
+        OntologyGraph graph = getGraph();
+        String id = getId();
+        if (graph != null && graph.contains(id)) {
+            this.parents = new LazySolrTermSet(graph.getParents(id), this.ontology);
+            this.ancestors = new LazySolrTermSet(graph.getAncestors(id), this.ontology);
+            this.ancestorsAndSelf = new LazySolrTermSet(graph.getAncestorsAndSelf(id), this.ontology);
+        }
+        this.graphChecked = true;
+    }
+
+    /**
+     * Get the in-memory graph of the owner vocabulary, if available.
+     *
+     * @return the graph of the owner vocabulary, or {@code null} if the vocabulary doesn't provide one
+     */
+    private OntologyGraph getGraph()
+    {
+        if (this.ontology instanceof AbstractSolrVocabulary) {
+            return ((AbstractSolrVocabulary) this.ontology).getGraph();
+        }
+        return null;
+    }
+
     private long processAncestorsAtDistance(int localDistance, Set<VocabularyTerm> sourceUnprocessedAncestors,
         Map<String, Integer> sourceDistanceMap, Map<String, Integer> targetDistanceMap)
     {
@@ -0,0 +1,134 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for the {@link OntologyGraph} class.
+ *
+ * @version $Id$
+ */
+public class OntologyGraphTest
+{
+    private OntologyGraph graph;
+
+    /**
+     * Builds the following graph, where edges point from children to parents.
+     *
+     * <pre>
+     *        A
+     *      /   \
+     *     B     C
+     *    / \    |
+     *   D   E   F
+     *    \ /
+     *     G
+     * </pre>
+     */
+    @Before
+    public void setUp()
+    {
+        Map<String, Collection<String>> parents = new LinkedHashMap<>();
+        parents.put("G", Arrays.asList("D", "E"));
+        parents.put("A", Collections.<String>emptyList());
+        parents.put("B", Arrays.asList("A"));
+        parents.put("C", Arrays.asList("A"));
+        parents.put("D", Arrays.asList("B"));
+        parents.put("E", Arrays.asList("B"));
+        parents.put("F", Arrays.asList("C"));
+        this.graph = new OntologyGraph(parents);
+    }
+
+    @Test
+    public void containsReturnsTrueOnlyForKnownTerms()
+    {
+        Assert.assertTrue(this.graph.contains("A"));
+        Assert.assertTrue(this.graph.contains("G"));
+        Assert.assertFalse(this.graph.contains("X"));
+        Assert.assertFalse(this.graph.contains(null));
+        Assert.assertEquals(7, this.graph.size());
+    }
+
+    @Test
+    public void getParentsReturnsDirectParents()
+    {
+        Assert.assertEquals(new HashSet<>(Arrays.asList("D", "E")), this.graph.getParents("G"));
+        Assert.assertTrue(this.graph.getParents("A").isEmpty());
+        Assert.assertTrue(this.graph.getParents("X").isEmpty());
+    }
+
+    @Test
+    public void getAncestorsReturnsTransitiveClosure()
+    {
+        Assert.assertEquals(new HashSet<>(Arrays.asList("D", "E", "B", "A")), this.graph.getAncestors("G"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("G", "D", "E", "B", "A")),
+            this.graph.getAncestorsAndSelf("G"));
+        Assert.assertTrue(this.graph.getAncestors("A").isEmpty());
+        Assert.assertEquals(Collections.singleton("A"), this.graph.getAncestorsAndSelf("A"));
+        Assert.assertTrue(this.graph.isAncestorOrSelf("G", "A"));
+        Assert.assertTrue(this.graph.isAncestorOrSelf("G", "G"));
+        Assert.assertFalse(this.graph.isAncestorOrSelf("G", "C"));
+    }
+
+    @Test
+    public void getDistanceUsesShortestPathThroughCommonAncestor()
+    {
+        Assert.assertEquals(0, this.graph.getDistance("G", "G"));
+        Assert.assertEquals(1, this.graph.getDistance("G", "D"));
+        Assert.assertEquals(2, this.graph.getDistance("G", "B"));
+        Assert.assertEquals(2, this.graph.getDistance("D", "E"));
+        Assert.assertEquals(5, this.graph.getDistance("G", "F"));
+        Assert.assertEquals(5, this.graph.getDistance("F", "G"));
+    }
+
+    @Test
+    public void getDistanceReturnsMinusOneForUnknownOrUnrelatedTerms()
+    {
+        Assert.assertEquals(-1, this.graph.getDistance("G", "X"));
+        Assert.assertEquals(-1, this.graph.getDistance(null, "A"));
+
+        Map<String, Collection<String>> parents = new LinkedHashMap<>();
+        parents.put("B", Arrays.asList("A"));
+        parents.put("D", Arrays.asList("C"));
+        OntologyGraph disconnected = new OntologyGraph(parents);
+        Assert.assertEquals(-1, disconnected.getDistance("B", "D"));
+        Assert.assertEquals(1, disconnected.getDistance("B", "A"));
+    }
+
+    @Test
+    public void cyclesDoNotPreventClosureComputation()
+    {
+        Map<String, Collection<String>> parents = new LinkedHashMap<>();
+        parents.put("B", Arrays.asList("A", "C"));
+        parents.put("C", Arrays.asList("B"));
+        parents.put("D", Arrays.asList("C"));
+        OntologyGraph cyclic = new OntologyGraph(parents);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("A", "B", "C")), cyclic.getAncestors("D"));
+        Assert.assertEquals(3, cyclic.getDistance("D", "A"));
+    }
+}
@@ -60,6 +60,8 @@
 
     public Vocabulary ontologyService;
 
+    public SolrVocabularyResourceManager externalServicesAccess;
+
     @Rule
     public final MockitoComponentMockingRule<Vocabulary> mocker =
         new MockitoComponentMockingRule<Vocabulary>(ChEBIOntology.class);
@@ -70,11 +72,11 @@ public void setUpOntology()
         throws ComponentLookupException, IOException, SolrServerException, CacheException
     {
         this.cache = mock(Cache.class);
-        SolrVocabularyResourceManager externalServicesAccess =
-            this.mocker.getInstance(SolrVocabularyResourceManager.class);
-        when(externalServicesAccess.getTermCache()).thenReturn(this.cache);
+        this.externalServicesAccess = this.mocker.getInstance(SolrVocabularyResourceManager.class);
+        when(this.externalServicesAccess.getTermCache()).thenReturn(this.cache);
         this.server = mock(SolrClient.class);
-        when(externalServicesAccess.getSolrConnection()).thenReturn(this.server);
+        when(this.externalServicesAccess.getSolrConnection()).thenReturn(this.server);
+        when(this.externalServicesAccess.createReplacementCore()).thenReturn(this.server);
         this.ontologyService = this.mocker.getComponentUnderTest();
     }
 
@@ -83,10 +85,10 @@ public void testChEBIOntologyReindex()
         throws ComponentLookupException, IOException, SolrServerException, CacheException
     {
         this.ontologyServiceResult = this.ontologyService.reindex(null);
-        Mockito.verify(this.server).deleteByQuery("*:*");
         Mockito.verify(this.server, Mockito.atLeast(1)).commit();
         Mockito.verify(this.server, Mockito.atLeast(1)).add(Matchers.anyCollectionOf(SolrInputDocument.class));
-        Mockito.verify(this.cache, Mockito.atLeast(1)).removeAll();
+        Mockito.verify(this.externalServicesAccess).replaceCore();
+        Mockito.verify(this.externalServicesAccess, Mockito.never()).discardReplacementCore();
         Mockito.verifyNoMoreInteractions(this.cache, this.server);
         Assert.assertTrue(this.ontologyServiceResult == 0);
     }
@@ -27,6 +27,8 @@
 import org.xwiki.cache.eviction.EntryEvictionConfiguration;
 import org.xwiki.cache.eviction.LRUEvictionConfiguration;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.manager.ComponentLifecycleException;
+import org.xwiki.component.phase.Disposable;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
 import org.xwiki.configuration.ConfigurationSource;
@@ -38,11 +40,24 @@
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -52,11 +67,13 @@
 import org.apache.commons.lang3.StringUtils;
 import org.apache.http.Consts;
 import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.params.CommonParams;
 import org.json.JSONArray;
@@ -73,7 +90,7 @@
 @Component
 @Named("hgnc")
 @Singleton
-public class RemoteGeneNomenclature implements Vocabulary, Initializable
+public class RemoteGeneNomenclature implements Vocabulary, Initializable, Disposable
 {
     /**
      * Object used to mark in the cache that a term doesn't exist, since null means that the cache doesn't contain the
@@ -93,6 +110,26 @@ public class RemoteGeneNomenclature implements Vocabulary, Initializable
 
     private static final Map<String, String> QUERY_OPERATORS = new HashMap<>();
 
+    private static final String CONFIGURATION_PREFIX = "phenotips.ontologies.hgnc.";
+
+    /** The default maximum number of requests sent in parallel to the remote service. */
+    private static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 8;
+
+    /** The default time, in milliseconds, to wait for the remote service before giving up on a request. */
+    private static final int DEFAULT_REQUEST_TIMEOUT = 5000;
+
+    /** The default time, in seconds, for which unknown symbols are remembered. */
+    private static final int DEFAULT_MISSING_TERMS_TTL = 3600;
+
+    /** The identifier of the cache holding the unknown symbols. */
+    private static final String MISSING_TERMS_CACHE_ID = "hgnc.missingTerms";
+
+    /** The maximum number of unknown symbols remembered. */
+    private static final int MISSING_TERMS_CACHE_SIZE = 10000;
+
+    /** Idle connections are kept alive for this many seconds, so that subsequent requests can reuse them. */
+    private static final int IDLE_CONNECTION_TIMEOUT = 30;
+
     @Inject
     @Named("xwikiproperties")
     private ConfigurationSource configuration;
@@ -105,8 +142,17 @@ public class RemoteGeneNomenclature implements Vocabulary, Initializable
 
     private String fetchServiceURL;
 
-    /** Performs HTTP requests to the remote REST service. */
-    private final CloseableHttpClient client = HttpClients.createSystem();
+    /** Performs HTTP requests to the remote REST service, reusing a pool of keep-alive connections. */
+    private CloseableHttpClient client;
+
+    /** Runs the term fetches requested by {@link #getTerms(Collection)} in parallel. */
+    private ExecutorService fetchExecutor;
+
+    /** The maximum time, in milliseconds, to wait for a response from the remote service. */
+    private int requestTimeout;
+
+    /** Fetches currently running, so that concurrent requests for the same symbol share the same remote call. */
+    private final ConcurrentMap<String, Future<VocabularyTerm>> pendingFetches = new ConcurrentHashMap<>();
 
     @Inject
     private Logger logger;
@@ -117,6 +163,12 @@ public class RemoteGeneNomenclature implements Vocabulary, Initializable
      */
     private Cache<VocabularyTerm> cache;
 
+    /**
+     * Cache for the symbols unknown to the remote service. These expire sooner than the known terms, since new symbols
+     * may be approved at any time.
+     */
+    private Cache<VocabularyTerm> missingTermsCache;
+
     /** Cache for ontology metadata. */
     private Cache<JSONObject> infoCache;
 
@@ -134,56 +186,79 @@ public void initialize() throws InitializationException
             this.infoServiceURL = this.baseServiceURL + "info";
             this.fetchServiceURL = this.baseServiceURL + "fetch/";
             this.cache = this.cacheFactory.createNewLocalCache(new CacheConfiguration());
+            EntryEvictionConfiguration missingConfig = new LRUEvictionConfiguration(MISSING_TERMS_CACHE_SIZE);
+            missingConfig.setTimeToLive(getPositiveProperty("missingTermsTTL", DEFAULT_MISSING_TERMS_TTL));
+            CacheConfiguration missingCacheConfig = new CacheConfiguration(missingConfig);
+            missingCacheConfig.setConfigurationId(MISSING_TERMS_CACHE_ID);
+            this.missingTermsCache = this.cacheFactory.createNewLocalCache(missingCacheConfig);
             EntryEvictionConfiguration infoConfig = new LRUEvictionConfiguration(1);
             infoConfig.setTimeToLive(300);
             this.infoCache = this.cacheFactory.createNewLocalCache(new CacheConfiguration(infoConfig));
         } catch (final CacheException ex) {
             throw new InitializationException("Cannot create cache: " + ex.getMessage());
         }
+        this.requestTimeout = getPositiveProperty("requestTimeout", DEFAULT_REQUEST_TIMEOUT);
+        int maxConcurrentRequests = getPositiveProperty("maxConcurrentRequests", DEFAULT_MAX_CONCURRENT_REQUESTS);
+        // When re-initialized, keep using the existing connection pool and threads instead of leaking them
+        if (this.client == null) {
+            this.client = createClient(maxConcurrentRequests);
+        }
+        if (this.fetchExecutor == null) {
+            this.fetchExecutor = Executors.newFixedThreadPool(maxConcurrentRequests, new FetchThreadFactory());
+        }
         QUERY_OPERATORS.put("OR", "");
         QUERY_OPERATORS.put(DEFAULT_OPERATOR, DEFAULT_OPERATOR + ' ');
         QUERY_OPERATORS.put("NOT", "-");
     }
 
     @Override
-    public VocabularyTerm getTerm(String id)
+    public void dispose() throws ComponentLifecycleException
     {
-        VocabularyTerm result = this.cache.get(id);
-        String safeID;
-        if (result == null) {
+        if (this.fetchExecutor != null) {
+            this.fetchExecutor.shutdownNow();
+        }
+        if (this.client != null) {
             try {
-                safeID = URLEncoder.encode(id, Consts.UTF_8.name());
-            } catch (UnsupportedEncodingException e) {
-                safeID = id.replaceAll("\\s", "");
-                this.logger.warn("Could not find the encoding: {}", Consts.UTF_8.name());
-            }
-            HttpGet method = new HttpGet(this.fetchServiceURL + "symbol/" + safeID);
-            method.setHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
-            try (CloseableHttpResponse httpResponse = this.client.execute(method)) {
-                String response = IOUtils.toString(httpResponse.getEntity().getContent(), Consts.UTF_8);
-                JSONObject responseJSON = new JSONObject(response);
-                JSONArray docs = responseJSON.getJSONObject(RESPONSE_KEY).getJSONArray(DATA_KEY);
-                if (docs.length() == 1) {
-                    result = new JSONOntologyTerm(docs.getJSONObject(0), this);
-                    this.cache.set(id, result);
-                } else {
-                    this.cache.set(id, EMPTY_MARKER);
-                }
-            } catch (IOException | JSONException ex) {
-                this.logger.warn("Failed to fetch gene definition: {}", ex.getMessage());
+                this.client.close();
+            } catch (IOException ex) {
+                this.logger.warn("Failed to close the HGNC connection pool: {}", ex.getMessage());
             }
         }
+    }
+
+    @Override
+    public VocabularyTerm getTerm(String id)
+    {
+        VocabularyTerm result = getCachedTerm(id);
+        if (result == null) {
+            result = waitForTerm(startFetch(id, true), System.nanoTime() + getRequestTimeoutNanos());
+        }
         return (result == EMPTY_MARKER) ? null : result;
     }
 
     @Override
     public Set<VocabularyTerm> getTerms(Collection<String> ids)
     {
-        // FIXME Reimplement with a bunch of async connections fired in parallel
-        Set<VocabularyTerm> result = new LinkedHashSet<>();
+        // Cached terms are returned directly, all the others are fetched in parallel, up to the configured limit
+        Map<String, Object> found = new LinkedHashMap<>();
         for (String id : ids) {
-            VocabularyTerm term = getTerm(id);
-            if (term != null) {
+            if (!found.containsKey(id)) {
+                VocabularyTerm term = getCachedTerm(id);
+                found.put(id, term != null ? term : startFetch(id, false));
+            }
+        }
+        long deadline = System.nanoTime() + getRequestTimeoutNanos();
+        Set<VocabularyTerm> result = new LinkedHashSet<>();
+        for (Object item : found.values()) {
+            VocabularyTerm term;
+            if (item instanceof Future) {
+                @SuppressWarnings("unchecked")
+                Future<VocabularyTerm> fetch = (Future<VocabularyTerm>) item;
+                term = waitForTerm(fetch, deadline);
+            } else {
+                term = (VocabularyTerm) item;
+            }
+            if (term != null && term != EMPTY_MARKER) {
                 result.add(term);
             }
         }
@@ -323,6 +398,7 @@ public int reindex(String ontologyUrl)
     {
         // Remote ontology, we cannot reindex, but we can clear the local cache
         this.cache.removeAll();
+        this.missingTermsCache.removeAll();
         return 0;
     }
 
@@ -339,6 +415,116 @@ public String getVersion()
         return info == null ? "" : info.getString("lastModified");
     }
 
+    private VocabularyTerm getCachedTerm(String id)
+    {
+        VocabularyTerm result = this.cache.get(id);
+        if (result == null) {
+            result = this.missingTermsCache.get(id);
+        }
+        return result;
+    }
+
+    /**
+     * Starts fetching a term from the remote service, unless a fetch for the same symbol is already in progress, in
+     * which case the pending fetch is returned instead.
+     *
+     * @param id the symbol to fetch
+     * @param inCurrentThread whether a new fetch should run directly in the current thread, or in the background
+     * @return the pending fetch
+     */
+    private Future<VocabularyTerm> startFetch(String id, boolean inCurrentThread)
+    {
+        FetchTask task = new FetchTask(id);
+        Future<VocabularyTerm> existing = this.pendingFetches.putIfAbsent(id, task);
+        if (existing != null) {
+            return existing;
+        }
+        if (inCurrentThread) {
+            task.run();
+        } else {
+            this.fetchExecutor.execute(task);
+        }
+        return task;
+    }
+
+    private VocabularyTerm waitForTerm(Future<VocabularyTerm> fetch, long deadline)
+    {
+        try {
+            return fetch.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException ex) {
+            // The fetch goes on in the background, and its result will be cached for future requests
+            this.logger.warn("Timed out while fetching gene definition");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ex) {
+            this.logger.warn("Failed to fetch gene definition: {}", ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Fetches a term from the remote service, and caches the result.
+     *
+     * @param id the symbol to fetch
+     * @return the fetched term, {@link #EMPTY_MARKER} if the symbol is unknown, or {@code null} if the request failed
+     */
+    private VocabularyTerm fetchTerm(String id)
+    {
+        String safeID;
+        try {
+            safeID = URLEncoder.encode(id, Consts.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            safeID = id.replaceAll("\\s", "");
+            this.logger.warn("Could not find the encoding: {}", Consts.UTF_8.name());
+        }
+        HttpGet method = new HttpGet(this.fetchServiceURL + "symbol/" + safeID);
+        method.setHeader(HttpHeaders.ACCEPT, ContentType.APPLICATION_JSON.getMimeType());
+        try (CloseableHttpResponse httpResponse = this.client.execute(method)) {
+            String response = IOUtils.toString(httpResponse.getEntity().getContent(), Consts.UTF_8);
+            JSONObject responseJSON = new JSONObject(response);
+            JSONArray docs = responseJSON.getJSONObject(RESPONSE_KEY).getJSONArray(DATA_KEY);
+            if (docs.length() == 1) {
+                VocabularyTerm result = new JSONOntologyTerm(docs.getJSONObject(0), this);
+                this.cache.set(id, result);
+                return result;
+            }
+            this.missingTermsCache.set(id, EMPTY_MARKER);
+            return EMPTY_MARKER;
+        } catch (IOException | JSONException ex) {
+            this.logger.warn("Failed to fetch gene definition: {}", ex.getMessage());
+        }
+        return null;
+    }
+
+    private long getRequestTimeoutNanos()
+    {
+        return TimeUnit.MILLISECONDS.toNanos(this.requestTimeout);
+    }
+
+    private int getPositiveProperty(String name, int defaultValue)
+    {
+        Integer value = this.configuration.getProperty(CONFIGURATION_PREFIX + name, Integer.class);
+        return (value == null || value <= 0) ? defaultValue : value;
+    }
+
+    private CloseableHttpClient createClient(int maxConnections)
+    {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        RequestConfig requestConfig = RequestConfig.custom()
+            .setConnectionRequestTimeout(this.requestTimeout)
+            .setConnectTimeout(this.requestTimeout)
+            .setSocketTimeout(this.requestTimeout)
+            .build();
+        return HttpClients.custom()
+            .useSystemProperties()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .evictIdleConnections(IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS)
+            .build();
+    }
+
     private JSONObject getInfo()
     {
         JSONObject info = this.infoCache.get("");
@@ -431,6 +617,45 @@ private StringBuilder processSubquery(StringBuilder query, Map.Entry<String, Map
         return query;
     }
 
+    /** A fetch of a single term, which stops being shared with other requests as soon as it completes. */
+    private final class FetchTask extends FutureTask<VocabularyTerm>
+    {
+        private final String id;
+
+        FetchTask(final String id)
+        {
+            super(new Callable<VocabularyTerm>()
+            {
+                @Override
+                public VocabularyTerm call()
+                {
+                    return fetchTerm(id);
+                }
+            });
+            this.id = id;
+        }
+
+        @Override
+        protected void done()
+        {
+            RemoteGeneNomenclature.this.pendingFetches.remove(this.id, this);
+        }
+    }
+
+    /** Creates daemon threads, so that pending fetches don't prevent the server from shutting down. */
+    private static final class FetchThreadFactory implements ThreadFactory
+    {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread result = new Thread(task, "HGNC fetcher " + this.counter.incrementAndGet());
+            result.setDaemon(true);
+            return result;
+        }
+    }
+
     private static class JSONOntologyTerm implements VocabularyTerm
     {
         private JSONObject data;
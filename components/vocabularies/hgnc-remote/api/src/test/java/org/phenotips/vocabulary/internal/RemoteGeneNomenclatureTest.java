@@ -24,6 +24,8 @@
 import org.xwiki.cache.CacheException;
 import org.xwiki.cache.CacheManager;
 import org.xwiki.cache.config.CacheConfiguration;
+import org.xwiki.cache.eviction.EntryEvictionConfiguration;
+import org.xwiki.cache.eviction.LRUEvictionConfiguration;
 import org.xwiki.component.manager.ComponentLookupException;
 import org.xwiki.component.phase.Initializable;
 import org.xwiki.component.phase.InitializationException;
@@ -32,17 +34,29 @@
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.client.ClientProtocolException;
@@ -50,15 +64,23 @@
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.json.JSONArray;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentMatcher;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 import org.mockito.internal.matchers.CapturingMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
 
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
@@ -91,11 +113,19 @@
     @Mock
     private Cache<VocabularyTerm> cache;
 
+    @Mock
+    private Cache<VocabularyTerm> missingTermsCache;
+
     @Mock
     private VocabularyTerm term;
 
     private VocabularyTerm emptyMarker;
 
+    /** A local HTTP server standing in for the remote service, started only by the tests that need it. */
+    private HttpServer stubServer;
+
+    private ExecutorService stubServerExecutor;
+
     @Before
     public void setUp() throws ComponentLookupException, CacheException, NoSuchFieldException,
         IllegalArgumentException, IllegalAccessException
@@ -103,6 +133,8 @@ public void setUp() throws ComponentLookupException, CacheException, NoSuchField
         MockitoAnnotations.initMocks(this);
         when(this.mocker.<CacheManager>getInstance(CacheManager.class).<VocabularyTerm>createNewLocalCache(
             any(CacheConfiguration.class))).thenReturn(this.cache);
+        when(this.mocker.<CacheManager>getInstance(CacheManager.class).<VocabularyTerm>createNewLocalCache(
+            Matchers.argThat(new IsMissingTermsCacheConfiguration()))).thenReturn(this.missingTermsCache);
         this.configuration = this.mocker.getInstance(ConfigurationSource.class, "xwikiproperties");
         when(this.configuration.getProperty("phenotips.ontologies.hgnc.serviceURL", "http://rest.genenames.org/"))
             .thenReturn("http://rest.genenames.org/");
@@ -112,6 +144,15 @@ public void setUp() throws ComponentLookupException, CacheException, NoSuchField
         this.emptyMarker = (VocabularyTerm) em.get(null);
     }
 
+    @After
+    public void tearDown()
+    {
+        if (this.stubServer != null) {
+            this.stubServer.stop(0);
+            this.stubServerExecutor.shutdownNow();
+        }
+    }
+
     @Test
     public void checkURLConfigurable() throws ComponentLookupException, URISyntaxException,
         ClientProtocolException, IOException, InitializationException
@@ -188,14 +229,15 @@ public void getTermWithInvalidTermReturnsNull() throws ComponentLookupException,
         Assert.assertEquals(expectedURI, reqCapture.getLastValue().getURI());
         Assert.assertEquals("application/json", reqCapture.getLastValue().getLastHeader("Accept").getValue());
         Assert.assertNull(result);
-        verify(this.cache).set("NOTHING", this.emptyMarker);
+        verify(this.missingTermsCache).set("NOTHING", this.emptyMarker);
+        verify(this.cache, never()).set(Matchers.eq("NOTHING"), any(VocabularyTerm.class));
     }
 
     @Test
     public void getTermWithEmptyMarkerInCacheReturnsNull() throws ComponentLookupException, URISyntaxException,
         ClientProtocolException, IOException
     {
-        when(this.cache.get("NOTHING")).thenReturn(this.emptyMarker);
+        when(this.missingTermsCache.get("NOTHING")).thenReturn(this.emptyMarker);
         VocabularyTerm result = this.mocker.getComponentUnderTest().getTerm("NOTHING");
         verify(this.client, never()).execute(any(HttpUriRequest.class));
         Assert.assertNull(result);
@@ -222,14 +264,176 @@ public void getTermsFetchesFromRemoteServer() throws ComponentLookupException, U
         when(this.responseEntity.getContent()).thenReturn(ClassLoader.getSystemResourceAsStream("BRCA1.json"),
             ClassLoader.getSystemResourceAsStream("NOTHING.json"));
         Set<VocabularyTerm> result = this.mocker.getComponentUnderTest().getTerms(Arrays.asList("BRCA1", "NOTHING"));
-        List<HttpUriRequest> calledURIs = reqCapture.getAllValues();
-        Assert.assertEquals(expectedURI1, calledURIs.get(0).getURI());
-        Assert.assertEquals(expectedURI2, calledURIs.get(1).getURI());
-        Assert.assertEquals("application/json", reqCapture.getLastValue().getLastHeader("Accept").getValue());
+        // Requests are sent in parallel, so their order isn't fixed
+        Set<URI> calledURIs = new HashSet<>();
+        for (HttpUriRequest request : reqCapture.getAllValues()) {
+            calledURIs.add(request.getURI());
+            Assert.assertEquals("application/json", request.getLastHeader("Accept").getValue());
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList(expectedURI1, expectedURI2)), calledURIs);
         Assert.assertEquals(1, result.size());
         Assert.assertEquals("BRCA1", result.iterator().next().getId());
     }
 
+    @Test
+    public void getTermsOnlyFetchesUncachedTerms() throws ComponentLookupException, ClientProtocolException,
+        IOException
+    {
+        when(this.cache.get("BRCA1")).thenReturn(this.term);
+        when(this.missingTermsCache.get("NOTHING")).thenReturn(this.emptyMarker);
+        Set<VocabularyTerm> result =
+            this.mocker.getComponentUnderTest().getTerms(Arrays.asList("BRCA1", "NOTHING", "BRCA1"));
+        verify(this.client, never()).execute(any(HttpUriRequest.class));
+        Assert.assertEquals(Collections.singleton(this.term), result);
+    }
+
+    @Test
+    public void getTermsSendsRequestsInParallel() throws Exception
+    {
+        final int count = 4;
+        final CountDownLatch allStarted = new CountDownLatch(count);
+        startStubServer(new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                // Only answers once all the requests are in progress, which can't happen if they're sent one by one
+                allStarted.countDown();
+                try {
+                    allStarted.await(2, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, termJSON(exchange));
+            }
+        });
+        Set<VocabularyTerm> result =
+            this.mocker.getComponentUnderTest().getTerms(Arrays.asList("GENE1", "GENE2", "GENE3", "GENE4"));
+        Assert.assertEquals(0, allStarted.getCount());
+        Assert.assertEquals(count, result.size());
+        Iterator<VocabularyTerm> terms = result.iterator();
+        for (int i = 1; i <= count; ++i) {
+            Assert.assertEquals("GENE" + i, terms.next().getId());
+        }
+    }
+
+    @Test
+    public void concurrentRequestsForTheSameSymbolShareOneFetch() throws Exception
+    {
+        final AtomicInteger requests = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        startStubServer(new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                requests.incrementAndGet();
+                try {
+                    release.await(2, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, termJSON(exchange));
+            }
+        });
+        final AtomicInteger lookups = new AtomicInteger();
+        when(this.missingTermsCache.get("BRCA1")).thenAnswer(new Answer<VocabularyTerm>()
+        {
+            @Override
+            public VocabularyTerm answer(InvocationOnMock invocation)
+            {
+                lookups.incrementAndGet();
+                return null;
+            }
+        });
+
+        final Vocabulary hgnc = this.mocker.getComponentUnderTest();
+        ExecutorService callers = Executors.newFixedThreadPool(3);
+        VocabularyTerm first;
+        try {
+            List<Future<VocabularyTerm>> results = new ArrayList<>();
+            for (int i = 0; i < 3; ++i) {
+                results.add(callers.submit(new Callable<VocabularyTerm>()
+                {
+                    @Override
+                    public VocabularyTerm call()
+                    {
+                        return hgnc.getTerm("BRCA1");
+                    }
+                }));
+            }
+            // Wait until all the callers missed the cache, and give them time to join the pending fetch
+            while (lookups.get() < 3) {
+                Thread.sleep(10);
+            }
+            Thread.sleep(100);
+            release.countDown();
+            first = results.get(0).get(5, TimeUnit.SECONDS);
+            Assert.assertEquals("BRCA1", first.getId());
+            for (Future<VocabularyTerm> result : results) {
+                Assert.assertSame(first, result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            callers.shutdownNow();
+        }
+        Assert.assertEquals(1, requests.get());
+        verify(this.cache).set("BRCA1", first);
+    }
+
+    @Test
+    public void slowRequestsAreAbandonedAfterTheDeadline() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.ontologies.hgnc.requestTimeout", Integer.class))
+            .thenReturn(200);
+        final CountDownLatch release = new CountDownLatch(1);
+        startStubServer(new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                respond(exchange, termJSON(exchange));
+            }
+        });
+        try {
+            long start = System.currentTimeMillis();
+            Set<VocabularyTerm> result = this.mocker.getComponentUnderTest().getTerms(Arrays.asList("SLOW"));
+            Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+            Assert.assertTrue(result.isEmpty());
+            // Failures aren't remembered, the term can be fetched again as soon as the service recovers
+            verify(this.missingTermsCache, never()).set(Matchers.eq("SLOW"), any(VocabularyTerm.class));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void missingTermsCacheUsesConfiguredTimeToLive() throws Exception
+    {
+        when(this.configuration.getProperty("phenotips.ontologies.hgnc.missingTermsTTL", Integer.class))
+            .thenReturn(60);
+        CacheManager cacheManager = this.mocker.getInstance(CacheManager.class);
+        CapturingMatcher<CacheConfiguration> configCapture = new CapturingMatcher<>();
+        when(cacheManager.<VocabularyTerm>createNewLocalCache(Matchers.argThat(configCapture)))
+            .thenReturn(this.missingTermsCache);
+        ((Initializable) this.mocker.getComponentUnderTest()).initialize();
+
+        boolean found = false;
+        for (CacheConfiguration config : configCapture.getAllValues()) {
+            if ("hgnc.missingTerms".equals(config.getConfigurationId())) {
+                LRUEvictionConfiguration eviction =
+                    (LRUEvictionConfiguration) config.get(EntryEvictionConfiguration.CONFIGURATIONID);
+                Assert.assertEquals(60, eviction.getTimeToLive());
+                found = true;
+            }
+        }
+        Assert.assertTrue(found);
+    }
+
     @Test
     public void getStringDistanceIsFlat() throws ComponentLookupException
     {
@@ -303,6 +507,7 @@ public void reindexInvalidatesCache() throws ComponentLookupException
     {
         Assert.assertEquals(0, this.mocker.getComponentUnderTest().reindex(null));
         Mockito.verify(this.cache).removeAll();
+        Mockito.verify(this.missingTermsCache).removeAll();
         Mockito.verifyNoMoreInteractions(this.client);
     }
 
@@ -498,4 +703,50 @@ public void invalidOrEmptyResponseReturnsNoInfo() throws ComponentLookupExceptio
         when(this.responseEntity.getContent()).thenReturn(ClassLoader.getSystemResourceAsStream(""));
         Assert.assertEquals("", this.mocker.getComponentUnderTest().getVersion());
     }
+
+    /**
+     * Starts a local HTTP server and points the component to it, using a real HTTP client instead of the mock.
+     *
+     * @param handler handles all the requests received by the server
+     */
+    private void startStubServer(HttpHandler handler) throws Exception
+    {
+        this.stubServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        this.stubServer.createContext("/", handler);
+        this.stubServerExecutor = Executors.newCachedThreadPool();
+        this.stubServer.setExecutor(this.stubServerExecutor);
+        this.stubServer.start();
+        when(this.configuration.getProperty("phenotips.ontologies.hgnc.serviceURL", "http://rest.genenames.org/"))
+            .thenReturn("http://127.0.0.1:" + this.stubServer.getAddress().getPort() + "/");
+        ReflectionUtils.setFieldValue(this.mocker.getComponentUnderTest(), "client", null);
+        ((Initializable) this.mocker.getComponentUnderTest()).initialize();
+    }
+
+    private static String termJSON(HttpExchange exchange)
+    {
+        String path = exchange.getRequestURI().getPath();
+        String symbol = path.substring(path.lastIndexOf('/') + 1);
+        return "{\"response\":{\"numFound\":1,\"start\":0,\"docs\":[{\"symbol\":\"" + symbol
+            + "\",\"name\":\"" + symbol + "\"}]}}";
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException
+    {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, content.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content);
+        }
+    }
+
+    private static final class IsMissingTermsCacheConfiguration extends ArgumentMatcher<CacheConfiguration>
+    {
+        @Override
+        public boolean matches(Object argument)
+        {
+            return argument instanceof CacheConfiguration
+                && "hgnc.missingTerms".equals(((CacheConfiguration) argument).getConfigurationId());
+        }
+    }
 }
@@ -27,7 +27,12 @@
 import org.xwiki.test.mockito.MockitoComponentMockingRule;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
 
+import org.apache.commons.lang3.StringUtils;
 import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
@@ -66,6 +71,8 @@
 
     public Vocabulary ontologyService;
 
+    public SolrVocabularyResourceManager externalServicesAccess;
+
     @Rule
     public final MockitoComponentMockingRule<Vocabulary> mocker =
         new MockitoComponentMockingRule<Vocabulary>(HumanPhenotypeOntology.class);
@@ -76,11 +83,11 @@ public void setUpOntology()
         throws ComponentLookupException, IOException, SolrServerException, CacheException
     {
         this.cache = mock(Cache.class);
-        SolrVocabularyResourceManager externalServicesAccess =
-            this.mocker.getInstance(SolrVocabularyResourceManager.class);
-        when(externalServicesAccess.getTermCache()).thenReturn(this.cache);
+        this.externalServicesAccess = this.mocker.getInstance(SolrVocabularyResourceManager.class);
+        when(this.externalServicesAccess.getTermCache()).thenReturn(this.cache);
         this.server = mock(SolrClient.class);
-        when(externalServicesAccess.getSolrConnection()).thenReturn(this.server);
+        when(this.externalServicesAccess.getSolrConnection()).thenReturn(this.server);
+        when(this.externalServicesAccess.createReplacementCore()).thenReturn(this.server);
         this.ontologyService = this.mocker.getComponentUnderTest();
         this.ontologyServiceResult =
             this.ontologyService.reindex(this.getClass().getResource("/hpo-test.obo").toString());
@@ -90,14 +97,24 @@ public void setUpOntology()
     public void testHumanPhenotypeOntologyReindex()
         throws ComponentLookupException, IOException, SolrServerException, CacheException
     {
-        Mockito.verify(this.server).deleteByQuery("*:*");
         Mockito.verify(this.server).commit();
         Mockito.verify(this.server).add(Matchers.anyCollectionOf(SolrInputDocument.class));
-        Mockito.verify(this.cache).removeAll();
+        Mockito.verify(this.externalServicesAccess).createReplacementCore();
+        Mockito.verify(this.externalServicesAccess).replaceCore();
+        Mockito.verify(this.externalServicesAccess, Mockito.never()).discardReplacementCore();
         Mockito.verifyNoMoreInteractions(this.cache, this.server);
         Assert.assertTrue(this.ontologyServiceResult == 0);
     }
 
+    @Test
+    public void testHumanPhenotypeOntologyFailedReindexKeepsCurrentIndex() throws IOException
+    {
+        Assert.assertEquals(2, this.ontologyService.reindex("invalid"));
+        Mockito.verify(this.externalServicesAccess).discardReplacementCore();
+        // Only the successful reindex performed during setup replaced the core
+        Mockito.verify(this.externalServicesAccess).replaceCore();
+    }
+
     @Test
     public void testHumanPhenotypeOntologyVersion() throws SolrServerException, IOException
     {
@@ -169,6 +186,133 @@ public void testHumanPhenotypeOntologySuggestTermsMultipleWords() throws Compone
         verify(this.server).query(argThat(new IsDisMaxQuery()));
     }
 
+    @Test
+    public void testGetTermsServesCachedTermsWithoutQuerying() throws SolrServerException, IOException
+    {
+        VocabularyTerm term1 = mock(VocabularyTerm.class);
+        VocabularyTerm term2 = mock(VocabularyTerm.class);
+        when(this.cache.get("HP:0000001")).thenReturn(term1);
+        when(this.cache.get("HP:0000002")).thenReturn(term2);
+
+        Set<VocabularyTerm> result = this.ontologyService.getTerms(Arrays.asList("HP:0000001", "HP:0000002"));
+
+        Assert.assertEquals(2, result.size());
+        Assert.assertTrue(result.contains(term1));
+        Assert.assertTrue(result.contains(term2));
+        verify(this.server, Mockito.never()).query(any(SolrParams.class));
+    }
+
+    @Test
+    public void testGetTermsFetchesMissingTermsInChunksAndCachesResults() throws SolrServerException, IOException
+    {
+        SolrDocument doc = new SolrDocument();
+        doc.addField("id", "HP:0000001");
+        SolrDocumentList docs = new SolrDocumentList();
+        docs.add(doc);
+        QueryResponse response = mock(QueryResponse.class);
+        when(this.server.query(any(SolrParams.class))).thenReturn(response);
+        when(response.getResults()).thenReturn(docs);
+
+        List<String> ids = new ArrayList<>();
+        for (int i = 1; i <= 1200; ++i) {
+            ids.add(String.format("HP:%07d", i));
+        }
+        Set<VocabularyTerm> result = this.ontologyService.getTerms(ids);
+
+        Assert.assertEquals(1, result.size());
+        Assert.assertEquals("HP:0000001", result.iterator().next().getId());
+        verify(this.server, Mockito.times(3)).query(any(SolrParams.class));
+        verify(this.cache).set(Matchers.eq("HP:0000001"), Matchers.argThat(new HasId("HP:0000001")));
+        verify(this.cache).set(Matchers.eq("HP:0001200"), Matchers.argThat(new HasId(null)));
+    }
+
+    @Test
+    public void testGetTermsDoesntCacheMissesWhenQueryFails() throws SolrServerException, IOException
+    {
+        when(this.server.query(any(SolrParams.class))).thenThrow(new SolrServerException("Unavailable"));
+
+        Assert.assertTrue(this.ontologyService.getTerms(Arrays.asList("HP:0000001")).isEmpty());
+        verify(this.cache, Mockito.never()).set(Matchers.anyString(), any(VocabularyTerm.class));
+    }
+
+    @Test
+    public void testTermRelativesComeFromTheTermGraph() throws SolrServerException, IOException
+    {
+        SolrDocumentList graphDocs = new SolrDocumentList();
+        graphDocs.add(graphDocument("HP:0000001", null));
+        graphDocs.add(graphDocument("HP:0000118", "HP:0000001 ! All"));
+        graphDocs.add(graphDocument("HP:0000152", "HP:0000118 ! Phenotypic abnormality"));
+        graphDocs.setNumFound(3);
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(graphDocs);
+        when(this.server.query(argThat(new IsGraphQuery()))).thenReturn(response);
+
+        // The stored ancestors are outdated, the graph is used instead
+        SolrDocument doc = graphDocument("HP:0000152", "HP:0000118 ! Phenotypic abnormality");
+        doc.addField("term_category", "HP:0000999");
+        VocabularyTerm term = new SolrVocabularyTerm(doc, this.ontologyService);
+
+        Assert.assertEquals(1, term.getParents().size());
+        Assert.assertTrue(term.getParents().contains("HP:0000118"));
+        Assert.assertEquals(2, term.getAncestors().size());
+        Assert.assertTrue(term.getAncestors().containsAll(Arrays.asList("HP:0000118", "HP:0000001")));
+        Assert.assertEquals(3, term.getAncestorsAndSelf().size());
+        Assert.assertTrue(term.getAncestorsAndSelf().contains("HP:0000152"));
+        verify(this.server).query(argThat(new IsGraphQuery()));
+    }
+
+    @Test
+    public void testFailedTermGraphIsNotReloadedForEachRequest() throws SolrServerException, IOException
+    {
+        when(this.server.query(argThat(new IsGraphQuery()))).thenThrow(new SolrServerException("Unavailable"));
+
+        Assert.assertEquals(-1, this.ontologyService.getDistance("HP:0000001", "HP:0000118"));
+        Assert.assertEquals(-1, this.ontologyService.getDistance("HP:0000001", "HP:0000118"));
+        verify(this.server).query(argThat(new IsGraphQuery()));
+
+        // A new index is worth loading again
+        this.ontologyService.reindex(this.getClass().getResource("/hpo-test.obo").toString());
+        this.ontologyService.getDistance("HP:0000001", "HP:0000118");
+        verify(this.server, Mockito.times(2)).query(argThat(new IsGraphQuery()));
+    }
+
+    private SolrDocument graphDocument(String id, String parent)
+    {
+        SolrDocument doc = new SolrDocument();
+        doc.addField("id", id);
+        if (parent != null) {
+            doc.addField("is_a", parent);
+        }
+        return doc;
+    }
+
+    class HasId extends ArgumentMatcher<VocabularyTerm>
+    {
+        private final String id;
+
+        HasId(String id)
+        {
+            this.id = id;
+        }
+
+        @Override
+        public boolean matches(Object argument)
+        {
+            return argument != null && StringUtils.equals(this.id, ((VocabularyTerm) argument).getId());
+        }
+    }
+
+    class IsGraphQuery extends ArgumentMatcher<SolrParams>
+    {
+        @Override
+        public boolean matches(Object argument)
+        {
+            SolrParams params = (SolrParams) argument;
+            return params != null && "*:*".equals(params.get(CommonParams.Q))
+                && StringUtils.contains(params.get(CommonParams.FL), "is_a");
+        }
+    }
+
     class IsDisMaxQuery extends ArgumentMatcher<SolrParams>
     {
         @Override
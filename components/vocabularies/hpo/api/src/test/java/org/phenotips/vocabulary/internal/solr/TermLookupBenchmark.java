@@ -0,0 +1,207 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.vocabulary.internal.solr;
+
+import org.phenotips.vocabulary.SolrVocabularyResourceManager;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import org.xwiki.cache.Cache;
+import org.xwiki.component.util.ReflectionUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.solr.client.solrj.SolrClient;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.LoggerFactory;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Compares looking up a list of terms with {@link AbstractSolrVocabulary#getTerms} against looking them up one by one
+ * with {@link AbstractSolrVocabulary#getTerm}, with a cold or a warm term cache. The Solr index is simulated, with a
+ * configurable delay for each query standing for the round trip to the server. This isn't run as part of the unit
+ * tests; run it with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.phenotips.vocabulary.internal.solr.TermLookupBenchmark}.
+ *
+ * @version $Id$
+ * @since 1.3M2
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TermLookupBenchmark
+{
+    private static final Pattern TERM_ID = Pattern.compile("HP\\\\?:[0-9]{7}");
+
+    /** How many terms are requested at once. */
+    @Param({ "10", "100", "1000" })
+    public int terms;
+
+    /** The simulated duration of each Solr query, in milliseconds. */
+    @Param({ "0", "1" })
+    public int queryLatency;
+
+    /** Whether the term cache is emptied before each lookup. */
+    @Param({ "true", "false" })
+    public boolean cold;
+
+    private final Map<String, VocabularyTerm> cacheContent = new ConcurrentHashMap<>();
+
+    private HumanPhenotypeOntology vocabulary;
+
+    private List<String> ids;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception
+    {
+        Cache<VocabularyTerm> cache = mock(Cache.class);
+        when(cache.get(anyString())).thenAnswer(new Answer<VocabularyTerm>()
+        {
+            @Override
+            public VocabularyTerm answer(InvocationOnMock invocation)
+            {
+                return TermLookupBenchmark.this.cacheContent.get(invocation.getArguments()[0]);
+            }
+        });
+        doAnswer(new Answer<Object>()
+        {
+            @Override
+            public Object answer(InvocationOnMock invocation)
+            {
+                TermLookupBenchmark.this.cacheContent.put((String) invocation.getArguments()[0],
+                    (VocabularyTerm) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(cache).set(anyString(), any(VocabularyTerm.class));
+
+        SolrClient server = mock(SolrClient.class);
+        when(server.query(any(SolrParams.class))).thenAnswer(new Answer<QueryResponse>()
+        {
+            @Override
+            public QueryResponse answer(InvocationOnMock invocation) throws InterruptedException
+            {
+                return simulateQuery((SolrParams) invocation.getArguments()[0]);
+            }
+        });
+
+        SolrVocabularyResourceManager resources = mock(SolrVocabularyResourceManager.class);
+        when(resources.getTermCache()).thenReturn(cache);
+        when(resources.getSolrConnection()).thenReturn(server);
+
+        this.vocabulary = new HumanPhenotypeOntology();
+        ReflectionUtils.setFieldValue(this.vocabulary, "logger", LoggerFactory.getLogger(HumanPhenotypeOntology.class));
+        ReflectionUtils.setFieldValue(this.vocabulary, "externalServicesAccess", resources);
+
+        this.ids = new ArrayList<>(this.terms);
+        for (int i = 1; i <= this.terms; ++i) {
+            this.ids.add(String.format("HP:%07d", i));
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareCache()
+    {
+        if (this.cold) {
+            this.cacheContent.clear();
+        }
+    }
+
+    @Benchmark
+    public Set<VocabularyTerm> getTerms()
+    {
+        return this.vocabulary.getTerms(this.ids);
+    }
+
+    @Benchmark
+    public Set<VocabularyTerm> getTermsOneByOne()
+    {
+        Set<VocabularyTerm> result = new HashSet<>();
+        for (String id : this.ids) {
+            result.add(this.vocabulary.getTerm(id));
+        }
+        return result;
+    }
+
+    /**
+     * Answers a query by returning a document for each term identifier mentioned in it, after the configured delay.
+     *
+     * @param params the query parameters
+     * @return a response listing the requested terms
+     * @throws InterruptedException if the simulated delay is interrupted
+     */
+    private QueryResponse simulateQuery(SolrParams params) throws InterruptedException
+    {
+        if (this.queryLatency > 0) {
+            Thread.sleep(this.queryLatency);
+        }
+        SolrDocumentList docs = new SolrDocumentList();
+        Matcher ids = TERM_ID.matcher(String.valueOf(params.get(CommonParams.Q)));
+        while (ids.find()) {
+            SolrDocument doc = new SolrDocument();
+            doc.addField("id", ids.group().replace("\\", ""));
+            doc.addField("name", "Term " + ids.group());
+            docs.add(doc);
+        }
+        docs.setNumFound(docs.size());
+        QueryResponse response = mock(QueryResponse.class);
+        when(response.getResults()).thenReturn(docs);
+        return response;
+    }
+
+    public static void main(String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(TermLookupBenchmark.class.getSimpleName()).build()).run();
+    }
+}
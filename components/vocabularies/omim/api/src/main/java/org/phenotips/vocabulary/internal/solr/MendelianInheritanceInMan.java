@@ -37,6 +37,7 @@
 import javax.inject.Singleton;
 
 import org.apache.commons.lang3.StringUtils;
+import org.apache.solr.client.solrj.SolrClient;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.response.QueryResponse;
@@ -203,34 +204,20 @@ public synchronized int reindex(String sourceURL)
             if (data.isEmpty()) {
                 return 2;
             }
-            if (clear() == 1) {
-                return 1;
+            // Index the new data in a separate core, so that the current index remains available until the swap
+            SolrClient replacement = this.externalServicesAccess.createReplacementCore();
+            try {
+                replacement.add(data);
+                replacement.commit();
+                this.externalServicesAccess.replaceCore();
+            } catch (SolrServerException | IOException | RuntimeException ex) {
+                this.externalServicesAccess.discardReplacementCore();
+                throw ex;
             }
-            this.externalServicesAccess.getSolrConnection().add(data);
-            this.externalServicesAccess.getSolrConnection().commit();
-            this.externalServicesAccess.getTermCache().removeAll();
         } catch (SolrServerException | IOException ex) {
             this.logger.error("Failed to reindex OMIM: {}", ex.getMessage(), ex);
             return 1;
         }
         return 0;
     }
-
-    /**
-     * Delete all the data in the Solr index.
-     *
-     * @return {@code 0} if the command was successful, {@code 1} otherwise
-     */
-    private int clear()
-    {
-        try {
-            this.externalServicesAccess.getSolrConnection().deleteByQuery("*:*");
-            return 0;
-        } catch (SolrServerException ex) {
-            this.logger.error("SolrServerException while clearing the Solr index", ex);
-        } catch (IOException ex) {
-            this.logger.error("IOException while clearing the Solr index", ex);
-        }
-        return 1;
-    }
 }